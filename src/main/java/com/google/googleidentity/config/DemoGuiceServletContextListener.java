@@ -20,13 +20,23 @@ import com.google.googleidentity.mysql.CloudSqlModule;
 import com.google.googleidentity.oauth2.client.seed.InMemoryClientSeedModule;
 import com.google.googleidentity.oauth2.client.seed.JdbcClientSeedModule;
 import com.google.googleidentity.oauth2.config.OAuth2ServerModule;
+import com.google.googleidentity.persistence.DurableStore;
+import com.google.googleidentity.persistence.Persistence;
 import com.google.googleidentity.user.seed.JdbcUserSeedModule;
 import com.google.googleidentity.user.seed.InMemoryUserSeedModule;
 import com.google.inject.Guice;
 import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.TypeLiteral;
 import com.google.inject.servlet.GuiceServletContextListener;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Set;
 
-/** Start GuiceServlet, Create an Injector for Guice in OAuth2Module{@link RequestMappingModule} */
+/**
+ * Start GuiceServlet, Create an Injector for Guice in OAuth2Module{@link RequestMappingModule}.
+ * With PERSISTENCE_DIR set, the in memory stores are recovered before the injector is handed out.
+ */
 public final class DemoGuiceServletContextListener extends GuiceServletContextListener {
   @Override
   protected Injector getInjector() {
@@ -38,11 +48,22 @@ public final class DemoGuiceServletContextListener extends GuiceServletContextLi
           new JdbcClientSeedModule(),
           new CloudSqlModule());
     } else {
-      return Guice.createInjector(
-          new RequestMappingModule(),
-          new OAuth2ServerModule(),
-          new InMemoryUserSeedModule(),
-          new InMemoryClientSeedModule());
+      Injector injector =
+          Guice.createInjector(
+              new RequestMappingModule(),
+              new OAuth2ServerModule(),
+              new InMemoryUserSeedModule(),
+              new InMemoryClientSeedModule());
+      if (Persistence.isEnabled()) {
+        try {
+          injector
+              .getInstance(Persistence.class)
+              .start(injector.getInstance(Key.get(new TypeLiteral<Set<DurableStore>>() {})));
+        } catch (IOException exception) {
+          throw new UncheckedIOException("Error when recovering the in memory stores!", exception);
+        }
+      }
+      return injector;
     }
   }
 }
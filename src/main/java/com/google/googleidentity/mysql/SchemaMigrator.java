@@ -0,0 +1,521 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.mysql;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.List;
+import java.util.logging.Logger;
+import javax.sql.DataSource;
+
+/**
+ * Bring the database schema up to date by applying the {@link Migration}s which have not been
+ * applied yet, in version order.
+ *
+ * <p>Applied versions are recorded in the schema_version table. Migrations keep the existing data,
+ * so it survives a restart or a deploy. A MySQL named lock makes sure only one
+ * instance migrates at a time when several start together.
+ *
+ * <p>New schema changes go to the end of {@link #MIGRATIONS} with the next version number. A
+ * migration which has been deployed must never be changed.
+ */
+public final class SchemaMigrator {
+
+  private static final Logger log = Logger.getLogger("SchemaMigrator");
+
+  private static final String LOCK_NAME = "oauth2demo_schema_migration";
+  private static final int LOCK_TIMEOUT_SECONDS = 60;
+
+  /** Rows updated per statement when a migration fills a new column. */
+  private static final int UPDATE_CHUNK_SIZE = 10000;
+
+  @VisibleForTesting
+  static final List<Migration> MIGRATIONS =
+      ImmutableList.of(
+          new Migration(1, "Create tables", SchemaMigrator::createTables),
+          new Migration(2, "Add secondary indexes", SchemaMigrator::addSecondaryIndexes),
+          new Migration(3, "Add revocation epochs", SchemaMigrator::addRevocationEpochs),
+          new Migration(4, "Key tokens by their SHA-256", SchemaMigrator::hashTokenKeys),
+          new Migration(5, "Add user client links", SchemaMigrator::addUserClientLinks),
+          new Migration(6, "Add refresh token families", SchemaMigrator::addTokenFamilies),
+          new Migration(7, "Add refresh token lifetimes", SchemaMigrator::addTokenLifetimes),
+          new Migration(8, "Add code creation times", SchemaMigrator::addCodeCreationTimes),
+          new Migration(9, "Add revocation times", SchemaMigrator::addRevocationTimes));
+
+  private final DataSource dataSource;
+
+  public SchemaMigrator(DataSource dataSource) {
+    this.dataSource = dataSource;
+  }
+
+  /** Apply all pending migrations. */
+  public void migrate() throws SQLException {
+    migrate(Integer.MAX_VALUE);
+  }
+
+  /** Apply pending migrations up to and including {@code targetVersion}. */
+  @VisibleForTesting
+  void migrate(int targetVersion) throws SQLException {
+    try (Connection conn = dataSource.getConnection()) {
+      acquireLock(conn);
+      try {
+        execute(
+            conn,
+            "CREATE TABLE IF NOT EXISTS schema_version "
+                + "(version INT NOT NULL, "
+                + "description VARCHAR(255), "
+                + "applied_time BIGINT, "
+                + "PRIMARY KEY (version));");
+        int current = currentVersion(conn);
+        for (Migration migration : MIGRATIONS) {
+          if (migration.version <= current || migration.version > targetVersion) {
+            continue;
+          }
+          log.info("Applying schema migration " + migration.version + ": " + migration.description);
+          migration.step.apply(conn);
+          recordVersion(conn, migration);
+        }
+      } finally {
+        releaseLock(conn);
+      }
+    }
+  }
+
+  private static int currentVersion(Connection conn) throws SQLException {
+    try (PreparedStatement statement =
+            conn.prepareStatement("SELECT MAX(version) FROM schema_version;");
+        ResultSet result = statement.executeQuery()) {
+      return result.next() ? result.getInt(1) : 0;
+    }
+  }
+
+  private static void recordVersion(Connection conn, Migration migration) throws SQLException {
+    try (PreparedStatement statement =
+        conn.prepareStatement("INSERT INTO schema_version VALUES(?, ?, ?);")) {
+      statement.setInt(1, migration.version);
+      statement.setString(2, migration.description);
+      statement.setLong(3, Instant.now().getEpochSecond());
+      statement.execute();
+    }
+  }
+
+  private static void acquireLock(Connection conn) throws SQLException {
+    try (PreparedStatement statement = conn.prepareStatement("SELECT GET_LOCK(?, ?);")) {
+      statement.setString(1, LOCK_NAME);
+      statement.setInt(2, LOCK_TIMEOUT_SECONDS);
+      try (ResultSet result = statement.executeQuery()) {
+        if (!result.next() || result.getInt(1) != 1) {
+          throw new SQLException("Timed out waiting for the schema migration lock.");
+        }
+      }
+    }
+  }
+
+  private static void releaseLock(Connection conn) throws SQLException {
+    try (PreparedStatement statement = conn.prepareStatement("SELECT RELEASE_LOCK(?);")) {
+      statement.setString(1, LOCK_NAME);
+      statement.executeQuery().close();
+    }
+  }
+
+  /**
+   * Version 1, the tables as they were before migrations existed. IF NOT EXISTS lets databases
+   * created by the old createTables be adopted as they are.
+   */
+  private static void createTables(Connection conn) throws SQLException {
+    execute(
+        conn,
+        "CREATE TABLE IF NOT EXISTS user "
+            + "(username VARCHAR(255) NOT NULL, "
+            + "password VARCHAR(255), "
+            + "email VARCHAR(255), "
+            + "google_account_id VARCHAR(255), "
+            + "PRIMARY KEY (username));");
+
+    execute(
+        conn,
+        "CREATE TABLE IF NOT EXISTS client "
+            + "(client_id VARCHAR(255) NOT NULL, "
+            + "secret VARCHAR(2047), "
+            + "grant_types VARCHAR(255), "
+            + "is_scoped BOOLEAN,"
+            + "scopes VARCHAR(2047), "
+            + "redirect_uris VARCHAR(2047),"
+            + "risc_uri VARCHAR(255),"
+            + "risc_aud VARCHAR(255),"
+            + "PRIMARY KEY (client_id));");
+
+    execute(
+        conn,
+        "CREATE TABLE IF NOT EXISTS code "
+            + "(code VARCHAR(255) NOT NULL, "
+            + "request VARBINARY(2047), "
+            + "PRIMARY KEY (code));");
+
+    execute(
+        conn,
+        "CREATE TABLE IF NOT EXISTS access_token "
+            + "(access_token VARCHAR(255) NOT NULL, "
+            + "client_id VARCHAR(255) NOT NULL, "
+            + "username VARCHAR(255) NOT NULL, "
+            + "is_scoped BOOLEAN,"
+            + "scopes VARCHAR(2047), "
+            + "expired_time BIGINT, "
+            + "refresh_token VARCHAR(255), "
+            + "PRIMARY KEY (access_token));");
+
+    execute(
+        conn,
+        "CREATE TABLE IF NOT EXISTS refresh_token "
+            + "(refresh_token VARCHAR(255) NOT NULL, "
+            + "client_id VARCHAR(255) NOT NULL, "
+            + "username VARCHAR(255) NOT NULL, "
+            + "is_scoped BOOLEAN,"
+            + "scopes VARCHAR(2047), "
+            + "PRIMARY KEY (refresh_token));");
+  }
+
+  /**
+   * Version 2, indexes for every lookup which is not by primary key: listing and revoking the
+   * tokens of a user and client, revoking the access tokens of a refresh token, the expired token
+   * cleaner and looking up users by email or Google account id.
+   */
+  private static void addSecondaryIndexes(Connection conn) throws SQLException {
+    createIndexIfMissing(
+        conn, "access_token", "idx_access_token_user_client", "username, client_id");
+    createIndexIfMissing(conn, "access_token", "idx_access_token_refresh_token", "refresh_token");
+    createIndexIfMissing(conn, "access_token", "idx_access_token_expired_time", "expired_time");
+    createIndexIfMissing(
+        conn, "refresh_token", "idx_refresh_token_user_client", "username, client_id");
+    createIndexIfMissing(conn, "user", "idx_user_email", "email");
+    createIndexIfMissing(conn, "user", "idx_user_google_account_id", "google_account_id");
+  }
+
+  /**
+   * Version 3, the revocation epoch every token is issued under, the single row sequence epochs
+   * are taken from and the epochs of revoked users, clients and user client pairs, with an empty
+   * username or client id for all of them. Existing tokens get epoch 0, which nothing revokes yet.
+   * The client id indexes let the purge find the tokens of a revoked client.
+   */
+  private static void addRevocationEpochs(Connection conn) throws SQLException {
+    addColumnIfMissing(conn, "access_token", "epoch", "BIGINT NOT NULL DEFAULT 0");
+    addColumnIfMissing(conn, "refresh_token", "epoch", "BIGINT NOT NULL DEFAULT 0");
+    execute(
+        conn,
+        "CREATE TABLE IF NOT EXISTS revocation_sequence "
+            + "(id INT NOT NULL, "
+            + "value BIGINT NOT NULL, "
+            + "PRIMARY KEY (id));");
+    execute(conn, "INSERT IGNORE INTO revocation_sequence VALUES(1, 0);");
+    execute(
+        conn,
+        "CREATE TABLE IF NOT EXISTS revocation_epoch "
+            + "(username VARCHAR(255) NOT NULL, "
+            + "client_id VARCHAR(255) NOT NULL, "
+            + "epoch BIGINT NOT NULL, "
+            + "PRIMARY KEY (username, client_id));");
+    createIndexIfMissing(conn, "access_token", "idx_access_token_client", "client_id");
+    createIndexIfMissing(conn, "refresh_token", "idx_refresh_token_client", "client_id");
+  }
+
+  /**
+   * Version 4, tokens keyed by a BINARY(32) SHA-256 of their value instead of the value, and an
+   * access token referring to its refresh token by that key, see TokenHashes. The values are not
+   * kept, so a token only comes with its RISC identifier when it is listed, which is stored in
+   * risc_id.
+   *
+   * <p>The new columns of existing rows are filled in chunks, then each table swaps its key
+   * columns in a single ALTER, which MySQL applies atomically. A table already swapped is skipped,
+   * so a migration which failed half way is retried from the table it stopped at. Servers running
+   * the code from before cannot use the tables afterwards.
+   */
+  private static void hashTokenKeys(Connection conn) throws SQLException {
+    if (!"binary".equals(columnType(conn, "refresh_token", "refresh_token"))) {
+      addColumnIfMissing(conn, "refresh_token", "refresh_token_key", "BINARY(32)");
+      addColumnIfMissing(conn, "refresh_token", "risc_id", "BINARY(64)");
+      updateInChunks(
+          conn,
+          "refresh_token",
+          "refresh_token",
+          "refresh_token_key = "
+              + sha256("refresh_token")
+              + ", risc_id = "
+              + riscIdentifier("refresh_token"));
+      execute(
+          conn,
+          "ALTER TABLE refresh_token DROP PRIMARY KEY, DROP COLUMN refresh_token, "
+              + "CHANGE COLUMN refresh_token_key refresh_token BINARY(32) NOT NULL, "
+              + "MODIFY COLUMN risc_id BINARY(64) NOT NULL, "
+              + "ADD PRIMARY KEY (refresh_token);");
+    }
+    if (!"binary".equals(columnType(conn, "access_token", "access_token"))) {
+      addColumnIfMissing(conn, "access_token", "access_token_key", "BINARY(32)");
+      addColumnIfMissing(conn, "access_token", "refresh_token_key", "BINARY(32)");
+      addColumnIfMissing(conn, "access_token", "risc_id", "BINARY(64)");
+      updateInChunks(
+          conn,
+          "access_token",
+          "access_token",
+          "access_token_key = "
+              + sha256("access_token")
+              + ", refresh_token_key = "
+              + sha256("NULLIF(refresh_token, '')")
+              + ", risc_id = "
+              + riscIdentifier("access_token"));
+      // Dropping refresh_token drops idx_access_token_refresh_token with it.
+      execute(
+          conn,
+          "ALTER TABLE access_token DROP PRIMARY KEY, "
+              + "DROP COLUMN access_token, DROP COLUMN refresh_token, "
+              + "CHANGE COLUMN access_token_key access_token BINARY(32) NOT NULL, "
+              + "CHANGE COLUMN refresh_token_key refresh_token BINARY(32), "
+              + "MODIFY COLUMN risc_id BINARY(64) NOT NULL, "
+              + "ADD PRIMARY KEY (access_token);");
+    }
+    createIndexIfMissing(conn, "access_token", "idx_access_token_refresh_token", "refresh_token");
+  }
+
+  /**
+   * Version 5, a row for every user and client with tokens, so the clients of a user are read
+   * from its primary key instead of the token tables. Filled from the existing tokens, INSERT
+   * IGNORE keeps the rows of tokens issued meanwhile by servers already on the new code. Tokens
+   * issued by servers still running the code from before are not listed until the user is issued
+   * tokens for the client again.
+   */
+  private static void addUserClientLinks(Connection conn) throws SQLException {
+    execute(
+        conn,
+        "CREATE TABLE IF NOT EXISTS user_client_link "
+            + "(username VARCHAR(255) NOT NULL, "
+            + "client_id VARCHAR(255) NOT NULL, "
+            + "PRIMARY KEY (username, client_id));");
+    execute(
+        conn,
+        "INSERT IGNORE INTO user_client_link "
+            + "SELECT DISTINCT username, client_id FROM refresh_token;");
+    execute(
+        conn,
+        "INSERT IGNORE INTO user_client_link "
+            + "SELECT DISTINCT username, client_id FROM access_token;");
+  }
+
+  /**
+   * Version 6, the family of rotated refresh tokens and of the access tokens issued with them, a
+   * family is revoked by deleting its one refresh token row, see JdbcOAuth2TokenService. Superseded
+   * refresh tokens are kept by key until their reuse detection ends, so presenting one again is
+   * recognized. Existing tokens have no family and are not affected.
+   */
+  private static void addTokenFamilies(Connection conn) throws SQLException {
+    addColumnIfMissing(conn, "refresh_token", "family_id", "VARCHAR(64)");
+    addColumnIfMissing(conn, "access_token", "family_id", "VARCHAR(64)");
+    createIndexIfMissing(conn, "refresh_token", "idx_refresh_token_family", "family_id");
+    execute(
+        conn,
+        "CREATE TABLE IF NOT EXISTS superseded_refresh_token "
+            + "(refresh_token BINARY(32) NOT NULL, "
+            + "family_id VARCHAR(64) NOT NULL, "
+            + "expired_time BIGINT NOT NULL, "
+            + "PRIMARY KEY (refresh_token));");
+    createIndexIfMissing(
+        conn, "superseded_refresh_token", "idx_superseded_refresh_token_expired", "expired_time");
+  }
+
+  /**
+   * Version 7, when a refresh token, or the first token of its family, was issued and when it was
+   * last used, with an index each for the purge of expired tokens. Existing tokens start their
+   * lifetimes at the migration, the time is the default of the new columns.
+   */
+  private static void addTokenLifetimes(Connection conn) throws SQLException {
+    long now = Instant.now().getEpochSecond();
+    addColumnIfMissing(conn, "refresh_token", "issued_time", "BIGINT NOT NULL DEFAULT " + now);
+    addColumnIfMissing(conn, "refresh_token", "last_used_time", "BIGINT NOT NULL DEFAULT " + now);
+    createIndexIfMissing(conn, "refresh_token", "idx_refresh_token_issued_time", "issued_time");
+    createIndexIfMissing(
+        conn, "refresh_token", "idx_refresh_token_last_used_time", "last_used_time");
+  }
+
+  /**
+   * Version 8, when an authorization code was set, codes expire a short time later, with an index
+   * for the purge of expired codes. Existing codes take 0, so they are expired and purged. The
+   * insert of the code from before lists no columns, so those servers fail to set codes until they
+   * are updated.
+   */
+  private static void addCodeCreationTimes(Connection conn) throws SQLException {
+    addColumnIfMissing(conn, "code", "created_at", "BIGINT NOT NULL DEFAULT 0");
+    createIndexIfMissing(conn, "code", "idx_code_created_at", "created_at");
+  }
+
+  /**
+   * Version 9, when a scope was revoked, so its revocation epoch is deleted once every token it
+   * revokes has expired, with an index for the purge. Existing epochs count as revoked at the
+   * migration. The insert of the code from before lists no columns, so those servers fail to
+   * revoke scopes until they are updated.
+   */
+  private static void addRevocationTimes(Connection conn) throws SQLException {
+    long now = Instant.now().getEpochSecond();
+    addColumnIfMissing(conn, "revocation_epoch", "revoked_time", "BIGINT NOT NULL DEFAULT " + now);
+    createIndexIfMissing(
+        conn, "revocation_epoch", "idx_revocation_epoch_revoked_time", "revoked_time");
+  }
+
+  private static String sha256(String expression) {
+    return "UNHEX(SHA2(" + expression + ", 256))";
+  }
+
+  /** The SHA-512 of the SHA-512 of the value, as RISC events identify tokens. */
+  private static String riscIdentifier(String expression) {
+    return "UNHEX(SHA2(UNHEX(SHA2(" + expression + ", 512)), 512))";
+  }
+
+  /**
+   * Apply {@code assignments} to all rows of the table, one chunk of its string primary key at a
+   * time, so no statement locks the whole table for long.
+   */
+  private static void updateInChunks(
+      Connection conn, String table, String primaryKey, String assignments) throws SQLException {
+    String last = "";
+    while (true) {
+      String next = null;
+      try (PreparedStatement statement =
+          conn.prepareStatement(
+              "SELECT "
+                  + primaryKey
+                  + " FROM "
+                  + table
+                  + " WHERE "
+                  + primaryKey
+                  + " > ? ORDER BY "
+                  + primaryKey
+                  + " LIMIT 1 OFFSET ?;")) {
+        statement.setString(1, last);
+        statement.setInt(2, UPDATE_CHUNK_SIZE - 1);
+        try (ResultSet result = statement.executeQuery()) {
+          if (result.next()) {
+            next = result.getString(1);
+          }
+        }
+      }
+      try (PreparedStatement statement =
+          conn.prepareStatement(
+              "UPDATE "
+                  + table
+                  + " SET "
+                  + assignments
+                  + " WHERE "
+                  + primaryKey
+                  + " > ?"
+                  + (next == null ? "" : " AND " + primaryKey + " <= ?")
+                  + ";")) {
+        statement.setString(1, last);
+        if (next != null) {
+          statement.setString(2, next);
+        }
+        statement.executeUpdate();
+      }
+      if (next == null) {
+        return;
+      }
+      last = next;
+    }
+  }
+
+  /** The data type of the column, e.g. varchar, or null if there is no such column. */
+  private static String columnType(Connection conn, String table, String column)
+      throws SQLException {
+    try (PreparedStatement statement =
+        conn.prepareStatement(
+            "SELECT data_type FROM information_schema.columns "
+                + "WHERE table_schema = DATABASE() AND table_name = ? AND column_name = ?;")) {
+      statement.setString(1, table);
+      statement.setString(2, column);
+      try (ResultSet result = statement.executeQuery()) {
+        return result.next() ? result.getString(1).toLowerCase() : null;
+      }
+    }
+  }
+
+  /** Like {@link #createIndexIfMissing}, for columns. */
+  @VisibleForTesting
+  static void addColumnIfMissing(Connection conn, String table, String column, String definition)
+      throws SQLException {
+    try (PreparedStatement statement =
+        conn.prepareStatement(
+            "SELECT 1 FROM information_schema.columns "
+                + "WHERE table_schema = DATABASE() AND table_name = ? AND column_name = ?;")) {
+      statement.setString(1, table);
+      statement.setString(2, column);
+      try (ResultSet result = statement.executeQuery()) {
+        if (result.next()) {
+          return;
+        }
+      }
+    }
+    execute(conn, "ALTER TABLE " + table + " ADD COLUMN " + column + " " + definition + ";");
+  }
+
+  /**
+   * MySQL has no CREATE INDEX IF NOT EXISTS and DDL is not transactional, so a migration which
+   * failed half way is retried by skipping the indexes it already created.
+   */
+  @VisibleForTesting
+  static void createIndexIfMissing(Connection conn, String table, String index, String columns)
+      throws SQLException {
+    try (PreparedStatement statement =
+        conn.prepareStatement(
+            "SELECT 1 FROM information_schema.statistics "
+                + "WHERE table_schema = DATABASE() AND table_name = ? AND index_name = ?;")) {
+      statement.setString(1, table);
+      statement.setString(2, index);
+      try (ResultSet result = statement.executeQuery()) {
+        if (result.next()) {
+          return;
+        }
+      }
+    }
+    execute(conn, "CREATE INDEX " + index + " ON " + table + " (" + columns + ");");
+  }
+
+  private static void execute(Connection conn, String stmt) throws SQLException {
+    try (PreparedStatement statement = conn.prepareStatement(stmt)) {
+      statement.execute();
+    }
+  }
+
+  /** One versioned change to the schema. */
+  @VisibleForTesting
+  static final class Migration {
+    final int version;
+    final String description;
+    final Step step;
+
+    Migration(int version, String description, Step step) {
+      this.version = version;
+      this.description = description;
+      this.step = step;
+    }
+  }
+
+  @FunctionalInterface
+  interface Step {
+    void apply(Connection conn) throws SQLException;
+  }
+}
@@ -16,16 +16,24 @@
 
 package com.google.googleidentity.oauth2.authorizationcode;
 
+import com.google.googleidentity.persistence.DurableStore;
+import com.google.googleidentity.persistence.Persistence;
 import com.google.inject.AbstractModule;
+import com.google.inject.multibindings.Multibinder;
 
 public class AuthorizationCodeModule extends AbstractModule {
 
   @Override
   protected void configure() {
-    bind(CodeStore.class)
-        .to(
-            ("true").equals(System.getenv("USE_CLOUD_SQL"))
-                ? JdbcCodeStore.class
-                : InMemoryCodeStore.class);
+    if (("true").equals(System.getenv("USE_CLOUD_SQL"))) {
+      bind(CodeStore.class).to(JdbcCodeStore.class);
+    } else if (Persistence.isEnabled()) {
+      Multibinder.newSetBinder(binder(), DurableStore.class)
+          .addBinding()
+          .to(DurableCodeStore.class);
+      bind(CodeStore.class).to(DurableCodeStore.class);
+    } else {
+      bind(CodeStore.class).to(InMemoryCodeStore.class);
+    }
   }
 }
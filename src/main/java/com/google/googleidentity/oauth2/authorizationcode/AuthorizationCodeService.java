@@ -17,14 +17,18 @@
 package com.google.googleidentity.oauth2.authorizationcode;
 
 import com.google.common.base.Charsets;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import com.google.common.hash.Hashing;
 import com.google.common.io.BaseEncoding;
 import com.google.googleidentity.oauth2.request.OAuth2Request;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 
+import java.security.SecureRandom;
+import java.util.Arrays;
 import java.util.Optional;
-import java.util.Random;
 
 /** AuthorizationCodeService, generate Authorization Code and Store it */
 @Singleton
@@ -35,7 +39,34 @@ public final class AuthorizationCodeService {
       System.getenv("AUTH_CODE_LENGTH") ==
           null ? "10" : System.getenv("AUTH_CODE_LENGTH");
 
-  private final Random random = new Random();
+  /** Number of user and client pairs whose code prefix is cached. */
+  private static final int PREFIX_CACHE_SIZE =
+      System.getenv("AUTH_CODE_PREFIX_CACHE_SIZE") == null
+          ? 10000
+          : Integer.parseInt(System.getenv("AUTH_CODE_PREFIX_CACHE_SIZE"));
+
+  private static final int MAX_PREFIX_BYTES = 3;
+
+  private static final BaseEncoding CODE_ENCODING = BaseEncoding.base64Url().withPadChar('*');
+
+  /** One per thread, so threads generating codes do not contend on one seed. */
+  private static final ThreadLocal<SecureRandom> random =
+      ThreadLocal.withInitial(SecureRandom::new);
+
+  /** The first bytes of sha256(clientID + username), by clientID + username. */
+  private final LoadingCache<String, byte[]> prefixCache =
+      CacheBuilder.newBuilder()
+          .maximumSize(PREFIX_CACHE_SIZE)
+          .build(
+              new CacheLoader<String, byte[]>() {
+                @Override
+                public byte[] load(String key) {
+                  return Arrays.copyOf(
+                      Hashing.sha256().hashString(key, Charsets.UTF_8).asBytes(),
+                      MAX_PREFIX_BYTES);
+                }
+              });
+
   private final CodeStore codeStore;
   private int codeLength = Integer.parseInt(AUTH_CODE_LENGTH);
 
@@ -89,22 +120,22 @@ public final class AuthorizationCodeService {
   /**
    * Associate with client and username to reduce collisions. When generating random bytes, set
    * first numPrefixBytesToCopy bytes as the first numPrefixBytesToCopy bytes of sha256(clientID +
-   * username). To get enough randomness, numPrefixBytesToCopy = min(3, byteLength/2).
+   * username). To get enough randomness, numPrefixBytesToCopy = min(3, byteLength/2). The prefix
+   * is cached, so the hash is only computed again for pairs which were evicted.
    */
   private String generateCode(String clientID, String username) {
 
     byte[] authCodeBytes = new byte[byteLength];
 
-    random.nextBytes(authCodeBytes);
+    random.get().nextBytes(authCodeBytes);
 
-    int numPrefixBytesToCopy = Math.min(3, byteLength / 2);
-    byte[] prefixBytes =
-        Hashing.sha256().hashString(clientID + username, Charsets.UTF_8).asBytes();
+    int numPrefixBytesToCopy = Math.min(MAX_PREFIX_BYTES, byteLength / 2);
+    byte[] prefixBytes = prefixCache.getUnchecked(clientID + username);
 
     System.arraycopy(prefixBytes, 0, authCodeBytes, 0, numPrefixBytesToCopy);
 
     // Here we truncate the result since the encode hex may be longer the codeLength.
-    return BaseEncoding.base64Url().withPadChar('*').encode(authCodeBytes).substring(0, codeLength);
+    return CODE_ENCODING.encode(authCodeBytes).substring(0, codeLength);
   }
 
   public void reset() {
@@ -23,14 +23,21 @@ import java.util.Optional;
 /** AuthorizationCode store interface */
 interface CodeStore {
 
-  /** @return the related request and delete the code */
+  /** Seconds a code can be consumed after it is set, the value can be set in appengine-web.xml. */
+  long CODE_TTL_SECONDS =
+      System.getenv("AUTH_CODE_TTL_SECONDS") == null
+          ? 60
+          : Long.parseLong(System.getenv("AUTH_CODE_TTL_SECONDS"));
+
+  /** @return the related request and delete the code, empty if the code expired */
   Optional<OAuth2Request> consumeCode(String code);
 
   /**
    * Set the code for the request, failed when a code is already exist, the code Service should
-   * generate a new code and try again
+   * generate a new code and try again. The code expires {@link #CODE_TTL_SECONDS} later.
    *
    * @return success or not
+   * @throws com.google.googleidentity.oauth2.exception.OAuth2ServerException if the store is full
    */
   boolean setCode(String code, OAuth2Request request);
 
@@ -0,0 +1,186 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.authorizationcode;
+
+import com.google.googleidentity.oauth2.request.OAuth2Request;
+import com.google.googleidentity.persistence.DurableStore;
+import com.google.googleidentity.persistence.LogRecord;
+import com.google.googleidentity.persistence.Persistence;
+import com.google.googleidentity.persistence.SnapshotWriter;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Keeps the codes of an {@link InMemoryCodeStore} across restarts through {@link Persistence}.
+ *
+ * <p>Set and consumed codes are logged under the code. A code is only consumed once it was set, so
+ * its records are logged in order without a lock of their own, only {@link #reset()} excludes the
+ * other updates.
+ *
+ * <p>Set codes are logged with when they expire, codes which expired before a restart are not
+ * restored. Codes dropped by the cleaner of the delegate are not logged, they have expired and are
+ * dropped again when restored. Codes logged before expiry was recorded get a new lifetime when
+ * restored.
+ */
+@Singleton
+public final class DurableCodeStore implements CodeStore, DurableStore {
+
+  static final byte STORE_ID = 2;
+
+  private static final byte SET_CODE = 1;
+  private static final byte CONSUME_CODE = 2;
+  private static final byte RESET = 3;
+  private static final byte SET_EXPIRING_CODE = 4;
+
+  private final InMemoryCodeStore delegate;
+  private final Persistence persistence;
+  private final ReadWriteLock resetLock = new ReentrantReadWriteLock();
+
+  @Inject
+  public DurableCodeStore(InMemoryCodeStore delegate, Persistence persistence) {
+    this.delegate = delegate;
+    this.persistence = persistence;
+  }
+
+  @Override
+  public Optional<OAuth2Request> consumeCode(String code) {
+    Optional<OAuth2Request> request;
+    CompletableFuture<Void> durable = null;
+    resetLock.readLock().lock();
+    try {
+      request = delegate.consumeCode(code);
+      if (request.isPresent()) {
+        durable =
+            persistence.append(
+                LogRecord.of(
+                    STORE_ID, CONSUME_CODE, code, code.getBytes(StandardCharsets.UTF_8)));
+      }
+    } finally {
+      resetLock.readLock().unlock();
+    }
+    if (durable != null) {
+      Persistence.await(durable);
+    }
+    return request;
+  }
+
+  @Override
+  public boolean setCode(String code, OAuth2Request request) {
+    boolean set;
+    CompletableFuture<Void> durable = null;
+    resetLock.readLock().lock();
+    try {
+      long expiredTime = delegate.newExpiredTime();
+      set = delegate.setCode(code, request, expiredTime);
+      if (set) {
+        durable = persistence.append(codeRecord(code, request, expiredTime));
+      }
+    } finally {
+      resetLock.readLock().unlock();
+    }
+    if (durable != null) {
+      Persistence.await(durable);
+    }
+    return set;
+  }
+
+  @Override
+  public void reset() {
+    CompletableFuture<Void> durable;
+    resetLock.writeLock().lock();
+    try {
+      delegate.reset();
+      durable = persistence.append(LogRecord.barrier(STORE_ID, RESET, new byte[0]));
+    } finally {
+      resetLock.writeLock().unlock();
+    }
+    Persistence.await(durable);
+  }
+
+  @Override
+  public byte getStoreId() {
+    return STORE_ID;
+  }
+
+  @Override
+  public void writeSnapshot(SnapshotWriter snapshot) throws IOException {
+    try {
+      delegate.forEach(
+          (code, pending) -> {
+            try {
+              snapshot.write(codeRecord(code, pending.getRequest(), pending.getExpiredTime()));
+            } catch (IOException exception) {
+              throw new UncheckedIOException(exception);
+            }
+          });
+    } catch (UncheckedIOException exception) {
+      throw exception.getCause();
+    }
+  }
+
+  @Override
+  public void apply(LogRecord record) throws IOException {
+    CodedInputStream input;
+    String code;
+    switch (record.getType()) {
+      case SET_CODE:
+        input = CodedInputStream.newInstance(record.getPayload());
+        code = input.readString();
+        delegate.restoreCode(code, OAuth2Request.parseFrom(input), delegate.newExpiredTime());
+        break;
+      case SET_EXPIRING_CODE:
+        input = CodedInputStream.newInstance(record.getPayload());
+        code = input.readString();
+        long expiredTime = input.readInt64();
+        delegate.restoreCode(code, OAuth2Request.parseFrom(input), expiredTime);
+        break;
+      case CONSUME_CODE:
+        delegate.consumeCode(new String(record.getPayload(), StandardCharsets.UTF_8));
+        break;
+      case RESET:
+        delegate.reset();
+        break;
+      default:
+        throw new IOException("Unknown code record type " + record.getType());
+    }
+  }
+
+  /** The code and when it expires, followed by its request. */
+  private static LogRecord codeRecord(String code, OAuth2Request request, long expiredTime) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    CodedOutputStream output = CodedOutputStream.newInstance(bytes);
+    try {
+      output.writeStringNoTag(code);
+      output.writeInt64NoTag(expiredTime);
+      request.writeTo(output);
+      output.flush();
+    } catch (IOException exception) {
+      throw new UncheckedIOException(exception);
+    }
+    return LogRecord.of(STORE_ID, SET_EXPIRING_CODE, code, bytes.toByteArray());
+  }
+}
@@ -16,44 +16,156 @@
 
 package com.google.googleidentity.oauth2.authorizationcode;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.googleidentity.oauth2.exception.OAuth2ServerException;
 import com.google.googleidentity.oauth2.request.OAuth2Request;
+import com.google.googleidentity.oauth2.util.ExpiryQueue;
+import com.google.googleidentity.oauth2.util.ScheduledTasks;
 import com.google.inject.Singleton;
 
+import java.time.Instant;
 import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.logging.Logger;
 
-/** InMemory AuthorizationCode store, an implementation for {@link CodeStore} */
+/**
+ * InMemory AuthorizationCode store, an implementation for {@link CodeStore}
+ *
+ * <p>Codes are tracked in an {@link ExpiryQueue} by the second they expire, a cleaner drops the
+ * expired ones every second, so abandoned codes do not stay on the heap. At most {@code
+ * AUTH_CODE_MAX_OUTSTANDING} codes are kept, setting one more fails until codes are consumed or
+ * expire. Concurrent calls of {@link #setCode} may each add a code past the limit, so it can be
+ * exceeded by at most their number.
+ */
 @Singleton
 public final class InMemoryCodeStore implements CodeStore {
 
-  private final ConcurrentHashMap<String, OAuth2Request> codeStore = new ConcurrentHashMap<>();
+  private static final Logger log = Logger.getLogger("InMemoryCodeStore");
+  private static final long EXPIRY_BUCKET_SECONDS = 1;
 
-  public InMemoryCodeStore() {}
+  private static final int MAX_OUTSTANDING_CODES =
+      System.getenv("AUTH_CODE_MAX_OUTSTANDING") == null
+          ? 100000
+          : Integer.parseInt(System.getenv("AUTH_CODE_MAX_OUTSTANDING"));
+
+  private final ConcurrentHashMap<String, PendingCode> codeStore = new ConcurrentHashMap<>();
+  private final ExpiryQueue<String> codeExpiry = new ExpiryQueue<>(EXPIRY_BUCKET_SECONDS);
+  private final long ttlSeconds;
+  private final int maxOutstandingCodes;
+  final ScheduledExecutorService service;
+
+  public InMemoryCodeStore() {
+    this(CODE_TTL_SECONDS, MAX_OUTSTANDING_CODES);
+  }
+
+  @VisibleForTesting
+  InMemoryCodeStore(long ttlSeconds, int maxOutstandingCodes) {
+    this.ttlSeconds = ttlSeconds;
+    this.maxOutstandingCodes = maxOutstandingCodes;
+    service = Executors.newSingleThreadScheduledExecutor();
+    service.scheduleAtFixedRate(
+        ScheduledTasks.quietly(
+            log,
+            "Error when removing expired codes!",
+            () -> removeExpiredCodes(Instant.now().getEpochSecond())),
+        EXPIRY_BUCKET_SECONDS,
+        EXPIRY_BUCKET_SECONDS,
+        TimeUnit.SECONDS);
+  }
 
   @Override
   public Optional<OAuth2Request> consumeCode(String code) {
-    if (codeStore.containsKey(code)) {
-      OAuth2Request request = codeStore.get(code);
-      codeStore.remove(code);
-      return Optional.ofNullable(request);
-    } else {
+    PendingCode pending = codeStore.remove(code);
+    if (pending == null) {
+      return Optional.empty();
+    }
+    codeExpiry.remove(code, pending.getExpiredTime());
+    if (pending.isExpired(Instant.now().getEpochSecond())) {
       return Optional.empty();
     }
+    return Optional.of(pending.getRequest());
   }
 
-  /** The synchronize here is just for demo when using in memory storage. */
   @Override
-  public synchronized boolean setCode(String code, OAuth2Request request) {
-    if (codeStore.containsKey(code)) {
+  public boolean setCode(String code, OAuth2Request request) {
+    return setCode(code, request, newExpiredTime());
+  }
+
+  boolean setCode(String code, OAuth2Request request, long expiredTime) {
+    if (codeStore.size() >= maxOutstandingCodes) {
+      removeExpiredCodes(Instant.now().getEpochSecond());
+      if (codeStore.size() >= maxOutstandingCodes) {
+        throw new OAuth2ServerException("Too many outstanding authorization codes!");
+      }
+    }
+    if (codeStore.putIfAbsent(code, new PendingCode(request, expiredTime)) != null) {
       return false;
-    } else {
-      codeStore.put(code, request);
-      return true;
     }
+    codeExpiry.add(code, expiredTime);
+    return true;
+  }
+
+  /**
+   * Put back a code set before a restart, without the limit on outstanding codes. Codes which
+   * expired meanwhile are dropped.
+   */
+  void restoreCode(String code, OAuth2Request request, long expiredTime) {
+    if (expiredTime < Instant.now().getEpochSecond()) {
+      return;
+    }
+    codeStore.put(code, new PendingCode(request, expiredTime));
+    codeExpiry.add(code, expiredTime);
+  }
+
+  /** When a code set now expires, in epoch seconds. */
+  long newExpiredTime() {
+    return Instant.now().getEpochSecond() + ttlSeconds;
   }
 
   @Override
   public void reset() {
     codeStore.clear();
+    codeExpiry.clear();
+  }
+
+  /** Pass every code which has not been consumed with its request to the action. */
+  void forEach(BiConsumer<String, PendingCode> action) {
+    codeStore.forEach(action);
+  }
+
+  /** Remove the codes which expired before {@code now} (epoch seconds). */
+  @VisibleForTesting
+  void removeExpiredCodes(long now) {
+    for (String code : codeExpiry.pollExpired(now)) {
+      // The code may have been consumed and set again since, with a later expiry.
+      codeStore.computeIfPresent(code, (key, pending) -> pending.isExpired(now) ? null : pending);
+    }
+  }
+
+  /** A code's request and when the code expires, in epoch seconds. */
+  static final class PendingCode {
+    private final OAuth2Request request;
+    private final long expiredTime;
+
+    PendingCode(OAuth2Request request, long expiredTime) {
+      this.request = request;
+      this.expiredTime = expiredTime;
+    }
+
+    OAuth2Request getRequest() {
+      return request;
+    }
+
+    long getExpiredTime() {
+      return expiredTime;
+    }
+
+    boolean isExpired(long now) {
+      return expiredTime < now;
+    }
   }
 }
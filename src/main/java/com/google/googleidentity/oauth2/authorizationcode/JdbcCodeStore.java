@@ -18,140 +18,125 @@ package com.google.googleidentity.oauth2.authorizationcode;
 
 import com.google.googleidentity.oauth2.exception.OAuth2ServerException;
 import com.google.googleidentity.oauth2.request.OAuth2Request;
+import com.google.googleidentity.oauth2.util.ScheduledTasks;
 import com.google.inject.Inject;
+import com.google.inject.Singleton;
 import com.google.protobuf.InvalidProtocolBufferException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
-import java.util.logging.Level;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 import javax.sql.DataSource;
 
-/** Jdbc implementation for {@link CodeStore} */
+/**
+ * Jdbc implementation for {@link CodeStore}
+ *
+ * <p>Codes keep the second they were set in created_at, a code created more than {@link
+ * #CODE_TTL_SECONDS} ago is not consumed. Setting a code is one INSERT and consuming it is decided
+ * by one DELETE, without transactions, so a code is never consumed twice.
+ *
+ * <p>Every minute, the expired codes are deleted in chunks walked on idx_code_created_at, each
+ * chunk in its own short statement so setting and consuming codes can run in between.
+ */
+@Singleton
 public class JdbcCodeStore implements CodeStore {
 
+  private static final long PURGE_PERIOD_SECONDS = 60;
+
+  /** Rows deleted per statement by the expired code purge. */
+  private static final int PURGE_CHUNK_SIZE = 1000;
+
+  private static final long PURGE_PAUSE_MILLIS = 100;
+
   private final DataSource dataSource;
 
   private final Logger log = Logger.getLogger("JdbcCodeStore");
 
+  private ScheduledExecutorService service;
+
   @Inject
   public JdbcCodeStore(DataSource dataSource) {
     this.dataSource = dataSource;
+    setCodeCleaner();
+  }
+
+  private void setCodeCleaner() {
+    service = Executors.newSingleThreadScheduledExecutor();
+    service.scheduleWithFixedDelay(
+        ScheduledTasks.quietly(
+            log,
+            "Error when purging expired codes!",
+            () -> purgeExpiredCodes(Instant.now().getEpochSecond())),
+        PURGE_PERIOD_SECONDS,
+        PURGE_PERIOD_SECONDS,
+        TimeUnit.SECONDS);
   }
 
+  /**
+   * The DELETE is the one atomic step, of concurrent requests for a code only the one which
+   * deletes its row gets the request. MySQL cannot return the deleted row, so the request is read
+   * first without a lock, and the DELETE matches the created_at read so a code set again meanwhile
+   * is not taken.
+   */
   @Override
   public Optional<OAuth2Request> consumeCode(String code) {
-    Connection conn = null;
-    PreparedStatement statement = null;
-    ResultSet result = null;
-    try {
-      conn = dataSource.getConnection();
-      conn.setAutoCommit(false);
-      String stmt = "SELECT * FROM code WHERE code = ?;";
-      statement = conn.prepareStatement(stmt);
-      statement.setString(1, code);
-      result = statement.executeQuery();
-      if (result.next()) {
-        stmt = "DELETE FROM code WHERE code = ?;";
-        statement = conn.prepareStatement(stmt);
+    try (Connection conn = dataSource.getConnection()) {
+      byte[] request;
+      long createdAt;
+      try (PreparedStatement statement =
+          conn.prepareStatement(
+              "SELECT request, created_at FROM code WHERE code = ? AND created_at >= ?;")) {
         statement.setString(1, code);
-        statement.execute();
-        Optional<OAuth2Request> client =
-            Optional.ofNullable(OAuth2Request.parseFrom(result.getBytes("request")));
-        conn.commit();
-        return client;
-      }
-    } catch (SQLException | InvalidProtocolBufferException exception) {
-      try {
-        if (conn != null) {
-          conn.rollback();
-        }
-      } catch (SQLException exception1) {
-        throw new OAuth2ServerException(exception1);
-      }
-      throw new OAuth2ServerException(exception);
-    } finally {
-      if (result != null) {
-        try {
-          result.close();
-        } catch (SQLException exception2) {
-          throw new OAuth2ServerException(exception2);
+        statement.setLong(2, Instant.now().getEpochSecond() - CODE_TTL_SECONDS);
+        try (ResultSet result = statement.executeQuery()) {
+          if (!result.next()) {
+            return Optional.empty();
+          }
+          request = result.getBytes("request");
+          createdAt = result.getLong("created_at");
         }
       }
-      if (statement != null) {
-        try {
-          statement.close();
-        } catch (SQLException exception3) {
-          throw new OAuth2ServerException(exception3);
-        }
-      }
-      if (conn != null) {
-        try {
-          conn.close();
-        } catch (SQLException exception4) {
-          throw new OAuth2ServerException(exception4);
+      try (PreparedStatement statement =
+          conn.prepareStatement("DELETE FROM code WHERE code = ? AND created_at = ?;")) {
+        statement.setString(1, code);
+        statement.setLong(2, createdAt);
+        if (statement.executeUpdate() == 0) {
+          // Consumed by a concurrent request.
+          return Optional.empty();
         }
       }
+      return Optional.of(OAuth2Request.parseFrom(request));
+    } catch (SQLException | InvalidProtocolBufferException exception) {
+      throw new OAuth2ServerException(exception);
     }
-    return Optional.empty();
   }
 
+  /** A single INSERT, the primary key rejects a code which is already set. */
   @Override
   public boolean setCode(String code, OAuth2Request request) {
-    Connection conn = null;
-    PreparedStatement statement = null;
-    ResultSet result = null;
-    try {
-      conn = dataSource.getConnection();
-      conn.setAutoCommit(false);
-      String stmt = "SELECT * FROM code WHERE code = ?;";
-      statement = conn.prepareStatement(stmt);
+    try (Connection conn = dataSource.getConnection();
+        PreparedStatement statement =
+            conn.prepareStatement(
+                "INSERT INTO code (code, request, created_at) VALUES(?, ?, ?);")) {
       statement.setString(1, code);
-      result = statement.executeQuery();
-      if (!result.next()) {
-        stmt = "INSERT INTO code VALUES(?, ?);";
-        statement = conn.prepareStatement(stmt);
-        statement.setString(1, code);
-        statement.setBytes(2, request.toByteArray());
-        statement.execute();
-        conn.commit();
-        return true;
-      } else {
-        return false;
-      }
+      statement.setBytes(2, request.toByteArray());
+      statement.setLong(3, Instant.now().getEpochSecond());
+      statement.executeUpdate();
+      return true;
+    } catch (SQLIntegrityConstraintViolationException exception) {
+      return false;
     } catch (SQLException exception) {
-      try {
-        if (conn != null) {
-          conn.rollback();
-        }
-      } catch (SQLException exception1) {
-        throw new OAuth2ServerException(exception1);
-      }
       throw new OAuth2ServerException(exception);
-    } finally {
-      if (result != null) {
-        try {
-          result.close();
-        } catch (SQLException exception2) {
-          throw new OAuth2ServerException(exception2);
-        }
-      }
-      if (statement != null) {
-        try {
-          statement.close();
-        } catch (SQLException exception3) {
-          throw new OAuth2ServerException(exception3);
-        }
-      }
-      if (conn != null) {
-        try {
-          conn.close();
-        } catch (SQLException exception4) {
-          throw new OAuth2ServerException(exception4);
-        }
-      }
     }
   }
 
@@ -200,4 +185,50 @@ public class JdbcCodeStore implements CodeStore {
       }
     }
   }
+
+  /**
+   * Delete the codes which expired before {@code now} (epoch seconds). Each chunk reads its codes
+   * with a plain SELECT which takes no locks, then deletes them by primary key if they are still
+   * expired. Deleted rows no longer match, so each chunk reads from the start of the index again.
+   *
+   * @return the number of codes deleted
+   */
+  int purgeExpiredCodes(long now) throws SQLException, InterruptedException {
+    long bound = now - CODE_TTL_SECONDS;
+    int purged = 0;
+    while (true) {
+      List<String> codes = new ArrayList<>(PURGE_CHUNK_SIZE);
+      try (Connection conn = dataSource.getConnection()) {
+        try (PreparedStatement statement =
+            conn.prepareStatement(
+                "SELECT code FROM code WHERE created_at < ? ORDER BY created_at LIMIT ?;")) {
+          statement.setLong(1, bound);
+          statement.setInt(2, PURGE_CHUNK_SIZE);
+          try (ResultSet result = statement.executeQuery()) {
+            while (result.next()) {
+              codes.add(result.getString(1));
+            }
+          }
+        }
+        if (codes.isEmpty()) {
+          return purged;
+        }
+        try (PreparedStatement statement =
+            conn.prepareStatement(
+                "DELETE FROM code WHERE created_at < ? AND code IN ("
+                    + String.join(", ", Collections.nCopies(codes.size(), "?"))
+                    + ");")) {
+          statement.setLong(1, bound);
+          for (int i = 0; i < codes.size(); i++) {
+            statement.setString(i + 2, codes.get(i));
+          }
+          purged += statement.executeUpdate();
+        }
+      }
+      if (codes.size() < PURGE_CHUNK_SIZE) {
+        return purged;
+      }
+      Thread.sleep(PURGE_PAUSE_MILLIS);
+    }
+  }
 }
@@ -0,0 +1,133 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.client;
+
+import com.google.googleidentity.persistence.DurableStore;
+import com.google.googleidentity.persistence.LogRecord;
+import com.google.googleidentity.persistence.Persistence;
+import com.google.googleidentity.persistence.SnapshotWriter;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.IOException;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Keeps the clients of an {@link InMemoryClientDetailsService} across restarts through {@link
+ * Persistence}.
+ *
+ * <p>Every added or updated client is logged whole, under its client id. Updates are rare, so they
+ * are simply serialized, which logs the records of a client in the order they were applied.
+ */
+@Singleton
+public final class DurableClientDetailsService implements ClientDetailsService, DurableStore {
+
+  static final byte STORE_ID = 4;
+
+  private static final byte PUT = 1;
+  private static final byte RESET = 2;
+
+  private final InMemoryClientDetailsService delegate;
+  private final Persistence persistence;
+
+  @Inject
+  public DurableClientDetailsService(
+      InMemoryClientDetailsService delegate, Persistence persistence) {
+    this.delegate = delegate;
+    this.persistence = persistence;
+  }
+
+  @Override
+  public Optional<ClientDetails> getClientByID(String clientID) {
+    return delegate.getClientByID(clientID);
+  }
+
+  @Override
+  public boolean updateClient(ClientDetails client) {
+    CompletableFuture<Void> durable;
+    synchronized (this) {
+      if (!delegate.updateClient(client)) {
+        return false;
+      }
+      durable = persistence.append(putRecord(client));
+    }
+    Persistence.await(durable);
+    return true;
+  }
+
+  @Override
+  public boolean addClient(ClientDetails client) {
+    CompletableFuture<Void> durable;
+    synchronized (this) {
+      if (!delegate.addClient(client)) {
+        return false;
+      }
+      durable = persistence.append(putRecord(client));
+    }
+    Persistence.await(durable);
+    return true;
+  }
+
+  @Override
+  public List<ClientDetails> listClient() {
+    return delegate.listClient();
+  }
+
+  @Override
+  public void reset() {
+    CompletableFuture<Void> durable;
+    synchronized (this) {
+      delegate.reset();
+      durable = persistence.append(LogRecord.barrier(STORE_ID, RESET, new byte[0]));
+    }
+    Persistence.await(durable);
+  }
+
+  @Override
+  public byte getStoreId() {
+    return STORE_ID;
+  }
+
+  @Override
+  public void writeSnapshot(SnapshotWriter snapshot) throws IOException {
+    for (ClientDetails client : delegate.listClient()) {
+      snapshot.write(putRecord(client));
+    }
+  }
+
+  @Override
+  public void apply(LogRecord record) throws IOException {
+    switch (record.getType()) {
+      case PUT:
+        ClientDetails client = ClientDetails.parseFrom(record.getPayload());
+        if (!delegate.addClient(client)) {
+          delegate.updateClient(client);
+        }
+        break;
+      case RESET:
+        delegate.reset();
+        break;
+      default:
+        throw new IOException("Unknown client record type " + record.getType());
+    }
+  }
+
+  private static LogRecord putRecord(ClientDetails client) {
+    return LogRecord.of(STORE_ID, PUT, client.getClientId(), client.toByteArray());
+  }
+}
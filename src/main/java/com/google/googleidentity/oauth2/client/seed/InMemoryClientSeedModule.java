@@ -21,11 +21,16 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.hash.Hashing;
 import com.google.googleidentity.oauth2.client.ClientDetails;
 import com.google.googleidentity.oauth2.client.ClientDetailsService;
+import com.google.googleidentity.oauth2.client.DurableClientDetailsService;
 import com.google.googleidentity.oauth2.client.InMemoryClientDetailsService;
 import com.google.googleidentity.oauth2.util.OAuth2Enums.GrantType;
+import com.google.googleidentity.persistence.DurableStore;
+import com.google.googleidentity.persistence.Persistence;
 import com.google.inject.AbstractModule;
+import com.google.inject.Provider;
 import com.google.inject.Provides;
 import com.google.inject.Singleton;
+import com.google.inject.multibindings.Multibinder;
 
 public class InMemoryClientSeedModule extends AbstractModule {
 
@@ -47,12 +52,19 @@ public class InMemoryClientSeedModule extends AbstractModule {
 
 
   @Override
-  protected void configure() {}
+  protected void configure() {
+    if (Persistence.isEnabled()) {
+      Multibinder.newSetBinder(binder(), DurableStore.class)
+          .addBinding()
+          .to(DurableClientDetailsService.class);
+    }
+  }
 
   @Provides
   @Singleton
   public ClientDetailsService getClientDetailsService(
-      InMemoryClientDetailsService clientDetailsService) {
+      InMemoryClientDetailsService clientDetailsService,
+      Provider<DurableClientDetailsService> durableClientDetailsService) {
 
     ClientDetails client =
         ClientDetails.newBuilder()
@@ -68,6 +80,7 @@ public class InMemoryClientSeedModule extends AbstractModule {
             .setRiscAud(RISCAUD)
             .build();
     clientDetailsService.addClient(client);
-    return clientDetailsService;
+    // The seed client is added on every start, only later changes are persisted.
+    return Persistence.isEnabled() ? durableClientDetailsService.get() : clientDetailsService;
   }
 }
@@ -27,8 +27,7 @@ import com.google.googleidentity.oauth2.exception.OAuth2Exception;
 import com.google.googleidentity.oauth2.exception.OAuth2ExceptionHandler;
 import com.google.googleidentity.oauth2.exception.OAuth2ServerException;
 import com.google.googleidentity.oauth2.request.OAuth2Request;
-import com.google.googleidentity.oauth2.token.OAuth2AccessToken;
-import com.google.googleidentity.oauth2.token.OAuth2RefreshToken;
+import com.google.googleidentity.oauth2.token.ClientTokenResult;
 import com.google.googleidentity.oauth2.token.OAuth2TokenService;
 import com.google.googleidentity.oauth2.util.OAuth2Constants.TokenTypes;
 import com.google.googleidentity.oauth2.util.OAuth2EnumMap;
@@ -38,7 +37,6 @@ import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import java.io.IOException;
 import java.sql.SQLException;
-import java.util.Optional;
 import java.util.logging.Logger;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -130,24 +128,20 @@ public class TokenRevokeEndpoint extends HttpServlet {
 
     switch (request.getRequestBody().getTokenTypeHint()) {
       case ACCESS:
-        Optional<OAuth2AccessToken> oldAccessToken = oauth2TokenService.readAccessToken(token);
-        if (!oldAccessToken.isPresent()) {
-          break;
-        }
-        if (!oldAccessToken.get().getClientId().equals(request.getRequestAuth().getClientId())) {
+        if (oauth2TokenService
+                .revokeByAccessToken(token, request.getRequestAuth().getClientId())
+                .getStatus()
+            == ClientTokenResult.Status.CLIENT_MISMATCH) {
           throw new InvalidGrantException(ErrorCode.REVOKE_TOKEN_CLIENT_MISMATCH);
         }
-        oauth2TokenService.revokeByAccessToken(token);
         break;
       case REFRESH:
-        Optional<OAuth2RefreshToken> oldRefreshToken = oauth2TokenService.readRefreshToken(token);
-        if (!oldRefreshToken.isPresent()) {
-          break;
-        }
-        if (!oldRefreshToken.get().getClientId().equals(request.getRequestAuth().getClientId())) {
+        if (oauth2TokenService
+                .revokeByRefreshToken(token, request.getRequestAuth().getClientId())
+                .getStatus()
+            == ClientTokenResult.Status.CLIENT_MISMATCH) {
           throw new InvalidGrantException(ErrorCode.REVOKE_TOKEN_CLIENT_MISMATCH);
         }
-        oauth2TokenService.revokeByRefreshToken(token);
         break;
       default:
         throw new IllegalStateException();
@@ -21,14 +21,12 @@ import com.google.common.base.Strings;
 import com.google.googleidentity.oauth2.client.ClientDetails;
 import com.google.googleidentity.oauth2.client.ClientDetailsService;
 import com.google.googleidentity.oauth2.risc.RiscHandler;
-import com.google.googleidentity.oauth2.token.OAuth2AccessToken;
-import com.google.googleidentity.oauth2.token.OAuth2RefreshToken;
 import com.google.googleidentity.oauth2.token.OAuth2TokenService;
+import com.google.googleidentity.oauth2.token.RevokedTokens;
 import com.google.googleidentity.oauth2.util.OAuth2Utils;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import java.io.IOException;
-import java.util.List;
 import java.util.Optional;
 import java.util.logging.Logger;
 import javax.servlet.ServletException;
@@ -75,16 +73,16 @@ public class UnlinkEndpoint extends HttpServlet {
           && clientDetailsService.getClientByID(clientID).isPresent()) {
         Optional<ClientDetails> client = clientDetailsService.getClientByID(clientID);
 
-        List<OAuth2AccessToken> accessTokenList =
-            oauth2TokenService.listUserClientAccessTokens(username, clientID);
-
-        List<OAuth2RefreshToken> refreshTokenList =
-            oauth2TokenService.listUserClientRefreshTokens(username, clientID);
-
-        oauth2TokenService.revokeUserClientTokens(username, clientID);
-
+        // The tokens are only listed when the client wants RISC events about them, revoking
+        // them takes the same time however many there are. They are listed in the same step as
+        // they are revoked, so a token issued in between is not missed.
         if (!Strings.isNullOrEmpty(client.get().getRiscUri())) {
-          riscHandler.SendRisc(accessTokenList, refreshTokenList);
+          RevokedTokens revoked =
+              oauth2TokenService.revokeAndListUserClientTokens(username, clientID);
+
+          riscHandler.SendRisc(revoked.getAccessTokens(), revoked.getRefreshTokens());
+        } else {
+          oauth2TokenService.revokeUserClientTokens(username, clientID);
         }
       }
     }
@@ -27,6 +27,7 @@ import com.google.googleidentity.oauth2.exception.OAuth2Exception;
 import com.google.googleidentity.oauth2.exception.OAuth2ExceptionHandler;
 import com.google.googleidentity.oauth2.exception.OAuth2ServerException;
 import com.google.googleidentity.oauth2.request.OAuth2Request;
+import com.google.googleidentity.oauth2.token.OAuth2AccessToken;
 import com.google.googleidentity.oauth2.token.OAuth2TokenService;
 import com.google.googleidentity.oauth2.util.OAuth2Constants;
 import com.google.googleidentity.oauth2.util.OAuth2Constants.TokenTypes;
@@ -40,6 +41,7 @@ import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import java.io.IOException;
 import java.time.Instant;
+import java.util.Optional;
 import java.util.logging.Logger;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -84,20 +86,17 @@ public class UserInfoEndpoint extends HttpServlet {
         accessToken = auth.split("\\s+")[1];
       }
 
-      if (!oauth2TokenService.readAccessToken(accessToken).isPresent()) {
+      // Read once, with JWT access tokens each read verifies the signature.
+      Optional<OAuth2AccessToken> token = oauth2TokenService.readAccessToken(accessToken);
+      if (!token.isPresent()) {
         throw new InvalidRequestException(ErrorCode.INVALID_ACCESS_TOKEN);
       }
 
-      if (Instant.ofEpochSecond(
-              oauth2TokenService.readAccessToken(accessToken).get().getExpiredTime())
-          .isBefore(Instant.now())) {
+      if (Instant.ofEpochSecond(token.get().getExpiredTime()).isBefore(Instant.now())) {
         throw new InvalidGrantException(InvalidGrantException.ErrorCode.EXPIRED_ACCESS_TOKEN);
       }
 
-      UserDetails user =
-          userDetailsService
-              .getUserByName(oauth2TokenService.readAccessToken(accessToken).get().getUsername())
-              .get();
+      UserDetails user = userDetailsService.getUserByName(token.get().getUsername()).get();
       JSONObject json = new JSONObject();
       json.appendField("username", user.getUsername());
       json.appendField("email", user.getEmail());
@@ -20,6 +20,10 @@ package com.google.googleidentity.oauth2.exception;
  * Throw RunTime error like SQLException
  */
 public class OAuth2ServerException extends RuntimeException{
+  public OAuth2ServerException(String info){
+    super(info);
+  }
+
   public OAuth2ServerException(Exception e){
     super(e);
   }
@@ -19,35 +19,95 @@ package com.google.googleidentity.oauth2.jwt;
 import com.google.inject.Singleton;
 import com.nimbusds.jose.JOSEException;
 import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.jwk.JWKSet;
 import com.nimbusds.jose.jwk.KeyUse;
 import com.nimbusds.jose.jwk.gen.RSAKeyGenerator;
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Random;
 import java.util.UUID;
+import java.util.logging.Logger;
 import net.minidev.json.JSONArray;
 import net.minidev.json.JSONObject;
 
-/** Store key for signing */
+/**
+ * Store key for signing
+ *
+ * <p>The keys are read from the JWK set with private keys in the file JWK_SET_FILE, or in JWK_SET,
+ * e.g. a secret shared by every server instance, so what one instance signs is verified by the
+ * others and after a restart. Without either, two keys are generated for this process only.
+ */
 @Singleton
 public class JwkStore {
-  private final int keyNum = 2;
+  private static final Logger log = Logger.getLogger("JwkStore");
+
+  private static final String JWK_SET_FILE = System.getenv("JWK_SET_FILE");
+  private static final String JWK_SET = System.getenv("JWK_SET");
+
+  private static final int GENERATED_KEY_NUM = 2;
+
   private final Random random = new Random();
   private Map<String, JWK> key = new HashMap<>();
+  private final JWK[] signingKeys;
 
   public JwkStore() throws JOSEException {
-    for (int i = 0; i < keyNum; i++) {
+    this(isConfigured() ? configuredKeys() : generateKeys());
+  }
+
+  /** Sign with the keys of the set, which all need a kid and their private part. */
+  public JwkStore(JWKSet keys) {
+    for (JWK jwk : keys.getKeys()) {
+      if (jwk.getKeyID() == null || !jwk.isPrivate()) {
+        throw new IllegalArgumentException("Signing keys need a kid and their private part!");
+      }
+      key.put(jwk.getKeyID(), jwk);
+    }
+    if (key.isEmpty()) {
+      throw new IllegalArgumentException("No signing key!");
+    }
+    signingKeys = key.values().toArray(new JWK[0]);
+  }
+
+  /** Whether the keys are shared through JWK_SET_FILE or JWK_SET. */
+  public static boolean isConfigured() {
+    return JWK_SET_FILE != null || JWK_SET != null;
+  }
+
+  private static JWKSet configuredKeys() {
+    try {
+      return JWK_SET_FILE != null ? JWKSet.load(new File(JWK_SET_FILE)) : JWKSet.parse(JWK_SET);
+    } catch (IOException | ParseException exception) {
+      throw new IllegalStateException("Error when reading the signing keys!", exception);
+    }
+  }
+
+  private static JWKSet generateKeys() throws JOSEException {
+    log.warning("No JWK_SET_FILE or JWK_SET, signing with keys generated for this process only.");
+    List<JWK> keys = new ArrayList<>();
+    for (int i = 0; i < GENERATED_KEY_NUM; i++) {
       String keyID = UUID.randomUUID().toString();
-      key.put(keyID, new RSAKeyGenerator(2048).keyID(keyID).keyUse(KeyUse.SIGNATURE).generate());
+      keys.add(new RSAKeyGenerator(2048).keyID(keyID).keyUse(KeyUse.SIGNATURE).generate());
     }
+    return new JWKSet(keys);
   }
 
   public JWK getPublicJWK(String kid) {
     return key.get(kid).toPublicJWK();
   }
 
+  /** The public key with this kid, or empty when the kid is not one of ours. */
+  public Optional<JWK> findPublicJWK(String kid) {
+    return Optional.ofNullable(key.get(kid)).map(JWK::toPublicJWK);
+  }
+
   public JWK getJWK() {
-    return key.values().toArray(new JWK[0])[random.nextInt(keyNum)];
+    return signingKeys[random.nextInt(signingKeys.length)];
   }
 
   public String getJWKString() {
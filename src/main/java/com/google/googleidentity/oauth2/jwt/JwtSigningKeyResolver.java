@@ -16,6 +16,9 @@
 
 package com.google.googleidentity.oauth2.jwt;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.googleidentity.oauth2.exception.OAuth2ServerException;
 import com.nimbusds.jose.jwk.JWK;
 import com.nimbusds.jose.jwk.KeyConverter;
@@ -23,58 +26,260 @@ import com.nimbusds.jose.util.JSONObjectUtils;
 import io.jsonwebtoken.Claims;
 import io.jsonwebtoken.JwsHeader;
 import io.jsonwebtoken.SigningKeyResolverAdapter;
+import io.jsonwebtoken.security.SignatureException;
 import java.io.IOException;
 import java.security.Key;
 import java.text.ParseException;
-import java.util.HashMap;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import net.minidev.json.JSONArray;
 import net.minidev.json.JSONObject;
-import org.apache.http.HttpEntity;
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.util.EntityUtils;
 
-/** Use kid to get the correct key */
+/**
+ * Use kid to get the correct key from a remote JWK set.
+ *
+ * <p>The parsed keys are cached for the max-age the key server sends in Cache-Control and are
+ * refreshed in the background before they expire. A kid we do not know triggers a refetch, but
+ * concurrent callers share one in-flight request and refetches are rate limited, so a burst of
+ * assertions never turns into a burst of requests to the key server.
+ */
 public class JwtSigningKeyResolver extends SigningKeyResolverAdapter {
 
-  private final Logger log = Logger.getLogger("JwtSigningKeyResolver");
-  HashMap<String, Key> keyMap = new HashMap<>();
+  private static final Logger log = Logger.getLogger("JwtSigningKeyResolver");
+
+  /** Used when the key server does not send a max-age. */
+  private static final Duration DEFAULT_MAX_AGE = Duration.ofMinutes(5);
+
+  /** Minimum time between two fetches, so unknown kids cannot be used to flood the key server. */
+  private static final Duration MIN_REFETCH_INTERVAL = Duration.ofSeconds(5);
+
+  /** Background refresh starts once this fraction of the max-age has passed. */
+  private static final double REFRESH_AHEAD_RATIO = 0.8;
+
+  private static final int TIMEOUT_MILLIS = 5000;
+
+  private static final Pattern MAX_AGE = Pattern.compile("max-age\\s*=\\s*(\\d+)");
+
+  private final String url;
+  private final Clock clock;
+  private final CloseableHttpClient httpClient;
+  private final ScheduledExecutorService refresher;
+  private final AtomicReference<CompletableFuture<KeySet>> inFlight = new AtomicReference<>();
+  private volatile KeySet keySet = KeySet.EMPTY;
+  private volatile boolean refreshScheduled = false;
 
   public JwtSigningKeyResolver(String url) {
-    CloseableHttpClient httpClient = HttpClients.createDefault();
-    HttpGet httpget = new HttpGet(url);
+    this(url, Clock.systemUTC());
+  }
+
+  @VisibleForTesting
+  JwtSigningKeyResolver(String url, Clock clock) {
+    this.url = url;
+    this.clock = clock;
+    RequestConfig requestConfig =
+        RequestConfig.custom()
+            .setConnectTimeout(TIMEOUT_MILLIS)
+            .setConnectionRequestTimeout(TIMEOUT_MILLIS)
+            .setSocketTimeout(TIMEOUT_MILLIS)
+            .build();
+    this.httpClient = HttpClients.custom().setDefaultRequestConfig(requestConfig).build();
+    this.refresher =
+        Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder()
+                .setNameFormat("JwtSigningKeyResolver-refresh")
+                .setDaemon(true)
+                .build());
+  }
+
+  @Override
+  public Key resolveSigningKey(JwsHeader jwsHeader, Claims claims) {
+    String keyId = jwsHeader.getKeyId();
+    Instant now = clock.instant();
+
+    KeySet current = keySet;
+    if (!current.isFresh(now)) {
+      current = fetchOrStale(current);
+    }
 
+    Key key = current.keys.get(keyId);
+    if (key == null && current.fetchedAt.plus(MIN_REFETCH_INTERVAL).isBefore(now)) {
+      // The key server may have rotated keys since our last fetch.
+      current = fetchOrStale(current);
+      key = current.keys.get(keyId);
+    }
+
+    if (key == null) {
+      throw new SignatureException("No signing key found for kid " + keyId);
+    }
+    return key;
+  }
+
+  /** Fetch the key set, falling back to the keys we already have if the key server is down. */
+  private KeySet fetchOrStale(KeySet stale) {
     try {
-      CloseableHttpResponse response = httpClient.execute(httpget);
-      HttpEntity entity = response.getEntity();
-      JSONObject json = JSONObjectUtils.parse(EntityUtils.toString(entity));
+      return fetch();
+    } catch (OAuth2ServerException exception) {
+      if (stale.keys.isEmpty()) {
+        throw exception;
+      }
+      log.log(Level.WARNING, "Failed to refresh signing keys, using cached keys.", exception);
+      return stale;
+    }
+  }
 
-      JSONArray jsonArray = JSONObjectUtils.getJSONArray(json, "keys");
+  /** Fetch the key set from the key server. Concurrent callers share one request. */
+  @VisibleForTesting
+  KeySet fetch() {
+    while (true) {
+      CompletableFuture<KeySet> current = inFlight.get();
+      if (current != null) {
+        return await(current);
+      }
+      CompletableFuture<KeySet> mine = new CompletableFuture<>();
+      if (inFlight.compareAndSet(null, mine)) {
+        try {
+          KeySet fetched = download();
+          keySet = fetched;
+          mine.complete(fetched);
+          scheduleRefresh(fetched);
+          return fetched;
+        } catch (RuntimeException exception) {
+          mine.completeExceptionally(exception);
+          throw exception;
+        } finally {
+          inFlight.set(null);
+        }
+      }
+    }
+  }
 
-      List<JWK> jwkList = new LinkedList<JWK>();
-      for (int i = 0; i < jsonArray.size(); i++) {
-        jwkList.add(JWK.parse((JSONObject) jsonArray.get(i)));
+  private static KeySet await(CompletableFuture<KeySet> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException exception) {
+      Thread.currentThread().interrupt();
+      throw new OAuth2ServerException("Interrupted when fetching signing keys!", exception);
+    } catch (ExecutionException exception) {
+      if (exception.getCause() instanceof OAuth2ServerException) {
+        throw (OAuth2ServerException) exception.getCause();
       }
-      List<Key> keyList = KeyConverter.toJavaKeys(jwkList);
-      for (int i = 0; i < jsonArray.size(); i++) {
-        JWK key = JWK.parse((JSONObject) jsonArray.get(i));
-        keyMap.put(key.getKeyID(), keyList.get(i));
+      throw new OAuth2ServerException("Error when fetching signing keys!", exception);
+    }
+  }
+
+  private synchronized void scheduleRefresh(KeySet fetched) {
+    if (refreshScheduled) {
+      return;
+    }
+    refreshScheduled = true;
+    long delay = (long) (fetched.maxAge.toMillis() * REFRESH_AHEAD_RATIO);
+    refresher.schedule(this::refreshInBackground, delay, TimeUnit.MILLISECONDS);
+  }
+
+  private void refreshInBackground() {
+    synchronized (this) {
+      refreshScheduled = false;
+    }
+    try {
+      fetch();
+    } catch (RuntimeException exception) {
+      log.log(Level.WARNING, "Background refresh of signing keys failed.", exception);
+      synchronized (this) {
+        if (!refreshScheduled) {
+          refreshScheduled = true;
+          refresher.schedule(
+              this::refreshInBackground, MIN_REFETCH_INTERVAL.toMillis(), TimeUnit.MILLISECONDS);
+        }
       }
+    }
+  }
+
+  private KeySet download() {
+    HttpGet httpget = new HttpGet(url);
+    try (CloseableHttpResponse response = httpClient.execute(httpget)) {
+      String body = EntityUtils.toString(response.getEntity());
+      if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+        throw new IOException(
+            "Key server returned " + response.getStatusLine().getStatusCode());
+      }
+      return new KeySet(
+          parseKeys(body),
+          parseMaxAge(response.getFirstHeader(HttpHeaders.CACHE_CONTROL)),
+          clock.instant());
     } catch (IOException | ParseException exception) {
-      throw new OAuth2ServerException(exception);
+      throw new OAuth2ServerException("Error when fetching signing keys!", exception);
     }
   }
 
-  @Override
-  public Key resolveSigningKey(JwsHeader jwsHeader, Claims claims) {
-    // inspect the header or claims, lookup and return the signing key
+  private static ImmutableMap<String, Key> parseKeys(String body) throws ParseException {
+    JSONObject json = JSONObjectUtils.parse(body);
 
-    String keyId = jwsHeader.getKeyId(); // or any other field that you need to inspect
-    return keyMap.get(keyId);
+    JSONArray jsonArray = JSONObjectUtils.getJSONArray(json, "keys");
+
+    List<JWK> jwkList = new LinkedList<JWK>();
+    for (int i = 0; i < jsonArray.size(); i++) {
+      jwkList.add(JWK.parse((JSONObject) jsonArray.get(i)));
+    }
+    List<Key> keyList = KeyConverter.toJavaKeys(jwkList);
+    ImmutableMap.Builder<String, Key> keys = ImmutableMap.builder();
+    for (int i = 0; i < jwkList.size(); i++) {
+      keys.put(jwkList.get(i).getKeyID(), keyList.get(i));
+    }
+    return keys.build();
+  }
+
+  @VisibleForTesting
+  static Duration parseMaxAge(Header cacheControl) {
+    if (cacheControl == null) {
+      return DEFAULT_MAX_AGE;
+    }
+    Matcher matcher = MAX_AGE.matcher(cacheControl.getValue());
+    if (!matcher.find()) {
+      return DEFAULT_MAX_AGE;
+    }
+    Duration maxAge = Duration.ofSeconds(Long.parseLong(matcher.group(1)));
+    return maxAge.compareTo(MIN_REFETCH_INTERVAL) < 0 ? MIN_REFETCH_INTERVAL : maxAge;
+  }
+
+  /** An immutable snapshot of the keys from one fetch. */
+  @VisibleForTesting
+  static final class KeySet {
+    static final KeySet EMPTY = new KeySet(ImmutableMap.of(), Duration.ZERO, Instant.EPOCH);
+
+    final ImmutableMap<String, Key> keys;
+    final Duration maxAge;
+    final Instant fetchedAt;
+
+    KeySet(ImmutableMap<String, Key> keys, Duration maxAge, Instant fetchedAt) {
+      this.keys = keys;
+      this.maxAge = maxAge;
+      this.fetchedAt = fetchedAt;
+    }
+
+    boolean isFresh(Instant now) {
+      return now.isBefore(fetchedAt.plus(maxAge));
+    }
   }
 }
@@ -50,7 +50,6 @@ import org.apache.http.HttpStatus;
 /** Processor for dealing JWT Assertion */
 final class JwtAssertionRequestHandler implements RequestHandler {
 
-  private static final String KEYURL = "https://www.googleapis.com/oauth2/v3/certs";
   private static final String GOOLE_ISS = "https://accounts.google.com";
   private static final String EMAIL = "email";
   private static final String SUB = "sub";
@@ -60,16 +59,19 @@ final class JwtAssertionRequestHandler implements RequestHandler {
   private final UserDetailsService userDetailsService;
 
   private final ClientDetailsService clientDetailsService;
+  private final JwtSigningKeyResolver signingKeyResolver;
   private final Logger log = Logger.getLogger("JwtAssertionTokenProcessor");
 
   @Inject
   public JwtAssertionRequestHandler(
       OAuth2TokenService oauth2TokenService,
       UserDetailsService userDetailsService,
-      ClientDetailsService clientDetailsService) {
+      ClientDetailsService clientDetailsService,
+      JwtSigningKeyResolver signingKeyResolver) {
     this.oauth2TokenService = oauth2TokenService;
     this.userDetailsService = userDetailsService;
     this.clientDetailsService = clientDetailsService;
+    this.signingKeyResolver = signingKeyResolver;
   }
 
   @Override
@@ -77,7 +79,7 @@ final class JwtAssertionRequestHandler implements RequestHandler {
       throws IOException, OAuth2Exception, OAuth2ServerException {
     Pair<String, String> info =
         verifyAndGetInfoFromJwt(
-            oauth2Request.getRequestBody().getAssertion(), new JwtSigningKeyResolver(KEYURL));
+            oauth2Request.getRequestBody().getAssertion(), signingKeyResolver);
     String email = info.getLeft();
     String googleAccountId = info.getRight();
     ClientDetails client =
@@ -16,17 +16,17 @@
 
 package com.google.googleidentity.oauth2.request;
 
+import com.google.common.base.Strings;
 import com.google.googleidentity.oauth2.exception.InvalidGrantException;
 import com.google.googleidentity.oauth2.exception.InvalidGrantException.ErrorCode;
 import com.google.googleidentity.oauth2.exception.OAuth2Exception;
+import com.google.googleidentity.oauth2.token.ClientTokenResult;
 import com.google.googleidentity.oauth2.token.OAuth2AccessToken;
-import com.google.googleidentity.oauth2.token.OAuth2RefreshToken;
 import com.google.googleidentity.oauth2.token.OAuth2TokenService;
 import com.google.googleidentity.oauth2.util.OAuth2ParameterNames;
 import com.google.inject.Inject;
 import java.io.IOException;
 import java.time.Instant;
-import java.util.Optional;
 import java.util.logging.Logger;
 import javax.servlet.http.HttpServletResponse;
 import net.minidev.json.JSONObject;
@@ -47,26 +47,34 @@ final class RefreshTokenRequestHandler implements RequestHandler {
   public void handle(HttpServletResponse response, OAuth2Request oauth2Request)
       throws IOException, OAuth2Exception {
 
-    Optional<OAuth2RefreshToken> oldToken =
-        oauth2TokenService.readRefreshToken(oauth2Request.getRequestBody().getRefreshToken());
+    ClientTokenResult<OAuth2AccessToken> result =
+        oauth2TokenService.refreshToken(
+            oauth2Request.getRequestBody().getRefreshToken(),
+            oauth2Request.getRequestAuth().getClientId());
 
-    if (!oldToken.isPresent()) {
+    if (result.getStatus() == ClientTokenResult.Status.NOT_FOUND) {
       throw new InvalidGrantException(ErrorCode.NONEXISTENT_REFRESH_TOKEN);
     }
 
-    if (!oldToken.get().getClientId().equals(oauth2Request.getRequestAuth().getClientId())) {
+    if (result.getStatus() == ClientTokenResult.Status.CLIENT_MISMATCH) {
       throw new InvalidGrantException(ErrorCode.REFRESH_TOKEN_CLIENT_MISMATCH);
     }
 
-    Optional<OAuth2AccessToken> newToken =
-        oauth2TokenService.refreshToken(oauth2Request.getRequestBody().getRefreshToken());
+    OAuth2AccessToken newToken = result.getValue().get();
 
     JSONObject json = new JSONObject();
 
     json.appendField("token_type", "Bearer");
-    json.appendField(OAuth2ParameterNames.ACCESS_TOKEN, newToken.get().getAccessToken());
+    json.appendField(OAuth2ParameterNames.ACCESS_TOKEN, newToken.getAccessToken());
     json.appendField(
-        "expires_in", newToken.get().getExpiredTime() - Instant.now().getEpochSecond());
+        "expires_in", newToken.getExpiredTime() - Instant.now().getEpochSecond());
+
+    // A rotated refresh token is replaced by the one the access token was issued with.
+    String refreshToken = oauth2Request.getRequestBody().getRefreshToken();
+    if (!Strings.isNullOrEmpty(newToken.getRefreshToken())
+        && !newToken.getRefreshToken().equals(refreshToken)) {
+      json.appendField(OAuth2ParameterNames.REFRESH_TOKEN, newToken.getRefreshToken());
+    }
 
     response.setContentType("application/json");
 
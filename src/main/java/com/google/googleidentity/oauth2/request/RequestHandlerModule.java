@@ -16,12 +16,17 @@
 
 package com.google.googleidentity.oauth2.request;
 
+import com.google.googleidentity.oauth2.jwt.JwtSigningKeyResolver;
 import com.google.googleidentity.oauth2.util.OAuth2Enums.GrantType;
 import com.google.inject.AbstractModule;
+import com.google.inject.Provides;
+import com.google.inject.Singleton;
 import com.google.inject.multibindings.MapBinder;
 
 public class RequestHandlerModule extends AbstractModule {
 
+  private static final String GOOGLE_KEY_URL = "https://www.googleapis.com/oauth2/v3/certs";
+
   @Override
   protected void configure() {
     MapBinder<GrantType, RequestHandler> mapBinder =
@@ -33,4 +38,11 @@ public class RequestHandlerModule extends AbstractModule {
     mapBinder.addBinding(GrantType.JWT_ASSERTION).to(JwtAssertionRequestHandler.class);
     bind(RequestHandler.class).to(MultipleRequestHandler.class);
   }
+
+  /** One resolver for Google's keys, so the key cache is shared by all assertion requests. */
+  @Provides
+  @Singleton
+  JwtSigningKeyResolver provideGoogleSigningKeyResolver() {
+    return new JwtSigningKeyResolver(GOOGLE_KEY_URL);
+  }
 }
@@ -0,0 +1,239 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.risc;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.googleidentity.oauth2.jwt.JwkStore;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.jwk.JWK;
+import io.jsonwebtoken.Jwts;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.EntityBuilder;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Deliver {@link RiscEvent}s to client risc receivers.
+ *
+ * <p>Events go into a bounded queue drained by a small pool of workers sharing one pooled http
+ * client. A failed delivery is put back on the queue by a timer with exponential backoff, so no
+ * thread ever sleeps waiting for a retry. When the queue is full the event is dropped, logged and
+ * counted in {@link #getDroppedCount()}: the tokens are revoked either way, the risc event is
+ * only a best effort notification.
+ */
+@Singleton
+public class RiscDeliveryQueue {
+
+  private static final Logger log = Logger.getLogger("RiscDeliveryQueue");
+
+  private static final int WORKER_COUNT =
+      System.getenv("RISC_WORKER_COUNT") == null
+          ? 4
+          : Integer.parseInt(System.getenv("RISC_WORKER_COUNT"));
+  private static final int QUEUE_CAPACITY =
+      System.getenv("RISC_QUEUE_CAPACITY") == null
+          ? 10000
+          : Integer.parseInt(System.getenv("RISC_QUEUE_CAPACITY"));
+  private static final int MAX_ATTEMPTS = 4;
+  private static final Duration INITIAL_RETRY_DELAY = Duration.ofMinutes(1);
+  private static final Duration MAX_RETRY_DELAY = Duration.ofMinutes(10);
+  private static final int TIMEOUT_MILLIS = 10000;
+  private static final int SC_TOO_MANY_REQUESTS = 429;
+  private static String WEB_URL =
+      System.getenv("WEB_URL") == null ? "localhost:8080" : System.getenv("WEB_URL");
+
+  private final JwkStore jwkStore;
+  private final int queueCapacity;
+  private final Duration initialRetryDelay;
+  private final ThreadPoolExecutor workers;
+  private final ScheduledExecutorService retryTimer;
+  private final CloseableHttpClient httpClient;
+
+  private final AtomicInteger pendingRetries = new AtomicInteger();
+  private final AtomicLong deliveredCount = new AtomicLong();
+  private final AtomicLong failedCount = new AtomicLong();
+  private final AtomicLong droppedCount = new AtomicLong();
+
+  @Inject
+  public RiscDeliveryQueue(JwkStore jwkStore) {
+    this(jwkStore, WORKER_COUNT, QUEUE_CAPACITY, INITIAL_RETRY_DELAY);
+  }
+
+  @VisibleForTesting
+  RiscDeliveryQueue(
+      JwkStore jwkStore, int workerCount, int queueCapacity, Duration initialRetryDelay) {
+    this.jwkStore = jwkStore;
+    this.queueCapacity = queueCapacity;
+    this.initialRetryDelay = initialRetryDelay;
+
+    this.workers =
+        new ThreadPoolExecutor(
+            workerCount,
+            workerCount,
+            0L,
+            TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(queueCapacity),
+            new ThreadFactoryBuilder().setNameFormat("RiscDelivery-%d").setDaemon(true).build(),
+            new ThreadPoolExecutor.AbortPolicy());
+    this.workers.prestartAllCoreThreads();
+    this.retryTimer =
+        Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("RiscRetryTimer").setDaemon(true).build());
+
+    PoolingHttpClientConnectionManager connectionManager =
+        new PoolingHttpClientConnectionManager();
+    connectionManager.setMaxTotal(workerCount * 2);
+    connectionManager.setDefaultMaxPerRoute(workerCount);
+    RequestConfig requestConfig =
+        RequestConfig.custom()
+            .setConnectTimeout(TIMEOUT_MILLIS)
+            .setConnectionRequestTimeout(TIMEOUT_MILLIS)
+            .setSocketTimeout(TIMEOUT_MILLIS)
+            .build();
+    this.httpClient =
+        HttpClients.custom()
+            .setConnectionManager(connectionManager)
+            .setDefaultRequestConfig(requestConfig)
+            .build();
+  }
+
+  /**
+   * Queue an event for delivery.
+   *
+   * @return false if the queue is full and the event has been dropped
+   */
+  boolean submit(RiscEvent event) {
+    try {
+      workers.execute(() -> deliver(event));
+      return true;
+    } catch (RejectedExecutionException exception) {
+      droppedCount.incrementAndGet();
+      log.warning("Risc delivery queue is full, dropping event " + event.getJti());
+      return false;
+    }
+  }
+
+  private void deliver(RiscEvent event) {
+    int attempt = event.nextAttempt();
+    boolean retryable;
+    try {
+      int status = post(event);
+      if (status == HttpStatus.SC_ACCEPTED) {
+        deliveredCount.incrementAndGet();
+        return;
+      }
+      // Client errors will not get better by sending the same event again.
+      retryable =
+          status >= HttpStatus.SC_INTERNAL_SERVER_ERROR || status == SC_TOO_MANY_REQUESTS;
+      log.info("Risc receiver " + event.getRiscUri() + " returned " + status);
+    } catch (IOException | JOSEException | RuntimeException exception) {
+      retryable = !(exception instanceof JOSEException);
+      log.log(Level.INFO, "Send risc error!", exception);
+    }
+
+    if (retryable && attempt < MAX_ATTEMPTS) {
+      scheduleRetry(event, attempt);
+    } else {
+      failedCount.incrementAndGet();
+    }
+  }
+
+  private void scheduleRetry(RiscEvent event, int attempt) {
+    if (pendingRetries.incrementAndGet() > queueCapacity) {
+      pendingRetries.decrementAndGet();
+      droppedCount.incrementAndGet();
+      log.warning("Too many risc retries pending, dropping event " + event.getJti());
+      return;
+    }
+    long delay =
+        Math.min(initialRetryDelay.toMillis() << (attempt - 1), MAX_RETRY_DELAY.toMillis());
+    retryTimer.schedule(
+        () -> {
+          pendingRetries.decrementAndGet();
+          submit(event);
+        },
+        delay,
+        TimeUnit.MILLISECONDS);
+  }
+
+  private int post(RiscEvent event) throws IOException, JOSEException {
+    JWK jwk = jwkStore.getJWK();
+    String jws =
+        Jwts.builder()
+            .setIssuer(WEB_URL + "/oauth2/risc")
+            .setAudience(event.getAudience())
+            .setIssuedAt(Date.from(Instant.now()))
+            .setId(event.getJti())
+            .claim("events", event.getClaims())
+            .signWith(jwk.toRSAKey().toPrivateKey())
+            .setHeaderParam("kid", jwk.getKeyID())
+            .compact();
+
+    HttpPost httppost = new HttpPost(event.getRiscUri());
+    httppost.setHeader("Content-Type", "application/secevent+jwt");
+    httppost.setHeader("Accept", "application/json");
+    httppost.setEntity(EntityBuilder.create().setText(jws).build());
+    try (CloseableHttpResponse response = httpClient.execute(httppost)) {
+      // Consume the body so the connection goes back to the pool.
+      EntityUtils.consumeQuietly(response.getEntity());
+      return response.getStatusLine().getStatusCode();
+    }
+  }
+
+  public long getDeliveredCount() {
+    return deliveredCount.get();
+  }
+
+  public long getFailedCount() {
+    return failedCount.get();
+  }
+
+  public long getDroppedCount() {
+    return droppedCount.get();
+  }
+
+  /** Events waiting for a worker, not counting the ones waiting for a retry. */
+  public int getQueuedCount() {
+    return workers.getQueue().size();
+  }
+
+  public int getPendingRetryCount() {
+    return pendingRetries.get();
+  }
+}
@@ -0,0 +1,66 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.risc;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/** A token revoked event waiting to be delivered to the risc receiver of a client. */
+final class RiscEvent {
+
+  private final String riscUri;
+  private final String audience;
+  private final String jti;
+  private final Map<String, Object> claims;
+  private int attempts = 0;
+
+  RiscEvent(String riscUri, String audience, String jti, String tokenType, String tokenHash) {
+    this.riscUri = riscUri;
+    this.audience = audience;
+    this.jti = jti;
+
+    Map<String, Object> events = new HashMap<String, Object>();
+    events.put("subject_type", "oauth_token");
+    events.put("token_type", tokenType);
+    events.put("token_identifier_alg", "hash_SHA512_double");
+    events.put("token", tokenHash);
+
+    this.claims = new HashMap<String, Object>();
+    this.claims.put("https://schemas.openid.net/secevent/oauth/event-type/token-revoked", events);
+  }
+
+  String getRiscUri() {
+    return riscUri;
+  }
+
+  String getAudience() {
+    return audience;
+  }
+
+  String getJti() {
+    return jti;
+  }
+
+  Map<String, Object> getClaims() {
+    return claims;
+  }
+
+  /** Only touched by the worker currently delivering the event. */
+  int nextAttempt() {
+    return ++attempts;
+  }
+}
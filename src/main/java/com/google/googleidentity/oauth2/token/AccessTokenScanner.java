@@ -0,0 +1,36 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+
+package com.google.googleidentity.oauth2.token;
+
+/**
+ * A token store whose access tokens can be listed by expired time, so {@link
+ * BloomFilterOAuth2TokenService} can build its filter from the store and follow the tokens other
+ * server instances issue.
+ */
+interface AccessTokenScanner {
+
+  /**
+   * Pass the {@link TokenHashes#key} of every access token which expires at or after {@code
+   * expiringFrom} (epoch seconds) to the consumer. Revoked tokens may be passed as well.
+   */
+  void scanAccessTokens(long expiringFrom, AccessTokenConsumer consumer);
+
+  interface AccessTokenConsumer {
+    void accept(byte[] accessTokenKey, long expiredTime);
+  }
+}
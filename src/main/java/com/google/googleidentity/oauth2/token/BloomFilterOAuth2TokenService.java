@@ -0,0 +1,426 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+
+package com.google.googleidentity.oauth2.token;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.Striped;
+import com.google.googleidentity.oauth2.request.OAuth2Request;
+import com.google.googleidentity.oauth2.util.ScheduledTasks;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.time.Clock;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Logger;
+
+/**
+ * Reject access tokens which were never issued, or are long gone, before they are looked up in
+ * another {@link OAuth2TokenService}, so a flood of garbage or stale bearer tokens does not turn
+ * into a flood of database queries.
+ *
+ * <p>The access tokens of the store are kept in {@link CountingBloomFilter}s, one per minute of
+ * expired time, which are dropped once their tokens expired longer than the grace ago. So expiry
+ * costs nothing per token, and a token revoked through {@link #revokeByAccessToken(String)} is
+ * removed from its slice. Tokens revoked with their refresh token, user or client stay in the
+ * filter until they expire, the store still answers for them. A token the filter passes is always
+ * read from the store, so the filter only decides which tokens are definitely not there.
+ *
+ * <p>The filter is built from the store when the service starts. Tokens issued through this
+ * service are added right away, the ones other server instances issue are read from the store by
+ * a sync every TOKEN_BLOOM_FILTER_SYNC_MILLIS, which only reads the tokens expiring after the
+ * latest expiry seen, less an overlap. A token the filter misses may have been issued on another
+ * instance since, so it is only rejected once a sync which started after the lookup arrived still
+ * has not added it. The token was committed before its client could send it, so that sync has seen
+ * it. Lookups which miss at the same time share one sync, so a flood of unknown tokens costs one
+ * sync query at a time, never a lookup in the store.
+ *
+ * <p>Each slice holds TOKEN_BLOOM_FILTER_TOKENS_PER_MINUTE tokens at a false positive rate of
+ * TOKEN_BLOOM_FILTER_FPP. {@link #getFalsePositiveRate()} is the rate observed on lookups, {@link
+ * #getExpectedFalsePositiveRate()} the one expected from how full the slices are.
+ *
+ * <p>Everything else is passed to the delegate as it is.
+ */
+@Singleton
+public class BloomFilterOAuth2TokenService implements OAuth2TokenService {
+
+  /** Name of the binding of the {@link OAuth2TokenService} this service guards. */
+  public static final String DELEGATE = "BloomFilterOAuth2TokenServiceDelegate";
+
+  private static final Logger log = Logger.getLogger("BloomFilterOAuth2TokenService");
+
+  private static final long TOKENS_PER_MINUTE =
+      System.getenv("TOKEN_BLOOM_FILTER_TOKENS_PER_MINUTE") == null
+          ? 10000
+          : Long.parseLong(System.getenv("TOKEN_BLOOM_FILTER_TOKENS_PER_MINUTE"));
+
+  private static final double FPP =
+      System.getenv("TOKEN_BLOOM_FILTER_FPP") == null
+          ? 0.001
+          : Double.parseDouble(System.getenv("TOKEN_BLOOM_FILTER_FPP"));
+
+  private static final long SYNC_MILLIS =
+      System.getenv("TOKEN_BLOOM_FILTER_SYNC_MILLIS") == null
+          ? 1000
+          : Long.parseLong(System.getenv("TOKEN_BLOOM_FILTER_SYNC_MILLIS"));
+
+  private static final long SLICE_SECONDS = 60;
+
+  /** How long a token still passes after it expired, so it is reported as expired, not unknown. */
+  private static final long EXPIRED_GRACE_SECONDS = 300;
+
+  /**
+   * How far before the latest expiry seen a sync reads again, for tokens committed late or issued
+   * on a server whose clock is behind.
+   */
+  private static final long SYNC_OVERLAP_SECONDS = 30;
+
+  private final OAuth2TokenService delegate;
+  private final AccessTokenScanner scanner;
+  private final Clock clock;
+
+  /** Filters by expired time divided by the slice length. */
+  private final ConcurrentSkipListMap<Long, CountingBloomFilter> slices =
+      new ConcurrentSkipListMap<>();
+
+  /**
+   * Expired time by first hash half of the added tokens a sync may pass again, so no token is
+   * counted twice.
+   */
+  private final Map<Long, Long> recent = new ConcurrentHashMap<>();
+
+  /** Tokens expiring before this are never passed by a sync again. */
+  private volatile long syncFloor = Long.MIN_VALUE;
+
+  private final Object syncLock = new Object();
+  /** The latest expired time a sync has seen, guarded by the sync lock. */
+  private long watermark;
+
+  /** Number of syncs started, only changed under the sync lock. */
+  private volatile long startedSyncs;
+
+  private final Striped<Lock> revocationLocks = Striped.lock(64);
+
+  private final AtomicLong passedCount = new AtomicLong();
+  private final AtomicLong rejectedCount = new AtomicLong();
+  private final AtomicLong falsePositiveCount = new AtomicLong();
+
+  private ScheduledExecutorService service;
+
+  @Inject
+  public BloomFilterOAuth2TokenService(
+      @Named(DELEGATE) OAuth2TokenService delegate, AccessTokenScanner scanner) {
+    this(delegate, scanner, Clock.systemUTC());
+    service = Executors.newSingleThreadScheduledExecutor();
+    service.scheduleWithFixedDelay(
+        ScheduledTasks.quietly(log, "Error when syncing the access token filter!", this::sync),
+        SYNC_MILLIS,
+        SYNC_MILLIS,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /** Builds the filter from the store, without the background sync. */
+  @VisibleForTesting
+  BloomFilterOAuth2TokenService(
+      OAuth2TokenService delegate, AccessTokenScanner scanner, Clock clock) {
+    this.delegate = delegate;
+    this.scanner = scanner;
+    this.clock = clock;
+    sync();
+    log.info("Built the access token filter from " + size() + " tokens.");
+  }
+
+  @Override
+  public OAuth2AccessToken generateAccessToken(OAuth2Request request) {
+    OAuth2AccessToken token = delegate.generateAccessToken(request);
+    addOnce(hash(token.getAccessToken()), token.getExpiredTime());
+    return token;
+  }
+
+  @Override
+  public Optional<OAuth2AccessToken> refreshToken(String refreshToken) {
+    Optional<OAuth2AccessToken> token = delegate.refreshToken(refreshToken);
+    if (token.isPresent()) {
+      addOnce(hash(token.get().getAccessToken()), token.get().getExpiredTime());
+    }
+    return token;
+  }
+
+  @Override
+  public ClientTokenResult<OAuth2AccessToken> refreshToken(String refreshToken, String clientID) {
+    ClientTokenResult<OAuth2AccessToken> result = delegate.refreshToken(refreshToken, clientID);
+    if (result.getValue().isPresent()) {
+      OAuth2AccessToken token = result.getValue().get();
+      addOnce(hash(token.getAccessToken()), token.getExpiredTime());
+    }
+    return result;
+  }
+
+  @Override
+  public Optional<OAuth2AccessToken> readAccessToken(String accessToken) {
+    long[] hash = hash(accessToken);
+    if (!mightContain(hash) && !mightContainAfterSync(hash)) {
+      rejectedCount.incrementAndGet();
+      return Optional.empty();
+    }
+    passedCount.incrementAndGet();
+    Optional<OAuth2AccessToken> token = delegate.readAccessToken(accessToken);
+    if (!token.isPresent()) {
+      falsePositiveCount.incrementAndGet();
+    }
+    return token;
+  }
+
+  @Override
+  public Optional<OAuth2RefreshToken> readRefreshToken(String refreshToken) {
+    return delegate.readRefreshToken(refreshToken);
+  }
+
+  @Override
+  public boolean revokeByAccessToken(String accessToken) {
+    // Two revocations of one token must not both remove it.
+    Lock lock = revocationLocks.get(accessToken);
+    lock.lock();
+    try {
+      Optional<OAuth2AccessToken> token = delegate.readAccessToken(accessToken);
+      boolean revoked = delegate.revokeByAccessToken(accessToken);
+      if (revoked && token.isPresent()) {
+        removeIfAdded(hash(accessToken), token.get().getExpiredTime());
+      }
+      return revoked;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean revokeByRefreshToken(String refreshToken) {
+    return delegate.revokeByRefreshToken(refreshToken);
+  }
+
+  @Override
+  public ClientTokenResult<OAuth2AccessToken> revokeByAccessToken(
+      String accessToken, String clientID) {
+    Lock lock = revocationLocks.get(accessToken);
+    lock.lock();
+    try {
+      ClientTokenResult<OAuth2AccessToken> result =
+          delegate.revokeByAccessToken(accessToken, clientID);
+      if (result.getValue().isPresent()) {
+        removeIfAdded(hash(accessToken), result.getValue().get().getExpiredTime());
+      }
+      return result;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public ClientTokenResult<OAuth2RefreshToken> revokeByRefreshToken(
+      String refreshToken, String clientID) {
+    return delegate.revokeByRefreshToken(refreshToken, clientID);
+  }
+
+  @Override
+  public boolean revokeUserClientTokens(String username, String clientID) {
+    return delegate.revokeUserClientTokens(username, clientID);
+  }
+
+  @Override
+  public RevokedTokens revokeAndListUserClientTokens(String username, String clientID) {
+    return delegate.revokeAndListUserClientTokens(username, clientID);
+  }
+
+  @Override
+  public void revokeClientTokens(String clientID) {
+    delegate.revokeClientTokens(clientID);
+  }
+
+  @Override
+  public void revokeUserTokens(String username) {
+    delegate.revokeUserTokens(username);
+  }
+
+  @Override
+  public List<String> listUserClient(String username) {
+    return delegate.listUserClient(username);
+  }
+
+  @Override
+  public UserTokenList listUserTokens(String username) {
+    return delegate.listUserTokens(username);
+  }
+
+  @Override
+  public List<OAuth2AccessToken> listUserClientAccessTokens(String username, String clientID) {
+    return delegate.listUserClientAccessTokens(username, clientID);
+  }
+
+  @Override
+  public List<OAuth2RefreshToken> listUserClientRefreshTokens(String username, String clientID) {
+    return delegate.listUserClientRefreshTokens(username, clientID);
+  }
+
+  @Override
+  public void reset() {
+    synchronized (syncLock) {
+      delegate.reset();
+      slices.clear();
+      recent.clear();
+    }
+  }
+
+  /** Lookups the filter passed to the delegate. */
+  public long getPassedCount() {
+    return passedCount.get();
+  }
+
+  /** Lookups rejected by the filter without reading the delegate. */
+  public long getRejectedCount() {
+    return rejectedCount.get();
+  }
+
+  /**
+   * Lookups the filter passed but the delegate did not find, including tokens revoked in bulk
+   * which are still in the filter.
+   */
+  public long getFalsePositiveCount() {
+    return falsePositiveCount.get();
+  }
+
+  /** The share of lookups of unknown tokens which the filter passed, 0 before there were any. */
+  public double getFalsePositiveRate() {
+    long falsePositives = falsePositiveCount.get();
+    long unknown = falsePositives + rejectedCount.get();
+    return unknown == 0 ? 0 : (double) falsePositives / unknown;
+  }
+
+  /** The chance an unknown token passes any of the live slices at their current fill. */
+  public double getExpectedFalsePositiveRate() {
+    double passNone = 1;
+    for (CountingBloomFilter slice : liveSlices().values()) {
+      passNone *= 1 - slice.expectedFpp();
+    }
+    return 1 - passNone;
+  }
+
+  /** Number of tokens in the live slices. */
+  @VisibleForTesting
+  long size() {
+    long size = 0;
+    for (CountingBloomFilter slice : liveSlices().values()) {
+      size += slice.size();
+    }
+    return size;
+  }
+
+  /** Read the tokens issued since the last sync, and drop the slices which expired. */
+  @VisibleForTesting
+  void sync() {
+    synchronized (syncLock) {
+      startedSyncs++;
+      long now = nowSeconds();
+      long from = Math.max(now - EXPIRED_GRACE_SECONDS, watermark - SYNC_OVERLAP_SECONDS);
+      scanner.scanAccessTokens(
+          from,
+          (accessTokenKey, expiredTime) -> {
+            watermark = Math.max(watermark, expiredTime);
+            addOnce(hash(accessTokenKey), expiredTime);
+          });
+      // Raised before pruning, so a token pruned from recent is known to have been added.
+      syncFloor = Math.max(now - EXPIRED_GRACE_SECONDS, watermark - SYNC_OVERLAP_SECONDS);
+      recent.values().removeIf(expiredTime -> expiredTime < syncFloor);
+      slices.headMap(slice(now - EXPIRED_GRACE_SECONDS)).clear();
+    }
+  }
+
+  /**
+   * Whether the filter contains the token after a sync which started after this call, run here
+   * unless another lookup waiting for the sync lock already ran one.
+   */
+  private boolean mightContainAfterSync(long[] hash) {
+    long arrival = startedSyncs;
+    synchronized (syncLock) {
+      if (startedSyncs == arrival) {
+        sync();
+      }
+    }
+    return mightContain(hash);
+  }
+
+  private void addOnce(long[] hash, long expiredTime) {
+    if (expiredTime >= syncFloor && recent.putIfAbsent(hash[0], expiredTime) != null) {
+      return;
+    }
+    slices
+        .computeIfAbsent(slice(expiredTime), k -> new CountingBloomFilter(TOKENS_PER_MINUTE, FPP))
+        .add(hash[0], hash[1]);
+  }
+
+  private void removeIfAdded(long[] hash, long expiredTime) {
+    if (recent.remove(hash[0]) == null && expiredTime >= syncFloor) {
+      // Not added yet, and deleted from the store before a sync passed it.
+      return;
+    }
+    CountingBloomFilter slice = slices.get(slice(expiredTime));
+    if (slice != null) {
+      slice.remove(hash[0], hash[1]);
+    }
+  }
+
+  private boolean mightContain(long[] hash) {
+    for (CountingBloomFilter slice : liveSlices().values()) {
+      if (slice.mightContain(hash[0], hash[1])) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private Map<Long, CountingBloomFilter> liveSlices() {
+    return slices.tailMap(slice(nowSeconds() - EXPIRED_GRACE_SECONDS));
+  }
+
+  private long nowSeconds() {
+    return TimeUnit.MILLISECONDS.toSeconds(clock.millis());
+  }
+
+  private static long[] hash(String accessToken) {
+    return hash(TokenHashes.key(accessToken));
+  }
+
+  /** The filter hashes are two halves of the store key, which is already a SHA-256. */
+  private static long[] hash(byte[] accessTokenKey) {
+    ByteBuffer key = ByteBuffer.wrap(accessTokenKey).order(ByteOrder.LITTLE_ENDIAN);
+    return new long[] {key.getLong(0), key.getLong(8)};
+  }
+
+  private static long slice(long expiredTime) {
+    return Math.floorDiv(expiredTime, SLICE_SECONDS);
+  }
+}
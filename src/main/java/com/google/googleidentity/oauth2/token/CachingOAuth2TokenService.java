@@ -0,0 +1,327 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.token;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.ImmutableList;
+import com.google.googleidentity.oauth2.request.OAuth2Request;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded in process cache of {@link #readAccessToken(String)} in front of another {@link
+ * OAuth2TokenService}, so validating the same access token again does not go to the database.
+ *
+ * <p>Found tokens are cached for at most the positive ttl and never after their expired time,
+ * unknown tokens for the (shorter) negative ttl. Revocations going through this service invalidate
+ * the affected entries immediately, revoking a single token the entries of its whole user and
+ * client, as tokens read from the database do not carry their refresh token. Revocations made by
+ * another server instance are only seen when the entry times out, so the ttl is the bound on how
+ * stale a cached token can be. So are the revocations of refresh token families a refresh makes
+ * when a superseded refresh token is presented again, the family of which is not known here.
+ *
+ * <p>Everything else is passed to the delegate as it is.
+ */
+@Singleton
+public class CachingOAuth2TokenService implements OAuth2TokenService {
+
+  /** Name of the binding of the {@link OAuth2TokenService} this service caches. */
+  public static final String DELEGATE = "CachingOAuth2TokenServiceDelegate";
+
+  private final OAuth2TokenService delegate;
+  private final Clock clock;
+  private final Duration positiveTtl;
+  private final Duration negativeTtl;
+  private final Cache<String, CachedToken> cache;
+
+  /** Cached access token strings by user and client, for invalidation. */
+  private final Map<String, Set<String>> byUserClient = new ConcurrentHashMap<>();
+
+  /** Bumped by every revocation, so a read racing with it does not cache what it read before. */
+  private final AtomicLong revocations = new AtomicLong();
+
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+
+  @Inject
+  public CachingOAuth2TokenService(
+      @Named(DELEGATE) OAuth2TokenService delegate, TokenCacheConfig config) {
+    this(delegate, config, Clock.systemUTC());
+  }
+
+  @VisibleForTesting
+  CachingOAuth2TokenService(OAuth2TokenService delegate, TokenCacheConfig config, Clock clock) {
+    this.delegate = delegate;
+    this.clock = clock;
+    this.positiveTtl = config.getPositiveTtl();
+    this.negativeTtl = config.getNegativeTtl();
+    this.cache =
+        CacheBuilder.newBuilder()
+            .maximumSize(config.getMaximumSize())
+            .expireAfterWrite(
+                Math.max(positiveTtl.toMillis(), negativeTtl.toMillis()), TimeUnit.MILLISECONDS)
+            .removalListener(this::onRemoval)
+            .build();
+  }
+
+  @Override
+  public OAuth2AccessToken generateAccessToken(OAuth2Request request) {
+    return delegate.generateAccessToken(request);
+  }
+
+  @Override
+  public Optional<OAuth2AccessToken> refreshToken(String refreshToken) {
+    return delegate.refreshToken(refreshToken);
+  }
+
+  @Override
+  public ClientTokenResult<OAuth2AccessToken> refreshToken(String refreshToken, String clientID) {
+    return delegate.refreshToken(refreshToken, clientID);
+  }
+
+  @Override
+  public Optional<OAuth2AccessToken> readAccessToken(String accessToken) {
+    long now = clock.millis();
+    CachedToken cached = cache.getIfPresent(accessToken);
+    if (cached != null && cached.expiresAt > now) {
+      hitCount.incrementAndGet();
+      return cached.token;
+    }
+    missCount.incrementAndGet();
+
+    long revocationsBefore = revocations.get();
+    Optional<OAuth2AccessToken> token = delegate.readAccessToken(accessToken);
+    long expiresAt;
+    if (token.isPresent()) {
+      expiresAt =
+          Math.min(
+              now + positiveTtl.toMillis(),
+              TimeUnit.SECONDS.toMillis(token.get().getExpiredTime()));
+    } else {
+      expiresAt = now + negativeTtl.toMillis();
+    }
+    if (expiresAt > now) {
+      track(accessToken, token);
+      cache.put(accessToken, new CachedToken(token, expiresAt));
+      if (revocations.get() != revocationsBefore) {
+        cache.invalidate(accessToken);
+      }
+    }
+    return token;
+  }
+
+  @Override
+  public Optional<OAuth2RefreshToken> readRefreshToken(String refreshToken) {
+    return delegate.readRefreshToken(refreshToken);
+  }
+
+  @Override
+  public boolean revokeByAccessToken(String accessToken) {
+    Optional<OAuth2AccessToken> token = readAccessToken(accessToken);
+    boolean revoked = delegate.revokeByAccessToken(accessToken);
+    revocations.incrementAndGet();
+    cache.invalidate(accessToken);
+    if (token.isPresent()) {
+      invalidateAll(
+          byUserClient.get(userClientKey(token.get().getUsername(), token.get().getClientId())));
+    }
+    return revoked;
+  }
+
+  @Override
+  public boolean revokeByRefreshToken(String refreshToken) {
+    Optional<OAuth2RefreshToken> token = delegate.readRefreshToken(refreshToken);
+    boolean revoked = delegate.revokeByRefreshToken(refreshToken);
+    revocations.incrementAndGet();
+    if (token.isPresent()) {
+      invalidateAll(
+          byUserClient.get(userClientKey(token.get().getUsername(), token.get().getClientId())));
+    }
+    return revoked;
+  }
+
+  @Override
+  public ClientTokenResult<OAuth2AccessToken> revokeByAccessToken(
+      String accessToken, String clientID) {
+    ClientTokenResult<OAuth2AccessToken> result =
+        delegate.revokeByAccessToken(accessToken, clientID);
+    if (result.getValue().isPresent()) {
+      revocations.incrementAndGet();
+      cache.invalidate(accessToken);
+      invalidateAll(
+          byUserClient.get(userClientKey(result.getValue().get().getUsername(), clientID)));
+    }
+    return result;
+  }
+
+  @Override
+  public ClientTokenResult<OAuth2RefreshToken> revokeByRefreshToken(
+      String refreshToken, String clientID) {
+    ClientTokenResult<OAuth2RefreshToken> result =
+        delegate.revokeByRefreshToken(refreshToken, clientID);
+    if (result.getValue().isPresent()) {
+      revocations.incrementAndGet();
+      invalidateAll(
+          byUserClient.get(userClientKey(result.getValue().get().getUsername(), clientID)));
+    }
+    return result;
+  }
+
+  @Override
+  public boolean revokeUserClientTokens(String username, String clientID) {
+    boolean revoked = delegate.revokeUserClientTokens(username, clientID);
+    revocations.incrementAndGet();
+    invalidateAll(byUserClient.get(userClientKey(username, clientID)));
+    return revoked;
+  }
+
+  @Override
+  public RevokedTokens revokeAndListUserClientTokens(String username, String clientID) {
+    RevokedTokens revoked = delegate.revokeAndListUserClientTokens(username, clientID);
+    revocations.incrementAndGet();
+    invalidateAll(byUserClient.get(userClientKey(username, clientID)));
+    return revoked;
+  }
+
+  /** Drops the whole cache, instead of finding the entries of the client. */
+  @Override
+  public void revokeClientTokens(String clientID) {
+    delegate.revokeClientTokens(clientID);
+    revocations.incrementAndGet();
+    cache.invalidateAll();
+  }
+
+  /** Drops the whole cache, instead of finding the entries of the user. */
+  @Override
+  public void revokeUserTokens(String username) {
+    delegate.revokeUserTokens(username);
+    revocations.incrementAndGet();
+    cache.invalidateAll();
+  }
+
+  @Override
+  public List<String> listUserClient(String username) {
+    return delegate.listUserClient(username);
+  }
+
+  @Override
+  public UserTokenList listUserTokens(String username) {
+    return delegate.listUserTokens(username);
+  }
+
+  @Override
+  public List<OAuth2AccessToken> listUserClientAccessTokens(String username, String clientID) {
+    return delegate.listUserClientAccessTokens(username, clientID);
+  }
+
+  @Override
+  public List<OAuth2RefreshToken> listUserClientRefreshTokens(String username, String clientID) {
+    return delegate.listUserClientRefreshTokens(username, clientID);
+  }
+
+  @Override
+  public void reset() {
+    delegate.reset();
+    cache.invalidateAll();
+  }
+
+  /** Reads answered from the cache. */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /** Reads which went to the delegate. */
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  @VisibleForTesting
+  long size() {
+    return cache.size();
+  }
+
+  private void invalidateAll(Set<String> accessTokens) {
+    if (accessTokens != null) {
+      // Copy, the removal listener changes the set while the entries are invalidated.
+      cache.invalidateAll(ImmutableList.copyOf(accessTokens));
+    }
+  }
+
+  private void track(String accessToken, Optional<OAuth2AccessToken> token) {
+    if (!token.isPresent()) {
+      return;
+    }
+    byUserClient
+        .computeIfAbsent(
+            userClientKey(token.get().getUsername(), token.get().getClientId()),
+            k -> ConcurrentHashMap.newKeySet())
+        .add(accessToken);
+  }
+
+  private void onRemoval(RemovalNotification<String, CachedToken> notification) {
+    // A replaced entry is for the same token, which stays tracked.
+    if (notification.getCause() == RemovalCause.REPLACED) {
+      return;
+    }
+    Optional<OAuth2AccessToken> token = notification.getValue().token;
+    if (!token.isPresent()) {
+      return;
+    }
+    untrack(
+        byUserClient,
+        userClientKey(token.get().getUsername(), token.get().getClientId()),
+        notification.getKey());
+  }
+
+  private static void untrack(Map<String, Set<String>> index, String key, String accessToken) {
+    index.computeIfPresent(
+        key,
+        (k, accessTokens) -> {
+          accessTokens.remove(accessToken);
+          return accessTokens.isEmpty() ? null : accessTokens;
+        });
+  }
+
+  private static String userClientKey(String username, String clientID) {
+    return username + "\t" + clientID;
+  }
+
+  private static final class CachedToken {
+    private final Optional<OAuth2AccessToken> token;
+    /** Epoch millis after which the entry must not be used. */
+    private final long expiresAt;
+
+    CachedToken(Optional<OAuth2AccessToken> token, long expiresAt) {
+      this.token = token;
+      this.expiresAt = expiresAt;
+    }
+  }
+}
@@ -0,0 +1,82 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.token;
+
+import java.util.Optional;
+import java.util.function.Function;
+
+/**
+ * The outcome of an operation on a token which must have been issued to the calling client, see
+ * {@link OAuth2TokenService#refreshToken(String, String)}. The token is read, checked and written
+ * in one step, so nothing changes it in between.
+ */
+public final class ClientTokenResult<T> {
+
+  /** What happened to the token. */
+  public enum Status {
+    /** The operation was applied. */
+    DONE,
+    /** The token does not exist, is revoked or, for revocation, already expired. */
+    NOT_FOUND,
+    /** The token was issued to another client, nothing was changed. */
+    CLIENT_MISMATCH
+  }
+
+  private static final ClientTokenResult<?> NOT_FOUND =
+      new ClientTokenResult<>(Status.NOT_FOUND, null);
+  private static final ClientTokenResult<?> CLIENT_MISMATCH =
+      new ClientTokenResult<>(Status.CLIENT_MISMATCH, null);
+
+  private final Status status;
+  private final T value;
+
+  private ClientTokenResult(Status status, T value) {
+    this.status = status;
+    this.value = value;
+  }
+
+  public static <T> ClientTokenResult<T> done(T value) {
+    return new ClientTokenResult<>(Status.DONE, value);
+  }
+
+  @SuppressWarnings("unchecked")
+  public static <T> ClientTokenResult<T> notFound() {
+    return (ClientTokenResult<T>) NOT_FOUND;
+  }
+
+  @SuppressWarnings("unchecked")
+  public static <T> ClientTokenResult<T> clientMismatch() {
+    return (ClientTokenResult<T>) CLIENT_MISMATCH;
+  }
+
+  public Status getStatus() {
+    return status;
+  }
+
+  /** The issued or revoked token, present only when {@link Status#DONE}. */
+  public Optional<T> getValue() {
+    return Optional.ofNullable(value);
+  }
+
+  /** Convert the token of a {@link Status#DONE} result, others are kept as they are. */
+  public <R> ClientTokenResult<R> map(Function<? super T, ? extends R> function) {
+    if (status == Status.DONE) {
+      return done(function.apply(value));
+    }
+    return new ClientTokenResult<>(status, null);
+  }
+}
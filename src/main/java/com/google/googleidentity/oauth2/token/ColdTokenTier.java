@@ -0,0 +1,411 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.token;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hashing;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.ExtensionRegistryLite;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Off heap tier of {@link InMemoryOAuth2TokenService} for the refresh tokens of idle users.
+ *
+ * <p>The tokens of a user are written as one entry, length prefixed serialized tokens, to the
+ * current segment, a file of a fixed size mapped into memory. The file is deleted as soon as it is
+ * mapped, so the tier leaves nothing behind on disk and the memory is returned once the segment is
+ * unreachable. The heap only keeps the location of each entry by username, and a primitive table
+ * from a 64 bit fingerprint of each refresh token to the id of its username, so a token is found
+ * without decrypting it.
+ *
+ * <p>Taking an entry back frees its space. A segment which is no longer written to is dropped once
+ * all its entries are taken, and {@link #compact()} moves the entries of a mostly free segment to
+ * the current one. Each entry is only read, moved or taken inside an update of its location, so a
+ * segment is never dropped while one of its entries is in use.
+ */
+final class ColdTokenTier {
+
+  private static final Logger log = Logger.getLogger("ColdTokenTier");
+
+  /** Segments with less than this share of live bytes are compacted. */
+  private static final int COMPACT_BELOW_LIVE_FRACTION = 4;
+
+  private final Path directory;
+  private final int segmentSize;
+  private final Map<String, Long> locations = new ConcurrentHashMap<>();
+  private final Map<Integer, Segment> segments = new ConcurrentHashMap<>();
+  /** Usernames are never released, they are few compared to the tokens. */
+  private final IdInterner<String> usernames = new IdInterner<>();
+  private final FingerprintTable fingerprints = new FingerprintTable();
+
+  /** Guarded by this. */
+  private Segment current;
+
+  private int nextSegmentId;
+
+  ColdTokenTier(Path directory, int segmentSize) {
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+  }
+
+  /**
+   * Add refresh tokens of the user, after the ones already in the tier.
+   *
+   * @return false if they do not fit in a segment, nothing is added then
+   */
+  boolean put(String username, List<OAuth2RefreshToken> tokens) {
+    byte[] entry = encode(tokens);
+    boolean[] added = new boolean[1];
+    locations.compute(
+        username,
+        (key, location) -> {
+          byte[] merged = entry;
+          if (location != null) {
+            byte[] previous = read(location);
+            merged = new byte[previous.length + entry.length];
+            System.arraycopy(previous, 0, merged, 0, previous.length);
+            System.arraycopy(entry, 0, merged, previous.length, entry.length);
+          }
+          if (merged.length > segmentSize / 4) {
+            return location;
+          }
+          long moved = append(merged);
+          if (location != null) {
+            release(location);
+          }
+          added[0] = true;
+          return moved;
+        });
+    if (added[0]) {
+      int id = usernames.intern(username);
+      for (OAuth2RefreshToken token : tokens) {
+        fingerprints.put(fingerprint(token.getRefreshToken()), id);
+      }
+    }
+    return added[0];
+  }
+
+  /**
+   * Remove the tokens of the user from the tier, empty if it has none there. They can still be
+   * found by {@link #findUsername(String)} until they are passed to {@link #forget(List)}.
+   */
+  List<OAuth2RefreshToken> take(String username) {
+    byte[][] entry = new byte[1][];
+    locations.computeIfPresent(
+        username,
+        (key, location) -> {
+          entry[0] = read(location);
+          release(location);
+          return null;
+        });
+    return entry[0] == null ? ImmutableList.of() : decode(entry[0]);
+  }
+
+  boolean contains(String username) {
+    return locations.containsKey(username);
+  }
+
+  /** The user of a refresh token in the tier, or rarely of another token, or null. */
+  String findUsername(String refreshToken) {
+    int id = fingerprints.get(fingerprint(refreshToken));
+    return id == IdInterner.NONE ? null : usernames.get(id);
+  }
+
+  /** Stop finding the tokens, once they were taken and are found elsewhere. */
+  void forget(List<OAuth2RefreshToken> tokens) {
+    for (OAuth2RefreshToken token : tokens) {
+      fingerprints.remove(fingerprint(token.getRefreshToken()));
+    }
+  }
+
+  /** Pass the tokens of every user in the tier to the consumer, leaving them in the tier. */
+  void forEach(BiConsumer<String, List<OAuth2RefreshToken>> consumer) {
+    for (String username : locations.keySet()) {
+      byte[][] entry = new byte[1][];
+      locations.computeIfPresent(
+          username,
+          (key, location) -> {
+            entry[0] = read(location);
+            return location;
+          });
+      if (entry[0] != null) {
+        consumer.accept(username, decode(entry[0]));
+      }
+    }
+  }
+
+  /** Number of users in the tier. */
+  int size() {
+    return locations.size();
+  }
+
+  /** Number of segments mapped. */
+  int segmentCount() {
+    return segments.size();
+  }
+
+  synchronized void clear() {
+    locations.clear();
+    segments.clear();
+    fingerprints.clear();
+    current = null;
+  }
+
+  /** Move the entries of segments which are mostly free to the current segment. */
+  void compact() {
+    Set<Integer> sparse = new HashSet<>();
+    synchronized (this) {
+      for (Segment segment : segments.values()) {
+        if (segment != current
+            && segment.liveBytes.get() < segmentSize / COMPACT_BELOW_LIVE_FRACTION) {
+          sparse.add(segment.id);
+        }
+      }
+    }
+    if (sparse.isEmpty()) {
+      return;
+    }
+    for (String username : locations.keySet()) {
+      locations.computeIfPresent(
+          username,
+          (key, location) -> {
+            if (!sparse.contains(segmentId(location))) {
+              return location;
+            }
+            long moved = append(read(location));
+            release(location);
+            return moved;
+          });
+    }
+  }
+
+  private synchronized long append(byte[] entry) {
+    if (current == null || current.position + 4 + entry.length > segmentSize) {
+      current = newSegment();
+    }
+    ByteBuffer buffer = current.buffer.duplicate();
+    buffer.position(current.position);
+    buffer.putInt(entry.length).put(entry);
+    long location = ((long) current.id << 32) | current.position;
+    current.position = buffer.position();
+    current.liveBytes.addAndGet(4 + entry.length);
+    return location;
+  }
+
+  private byte[] read(long location) {
+    ByteBuffer buffer = segments.get(segmentId(location)).buffer.duplicate();
+    buffer.position((int) location);
+    byte[] entry = new byte[buffer.getInt()];
+    buffer.get(entry);
+    return entry;
+  }
+
+  private void release(long location) {
+    Segment segment = segments.get(segmentId(location));
+    int length = segment.buffer.getInt((int) location);
+    if (segment.liveBytes.addAndGet(-(4 + length)) == 0) {
+      synchronized (this) {
+        if (segment != current && segment.liveBytes.get() == 0) {
+          segments.remove(segment.id);
+        }
+      }
+    }
+  }
+
+  /** Map a new segment file and delete it, the mapping stays valid. */
+  private Segment newSegment() {
+    try {
+      Path file = Files.createTempFile(directory, "cold-tokens-", ".seg");
+      MappedByteBuffer buffer;
+      try (FileChannel channel =
+          FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+      }
+      try {
+        Files.delete(file);
+      } catch (IOException exception) {
+        // Some platforms can not delete a mapped file.
+        log.log(Level.INFO, "Could not delete " + file + " yet.", exception);
+        file.toFile().deleteOnExit();
+      }
+      Segment segment = new Segment(nextSegmentId++, buffer);
+      segments.put(segment.id, segment);
+      return segment;
+    } catch (IOException exception) {
+      throw new UncheckedIOException("Error when mapping a cold token segment!", exception);
+    }
+  }
+
+  /** Never 0, which marks a free slot of the table. */
+  private static long fingerprint(String refreshToken) {
+    long fingerprint =
+        Hashing.farmHashFingerprint64().hashString(refreshToken, StandardCharsets.UTF_8).asLong();
+    return fingerprint == 0 ? 1 : fingerprint;
+  }
+
+  private static int segmentId(long location) {
+    return (int) (location >>> 32);
+  }
+
+  private static byte[] encode(List<OAuth2RefreshToken> tokens) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    CodedOutputStream output = CodedOutputStream.newInstance(bytes);
+    try {
+      for (OAuth2RefreshToken token : tokens) {
+        output.writeMessageNoTag(token);
+      }
+      output.flush();
+    } catch (IOException exception) {
+      throw new UncheckedIOException(exception);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static List<OAuth2RefreshToken> decode(byte[] entry) {
+    CodedInputStream input = CodedInputStream.newInstance(entry);
+    ImmutableList.Builder<OAuth2RefreshToken> tokens = ImmutableList.builder();
+    try {
+      while (!input.isAtEnd()) {
+        tokens.add(
+            input.readMessage(
+                OAuth2RefreshToken.parser(), ExtensionRegistryLite.getEmptyRegistry()));
+      }
+    } catch (IOException exception) {
+      throw new UncheckedIOException(exception);
+    }
+    return tokens.build();
+  }
+
+  /**
+   * Open addressing table from fingerprint to username id, probed linearly and kept at most half
+   * full. Removing shifts the following slots back instead of leaving a tombstone.
+   */
+  private static final class FingerprintTable {
+    private long[] keys = new long[16];
+    private int[] values = new int[16];
+    private int size;
+
+    synchronized int get(long key) {
+      int mask = keys.length - 1;
+      for (int slot = hash(key) & mask; keys[slot] != 0; slot = (slot + 1) & mask) {
+        if (keys[slot] == key) {
+          return values[slot];
+        }
+      }
+      return IdInterner.NONE;
+    }
+
+    synchronized void put(long key, int value) {
+      if ((size + 1) * 2 > keys.length) {
+        resize(keys.length * 2);
+      }
+      int mask = keys.length - 1;
+      int slot = hash(key) & mask;
+      while (keys[slot] != 0 && keys[slot] != key) {
+        slot = (slot + 1) & mask;
+      }
+      if (keys[slot] == 0) {
+        size++;
+      }
+      keys[slot] = key;
+      values[slot] = value;
+    }
+
+    synchronized void remove(long key) {
+      int mask = keys.length - 1;
+      int hole = hash(key) & mask;
+      while (keys[hole] != key) {
+        if (keys[hole] == 0) {
+          return;
+        }
+        hole = (hole + 1) & mask;
+      }
+      // Move back every following entry which may sit in the hole, up to the next free slot.
+      for (int slot = (hole + 1) & mask; keys[slot] != 0; slot = (slot + 1) & mask) {
+        int home = hash(keys[slot]) & mask;
+        if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+          keys[hole] = keys[slot];
+          values[hole] = values[slot];
+          hole = slot;
+        }
+      }
+      keys[hole] = 0;
+      size--;
+    }
+
+    synchronized void clear() {
+      keys = new long[16];
+      values = new int[16];
+      size = 0;
+    }
+
+    private void resize(int capacity) {
+      long[] oldKeys = keys;
+      int[] oldValues = values;
+      keys = new long[capacity];
+      values = new int[capacity];
+      int mask = capacity - 1;
+      for (int i = 0; i < oldKeys.length; i++) {
+        if (oldKeys[i] != 0) {
+          int slot = hash(oldKeys[i]) & mask;
+          while (keys[slot] != 0) {
+            slot = (slot + 1) & mask;
+          }
+          keys[slot] = oldKeys[i];
+          values[slot] = oldValues[i];
+        }
+      }
+    }
+
+    private static int hash(long key) {
+      return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32);
+    }
+  }
+
+  private static final class Segment {
+    private final int id;
+    private final MappedByteBuffer buffer;
+    private final AtomicLong liveBytes = new AtomicLong();
+
+    /** Guarded by the tier. */
+    private int position;
+
+    Segment(int id, MappedByteBuffer buffer) {
+      this.id = id;
+      this.buffer = buffer;
+    }
+  }
+}
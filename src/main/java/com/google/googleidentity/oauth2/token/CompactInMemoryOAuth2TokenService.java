@@ -0,0 +1,348 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.token;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.googleidentity.oauth2.request.OAuth2Request;
+import com.google.googleidentity.oauth2.token.CompactTokenShard.ScopeSet;
+import com.google.googleidentity.oauth2.util.ScheduledTasks;
+import com.google.inject.Singleton;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * In memory token service for many live tokens, which keeps a token in a few dozen bytes of
+ * primitive arrays instead of a protobuf with its own strings. Used instead of {@link
+ * InMemoryOAuth2TokenService} with TOKEN_STORE=compact.
+ *
+ * <p>Tokens are random 128 bit {@link CompactTokenIds}, usernames, client ids and scope sets are
+ * interned into int ids by {@link IdInterner}, and the expiry is kept as int epoch seconds. The
+ * records live in {@link CompactTokenShard}s chosen by the user, whose shard is also part of each
+ * token id. Protobuf tokens are only built when a token is returned.
+ *
+ * <p>Revocation works as in {@link InMemoryOAuth2TokenService}, revoking a user, a client or a
+ * user and client advances a {@link RevocationEpochs} epoch and the cleaner removes the revoked
+ * tokens in the background, then forgets the epoch unless the scope was revoked again meanwhile.
+ * The cleaner also removes the expired access tokens of the shards.
+ *
+ * <p>Refresh tokens are not rotated and do not expire, as a record has no room for the family or
+ * the times of its token. {@link TokenModule} refuses to start with REFRESH_TOKEN_ROTATION=true
+ * or with a {@link RefreshTokenLifetime} set.
+ */
+@Singleton
+public class CompactInMemoryOAuth2TokenService implements OAuth2TokenService {
+
+  private static final Logger log = Logger.getLogger("CompactInMemoryOAuth2TokenService");
+
+  private static final int SHARD_COUNT = 64;
+  private static final int SHARD_MASK = SHARD_COUNT - 1;
+  private static final long CLEANER_PERIOD_SECONDS = 1;
+
+  private final IdInterner<String> users = new IdInterner<>();
+  private final IdInterner<String> clients = new IdInterner<>();
+  private final IdInterner<ScopeSet> scopeSets = new IdInterner<>();
+  private final RevocationEpochs revocationEpochs = new RevocationEpochs();
+  /** Revoked scopes, as username and client id, whose tokens the cleaner still has to remove. */
+  private final Queue<Map.Entry<String, String>> revokedScopes = new ConcurrentLinkedQueue<>();
+  private final CompactTokenShard[] shards = new CompactTokenShard[SHARD_COUNT];
+  private final Duration tokenValidTime = Duration.ofMinutes(10);
+  ScheduledExecutorService service;
+
+  public CompactInMemoryOAuth2TokenService() {
+    for (int i = 0; i < SHARD_COUNT; i++) {
+      shards[i] = new CompactTokenShard(i, SHARD_MASK, users, clients, scopeSets, revocationEpochs);
+    }
+    service = Executors.newSingleThreadScheduledExecutor();
+    service.scheduleAtFixedRate(
+        ScheduledTasks.quietly(log, "Error when cleaning expired tokens!", new TokenCleaner()),
+        CLEANER_PERIOD_SECONDS,
+        CLEANER_PERIOD_SECONDS,
+        TimeUnit.SECONDS);
+  }
+
+  @Override
+  public OAuth2AccessToken generateAccessToken(OAuth2Request request) {
+    int user = users.intern(request.getRequestAuth().getUsername());
+    int client = clients.intern(request.getRequestAuth().getClientId());
+    int scopes =
+        scopeSets.intern(
+            new ScopeSet(
+                request.getRequestBody().getIsScoped(), request.getRequestBody().getScopesList()));
+    return shardOfUser(user)
+        .issue(user, client, scopes, newExpiry(), request.getRequestBody().getRefreshable());
+  }
+
+  @Override
+  public Optional<OAuth2AccessToken> refreshToken(String refreshToken) {
+    long[] id = CompactTokenIds.decode(refreshToken);
+    if (id == null) {
+      return Optional.empty();
+    }
+    return shardOfToken(id).refresh(id[0], id[1], IdInterner.NONE, newExpiry()).getValue();
+  }
+
+  @Override
+  public ClientTokenResult<OAuth2AccessToken> refreshToken(String refreshToken, String clientID) {
+    long[] id = CompactTokenIds.decode(refreshToken);
+    if (id == null) {
+      return ClientTokenResult.notFound();
+    }
+    int client = clients.find(clientID);
+    if (client == IdInterner.NONE) {
+      return readRefreshToken(refreshToken).isPresent()
+          ? ClientTokenResult.clientMismatch()
+          : ClientTokenResult.notFound();
+    }
+    return shardOfToken(id).refresh(id[0], id[1], client, newExpiry());
+  }
+
+  @Override
+  public Optional<OAuth2AccessToken> readAccessToken(String accessToken) {
+    long[] id = CompactTokenIds.decode(accessToken);
+    if (id == null) {
+      return Optional.empty();
+    }
+    return shardOfToken(id).readAccessToken(id[0], id[1]);
+  }
+
+  @Override
+  public Optional<OAuth2RefreshToken> readRefreshToken(String refreshToken) {
+    long[] id = CompactTokenIds.decode(refreshToken);
+    if (id == null) {
+      return Optional.empty();
+    }
+    return shardOfToken(id).readRefreshToken(id[0], id[1]);
+  }
+
+  @Override
+  public boolean revokeByAccessToken(String accessToken) {
+    long[] id = CompactTokenIds.decode(accessToken);
+    if (id == null) {
+      return false;
+    }
+    ClientTokenResult<OAuth2AccessToken> result =
+        shardOfToken(id)
+            .revokeAccessToken(id[0], id[1], IdInterner.NONE, Instant.now().getEpochSecond());
+    return result.getStatus() == ClientTokenResult.Status.DONE;
+  }
+
+  @Override
+  public ClientTokenResult<OAuth2AccessToken> revokeByAccessToken(
+      String accessToken, String clientID) {
+    long[] id = CompactTokenIds.decode(accessToken);
+    if (id == null) {
+      return ClientTokenResult.notFound();
+    }
+    int client = clients.find(clientID);
+    if (client == IdInterner.NONE) {
+      return readAccessToken(accessToken).isPresent()
+          ? ClientTokenResult.clientMismatch()
+          : ClientTokenResult.notFound();
+    }
+    return shardOfToken(id)
+        .revokeAccessToken(id[0], id[1], client, Instant.now().getEpochSecond());
+  }
+
+  @Override
+  public boolean revokeByRefreshToken(String refreshToken) {
+    long[] id = CompactTokenIds.decode(refreshToken);
+    if (id == null) {
+      return false;
+    }
+    Optional<OAuth2RefreshToken> token = shardOfToken(id).removeRefreshToken(id[0], id[1]);
+    return token.isPresent() && !revocationEpochs.isRevoked(token.get());
+  }
+
+  @Override
+  public ClientTokenResult<OAuth2RefreshToken> revokeByRefreshToken(
+      String refreshToken, String clientID) {
+    long[] id = CompactTokenIds.decode(refreshToken);
+    if (id == null) {
+      return ClientTokenResult.notFound();
+    }
+    int client = clients.find(clientID);
+    if (client == IdInterner.NONE) {
+      return readRefreshToken(refreshToken).isPresent()
+          ? ClientTokenResult.clientMismatch()
+          : ClientTokenResult.notFound();
+    }
+    return shardOfToken(id).revokeRefreshToken(id[0], id[1], client);
+  }
+
+  @Override
+  public boolean revokeUserClientTokens(String username, String clientID) {
+    int user = users.find(username);
+    int client = clients.find(clientID);
+    boolean hasTokens =
+        user != IdInterner.NONE
+            && client != IdInterner.NONE
+            && shardOfUser(user).hasTokens(user, client);
+    revokeScope(username, clientID);
+    return hasTokens;
+  }
+
+  @Override
+  public RevokedTokens revokeAndListUserClientTokens(String username, String clientID) {
+    int user = users.find(username);
+    int client = clients.find(clientID);
+    if (user == IdInterner.NONE || client == IdInterner.NONE) {
+      revokeScope(username, clientID);
+      return RevokedTokens.NONE;
+    }
+    return shardOfUser(user).revokeAndList(user, client, () -> revokeScope(username, clientID));
+  }
+
+  @Override
+  public void revokeClientTokens(String clientID) {
+    revokeScope(RevocationEpochs.ANY, clientID);
+  }
+
+  @Override
+  public void revokeUserTokens(String username) {
+    revokeScope(username, RevocationEpochs.ANY);
+  }
+
+  private void revokeScope(String username, String clientID) {
+    revocationEpochs.revoke(username, clientID);
+    revokedScopes.add(Maps.immutableEntry(username, clientID));
+  }
+
+  @Override
+  public List<String> listUserClient(String username) {
+    int user = users.find(username);
+    if (user == IdInterner.NONE) {
+      return ImmutableList.of();
+    }
+    return shardOfUser(user).listClients(user);
+  }
+
+  @Override
+  public UserTokenList listUserTokens(String username) {
+    int user = users.find(username);
+    if (user == IdInterner.NONE) {
+      return UserTokenList.EMPTY;
+    }
+    return shardOfUser(user).listTokens(user);
+  }
+
+  @Override
+  public List<OAuth2AccessToken> listUserClientAccessTokens(String username, String clientID) {
+    int user = users.find(username);
+    int client = clients.find(clientID);
+    if (user == IdInterner.NONE || client == IdInterner.NONE) {
+      return ImmutableList.of();
+    }
+    return shardOfUser(user).listAccessTokens(user, client);
+  }
+
+  @Override
+  public List<OAuth2RefreshToken> listUserClientRefreshTokens(String username, String clientID) {
+    int user = users.find(username);
+    int client = clients.find(clientID);
+    if (user == IdInterner.NONE || client == IdInterner.NONE) {
+      return ImmutableList.of();
+    }
+    return shardOfUser(user).listRefreshTokens(user, client);
+  }
+
+  @Override
+  public void reset() {
+    for (CompactTokenShard shard : shards) {
+      shard.clear();
+    }
+    revocationEpochs.clear();
+    revokedScopes.clear();
+  }
+
+  /** The number of access tokens held, also expired or revoked ones not yet removed. */
+  @VisibleForTesting
+  long accessTokenCount() {
+    long count = 0;
+    for (CompactTokenShard shard : shards) {
+      count += shard.accessTokenCount();
+    }
+    return count;
+  }
+
+  /** Remove the access tokens which expired before {@code now} (epoch seconds). */
+  @VisibleForTesting
+  void removeExpiredTokens(long now) {
+    for (CompactTokenShard shard : shards) {
+      shard.removeExpiredTokens(now);
+    }
+  }
+
+  /** Remove the tokens of the scopes revoked since the last call. */
+  @VisibleForTesting
+  void removeRevokedTokens() {
+    for (Map.Entry<String, String> scope = revokedScopes.poll();
+        scope != null;
+        scope = revokedScopes.poll()) {
+      long epoch = revocationEpochs.epochOf(scope.getKey(), scope.getValue());
+      boolean anyUser = scope.getKey().equals(RevocationEpochs.ANY);
+      boolean anyClient = scope.getValue().equals(RevocationEpochs.ANY);
+      int user = anyUser ? TokenRecords.NONE : users.find(scope.getKey());
+      int client = anyClient ? TokenRecords.NONE : clients.find(scope.getValue());
+      // A user or client which was never interned never had any tokens.
+      boolean hadTokens =
+          (anyUser || user != IdInterner.NONE) && (anyClient || client != IdInterner.NONE);
+      if (hadTokens && anyUser) {
+        for (CompactTokenShard shard : shards) {
+          shard.removeRevokedTokens(user, client);
+        }
+      } else if (hadTokens) {
+        shardOfUser(user).removeRevokedTokens(user, client);
+      }
+      // Tokens are issued under the shard lock, so none older than the epoch is left.
+      revocationEpochs.remove(scope.getKey(), scope.getValue(), epoch);
+    }
+  }
+
+  /** The expiry of a token issued now, as unsigned int epoch seconds. */
+  private int newExpiry() {
+    return (int) Instant.now().plus(tokenValidTime).getEpochSecond();
+  }
+
+  private CompactTokenShard shardOfUser(int user) {
+    return shards[user & SHARD_MASK];
+  }
+
+  private CompactTokenShard shardOfToken(long[] id) {
+    return shards[(int) id[1] & SHARD_MASK];
+  }
+
+  /** Remove the access tokens which expired and the tokens revoked since the last run. */
+  private class TokenCleaner implements Runnable {
+
+    @Override
+    public void run() {
+      removeExpiredTokens(Instant.now().getEpochSecond());
+      removeRevokedTokens();
+    }
+  }
+}
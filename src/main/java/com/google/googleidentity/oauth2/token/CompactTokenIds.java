@@ -0,0 +1,107 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.token;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Fixed width token ids of {@link CompactInMemoryOAuth2TokenService}.
+ *
+ * <p>An id is 128 bits kept as two longs, its token string is the 22 characters of the 16 bytes in
+ * base64url without padding. The low bits of the second long are the shard of the token's user and
+ * the other 122 bits are random, so a token string is found in its shard without any lookup.
+ */
+final class CompactTokenIds {
+
+  static final int LENGTH = 22;
+
+  private static final char[] BASE64_URL =
+      "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+  private static final byte[] BASE64_URL_INVERSE = new byte[128];
+
+  static {
+    Arrays.fill(BASE64_URL_INVERSE, (byte) -1);
+    for (int i = 0; i < BASE64_URL.length; i++) {
+      BASE64_URL_INVERSE[BASE64_URL[i]] = (byte) i;
+    }
+  }
+
+  private static final ThreadLocal<SecureRandom> random =
+      ThreadLocal.withInitial(SecureRandom::new);
+
+  private CompactTokenIds() {}
+
+  static long randomHigh() {
+    return random.get().nextLong();
+  }
+
+  /** A random low half whose bits under {@code shardMask} are {@code shard}. */
+  static long randomLow(int shard, int shardMask) {
+    return (random.get().nextLong() & ~(long) shardMask) | shard;
+  }
+
+  static String encode(long high, long low) {
+    char[] chars = new char[LENGTH];
+    // 128 bits are 21 full characters of 6 bits and one of the last 2 bits.
+    for (int i = 0; i < 10; i++) {
+      chars[i] = BASE64_URL[(int) (high >>> (58 - 6 * i)) & 0x3F];
+    }
+    // Character 10 has the last 4 bits of high and the first 2 of low.
+    chars[10] = BASE64_URL[(int) ((high & 0xF) << 2 | low >>> 62)];
+    for (int i = 0; i < 10; i++) {
+      chars[11 + i] = BASE64_URL[(int) (low >>> (56 - 6 * i)) & 0x3F];
+    }
+    chars[21] = BASE64_URL[(int) (low & 0x3) << 4];
+    return new String(chars);
+  }
+
+  /**
+   * The two halves of a token string, or null if it is not a token id.
+   *
+   * @return {@code {high, low}}
+   */
+  static long[] decode(String token) {
+    if (token.length() != LENGTH) {
+      return null;
+    }
+    long high = 0;
+    long low = 0;
+    for (int i = 0; i < LENGTH; i++) {
+      char c = token.charAt(i);
+      int bits = c < 128 ? BASE64_URL_INVERSE[c] : -1;
+      if (bits < 0) {
+        return null;
+      }
+      if (i < 10) {
+        high = high << 6 | bits;
+      } else if (i == 10) {
+        high = high << 4 | bits >>> 2;
+        low = bits & 0x3;
+      } else if (i < 21) {
+        low = low << 6 | bits;
+      } else {
+        if ((bits & 0xF) != 0) {
+          // Only one encoding of each id is accepted.
+          return null;
+        }
+        low = low << 2 | bits >>> 4;
+      }
+    }
+    return new long[] {high, low};
+  }
+}
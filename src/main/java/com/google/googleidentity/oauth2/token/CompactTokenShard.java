@@ -0,0 +1,644 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.token;
+
+import static com.google.googleidentity.oauth2.token.TokenRecords.NONE;
+
+import com.google.common.collect.ImmutableList;
+import com.google.googleidentity.oauth2.util.ExpiryQueue;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The tokens of the users of one shard of {@link CompactInMemoryOAuth2TokenService}.
+ *
+ * <p>Access and refresh tokens are {@link TokenRecords}. The records of a user and client are
+ * linked into one list per token type, the heads of which are kept by user and client id. The
+ * access tokens of a refresh token are found on the list of its user and client. Protobuf tokens
+ * are only built when a token leaves the shard. Access token records are tracked by expiry in an
+ * {@link ExpiryQueue}, so the cleaner only visits the ones which expired.
+ *
+ * <p>A read write lock guards the shard, so a user's issuance, revocation and cleaning are
+ * ordered, while users of other shards are not blocked.
+ */
+final class CompactTokenShard {
+
+  private static final long EXPIRY_BUCKET_SECONDS = 1;
+
+  private final int shard;
+  private final int shardMask;
+  private final IdInterner<String> users;
+  private final IdInterner<String> clients;
+  private final IdInterner<ScopeSet> scopeSets;
+  private final RevocationEpochs revocationEpochs;
+
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+  private final TokenRecords accessTokens = new TokenRecords(true);
+  private final TokenRecords refreshTokens = new TokenRecords(false);
+  /** Live access token records by expiry, guarded by the lock like the records. */
+  private final ExpiryQueue<Integer> accessExpiry = new ExpiryQueue<>(EXPIRY_BUCKET_SECONDS);
+  /** List heads by user id and client id. */
+  private final Map<Integer, Map<Integer, Heads>> heads = new HashMap<>();
+
+  CompactTokenShard(
+      int shard,
+      int shardMask,
+      IdInterner<String> users,
+      IdInterner<String> clients,
+      IdInterner<ScopeSet> scopeSets,
+      RevocationEpochs revocationEpochs) {
+    this.shard = shard;
+    this.shardMask = shardMask;
+    this.users = users;
+    this.clients = clients;
+    this.scopeSets = scopeSets;
+    this.revocationEpochs = revocationEpochs;
+  }
+
+  /** Issue an access token, with a new refresh token if {@code refreshable}. */
+  OAuth2AccessToken issue(int user, int client, int scopes, int expiry, boolean refreshable) {
+    lock.writeLock().lock();
+    try {
+      long epoch = revocationEpochs.current();
+      Heads tokens =
+          heads
+              .computeIfAbsent(user, key -> new HashMap<>())
+              .computeIfAbsent(client, key -> new Heads(user, client));
+      int refresh = NONE;
+      if (refreshable) {
+        long high;
+        long low;
+        do {
+          high = CompactTokenIds.randomHigh();
+          low = CompactTokenIds.randomLow(shard, shardMask);
+        } while (refreshTokens.find(high, low) != NONE);
+        refresh = refreshTokens.add(high, low, user, client, scopes, epoch, 0, NONE);
+        tokens.refreshHead = refreshTokens.link(refresh, tokens.refreshHead);
+      }
+      return toAccessToken(addAccessToken(tokens, user, client, scopes, epoch, expiry, refresh));
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Issue an access token for a refresh token, under the epoch of the refresh token, if the
+   * refresh token was issued to {@code client}, or to any client for {@link TokenRecords#NONE}.
+   */
+  ClientTokenResult<OAuth2AccessToken> refresh(long high, long low, int client, int expiry) {
+    lock.writeLock().lock();
+    try {
+      int refresh = refreshTokens.find(high, low);
+      if (refresh == NONE || isRevoked(refreshTokens, refresh)) {
+        return ClientTokenResult.notFound();
+      }
+      if (client != NONE && refreshTokens.client(refresh) != client) {
+        return ClientTokenResult.clientMismatch();
+      }
+      int user = refreshTokens.user(refresh);
+      int tokenClient = refreshTokens.client(refresh);
+      int record =
+          addAccessToken(
+              heads.get(user).get(tokenClient),
+              user,
+              tokenClient,
+              refreshTokens.scopes(refresh),
+              refreshTokens.epoch(refresh),
+              expiry,
+              refresh);
+      return ClientTokenResult.done(toAccessToken(record));
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** The access token unless it does not exist or is revoked. */
+  Optional<OAuth2AccessToken> readAccessToken(long high, long low) {
+    lock.readLock().lock();
+    try {
+      int record = accessTokens.find(high, low);
+      if (record == NONE || isRevoked(accessTokens, record)) {
+        return Optional.empty();
+      }
+      return Optional.of(toAccessToken(record));
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /** The refresh token unless it does not exist or is revoked. */
+  Optional<OAuth2RefreshToken> readRefreshToken(long high, long low) {
+    lock.readLock().lock();
+    try {
+      int record = refreshTokens.find(high, low);
+      if (record == NONE || isRevoked(refreshTokens, record)) {
+        return Optional.empty();
+      }
+      return Optional.of(toRefreshToken(record));
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /** @return false if the access token does not exist */
+  boolean removeAccessToken(long high, long low) {
+    lock.writeLock().lock();
+    try {
+      int record = accessTokens.find(high, low);
+      if (record == NONE) {
+        return false;
+      }
+      Heads tokens = heads.get(accessTokens.user(record)).get(accessTokens.client(record));
+      removeAccessRecord(tokens, record);
+      removeIfEmpty(tokens);
+      return true;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Remove a refresh token and its access tokens.
+   *
+   * @return the removed refresh token, also if it was already revoked, or empty if it does not
+   *     exist
+   */
+  Optional<OAuth2RefreshToken> removeRefreshToken(long high, long low) {
+    lock.writeLock().lock();
+    try {
+      int record = refreshTokens.find(high, low);
+      if (record == NONE) {
+        return Optional.empty();
+      }
+      OAuth2RefreshToken token = toRefreshToken(record);
+      Heads tokens = heads.get(refreshTokens.user(record)).get(refreshTokens.client(record));
+      removeRefreshRecord(tokens, record);
+      removeIfEmpty(tokens);
+      return Optional.of(token);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Remove an access token which is not expired at {@code now} (epoch seconds), or its refresh
+   * token together with it if it has one, if it was issued to {@code client}, or to any client for
+   * {@link TokenRecords#NONE}.
+   *
+   * @return the removed access token
+   */
+  ClientTokenResult<OAuth2AccessToken> revokeAccessToken(
+      long high, long low, int client, long now) {
+    lock.writeLock().lock();
+    try {
+      int record = accessTokens.find(high, low);
+      if (record == NONE || isRevoked(accessTokens, record)) {
+        return ClientTokenResult.notFound();
+      }
+      if (client != NONE && accessTokens.client(record) != client) {
+        return ClientTokenResult.clientMismatch();
+      }
+      OAuth2AccessToken token = toAccessToken(record);
+      if (token.getExpiredTime() < now) {
+        return ClientTokenResult.notFound();
+      }
+      Heads tokens = heads.get(accessTokens.user(record)).get(accessTokens.client(record));
+      if (accessTokens.refresh(record) != NONE) {
+        removeRefreshRecord(tokens, accessTokens.refresh(record));
+      } else {
+        removeAccessRecord(tokens, record);
+      }
+      removeIfEmpty(tokens);
+      return ClientTokenResult.done(token);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Remove a refresh token which is not revoked and its access tokens, if it was issued to {@code
+   * client}.
+   *
+   * @return the removed refresh token
+   */
+  ClientTokenResult<OAuth2RefreshToken> revokeRefreshToken(long high, long low, int client) {
+    lock.writeLock().lock();
+    try {
+      int record = refreshTokens.find(high, low);
+      if (record == NONE || isRevoked(refreshTokens, record)) {
+        return ClientTokenResult.notFound();
+      }
+      if (refreshTokens.client(record) != client) {
+        return ClientTokenResult.clientMismatch();
+      }
+      OAuth2RefreshToken token = toRefreshToken(record);
+      Heads tokens = heads.get(refreshTokens.user(record)).get(refreshTokens.client(record));
+      removeRefreshRecord(tokens, record);
+      removeIfEmpty(tokens);
+      return ClientTokenResult.done(token);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * List the tokens of the user and client which are not revoked, then run {@code revoke}, under
+   * the write lock, so no token is issued in between.
+   */
+  RevokedTokens revokeAndList(int user, int client, Runnable revoke) {
+    lock.writeLock().lock();
+    try {
+      Heads tokens = find(user, client);
+      ImmutableList.Builder<OAuth2AccessToken> access = ImmutableList.builder();
+      ImmutableList.Builder<OAuth2RefreshToken> refresh = ImmutableList.builder();
+      if (tokens != null) {
+        for (int record = tokens.accessHead; record != NONE; record = accessTokens.next(record)) {
+          if (!isRevoked(accessTokens, record)) {
+            access.add(toAccessToken(record));
+          }
+        }
+        for (int record = tokens.refreshHead; record != NONE; record = refreshTokens.next(record)) {
+          if (!isRevoked(refreshTokens, record)) {
+            refresh.add(toRefreshToken(record));
+          }
+        }
+      }
+      revoke.run();
+      return new RevokedTokens(access.build(), refresh.build());
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** Whether the user has tokens for the client which are not revoked. */
+  boolean hasTokens(int user, int client) {
+    lock.readLock().lock();
+    try {
+      return hasLiveTokens(find(user, client));
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /** The clients the user has tokens for which are not revoked. */
+  List<String> listClients(int user) {
+    lock.readLock().lock();
+    try {
+      Map<Integer, Heads> userTokens = heads.get(user);
+      if (userTokens == null) {
+        return ImmutableList.of();
+      }
+      ImmutableList.Builder<String> result = ImmutableList.builder();
+      for (Heads tokens : userTokens.values()) {
+        if (hasLiveTokens(tokens)) {
+          result.add(clients.get(tokens.client));
+        }
+      }
+      return result.build();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /** The tokens of the user for every client which are not revoked. */
+  UserTokenList listTokens(int user) {
+    lock.readLock().lock();
+    try {
+      Map<Integer, Heads> userTokens = heads.get(user);
+      if (userTokens == null) {
+        return UserTokenList.EMPTY;
+      }
+      List<OAuth2AccessToken> access = new ArrayList<>();
+      List<OAuth2RefreshToken> refresh = new ArrayList<>();
+      for (Heads tokens : userTokens.values()) {
+        for (int record = tokens.accessHead; record != NONE; record = accessTokens.next(record)) {
+          if (!isRevoked(accessTokens, record)) {
+            access.add(toAccessToken(record));
+          }
+        }
+        for (int record = tokens.refreshHead; record != NONE; record = refreshTokens.next(record)) {
+          if (!isRevoked(refreshTokens, record)) {
+            refresh.add(toRefreshToken(record));
+          }
+        }
+      }
+      return new UserTokenList(access, refresh);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  List<OAuth2AccessToken> listAccessTokens(int user, int client) {
+    lock.readLock().lock();
+    try {
+      Heads tokens = find(user, client);
+      if (tokens == null) {
+        return ImmutableList.of();
+      }
+      ImmutableList.Builder<OAuth2AccessToken> result = ImmutableList.builder();
+      for (int record = tokens.accessHead; record != NONE; record = accessTokens.next(record)) {
+        if (!isRevoked(accessTokens, record)) {
+          result.add(toAccessToken(record));
+        }
+      }
+      return result.build();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  List<OAuth2RefreshToken> listRefreshTokens(int user, int client) {
+    lock.readLock().lock();
+    try {
+      Heads tokens = find(user, client);
+      if (tokens == null) {
+        return ImmutableList.of();
+      }
+      ImmutableList.Builder<OAuth2RefreshToken> result = ImmutableList.builder();
+      for (int record = tokens.refreshHead; record != NONE; record = refreshTokens.next(record)) {
+        if (!isRevoked(refreshTokens, record)) {
+          result.add(toRefreshToken(record));
+        }
+      }
+      return result.build();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Remove the access tokens which expired before {@code now} (epoch seconds).
+   *
+   * @return the number of removed access tokens
+   */
+  int removeExpiredTokens(long now) {
+    lock.writeLock().lock();
+    try {
+      int removed = 0;
+      for (int record : accessExpiry.pollExpired(now)) {
+        if (accessTokens.isLive(record) && accessTokens.expiry(record) < now) {
+          Heads tokens = heads.get(accessTokens.user(record)).get(accessTokens.client(record));
+          removeAccessRecord(tokens, record);
+          removeIfEmpty(tokens);
+          removed++;
+        }
+      }
+      return removed;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Remove the revoked tokens of the user and client, where {@link TokenRecords#NONE} stands for
+   * all users or all clients.
+   */
+  void removeRevokedTokens(int user, int client) {
+    lock.writeLock().lock();
+    try {
+      Iterator<Map.Entry<Integer, Map<Integer, Heads>>> userTokens =
+          heads.entrySet().iterator();
+      while (userTokens.hasNext()) {
+        Map.Entry<Integer, Map<Integer, Heads>> entry = userTokens.next();
+        if (user != NONE && entry.getKey() != user) {
+          continue;
+        }
+        Iterator<Heads> clientTokens = entry.getValue().values().iterator();
+        while (clientTokens.hasNext()) {
+          Heads tokens = clientTokens.next();
+          if (client != NONE && tokens.client != client) {
+            continue;
+          }
+          removeRevokedRecords(tokens);
+          if (tokens.isEmpty()) {
+            clientTokens.remove();
+          }
+        }
+        if (entry.getValue().isEmpty()) {
+          userTokens.remove();
+        }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** The number of access tokens in the shard, also expired or revoked ones not yet removed. */
+  int accessTokenCount() {
+    lock.readLock().lock();
+    try {
+      return accessTokens.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  void clear() {
+    lock.writeLock().lock();
+    try {
+      accessTokens.clear();
+      refreshTokens.clear();
+      accessExpiry.clear();
+      heads.clear();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private int addAccessToken(
+      Heads tokens, int user, int client, int scopes, long epoch, int expiry, int refresh) {
+    long high;
+    long low;
+    do {
+      high = CompactTokenIds.randomHigh();
+      low = CompactTokenIds.randomLow(shard, shardMask);
+    } while (accessTokens.find(high, low) != NONE);
+    int record = accessTokens.add(high, low, user, client, scopes, epoch, expiry, refresh);
+    tokens.accessHead = accessTokens.link(record, tokens.accessHead);
+    accessExpiry.add(record, accessTokens.expiry(record));
+    return record;
+  }
+
+  private void removeAccessRecord(Heads tokens, int record) {
+    // The record number is reused, it must not stay queued under this expiry.
+    accessExpiry.remove(record, accessTokens.expiry(record));
+    tokens.accessHead = accessTokens.unlink(record, tokens.accessHead);
+    accessTokens.remove(record);
+  }
+
+  /** Remove a refresh token together with its access tokens, which refer to its record. */
+  private void removeRefreshRecord(Heads tokens, int refresh) {
+    int record = tokens.accessHead;
+    while (record != NONE) {
+      int next = accessTokens.next(record);
+      if (accessTokens.refresh(record) == refresh) {
+        removeAccessRecord(tokens, record);
+      }
+      record = next;
+    }
+    tokens.refreshHead = refreshTokens.unlink(refresh, tokens.refreshHead);
+    refreshTokens.remove(refresh);
+  }
+
+  private void removeRevokedRecords(Heads tokens) {
+    int refresh = tokens.refreshHead;
+    while (refresh != NONE) {
+      int next = refreshTokens.next(refresh);
+      if (isRevoked(refreshTokens, refresh)) {
+        removeRefreshRecord(tokens, refresh);
+      }
+      refresh = next;
+    }
+    int record = tokens.accessHead;
+    while (record != NONE) {
+      int next = accessTokens.next(record);
+      if (isRevoked(accessTokens, record)) {
+        removeAccessRecord(tokens, record);
+      }
+      record = next;
+    }
+  }
+
+  private boolean hasLiveTokens(Heads tokens) {
+    if (tokens == null) {
+      return false;
+    }
+    for (int record = tokens.accessHead; record != NONE; record = accessTokens.next(record)) {
+      if (!isRevoked(accessTokens, record)) {
+        return true;
+      }
+    }
+    for (int record = tokens.refreshHead; record != NONE; record = refreshTokens.next(record)) {
+      if (!isRevoked(refreshTokens, record)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private Heads find(int user, int client) {
+    Map<Integer, Heads> userTokens = heads.get(user);
+    return userTokens == null ? null : userTokens.get(client);
+  }
+
+  private void removeIfEmpty(Heads tokens) {
+    if (!tokens.isEmpty()) {
+      return;
+    }
+    Map<Integer, Heads> userTokens = heads.get(tokens.user);
+    userTokens.remove(tokens.client);
+    if (userTokens.isEmpty()) {
+      heads.remove(tokens.user);
+    }
+  }
+
+  private boolean isRevoked(TokenRecords records, int record) {
+    return revocationEpochs.isRevoked(
+        users.get(records.user(record)),
+        clients.get(records.client(record)),
+        records.epoch(record));
+  }
+
+  private OAuth2AccessToken toAccessToken(int record) {
+    ScopeSet scopeSet = scopeSets.get(accessTokens.scopes(record));
+    OAuth2AccessToken.Builder builder =
+        OAuth2AccessToken.newBuilder()
+            .setAccessToken(
+                CompactTokenIds.encode(accessTokens.idHigh(record), accessTokens.idLow(record)))
+            .setClientId(clients.get(accessTokens.client(record)))
+            .setUsername(users.get(accessTokens.user(record)))
+            .setIsScoped(scopeSet.isScoped())
+            .addAllScopes(scopeSet.getScopes())
+            .setExpiredTime(accessTokens.expiry(record))
+            .setEpoch(accessTokens.epoch(record));
+    int refresh = accessTokens.refresh(record);
+    if (refresh != NONE) {
+      builder.setRefreshToken(
+          CompactTokenIds.encode(refreshTokens.idHigh(refresh), refreshTokens.idLow(refresh)));
+    }
+    return builder.build();
+  }
+
+  private OAuth2RefreshToken toRefreshToken(int record) {
+    ScopeSet scopeSet = scopeSets.get(refreshTokens.scopes(record));
+    return OAuth2RefreshToken.newBuilder()
+        .setRefreshToken(
+            CompactTokenIds.encode(refreshTokens.idHigh(record), refreshTokens.idLow(record)))
+        .setClientId(clients.get(refreshTokens.client(record)))
+        .setUsername(users.get(refreshTokens.user(record)))
+        .setIsScoped(scopeSet.isScoped())
+        .addAllScopes(scopeSet.getScopes())
+        .setEpoch(refreshTokens.epoch(record))
+        .build();
+  }
+
+  /** The list heads of a user and client. */
+  private static final class Heads {
+    private final int user;
+    private final int client;
+    private int accessHead = NONE;
+    private int refreshHead = NONE;
+
+    Heads(int user, int client) {
+      this.user = user;
+      this.client = client;
+    }
+
+    boolean isEmpty() {
+      return accessHead == NONE && refreshHead == NONE;
+    }
+  }
+
+  /** The scopes of a token and whether it is scoped, interned once for all tokens sharing them. */
+  static final class ScopeSet {
+    private final boolean isScoped;
+    private final ImmutableList<String> scopes;
+
+    ScopeSet(boolean isScoped, List<String> scopes) {
+      this.isScoped = isScoped;
+      this.scopes = ImmutableList.copyOf(scopes);
+    }
+
+    boolean isScoped() {
+      return isScoped;
+    }
+
+    ImmutableList<String> getScopes() {
+      return scopes;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof ScopeSet)) {
+        return false;
+      }
+      ScopeSet that = (ScopeSet) other;
+      return isScoped == that.isScoped && scopes.equals(that.scopes);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(isScoped, scopes);
+    }
+  }
+}
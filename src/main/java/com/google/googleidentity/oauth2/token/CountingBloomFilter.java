@@ -0,0 +1,125 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+
+package com.google.googleidentity.oauth2.token;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counting Bloom filter of 4 bit counters for {@link BloomFilterOAuth2TokenService}.
+ *
+ * <p>Elements are given as the two halves of a 128 bit hash, the k counter positions are derived
+ * from them by double hashing. Counters are packed 16 to a long and updated with compare and set,
+ * so adding, removing and checking take no lock. A counter which reaches 15 sticks there and is
+ * never decremented again, which can only keep an element in, never drop one. Only elements which
+ * were added may be removed, removing anything else could drop an element which is still in.
+ */
+final class CountingBloomFilter {
+
+  private static final int COUNTERS_PER_WORD = 16;
+  private static final long COUNTER_MASK = 0xF;
+
+  private final AtomicLongArray words;
+  private final long counterCount;
+  private final int hashCount;
+  private final AtomicLong size = new AtomicLong();
+  private final AtomicLong nonZeroCounters = new AtomicLong();
+
+  /** A filter with a false positive rate of {@code fpp} once it holds {@code capacity} elements. */
+  CountingBloomFilter(long capacity, double fpp) {
+    long counters = (long) Math.ceil(-capacity * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+    long wordCount = Math.max(1, (counters + COUNTERS_PER_WORD - 1) / COUNTERS_PER_WORD);
+    if (wordCount > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Bloom filter too large: " + capacity);
+    }
+    this.words = new AtomicLongArray((int) wordCount);
+    this.counterCount = wordCount * COUNTERS_PER_WORD;
+    this.hashCount = Math.max(1, (int) Math.round((double) counterCount / capacity * Math.log(2)));
+  }
+
+  void add(long hash1, long hash2) {
+    for (int i = 0; i < hashCount; i++) {
+      long counter = counterOf(hash1, hash2, i);
+      int word = (int) (counter / COUNTERS_PER_WORD);
+      int shift = (int) (counter % COUNTERS_PER_WORD) * 4;
+      while (true) {
+        long value = words.get(word);
+        long count = (value >>> shift) & COUNTER_MASK;
+        if (count == COUNTER_MASK) {
+          break;
+        }
+        if (words.compareAndSet(word, value, value + (1L << shift))) {
+          if (count == 0) {
+            nonZeroCounters.incrementAndGet();
+          }
+          break;
+        }
+      }
+    }
+    size.incrementAndGet();
+  }
+
+  /** Remove an element added before. */
+  void remove(long hash1, long hash2) {
+    for (int i = 0; i < hashCount; i++) {
+      long counter = counterOf(hash1, hash2, i);
+      int word = (int) (counter / COUNTERS_PER_WORD);
+      int shift = (int) (counter % COUNTERS_PER_WORD) * 4;
+      while (true) {
+        long value = words.get(word);
+        long count = (value >>> shift) & COUNTER_MASK;
+        if (count == COUNTER_MASK || count == 0) {
+          break;
+        }
+        if (words.compareAndSet(word, value, value - (1L << shift))) {
+          if (count == 1) {
+            nonZeroCounters.decrementAndGet();
+          }
+          break;
+        }
+      }
+    }
+    size.decrementAndGet();
+  }
+
+  /** False if the element was definitely not added, or was removed since. */
+  boolean mightContain(long hash1, long hash2) {
+    for (int i = 0; i < hashCount; i++) {
+      long counter = counterOf(hash1, hash2, i);
+      long value = words.get((int) (counter / COUNTERS_PER_WORD));
+      if (((value >>> (counter % COUNTERS_PER_WORD) * 4) & COUNTER_MASK) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Number of elements added and not removed. */
+  long size() {
+    return size.get();
+  }
+
+  /** The false positive rate at the current fill, i.e. the chance all k counters are set. */
+  double expectedFpp() {
+    return Math.pow((double) nonZeroCounters.get() / counterCount, hashCount);
+  }
+
+  private long counterOf(long hash1, long hash2, int i) {
+    return ((hash1 + i * hash2) & Long.MAX_VALUE) % counterCount;
+  }
+}
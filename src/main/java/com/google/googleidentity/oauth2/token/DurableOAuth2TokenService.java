@@ -0,0 +1,511 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.token;
+
+import com.google.common.base.Strings;
+import com.google.googleidentity.oauth2.request.OAuth2Request;
+import com.google.googleidentity.persistence.DurableStore;
+import com.google.googleidentity.persistence.LogRecord;
+import com.google.googleidentity.persistence.Persistence;
+import com.google.googleidentity.persistence.SnapshotWriter;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Keeps the tokens of an {@link InMemoryOAuth2TokenService} across restarts through {@link
+ * Persistence}.
+ *
+ * <p>Issued tokens, revoked tokens and revoked scopes with their epoch are logged under the
+ * username, and a call returns once its record is durable. Reads go to the in memory store alone.
+ * Tokens are only revoked once they were returned, so the records of a token are logged in the
+ * order they happened without a lock of their own, only {@link #reset()} excludes the other
+ * updates. Expired tokens are not logged, the cleaner removes them again after a recovery.
+ *
+ * <p>A rotated refresh token is logged like an issued one, replaying it supersedes the token its
+ * family had. So is a refresh token whose last use was written, replaying it replaces the copy used
+ * before. A family revoked because a superseded token came back is logged by its id, under the
+ * user, so the revocation does not depend on which token of the family was current.
+ */
+@Singleton
+public final class DurableOAuth2TokenService implements OAuth2TokenService, DurableStore {
+
+  static final byte STORE_ID = 1;
+
+  private static final byte REFRESH_TOKEN = 1;
+  private static final byte ACCESS_TOKEN = 2;
+  private static final byte REVOKE_ACCESS_TOKEN = 3;
+  private static final byte REVOKE_REFRESH_TOKEN = 4;
+  private static final byte REVOKE_SCOPE = 5;
+  private static final byte RESET = 6;
+  private static final byte SUPERSEDED_REFRESH_TOKEN = 7;
+  private static final byte REVOKE_FAMILY = 8;
+
+  private final InMemoryOAuth2TokenService delegate;
+  private final Persistence persistence;
+  private final ReadWriteLock resetLock = new ReentrantReadWriteLock();
+
+  @Inject
+  public DurableOAuth2TokenService(InMemoryOAuth2TokenService delegate, Persistence persistence) {
+    this.delegate = delegate;
+    this.persistence = persistence;
+  }
+
+  @Override
+  public OAuth2AccessToken generateAccessToken(OAuth2Request request) {
+    OAuth2AccessToken token;
+    CompletableFuture<Void> durable;
+    resetLock.readLock().lock();
+    try {
+      token = delegate.generateAccessToken(request);
+      if (!Strings.isNullOrEmpty(token.getRefreshToken())) {
+        OAuth2RefreshToken refreshToken = delegate.refreshTokenIndex.get(token.getRefreshToken());
+        if (refreshToken != null) {
+          persistence.append(
+              LogRecord.of(
+                  STORE_ID, REFRESH_TOKEN, token.getUsername(), refreshToken.toByteArray()));
+        }
+      }
+      durable = appendAccessToken(token);
+    } finally {
+      resetLock.readLock().unlock();
+    }
+    Persistence.await(durable);
+    return token;
+  }
+
+  @Override
+  public Optional<OAuth2AccessToken> refreshToken(String refreshToken) {
+    Optional<OAuth2AccessToken> token;
+    CompletableFuture<Void> durable = null;
+    resetLock.readLock().lock();
+    try {
+      OAuth2RefreshToken before = delegate.refreshTokenIndex.get(refreshToken);
+      token = delegate.refreshToken(refreshToken);
+      durable =
+          token.isPresent()
+              ? appendRefresh(refreshToken, before, token.get())
+              : appendReusedFamilyRevocation(refreshToken);
+    } finally {
+      resetLock.readLock().unlock();
+    }
+    if (durable != null) {
+      Persistence.await(durable);
+    }
+    return token;
+  }
+
+  @Override
+  public ClientTokenResult<OAuth2AccessToken> refreshToken(String refreshToken, String clientID) {
+    ClientTokenResult<OAuth2AccessToken> result;
+    CompletableFuture<Void> durable = null;
+    resetLock.readLock().lock();
+    try {
+      OAuth2RefreshToken before = delegate.refreshTokenIndex.get(refreshToken);
+      result = delegate.refreshToken(refreshToken, clientID);
+      if (result.getValue().isPresent()) {
+        durable = appendRefresh(refreshToken, before, result.getValue().get());
+      } else if (result.getStatus() == ClientTokenResult.Status.NOT_FOUND) {
+        durable = appendReusedFamilyRevocation(refreshToken);
+      }
+    } finally {
+      resetLock.readLock().unlock();
+    }
+    if (durable != null) {
+      Persistence.await(durable);
+    }
+    return result;
+  }
+
+  @Override
+  public Optional<OAuth2AccessToken> readAccessToken(String accessToken) {
+    return delegate.readAccessToken(accessToken);
+  }
+
+  @Override
+  public Optional<OAuth2RefreshToken> readRefreshToken(String refreshToken) {
+    return delegate.readRefreshToken(refreshToken);
+  }
+
+  /**
+   * Revoking an access token with a refresh token revokes the refresh token, which is logged as
+   * such, the access token may have expired by the time the record is replayed.
+   */
+  @Override
+  public boolean revokeByAccessToken(String accessToken) {
+    boolean revoked;
+    CompletableFuture<Void> durable = null;
+    resetLock.readLock().lock();
+    try {
+      Optional<OAuth2AccessToken> token = delegate.readAccessToken(accessToken);
+      revoked = delegate.revokeByAccessToken(accessToken);
+      if (revoked) {
+        durable = appendAccessTokenRevocation(token.get());
+      }
+    } finally {
+      resetLock.readLock().unlock();
+    }
+    if (durable != null) {
+      Persistence.await(durable);
+    }
+    return revoked;
+  }
+
+  @Override
+  public ClientTokenResult<OAuth2AccessToken> revokeByAccessToken(
+      String accessToken, String clientID) {
+    ClientTokenResult<OAuth2AccessToken> result;
+    CompletableFuture<Void> durable = null;
+    resetLock.readLock().lock();
+    try {
+      result = delegate.revokeByAccessToken(accessToken, clientID);
+      if (result.getValue().isPresent()) {
+        durable = appendAccessTokenRevocation(result.getValue().get());
+      }
+    } finally {
+      resetLock.readLock().unlock();
+    }
+    if (durable != null) {
+      Persistence.await(durable);
+    }
+    return result;
+  }
+
+  private CompletableFuture<Void> appendAccessTokenRevocation(OAuth2AccessToken token) {
+    if (!token.getFamilyId().isEmpty()) {
+      return persistence.append(
+          family(token.getUsername(), token.getClientId(), token.getFamilyId()));
+    }
+    if (Strings.isNullOrEmpty(token.getRefreshToken())) {
+      return persistence.append(
+          LogRecord.of(
+              STORE_ID, REVOKE_ACCESS_TOKEN, token.getUsername(), utf8(token.getAccessToken())));
+    }
+    return persistence.append(
+        LogRecord.of(
+            STORE_ID, REVOKE_REFRESH_TOKEN, token.getUsername(), utf8(token.getRefreshToken())));
+  }
+
+  @Override
+  public boolean revokeByRefreshToken(String refreshToken) {
+    boolean revoked;
+    CompletableFuture<Void> durable = null;
+    resetLock.readLock().lock();
+    try {
+      OAuth2RefreshToken token = delegate.findRefreshToken(refreshToken);
+      revoked = delegate.revokeByRefreshToken(refreshToken);
+      if (token != null) {
+        // Also logged when the token was revoked through its epoch, it is removed either way.
+        durable =
+            persistence.append(
+                LogRecord.of(
+                    STORE_ID, REVOKE_REFRESH_TOKEN, token.getUsername(), utf8(refreshToken)));
+      }
+    } finally {
+      resetLock.readLock().unlock();
+    }
+    if (durable != null) {
+      Persistence.await(durable);
+    }
+    return revoked;
+  }
+
+  @Override
+  public ClientTokenResult<OAuth2RefreshToken> revokeByRefreshToken(
+      String refreshToken, String clientID) {
+    ClientTokenResult<OAuth2RefreshToken> result;
+    CompletableFuture<Void> durable = null;
+    resetLock.readLock().lock();
+    try {
+      result = delegate.revokeByRefreshToken(refreshToken, clientID);
+      if (result.getValue().isPresent()) {
+        durable =
+            persistence.append(
+                LogRecord.of(
+                    STORE_ID,
+                    REVOKE_REFRESH_TOKEN,
+                    result.getValue().get().getUsername(),
+                    utf8(refreshToken)));
+      }
+    } finally {
+      resetLock.readLock().unlock();
+    }
+    if (durable != null) {
+      Persistence.await(durable);
+    }
+    return result;
+  }
+
+  @Override
+  public boolean revokeUserClientTokens(String username, String clientID) {
+    boolean hadTokens;
+    CompletableFuture<Void> durable;
+    resetLock.readLock().lock();
+    try {
+      hadTokens = delegate.revokeUserClientTokens(username, clientID);
+      durable = appendRevocation(username, clientID);
+    } finally {
+      resetLock.readLock().unlock();
+    }
+    Persistence.await(durable);
+    return hadTokens;
+  }
+
+  @Override
+  public RevokedTokens revokeAndListUserClientTokens(String username, String clientID) {
+    RevokedTokens revoked;
+    CompletableFuture<Void> durable;
+    resetLock.readLock().lock();
+    try {
+      revoked = delegate.revokeAndListUserClientTokens(username, clientID);
+      durable = appendRevocation(username, clientID);
+    } finally {
+      resetLock.readLock().unlock();
+    }
+    Persistence.await(durable);
+    return revoked;
+  }
+
+  @Override
+  public void revokeClientTokens(String clientID) {
+    CompletableFuture<Void> durable;
+    resetLock.readLock().lock();
+    try {
+      delegate.revokeClientTokens(clientID);
+      durable = appendRevocation(RevocationEpochs.ANY, clientID);
+    } finally {
+      resetLock.readLock().unlock();
+    }
+    Persistence.await(durable);
+  }
+
+  @Override
+  public void revokeUserTokens(String username) {
+    CompletableFuture<Void> durable;
+    resetLock.readLock().lock();
+    try {
+      delegate.revokeUserTokens(username);
+      durable = appendRevocation(username, RevocationEpochs.ANY);
+    } finally {
+      resetLock.readLock().unlock();
+    }
+    Persistence.await(durable);
+  }
+
+  @Override
+  public List<String> listUserClient(String username) {
+    return delegate.listUserClient(username);
+  }
+
+  @Override
+  public UserTokenList listUserTokens(String username) {
+    return delegate.listUserTokens(username);
+  }
+
+  @Override
+  public List<OAuth2AccessToken> listUserClientAccessTokens(String username, String clientID) {
+    return delegate.listUserClientAccessTokens(username, clientID);
+  }
+
+  @Override
+  public List<OAuth2RefreshToken> listUserClientRefreshTokens(String username, String clientID) {
+    return delegate.listUserClientRefreshTokens(username, clientID);
+  }
+
+  @Override
+  public void reset() {
+    CompletableFuture<Void> durable;
+    resetLock.writeLock().lock();
+    try {
+      delegate.reset();
+      durable = persistence.append(LogRecord.barrier(STORE_ID, RESET, new byte[0]));
+    } finally {
+      resetLock.writeLock().unlock();
+    }
+    Persistence.await(durable);
+  }
+
+  @Override
+  public byte getStoreId() {
+    return STORE_ID;
+  }
+
+  /**
+   * Revocations first, then refresh tokens and the superseded ones, then access tokens, so a
+   * partition restores the refresh token of an access token before it.
+   */
+  @Override
+  public void writeSnapshot(SnapshotWriter snapshot) throws IOException {
+    try {
+      delegate.revocationEpochs.forEach(
+          (username, clientID, epoch) -> write(snapshot, revocation(username, clientID, epoch)));
+      delegate.forEachRefreshToken(
+          token ->
+              write(
+                  snapshot,
+                  LogRecord.of(
+                      STORE_ID, REFRESH_TOKEN, token.getUsername(), token.toByteArray())));
+      for (OAuth2RefreshToken token : delegate.supersededRefreshTokens.values()) {
+        write(
+            snapshot,
+            LogRecord.of(
+                STORE_ID, SUPERSEDED_REFRESH_TOKEN, token.getUsername(), token.toByteArray()));
+      }
+    } catch (UncheckedIOException exception) {
+      throw exception.getCause();
+    }
+    long now = Instant.now().getEpochSecond();
+    for (OAuth2AccessToken token : delegate.accessTokenIndex.values()) {
+      if (token.getExpiredTime() >= now && !delegate.revocationEpochs.isRevoked(token)) {
+        snapshot.write(
+            LogRecord.of(STORE_ID, ACCESS_TOKEN, token.getUsername(), token.toByteArray()));
+      }
+    }
+  }
+
+  @Override
+  public void apply(LogRecord record) throws IOException {
+    switch (record.getType()) {
+      case REFRESH_TOKEN:
+        delegate.restoreRefreshToken(OAuth2RefreshToken.parseFrom(record.getPayload()));
+        break;
+      case ACCESS_TOKEN:
+        delegate.restoreAccessToken(OAuth2AccessToken.parseFrom(record.getPayload()));
+        break;
+      case REVOKE_ACCESS_TOKEN:
+        delegate.removeAccessToken(new String(record.getPayload(), StandardCharsets.UTF_8));
+        break;
+      case REVOKE_REFRESH_TOKEN:
+        delegate.revokeByRefreshToken(new String(record.getPayload(), StandardCharsets.UTF_8));
+        break;
+      case REVOKE_SCOPE:
+        CodedInputStream input = CodedInputStream.newInstance(record.getPayload());
+        delegate.restoreRevocation(input.readString(), input.readString(), input.readInt64());
+        break;
+      case RESET:
+        delegate.reset();
+        break;
+      case SUPERSEDED_REFRESH_TOKEN:
+        delegate.restoreSupersededRefreshToken(OAuth2RefreshToken.parseFrom(record.getPayload()));
+        break;
+      case REVOKE_FAMILY:
+        CodedInputStream family = CodedInputStream.newInstance(record.getPayload());
+        delegate.revokeFamily(family.readString(), family.readString(), family.readString());
+        break;
+      default:
+        throw new IOException("Unknown token record type " + record.getType());
+    }
+  }
+
+  private static void write(SnapshotWriter snapshot, LogRecord record) {
+    try {
+      snapshot.write(record);
+    } catch (IOException exception) {
+      throw new UncheckedIOException(exception);
+    }
+  }
+
+  /**
+   * Log the access token of a refresh, after the refresh token which replaced the presented one if
+   * it was rotated, or the presented one if its last use was written.
+   *
+   * @param before the presented refresh token as it was before the refresh, if it was in memory
+   */
+  private CompletableFuture<Void> appendRefresh(
+      String refreshToken, OAuth2RefreshToken before, OAuth2AccessToken token) {
+    OAuth2RefreshToken after = delegate.refreshTokenIndex.get(token.getRefreshToken());
+    boolean changed =
+        !token.getRefreshToken().equals(refreshToken)
+            || (before != null
+                && after != null
+                && after.getLastUsedTime() != before.getLastUsedTime());
+    if (changed && after != null) {
+      persistence.append(
+          LogRecord.of(STORE_ID, REFRESH_TOKEN, token.getUsername(), after.toByteArray()));
+    }
+    return appendAccessToken(token);
+  }
+
+  /**
+   * Log the revocation of the family of a refresh token which was not found because it was
+   * superseded.
+   *
+   * @return null if the token was not superseded
+   */
+  private CompletableFuture<Void> appendReusedFamilyRevocation(String refreshToken) {
+    OAuth2RefreshToken superseded = delegate.supersededRefreshTokens.get(refreshToken);
+    if (superseded == null) {
+      return null;
+    }
+    return persistence.append(
+        family(superseded.getUsername(), superseded.getClientId(), superseded.getFamilyId()));
+  }
+
+  private CompletableFuture<Void> appendAccessToken(OAuth2AccessToken token) {
+    return persistence.append(
+        LogRecord.of(STORE_ID, ACCESS_TOKEN, token.getUsername(), token.toByteArray()));
+  }
+
+  /** Log the epoch the scope was revoked at, or a later one of a concurrent revocation. */
+  private CompletableFuture<Void> appendRevocation(String username, String clientID) {
+    return persistence.append(
+        revocation(username, clientID, delegate.revocationEpochs.epochOf(username, clientID)));
+  }
+
+  private static LogRecord revocation(String username, String clientID, long epoch) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    CodedOutputStream output = CodedOutputStream.newInstance(bytes);
+    try {
+      output.writeStringNoTag(username);
+      output.writeStringNoTag(clientID);
+      output.writeInt64NoTag(epoch);
+      output.flush();
+    } catch (IOException exception) {
+      throw new UncheckedIOException(exception);
+    }
+    return LogRecord.of(STORE_ID, REVOKE_SCOPE, username, bytes.toByteArray());
+  }
+
+  private static LogRecord family(String username, String clientID, String familyID) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    CodedOutputStream output = CodedOutputStream.newInstance(bytes);
+    try {
+      output.writeStringNoTag(username);
+      output.writeStringNoTag(clientID);
+      output.writeStringNoTag(familyID);
+      output.flush();
+    } catch (IOException exception) {
+      throw new UncheckedIOException(exception);
+    }
+    return LogRecord.of(STORE_ID, REVOKE_FAMILY, username, bytes.toByteArray());
+  }
+
+  private static byte[] utf8(String value) {
+    return value.getBytes(StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,597 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.token;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+import javax.sql.DataSource;
+
+/**
+ * Delete expired access tokens and orphaned refresh tokens from the token tables in small chunks.
+ *
+ * <p>Each chunk first reads up to chunk size keys in index order, with a plain SELECT which takes
+ * no locks, then deletes exactly those rows by primary key in its own short transaction. So a
+ * purge only ever locks the rows it deletes, and never for long, and issuance and revocation can
+ * run in between. A pause between chunks keeps the purge from saturating the database and its
+ * replicas.
+ *
+ * <p>Access tokens are walked on (expired_time, access_token) through
+ * idx_access_token_expired_time. A refresh token is orphaned when its user or its client no
+ * longer exists, orphaned refresh tokens are walked on their primary key, and the access tokens
+ * issued from them are deleted with them.
+ *
+ * <p>Refresh tokens past their {@link RefreshTokenLifetime}s are walked on
+ * idx_refresh_token_issued_time and idx_refresh_token_last_used_time. Each chunk locks its tokens
+ * and checks them again, so a token whose last use was written meanwhile is kept, then deletes
+ * them with the access tokens issued from them.
+ *
+ * <p>Tokens revoked through a revocation epoch are already unreadable, their rows are deleted
+ * here per revoked scope, through the username and client id indexes. Once every token an epoch
+ * revokes has expired, access tokens after their lifetime and refresh tokens after {@link
+ * RefreshTokenLifetime#maxUnusedSeconds()}, the epoch is deleted, walked on
+ * idx_revocation_epoch_revoked_time, and only the newer epochs are visited.
+ *
+ * <p>Superseded refresh tokens are forgotten once their reuse detection ends, walked on
+ * idx_superseded_refresh_token_expired.
+ *
+ * <p>Last, the user_client_link rows of users and clients left without tokens are deleted.
+ *
+ * <p>Keys are the {@link TokenHashes#key}s the rows are stored under.
+ *
+ * <p>{@link #getProgress()} shows the run in progress, or the last one when none is running.
+ */
+final class ExpiredTokenPurger {
+
+  private static final Logger log = Logger.getLogger("ExpiredTokenPurger");
+
+  private final DataSource dataSource;
+  private final int chunkSize;
+  private final Duration pause;
+  private final Duration accessTokenLifetime;
+  private final RefreshTokenLifetime refreshTokenLifetime;
+
+  private volatile Progress progress = new Progress(0, 0, 0, false);
+
+  ExpiredTokenPurger(
+      DataSource dataSource,
+      int chunkSize,
+      Duration pause,
+      Duration accessTokenLifetime,
+      RefreshTokenLifetime refreshTokenLifetime) {
+    this.dataSource = dataSource;
+    this.chunkSize = chunkSize;
+    this.pause = pause;
+    this.accessTokenLifetime = accessTokenLifetime;
+    this.refreshTokenLifetime = refreshTokenLifetime;
+  }
+
+  /**
+   * Purge access tokens expired before {@code now} (epoch seconds), refresh tokens expired at
+   * {@code now} and orphaned refresh tokens.
+   *
+   * @return the rows purged by this run
+   */
+  Progress purge(long now) throws SQLException, InterruptedException {
+    progress = new Progress(0, 0, 0, true);
+    long superseded = 0;
+    long links = 0;
+    try {
+      purgeExpiredAccessTokens(now);
+      purgeExpiredRefreshTokens("issued_time", refreshTokenLifetime.issuedAfter(now));
+      purgeExpiredRefreshTokens("last_used_time", refreshTokenLifetime.lastUsedAfter(now));
+      purgeOrphanedRefreshTokens();
+      purgeRevokedTokens(now);
+      superseded = purgeSupersededRefreshTokens(now);
+      links = purgeUnusedLinks();
+    } finally {
+      progress = progress.finished();
+    }
+    log.info(
+        "Purged "
+            + progress.getAccessTokens()
+            + " expired or revoked access tokens, "
+            + progress.getRefreshTokens()
+            + " expired, orphaned or revoked refresh tokens, "
+            + superseded
+            + " superseded refresh tokens and "
+            + links
+            + " user client links in "
+            + progress.getChunks()
+            + " chunks.");
+    return progress;
+  }
+
+  Progress getProgress() {
+    return progress;
+  }
+
+  private void purgeExpiredAccessTokens(long now) throws SQLException, InterruptedException {
+    long lastExpiredTime = Long.MIN_VALUE;
+    byte[] lastAccessToken = new byte[0];
+    while (true) {
+      List<byte[]> accessTokens = new ArrayList<>(chunkSize);
+      try (Connection conn = dataSource.getConnection();
+          PreparedStatement statement =
+              conn.prepareStatement(
+                  "SELECT access_token, expired_time FROM access_token "
+                      + "WHERE expired_time < ? "
+                      + "AND (expired_time > ? OR (expired_time = ? AND access_token > ?)) "
+                      + "ORDER BY expired_time, access_token LIMIT ?;")) {
+        statement.setLong(1, now);
+        statement.setLong(2, lastExpiredTime);
+        statement.setLong(3, lastExpiredTime);
+        statement.setBytes(4, lastAccessToken);
+        statement.setInt(5, chunkSize);
+        try (ResultSet result = statement.executeQuery()) {
+          while (result.next()) {
+            lastAccessToken = result.getBytes(1);
+            lastExpiredTime = result.getLong(2);
+            accessTokens.add(lastAccessToken);
+          }
+        }
+        if (accessTokens.isEmpty()) {
+          return;
+        }
+        int deleted =
+            deleteInTransaction(
+                conn,
+                "DELETE FROM access_token WHERE expired_time < ? AND access_token IN ",
+                now,
+                accessTokens);
+        progress = progress.add(deleted, 0);
+      }
+      if (accessTokens.size() < chunkSize) {
+        return;
+      }
+      Thread.sleep(pause.toMillis());
+    }
+  }
+
+  /**
+   * Delete the refresh tokens whose {@code column} is before {@code bound}, nothing if the bound
+   * is {@link Long#MIN_VALUE}, the lifetime has no limit then. Deleted rows no longer match, so
+   * each chunk reads from the start of the index again.
+   */
+  private void purgeExpiredRefreshTokens(String column, long bound)
+      throws SQLException, InterruptedException {
+    if (bound == Long.MIN_VALUE) {
+      return;
+    }
+    while (true) {
+      List<byte[]> refreshTokens = new ArrayList<>(chunkSize);
+      try (Connection conn = dataSource.getConnection()) {
+        try (PreparedStatement statement =
+            conn.prepareStatement(
+                "SELECT refresh_token FROM refresh_token WHERE "
+                    + column
+                    + " < ? ORDER BY "
+                    + column
+                    + " LIMIT ?;")) {
+          statement.setLong(1, bound);
+          statement.setInt(2, chunkSize);
+          try (ResultSet result = statement.executeQuery()) {
+            while (result.next()) {
+              refreshTokens.add(result.getBytes(1));
+            }
+          }
+        }
+        if (refreshTokens.isEmpty()) {
+          return;
+        }
+        conn.setAutoCommit(false);
+        try {
+          List<byte[]> expired = new ArrayList<>(refreshTokens.size());
+          try (PreparedStatement statement =
+              conn.prepareStatement(
+                  "SELECT refresh_token FROM refresh_token WHERE "
+                      + column
+                      + " < ? AND refresh_token IN ("
+                      + String.join(", ", Collections.nCopies(refreshTokens.size(), "?"))
+                      + ") FOR UPDATE;")) {
+            statement.setLong(1, bound);
+            for (int i = 0; i < refreshTokens.size(); i++) {
+              statement.setBytes(i + 2, refreshTokens.get(i));
+            }
+            try (ResultSet result = statement.executeQuery()) {
+              while (result.next()) {
+                expired.add(result.getBytes(1));
+              }
+            }
+          }
+          int accessTokens = 0;
+          int deleted = 0;
+          if (!expired.isEmpty()) {
+            accessTokens =
+                delete(conn, "DELETE FROM access_token WHERE refresh_token IN ", expired);
+            deleted = delete(conn, "DELETE FROM refresh_token WHERE refresh_token IN ", expired);
+          }
+          conn.commit();
+          progress = progress.add(accessTokens, deleted);
+        } catch (SQLException exception) {
+          conn.rollback();
+          throw exception;
+        }
+      }
+      if (refreshTokens.size() < chunkSize) {
+        return;
+      }
+      Thread.sleep(pause.toMillis());
+    }
+  }
+
+  private void purgeOrphanedRefreshTokens() throws SQLException, InterruptedException {
+    byte[] lastRefreshToken = new byte[0];
+    while (true) {
+      List<byte[]> refreshTokens = new ArrayList<>(chunkSize);
+      try (Connection conn = dataSource.getConnection()) {
+        try (PreparedStatement statement =
+            conn.prepareStatement(
+                "SELECT r.refresh_token FROM refresh_token r "
+                    + "LEFT JOIN user u ON u.username = r.username "
+                    + "LEFT JOIN client c ON c.client_id = r.client_id "
+                    + "WHERE r.refresh_token > ? "
+                    + "AND (u.username IS NULL OR c.client_id IS NULL) "
+                    + "ORDER BY r.refresh_token LIMIT ?;")) {
+          statement.setBytes(1, lastRefreshToken);
+          statement.setInt(2, chunkSize);
+          try (ResultSet result = statement.executeQuery()) {
+            while (result.next()) {
+              lastRefreshToken = result.getBytes(1);
+              refreshTokens.add(lastRefreshToken);
+            }
+          }
+        }
+        if (refreshTokens.isEmpty()) {
+          return;
+        }
+        conn.setAutoCommit(false);
+        try {
+          int accessTokens =
+              delete(conn, "DELETE FROM access_token WHERE refresh_token IN ", refreshTokens);
+          int deleted =
+              delete(conn, "DELETE FROM refresh_token WHERE refresh_token IN ", refreshTokens);
+          conn.commit();
+          progress = progress.add(accessTokens, deleted);
+        } catch (SQLException exception) {
+          conn.rollback();
+          throw exception;
+        }
+      }
+      if (refreshTokens.size() < chunkSize) {
+        return;
+      }
+      Thread.sleep(pause.toMillis());
+    }
+  }
+
+  private void purgeRevokedTokens(long now) throws SQLException, InterruptedException {
+    long retention =
+        Math.max(accessTokenLifetime.getSeconds(), refreshTokenLifetime.maxUnusedSeconds());
+    long revokedAfter = retention == Long.MAX_VALUE ? Long.MIN_VALUE : now - retention;
+    List<RevokedScope> scopes = new ArrayList<>();
+    try (Connection conn = dataSource.getConnection()) {
+      try (PreparedStatement statement =
+          conn.prepareStatement("DELETE FROM revocation_epoch WHERE revoked_time < ?;")) {
+        statement.setLong(1, revokedAfter);
+        statement.executeUpdate();
+      }
+      try (PreparedStatement statement =
+          conn.prepareStatement(
+              "SELECT username, client_id, epoch FROM revocation_epoch "
+                  + "WHERE revoked_time >= ?;")) {
+        statement.setLong(1, revokedAfter);
+        try (ResultSet result = statement.executeQuery()) {
+          while (result.next()) {
+            scopes.add(
+                new RevokedScope(
+                    result.getString("username"),
+                    result.getString("client_id"),
+                    result.getLong("epoch")));
+          }
+        }
+      }
+    }
+    for (RevokedScope scope : scopes) {
+      purgeRevokedTokens("refresh_token", scope);
+      purgeRevokedTokens("access_token", scope);
+    }
+  }
+
+  /** Delete the tokens of {@code table} issued to the scope before it was revoked. */
+  private void purgeRevokedTokens(String table, RevokedScope scope)
+      throws SQLException, InterruptedException {
+    List<String> scopeKeys = new ArrayList<>();
+    List<String> conditions = new ArrayList<>();
+    if (!scope.username.equals(RevocationEpochs.ANY)) {
+      conditions.add("username = ?");
+      scopeKeys.add(scope.username);
+    }
+    if (!scope.clientID.equals(RevocationEpochs.ANY)) {
+      conditions.add("client_id = ?");
+      scopeKeys.add(scope.clientID);
+    }
+    if (conditions.isEmpty()) {
+      return;
+    }
+    String query =
+        "SELECT "
+            + table
+            + " FROM "
+            + table
+            + " WHERE "
+            + String.join(" AND ", conditions)
+            + " AND epoch < ? LIMIT ?;";
+    while (true) {
+      List<byte[]> tokens = new ArrayList<>(chunkSize);
+      try (Connection conn = dataSource.getConnection()) {
+        try (PreparedStatement statement = conn.prepareStatement(query)) {
+          int index = 1;
+          for (String scopeKey : scopeKeys) {
+            statement.setString(index++, scopeKey);
+          }
+          statement.setLong(index++, scope.epoch);
+          statement.setInt(index, chunkSize);
+          try (ResultSet result = statement.executeQuery()) {
+            while (result.next()) {
+              tokens.add(result.getBytes(1));
+            }
+          }
+        }
+        if (tokens.isEmpty()) {
+          return;
+        }
+        int deleted =
+            deleteInTransaction(
+                conn,
+                "DELETE FROM " + table + " WHERE epoch < ? AND " + table + " IN ",
+                scope.epoch,
+                tokens);
+        progress =
+            table.equals("access_token") ? progress.add(deleted, 0) : progress.add(0, deleted);
+      }
+      if (tokens.size() < chunkSize) {
+        return;
+      }
+      Thread.sleep(pause.toMillis());
+    }
+  }
+
+  /**
+   * Delete the superseded refresh tokens whose reuse detection ended before {@code now}. Deleted
+   * rows no longer match, so each chunk reads from the start of the index again.
+   *
+   * @return the number of deleted rows
+   */
+  private long purgeSupersededRefreshTokens(long now) throws SQLException, InterruptedException {
+    long purged = 0;
+    while (true) {
+      List<byte[]> refreshTokens = new ArrayList<>(chunkSize);
+      try (Connection conn = dataSource.getConnection()) {
+        try (PreparedStatement statement =
+            conn.prepareStatement(
+                "SELECT refresh_token FROM superseded_refresh_token WHERE expired_time < ? "
+                    + "ORDER BY expired_time LIMIT ?;")) {
+          statement.setLong(1, now);
+          statement.setInt(2, chunkSize);
+          try (ResultSet result = statement.executeQuery()) {
+            while (result.next()) {
+              refreshTokens.add(result.getBytes(1));
+            }
+          }
+        }
+        if (refreshTokens.isEmpty()) {
+          return purged;
+        }
+        purged +=
+            deleteInTransaction(
+                conn,
+                "DELETE FROM superseded_refresh_token WHERE expired_time < ? AND refresh_token IN ",
+                now,
+                refreshTokens);
+        progress = progress.add(0, 0);
+      }
+      if (refreshTokens.size() < chunkSize) {
+        return purged;
+      }
+      Thread.sleep(pause.toMillis());
+    }
+  }
+
+  /**
+   * Delete the user_client_link rows of users and clients which have no token rows left. Each
+   * chunk locks its links before checking for tokens again, issuance locks the link before
+   * inserting tokens, so a link is never deleted from under tokens being issued.
+   *
+   * @return the number of deleted links
+   */
+  private long purgeUnusedLinks() throws SQLException, InterruptedException {
+    long purged = 0;
+    String lastUsername = "";
+    String lastClientID = "";
+    while (true) {
+      // The username and client id of each link, one after the other.
+      List<String> links = new ArrayList<>(chunkSize * 2);
+      try (Connection conn = dataSource.getConnection()) {
+        try (PreparedStatement statement =
+            conn.prepareStatement(
+                "SELECT username, client_id FROM user_client_link l "
+                    + "WHERE (username > ? OR (username = ? AND client_id > ?)) AND "
+                    + noTokens("l")
+                    + " ORDER BY username, client_id LIMIT ?;")) {
+          statement.setString(1, lastUsername);
+          statement.setString(2, lastUsername);
+          statement.setString(3, lastClientID);
+          statement.setInt(4, chunkSize);
+          try (ResultSet result = statement.executeQuery()) {
+            while (result.next()) {
+              lastUsername = result.getString(1);
+              lastClientID = result.getString(2);
+              links.add(lastUsername);
+              links.add(lastClientID);
+            }
+          }
+        }
+        if (links.isEmpty()) {
+          return purged;
+        }
+        String pairs =
+            "(username, client_id) IN ("
+                + String.join(", ", Collections.nCopies(links.size() / 2, "(?, ?)"))
+                + ")";
+        conn.setAutoCommit(false);
+        try {
+          bindAndExecute(
+              conn, "SELECT 1 FROM user_client_link WHERE " + pairs + " FOR UPDATE;", links);
+          purged +=
+              bindAndExecute(
+                  conn,
+                  "DELETE FROM user_client_link WHERE "
+                      + pairs
+                      + " AND "
+                      + noTokens("user_client_link")
+                      + ";",
+                  links);
+          conn.commit();
+          progress = progress.add(0, 0);
+        } catch (SQLException exception) {
+          conn.rollback();
+          throw exception;
+        }
+      }
+      if (links.size() / 2 < chunkSize) {
+        return purged;
+      }
+      Thread.sleep(pause.toMillis());
+    }
+  }
+
+  /** Condition that the user and client of the link have no token rows, revoked or not. */
+  private static String noTokens(String link) {
+    String ofLink =
+        " t WHERE t.username = " + link + ".username AND t.client_id = " + link + ".client_id)";
+    return "NOT EXISTS (SELECT 1 FROM access_token"
+        + ofLink
+        + " AND NOT EXISTS (SELECT 1 FROM refresh_token"
+        + ofLink;
+  }
+
+  /** Run a query or update with the strings bound in order, returning the rows updated. */
+  private static int bindAndExecute(Connection conn, String stmt, List<String> parameters)
+      throws SQLException {
+    try (PreparedStatement statement = conn.prepareStatement(stmt)) {
+      for (int i = 0; i < parameters.size(); i++) {
+        statement.setString(i + 1, parameters.get(i));
+      }
+      if (statement.execute()) {
+        statement.getResultSet().close();
+        return 0;
+      }
+      return statement.getUpdateCount();
+    }
+  }
+
+  /** Delete the rows with the keys whose bound column is below {@code bound}. */
+  private static int deleteInTransaction(
+      Connection conn, String stmtPrefix, long bound, List<byte[]> keys) throws SQLException {
+    conn.setAutoCommit(false);
+    try (PreparedStatement statement = conn.prepareStatement(stmtPrefix + placeholders(keys))) {
+      statement.setLong(1, bound);
+      for (int i = 0; i < keys.size(); i++) {
+        statement.setBytes(i + 2, keys.get(i));
+      }
+      int deleted = statement.executeUpdate();
+      conn.commit();
+      return deleted;
+    } catch (SQLException exception) {
+      conn.rollback();
+      throw exception;
+    }
+  }
+
+  private static int delete(Connection conn, String stmtPrefix, List<byte[]> keys)
+      throws SQLException {
+    try (PreparedStatement statement = conn.prepareStatement(stmtPrefix + placeholders(keys))) {
+      for (int i = 0; i < keys.size(); i++) {
+        statement.setBytes(i + 1, keys.get(i));
+      }
+      return statement.executeUpdate();
+    }
+  }
+
+  private static String placeholders(List<byte[]> keys) {
+    return "(" + String.join(", ", Collections.nCopies(keys.size(), "?")) + ");";
+  }
+
+  private static final class RevokedScope {
+    private final String username;
+    private final String clientID;
+    private final long epoch;
+
+    RevokedScope(String username, String clientID, long epoch) {
+      this.username = username;
+      this.clientID = clientID;
+      this.epoch = epoch;
+    }
+  }
+
+  /** Rows purged so far by a run. */
+  static final class Progress {
+    private final long accessTokens;
+    private final long refreshTokens;
+    private final long chunks;
+    private final boolean running;
+
+    Progress(long accessTokens, long refreshTokens, long chunks, boolean running) {
+      this.accessTokens = accessTokens;
+      this.refreshTokens = refreshTokens;
+      this.chunks = chunks;
+      this.running = running;
+    }
+
+    long getAccessTokens() {
+      return accessTokens;
+    }
+
+    long getRefreshTokens() {
+      return refreshTokens;
+    }
+
+    long getChunks() {
+      return chunks;
+    }
+
+    boolean isRunning() {
+      return running;
+    }
+
+    private Progress add(long accessTokens, long refreshTokens) {
+      return new Progress(
+          this.accessTokens + accessTokens, this.refreshTokens + refreshTokens, chunks + 1, true);
+    }
+
+    private Progress finished() {
+      return new Progress(accessTokens, refreshTokens, chunks, false);
+    }
+  }
+}
@@ -0,0 +1,244 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.token;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.googleidentity.oauth2.exception.OAuth2ServerException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.sql.DataSource;
+
+/**
+ * Write the tokens of concurrent issuances in shared transactions for {@link
+ * JdbcOAuth2TokenService}.
+ *
+ * <p>A single writer thread takes the first pending write, waits up to the max delay for more to
+ * arrive, then inserts them all with JDBC batches and commits once. Callers block until the commit
+ * of their batch. If a batch fails, every write in it is retried in its own transaction so one bad
+ * row does not fail the others.
+ *
+ * <p>The queue is bounded, a write is refused at once when it is full, e.g. while MySQL stalls. A
+ * caller which times out abandons its write unless the writer already took it into a batch, so
+ * tokens are never committed after their issuance failed. A taken write is waited for until its
+ * batch commits or fails.
+ */
+final class GroupCommitWriter {
+
+  private static final Logger log = Logger.getLogger("GroupCommitWriter");
+
+  private static final long WRITE_TIMEOUT_SECONDS = 30;
+
+  private final DataSource dataSource;
+  private final long maxDelayNanos;
+  private final int maxBatchSize;
+  private final BlockingQueue<PendingWrite> queue;
+
+  private final AtomicLong batchCount = new AtomicLong();
+  private final AtomicLong writeCount = new AtomicLong();
+
+  GroupCommitWriter(
+      DataSource dataSource, Duration maxDelay, int maxBatchSize, int queueCapacity) {
+    this.dataSource = dataSource;
+    this.maxDelayNanos = maxDelay.toNanos();
+    this.maxBatchSize = maxBatchSize;
+    this.queue = new ArrayBlockingQueue<>(queueCapacity);
+    Thread writer = new Thread(this::run, "TokenGroupCommit");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Insert the tokens and wait for the commit.
+   *
+   * @return false if a token value is already taken, nothing is written then
+   */
+  boolean write(Optional<OAuth2RefreshToken> refreshToken, OAuth2AccessToken accessToken) {
+    PendingWrite pending = new PendingWrite(refreshToken, accessToken);
+    if (!queue.offer(pending)) {
+      throw new OAuth2ServerException("Too many token writes pending!");
+    }
+    try {
+      return pending.result.get(WRITE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    } catch (InterruptedException exception) {
+      Thread.currentThread().interrupt();
+      if (pending.taken.compareAndSet(false, true)) {
+        throw new OAuth2ServerException("Interrupted when writing tokens!", exception);
+      }
+      return awaitTaken(pending);
+    } catch (ExecutionException exception) {
+      throw new OAuth2ServerException("Error when writing tokens!", exception);
+    } catch (TimeoutException exception) {
+      if (pending.taken.compareAndSet(false, true)) {
+        // Abandoned, the writer skips it.
+        throw new OAuth2ServerException("Timed out when writing tokens!", exception);
+      }
+      return awaitTaken(pending);
+    }
+  }
+
+  /** Wait for a write the writer took into a batch, which commits whatever the caller does. */
+  private static boolean awaitTaken(PendingWrite pending) {
+    try {
+      return Uninterruptibles.getUninterruptibly(pending.result);
+    } catch (ExecutionException exception) {
+      throw new OAuth2ServerException("Error when writing tokens!", exception);
+    }
+  }
+
+  /** Number of committed batches. */
+  long getBatchCount() {
+    return batchCount.get();
+  }
+
+  /** Number of writes committed in batches. */
+  long getWriteCount() {
+    return writeCount.get();
+  }
+
+  private void run() {
+    List<PendingWrite> batch = new ArrayList<>(maxBatchSize);
+    while (true) {
+      try {
+        batch.add(queue.take());
+        long deadline = System.nanoTime() + maxDelayNanos;
+        while (batch.size() < maxBatchSize) {
+          long remaining = deadline - System.nanoTime();
+          PendingWrite next =
+              remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+          if (next == null) {
+            break;
+          }
+          batch.add(next);
+        }
+        // Skip the writes whose caller gave up, the others can no longer be abandoned.
+        batch.removeIf(pending -> !pending.taken.compareAndSet(false, true));
+        if (!batch.isEmpty()) {
+          writeBatch(batch);
+        }
+      } catch (InterruptedException exception) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (RuntimeException exception) {
+        log.log(Level.WARNING, "Error when writing a batch of tokens!", exception);
+        for (PendingWrite pending : batch) {
+          pending.result.completeExceptionally(exception);
+        }
+      } finally {
+        batch.clear();
+      }
+    }
+  }
+
+  private void writeBatch(List<PendingWrite> batch) {
+    try (Connection conn = dataSource.getConnection()) {
+      conn.setAutoCommit(false);
+      try {
+        insert(conn, batch);
+        conn.commit();
+        batchCount.incrementAndGet();
+        writeCount.addAndGet(batch.size());
+        for (PendingWrite pending : batch) {
+          pending.result.complete(true);
+        }
+        return;
+      } catch (SQLException exception) {
+        conn.rollback();
+        log.log(Level.INFO, "Batch of tokens failed, writing them one by one.", exception);
+      }
+      for (PendingWrite pending : batch) {
+        writeOne(conn, pending);
+      }
+    } catch (SQLException exception) {
+      for (PendingWrite pending : batch) {
+        pending.result.completeExceptionally(exception);
+      }
+    }
+  }
+
+  private static void writeOne(Connection conn, PendingWrite pending) throws SQLException {
+    try {
+      insert(conn, ImmutableList.of(pending));
+      conn.commit();
+      pending.result.complete(true);
+    } catch (SQLIntegrityConstraintViolationException exception) {
+      conn.rollback();
+      pending.result.complete(false);
+    } catch (SQLException exception) {
+      conn.rollback();
+      pending.result.completeExceptionally(exception);
+    }
+  }
+
+  private static void insert(Connection conn, List<PendingWrite> batch) throws SQLException {
+    try (PreparedStatement link =
+            conn.prepareStatement(JdbcOAuth2TokenService.INSERT_USER_CLIENT_LINK);
+        PreparedStatement refresh =
+            conn.prepareStatement(JdbcOAuth2TokenService.INSERT_REFRESH_TOKEN);
+        PreparedStatement access =
+            conn.prepareStatement(JdbcOAuth2TokenService.INSERT_ACCESS_TOKEN)) {
+      for (PendingWrite pending : batch) {
+        JdbcOAuth2TokenService.bindUserClientLink(link, pending.accessToken);
+        link.addBatch();
+      }
+      link.executeBatch();
+      boolean hasRefreshToken = false;
+      for (PendingWrite pending : batch) {
+        if (pending.refreshToken.isPresent()) {
+          JdbcOAuth2TokenService.bindRefreshToken(refresh, pending.refreshToken.get());
+          refresh.addBatch();
+          hasRefreshToken = true;
+        }
+        JdbcOAuth2TokenService.bindAccessToken(access, pending.accessToken);
+        access.addBatch();
+      }
+      if (hasRefreshToken) {
+        refresh.executeBatch();
+      }
+      access.executeBatch();
+    }
+  }
+
+  private static final class PendingWrite {
+    private final Optional<OAuth2RefreshToken> refreshToken;
+    private final OAuth2AccessToken accessToken;
+    private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+    /** Set by the writer taking the write into a batch, or by the caller abandoning it. */
+    private final AtomicBoolean taken = new AtomicBoolean();
+
+    PendingWrite(Optional<OAuth2RefreshToken> refreshToken, OAuth2AccessToken accessToken) {
+      this.refreshToken = refreshToken;
+      this.accessToken = accessToken;
+    }
+  }
+}
@@ -0,0 +1,76 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.token;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Map values to dense int ids and back for {@link CompactInMemoryOAuth2TokenService}, so a token
+ * record keeps a 4 byte id instead of a reference to its own copy of the value.
+ *
+ * <p>Ids are never released, the interned values are usernames, client ids and scope sets, which
+ * are few compared to the tokens. Looking up a value or an id takes no lock, only adding a new
+ * value does.
+ */
+final class IdInterner<T> {
+
+  static final int NONE = -1;
+
+  private final Map<T, Integer> ids = new ConcurrentHashMap<>();
+  private volatile Object[] values = new Object[16];
+  private int size;
+
+  /** The id of the value, added if it has none yet. */
+  int intern(T value) {
+    Integer id = ids.get(value);
+    if (id != null) {
+      return id;
+    }
+    synchronized (this) {
+      id = ids.get(value);
+      if (id != null) {
+        return id;
+      }
+      Object[] current = values;
+      if (size == current.length) {
+        current = Arrays.copyOf(current, size * 2);
+      }
+      current[size] = value;
+      values = current;
+      // Published after the value, whoever reads the id also sees the value.
+      ids.put(value, size);
+      return size++;
+    }
+  }
+
+  /** The id of the value, or {@link #NONE} if it was never interned. */
+  int find(T value) {
+    Integer id = ids.get(value);
+    return id == null ? NONE : id;
+  }
+
+  @SuppressWarnings("unchecked")
+  T get(int id) {
+    return (T) values[id];
+  }
+
+  int size() {
+    return ids.size();
+  }
+}
@@ -16,45 +16,160 @@
 
 package com.google.googleidentity.oauth2.token;
 
+import com.google.common.base.Strings;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
 import com.google.googleidentity.oauth2.exception.OAuth2ServerException;
 import com.google.googleidentity.oauth2.request.OAuth2Request;
+import com.google.googleidentity.oauth2.util.ExpiryQueue;
+import com.google.googleidentity.oauth2.util.ScheduledTasks;
 import com.google.inject.Singleton;
 
 import javax.crypto.KeyGenerator;
-import java.security.InvalidParameterException;
-import java.security.Key;
+import java.nio.file.Paths;
 import java.security.NoSuchAlgorithmException;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Map;
-import java.util.HashSet;
-import java.util.UUID;
 import java.util.Optional;
 import java.util.List;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.logging.Level;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
 
 /**
  * Default in memory token service. An implementation of {@link OAuth2TokenService}. The encryption
  * of clientId and username is only needed in this InMemory Design.
+ *
+ * <p>Tokens are kept per user in {@link UserTokens} for listing and revocation, and in a flat index
+ * from token string to token, so reading a token is a single hash lookup without decrypting it.
+ * Both are updated together in the same update of the user, so the index never holds a token
+ * that cannot be revoked.
+ *
+ * <p>Access tokens are also tracked in an {@link ExpiryQueue} keyed on their expired time. The
+ * cleaner runs every second and only touches the tokens which expired since the last run, so
+ * memory follows the live tokens instead of keeping expired ones for up to an hour.
+ *
+ * <p>Every update of a user's tokens, including the index entries of them, runs inside a {@code
+ * compute} on the user's entry of the user map, which is removed in the same step once the user has
+ * no tokens left. So issuance, revocation and cleaning of one user are ordered by the lock of that
+ * entry alone, and a user who just received a new token is never dropped as empty. Reads take no
+ * lock, the indexes are updated before the entry is released.
+ *
+ * <p>Tokens carry the {@link RevocationEpochs} epoch they were issued under. Revoking a user, a
+ * client or a user and client only advances an epoch, tokens older than it are treated as not
+ * existing from then on and the cleaner removes them in the background.
+ *
+ * <p>With TOKEN_COLD_AFTER_SECONDS set, users left with refresh tokens only who were not used for
+ * that long are moved to a {@link ColdTokenTier} off the heap, in files under TOKEN_COLD_TIER_DIR.
+ * A sweep every interval clears the clock bit of each user and moves the users whose bit was still
+ * clear. A refresh token missing from the index is looked up in the tier by its fingerprint, and
+ * its user is moved back before the token is read again, as is a user before any update or
+ * listing. So the heap only holds the users active within the last interval or two.
+ *
+ * <p>With REFRESH_TOKEN_ROTATION=true every refresh replaces the refresh token by a new one of the
+ * same family, the access token returned carries it. The token groups of {@link UserTokens} are
+ * kept by family, so the access tokens issued with earlier tokens of the family stay with it and
+ * revoking the family is removing one group. A superseded token is remembered for
+ * REFRESH_TOKEN_REUSE_DETECTION_SECONDS, presenting it again revokes its family, as either the
+ * client or whoever else holds the family's tokens must have leaked it.
+ *
+ * <p>Refresh tokens expire after the {@link RefreshTokenLifetime}s set by
+ * REFRESH_TOKEN_ABSOLUTE_LIFETIME_SECONDS and REFRESH_TOKEN_IDLE_LIFETIME_SECONDS. An expired token
+ * is no longer read, and a sweep every hour removes the expired tokens of all users, hot or cold,
+ * so users who stopped using their links are eventually dropped.
  */
 @Singleton
 public class InMemoryOAuth2TokenService implements OAuth2TokenService {
 
   private static final Logger log = Logger.getLogger("InMemoryOAuth2TokenService");
+  private static final long EXPIRY_BUCKET_SECONDS = 1;
+
+  private static final long COLD_AFTER_SECONDS =
+      System.getenv("TOKEN_COLD_AFTER_SECONDS") == null
+          ? 0
+          : Long.parseLong(System.getenv("TOKEN_COLD_AFTER_SECONDS"));
+
+  private static final String COLD_TIER_DIR =
+      System.getenv("TOKEN_COLD_TIER_DIR") == null
+          ? System.getProperty("java.io.tmpdir")
+          : System.getenv("TOKEN_COLD_TIER_DIR");
+
+  private static final int COLD_TIER_SEGMENT_SIZE = 64 << 20;
+
+  private static final boolean ROTATE_REFRESH_TOKENS =
+      "true".equals(System.getenv("REFRESH_TOKEN_ROTATION"));
+
+  private static final long REUSE_DETECTION_SECONDS =
+      System.getenv("REFRESH_TOKEN_REUSE_DETECTION_SECONDS") == null
+          ? TimeUnit.DAYS.toSeconds(30)
+          : Long.parseLong(System.getenv("REFRESH_TOKEN_REUSE_DETECTION_SECONDS"));
+
+  private static final long REUSE_DETECTION_BUCKET_SECONDS = 60;
+
+  private static final long REFRESH_TOKEN_SWEEP_SECONDS = TimeUnit.HOURS.toSeconds(1);
+
   Map<String, UserTokens> userTokensMap = new ConcurrentHashMap<>();
+  Map<String, OAuth2AccessToken> accessTokenIndex = new ConcurrentHashMap<>();
+  Map<String, OAuth2RefreshToken> refreshTokenIndex = new ConcurrentHashMap<>();
+  final ExpiryQueue<String> accessTokenExpiry = new ExpiryQueue<>(EXPIRY_BUCKET_SECONDS);
+  final RevocationEpochs revocationEpochs = new RevocationEpochs();
+  /** Revoked scopes, as username and client id, whose tokens the cleaner still has to remove. */
+  final Queue<Map.Entry<String, String>> revokedScopes = new ConcurrentLinkedQueue<>();
+  /** Superseded refresh tokens by token string, until their reuse detection ends. */
+  final Map<String, OAuth2RefreshToken> supersededRefreshTokens = new ConcurrentHashMap<>();
+  final ExpiryQueue<String> supersededExpiry = new ExpiryQueue<>(REUSE_DETECTION_BUCKET_SECONDS);
+  private volatile boolean rotateRefreshTokens = ROTATE_REFRESH_TOKENS;
+  private volatile RefreshTokenLifetime refreshTokenLifetime = RefreshTokenLifetime.DEFAULT;
   ScheduledExecutorService service;
   private Duration tokenValidTime = Duration.ofMinutes(10);
-  private Key aesKey;
+  private TokenCodec tokenCodec;
+  /** Null unless idle users are moved off the heap. */
+  private final ColdTokenTier coldTier;
 
   public InMemoryOAuth2TokenService() {
+    this(
+        COLD_AFTER_SECONDS > 0
+            ? new ColdTokenTier(Paths.get(COLD_TIER_DIR), COLD_TIER_SEGMENT_SIZE)
+            : null,
+        COLD_AFTER_SECONDS);
+  }
+
+  /** Sweeps every {@code coldAfterSeconds} if {@code coldTier} is not null. */
+  @VisibleForTesting
+  InMemoryOAuth2TokenService(ColdTokenTier coldTier, long coldAfterSeconds) {
+    this.coldTier = coldTier;
     initKey();
     setTokenCleaner();
+    if (coldTier != null) {
+      service.scheduleAtFixedRate(
+          ScheduledTasks.quietly(
+              log, "Error when moving idle users to the cold tier!", this::sweepColdUsers),
+          coldAfterSeconds,
+          coldAfterSeconds,
+          TimeUnit.SECONDS);
+    }
+  }
+
+  /** Whether refreshing replaces the refresh token, see the class comment. */
+  public void setRotateRefreshTokens(boolean rotateRefreshTokens) {
+    this.rotateRefreshTokens = rotateRefreshTokens;
+  }
+
+  /** Lifetimes of refresh tokens in seconds, 0 for no limit. */
+  @VisibleForTesting
+  void setRefreshTokenLifetime(long absoluteSeconds, long idleSeconds) {
+    this.refreshTokenLifetime = new RefreshTokenLifetime(absoluteSeconds, idleSeconds);
   }
 
   private void initKey() {
@@ -65,22 +180,50 @@ public class InMemoryOAuth2TokenService implements OAuth2TokenService {
     } catch (NoSuchAlgorithmException e) {
       throw new OAuth2ServerException("Error when init Key!", e);
     }
-    aesKey = generator.generateKey();
+    tokenCodec = new TokenCodec(generator.generateKey());
   }
 
   private void setTokenCleaner() {
     service = Executors.newSingleThreadScheduledExecutor();
-    service.scheduleAtFixedRate(new TokenCleaner(), 1, 1, TimeUnit.HOURS);
+    service.scheduleAtFixedRate(
+        ScheduledTasks.quietly(log, "Error when cleaning expired tokens!", new TokenCleaner()),
+        EXPIRY_BUCKET_SECONDS,
+        EXPIRY_BUCKET_SECONDS,
+        TimeUnit.SECONDS);
+    service.scheduleAtFixedRate(
+        ScheduledTasks.quietly(
+            log, "Error when removing expired refresh tokens!", this::sweepRefreshTokens),
+        REFRESH_TOKEN_SWEEP_SECONDS,
+        REFRESH_TOKEN_SWEEP_SECONDS,
+        TimeUnit.SECONDS);
   }
 
-  private UserTokens getUser(String username) {
-    if (!userTokensMap.containsKey(username)) {
-      userTokensMap.put(username, new UserTokens(username));
-    }
-
-    UserTokens user = userTokensMap.get(username);
+  /**
+   * Run an update of the user's tokens atomically with adding the user if missing and removing it
+   * if the update leaves it without tokens.
+   */
+  private void updateUser(String username, Consumer<UserTokens> update) {
+    faultIn(username);
+    userTokensMap.compute(
+        username,
+        (key, user) -> {
+          UserTokens tokens = user == null ? new UserTokens(key) : user;
+          tokens.reference();
+          update.accept(tokens);
+          return tokens.isEmpty() ? null : tokens;
+        });
+  }
 
-    return user;
+  /** Like {@link #updateUser}, but does nothing for a user without tokens. */
+  private void updateExistingUser(String username, Consumer<UserTokens> update) {
+    faultIn(username);
+    userTokensMap.computeIfPresent(
+        username,
+        (key, user) -> {
+          user.reference();
+          update.accept(user);
+          return user.isEmpty() ? null : user;
+        });
   }
 
   @Override
@@ -89,188 +232,497 @@ public class InMemoryOAuth2TokenService implements OAuth2TokenService {
     String clientID = request.getRequestAuth().getClientId();
     String username = request.getRequestAuth().getUsername();
 
-    UserTokens user = getUser(username);
-
-    Optional<String> refreshTokenString = Optional.empty();
-
-    if (request.getRequestBody().getRefreshable()) {
-
-      String refreshTokenValue = UUID.randomUUID().toString();
-      refreshTokenString =
-          Optional.ofNullable(
-              new UserClientTokenInfo(username, clientID, refreshTokenValue)
-                  .getEncryptTokenString(aesKey));
-      while (user.readRefreshToken(clientID, refreshTokenString.get()).isPresent()) {
-        refreshTokenValue = UUID.randomUUID().toString();
-        refreshTokenString =
-            Optional.ofNullable(
-                new UserClientTokenInfo(username, clientID, refreshTokenValue)
-                    .getEncryptTokenString(aesKey));
-      }
-
-      OAuth2RefreshToken refreshToken =
-          OAuth2RefreshToken.newBuilder()
-              .setRefreshToken(refreshTokenString.get())
-              .setClientId(request.getRequestAuth().getClientId())
-              .setUsername(request.getRequestAuth().getUsername())
-              .setIsScoped(request.getRequestBody().getIsScoped())
-              .addAllScopes(request.getRequestBody().getScopesList())
-              .build();
-      user.addRefreshToken(clientID, refreshToken);
-    }
+    AtomicReference<OAuth2AccessToken> accessToken = new AtomicReference<>();
+    // The refresh token and its first access token are added in one step.
+    updateUser(
+        username,
+        user -> {
+          long epoch = revocationEpochs.current();
+          Optional<OAuth2RefreshToken> refreshToken = Optional.empty();
+          if (request.getRequestBody().getRefreshable()) {
+            String familyID = rotateRefreshTokens ? UUID.randomUUID().toString() : "";
+            OAuth2RefreshToken token = newRefreshToken(request, epoch, familyID);
+            while (refreshTokenIndex.putIfAbsent(token.getRefreshToken(), token) != null) {
+              token = newRefreshToken(request, epoch, familyID);
+            }
+            user.addRefreshToken(clientID, token);
+            refreshToken = Optional.of(token);
+          }
+          accessToken.set(addNewAccessToken(user, request, refreshToken, epoch));
+        });
+    return accessToken.get();
+  }
 
-    return getNewAccessToken(request, refreshTokenString);
+  private OAuth2RefreshToken newRefreshToken(
+      OAuth2Request request, long epoch, String familyID) {
+    long now = Instant.now().getEpochSecond();
+    return OAuth2RefreshToken.newBuilder()
+        .setRefreshToken(
+            tokenCodec.encode(
+                request.getRequestAuth().getUsername(), request.getRequestAuth().getClientId()))
+        .setClientId(request.getRequestAuth().getClientId())
+        .setUsername(request.getRequestAuth().getUsername())
+        .setIsScoped(request.getRequestBody().getIsScoped())
+        .addAllScopes(request.getRequestBody().getScopesList())
+        .setEpoch(epoch)
+        .setFamilyId(familyID)
+        .setIssuedTime(now)
+        .setLastUsedTime(now)
+        .build();
   }
 
   @Override
   public Optional<OAuth2AccessToken> refreshToken(String refreshToken) {
+    return refresh(refreshToken, Optional.empty()).getValue();
+  }
+
+  @Override
+  public ClientTokenResult<OAuth2AccessToken> refreshToken(String refreshToken, String clientID) {
+    return refresh(refreshToken, Optional.of(clientID));
+  }
+
+  /**
+   * Refresh, revoking the family of the refresh token if it was superseded.
+   *
+   * @param clientID the client the token must have been issued to, any if empty
+   */
+  private ClientTokenResult<OAuth2AccessToken> refresh(
+      String refreshToken, Optional<String> clientID) {
     Optional<OAuth2RefreshToken> token = readRefreshToken(refreshToken);
-    // The refreshToken may be wrong or not existed
     if (!token.isPresent()) {
-      return Optional.empty();
+      revokeReusedFamily(refreshToken);
+      return ClientTokenResult.notFound();
+    }
+    if (clientID.isPresent() && !token.get().getClientId().equals(clientID.get())) {
+      return ClientTokenResult.clientMismatch();
     }
+    OAuth2AccessToken accessToken = refresh(token.get());
+    if (accessToken == null) {
+      // Possibly rotated by a concurrent refresh with the same token.
+      revokeReusedFamily(refreshToken);
+      return ClientTokenResult.notFound();
+    }
+    return ClientTokenResult.done(accessToken);
+  }
 
-    String username = token.get().getUsername();
-    String clientID = token.get().getClientId();
+  /**
+   * Issue an access token for the refresh token in one update of its user, rotating the refresh
+   * token if refresh tokens are rotated, else writing its last use if it is due.
+   *
+   * @return the token, or null if the refresh token is gone
+   */
+  private OAuth2AccessToken refresh(OAuth2RefreshToken token) {
+    String username = token.getUsername();
+    String clientID = token.getClientId();
 
     OAuth2Request.Builder requestBuilder = OAuth2Request.newBuilder();
     requestBuilder.getRequestAuthBuilder().setClientId(clientID).setUsername(username);
     requestBuilder
         .getRequestBodyBuilder()
-        .setIsScoped(token.get().getIsScoped())
-        .addAllScopes(token.get().getScopesList())
+        .setIsScoped(token.getIsScoped())
+        .addAllScopes(token.getScopesList())
         .setRefreshable(true);
 
-    return Optional.of(getNewAccessToken(requestBuilder.build(), Optional.of(refreshToken)));
+    AtomicReference<OAuth2AccessToken> accessToken = new AtomicReference<>();
+    boolean rotate = rotateRefreshTokens;
+    // A refresh token revoked or rotated since it was read is gone from the user, nothing is
+    // issued then. The access token takes the epoch of its refresh token, so revoking the scope
+    // meanwhile revokes both.
+    long epoch = token.getEpoch();
+    updateExistingUser(
+        username,
+        user -> {
+          OAuth2RefreshToken refreshToken = token;
+          long now = Instant.now().getEpochSecond();
+          if (rotate) {
+            if (!refreshTokenIndex.remove(token.getRefreshToken(), token)) {
+              return;
+            }
+            refreshToken = rotate(user, token, now);
+          } else if (refreshTokenLifetime.needsTouch(token.getLastUsedTime(), now)) {
+            OAuth2RefreshToken touched = token.toBuilder().setLastUsedTime(now).build();
+            if (refreshTokenIndex.replace(token.getRefreshToken(), token, touched)) {
+              user.replaceRefreshToken(token.getClientId(), token, touched);
+            }
+          }
+          accessToken.set(
+              addNewAccessToken(user, requestBuilder.build(), Optional.of(refreshToken), epoch));
+        });
+    return accessToken.get();
   }
 
   /**
-   * Generate a new access token for a request. The refresh token is already there or no refresh
-   * token is needed for the request.
+   * Replace a refresh token, already removed from the index, by a new one of its family. Must run
+   * inside an update of the user.
+   *
+   * @return the new token
    */
-  private OAuth2AccessToken getNewAccessToken(
-      OAuth2Request request, Optional<String> refreshTokenString) {
+  private OAuth2RefreshToken rotate(UserTokens user, OAuth2RefreshToken token, long now) {
+    // A token issued without rotation names its family after itself, so its token group and
+    // access tokens carry over to the family.
+    String familyID =
+        token.getFamilyId().isEmpty() ? token.getRefreshToken() : token.getFamilyId();
+    OAuth2RefreshToken next;
+    do {
+      next =
+          token.toBuilder()
+              .setRefreshToken(tokenCodec.encode(token.getUsername(), token.getClientId()))
+              .setFamilyId(familyID)
+              .setLastUsedTime(now)
+              .build();
+    } while (refreshTokenIndex.putIfAbsent(next.getRefreshToken(), next) != null);
+    user.addRefreshToken(token.getClientId(), next);
+    supersede(token);
+    return next;
+  }
 
-    String clientID = request.getRequestAuth().getClientId();
-    String username = request.getRequestAuth().getUsername();
+  /** Remember a superseded refresh token until its reuse detection ends. */
+  private void supersede(OAuth2RefreshToken token) {
+    if (supersededRefreshTokens.put(token.getRefreshToken(), token) == null) {
+      supersededExpiry.add(
+          token.getRefreshToken(), Instant.now().getEpochSecond() + REUSE_DETECTION_SECONDS);
+    }
+  }
 
-    UserTokens user = getUser(username);
+  /**
+   * Revoke the family of a superseded refresh token presented again, it may have leaked.
+   *
+   * @return the superseded token, or null if the token was not superseded
+   */
+  OAuth2RefreshToken revokeReusedFamily(String refreshToken) {
+    OAuth2RefreshToken superseded = supersededRefreshTokens.get(refreshToken);
+    if (superseded == null) {
+      return null;
+    }
+    if (revokeFamily(
+        superseded.getUsername(), superseded.getClientId(), superseded.getFamilyId())) {
+      log.warning(
+          "Superseded refresh token of client "
+              + superseded.getClientId()
+              + " presented again, revoked its family.");
+    }
+    return superseded;
+  }
 
-    String accessTokenString = "";
+  /**
+   * Remove the current refresh token of the family and the access tokens of the whole family.
+   *
+   * @return false if the family is already gone
+   */
+  boolean revokeFamily(String username, String clientID, String familyID) {
+    AtomicBoolean removed = new AtomicBoolean();
+    updateExistingUser(
+        username,
+        user -> {
+          OAuth2RefreshToken current = user.readFamily(clientID, familyID);
+          removed.set(current != null && removeRefreshToken(user, current));
+        });
+    return removed.get();
+  }
 
-    String accessTokenValue = UUID.randomUUID().toString();
-    accessTokenString =
-        new UserClientTokenInfo(username, clientID, accessTokenValue).getEncryptTokenString(aesKey);
+  /**
+   * Add a new access token for a request to the user. The refresh token is already there or no
+   * refresh token is needed for the request. Must run inside an update of the user.
+   *
+   * @return the token, or null if the refresh token is gone
+   */
+  private OAuth2AccessToken addNewAccessToken(
+      UserTokens user,
+      OAuth2Request request,
+      Optional<OAuth2RefreshToken> refreshToken,
+      long epoch) {
+
+    String clientID = request.getRequestAuth().getClientId();
+    String username = request.getRequestAuth().getUsername();
 
-    while (user.readAccessToken(clientID, accessTokenString).isPresent()) {
-      accessTokenValue = UUID.randomUUID().toString();
-      accessTokenString =
-          new UserClientTokenInfo(username, clientID, accessTokenValue)
-              .getEncryptTokenString(aesKey);
-    }
     OAuth2AccessToken.Builder builder =
         OAuth2AccessToken.newBuilder()
-            .setAccessToken(accessTokenString)
+            .setAccessToken(tokenCodec.encode(username, clientID))
             .setClientId(request.getRequestAuth().getClientId())
             .setUsername(request.getRequestAuth().getUsername())
             .setIsScoped(request.getRequestBody().getIsScoped())
             .addAllScopes(request.getRequestBody().getScopesList())
             .setExpiredTime(
-                Instant.now().plusSeconds(tokenValidTime.getSeconds()).getEpochSecond());
-    refreshTokenString.ifPresent(builder::setRefreshToken);
+                Instant.now().plusSeconds(tokenValidTime.getSeconds()).getEpochSecond())
+            .setEpoch(epoch);
+    if (refreshToken.isPresent()) {
+      builder
+          .setRefreshToken(refreshToken.get().getRefreshToken())
+          .setFamilyId(refreshToken.get().getFamilyId());
+    }
     OAuth2AccessToken token = builder.build();
-    user.addAccessToken(clientID, token);
+    while (accessTokenIndex.putIfAbsent(token.getAccessToken(), token) != null) {
+      token = token.toBuilder().setAccessToken(tokenCodec.encode(username, clientID)).build();
+    }
+    if (!user.addAccessToken(clientID, token)) {
+      accessTokenIndex.remove(token.getAccessToken(), token);
+      return null;
+    }
+    accessTokenExpiry.add(token.getAccessToken(), token.getExpiredTime());
     return token;
   }
 
   @Override
   public Optional<OAuth2AccessToken> readAccessToken(String accessToken) {
-    UserClientTokenInfo info;
-
-    try {
-      info = UserClientTokenInfo.decryptTokenString(aesKey, accessToken);
-    } catch (InvalidParameterException exception) {
-      log.log(Level.INFO, "Invalid access token Value", exception);
-      return Optional.empty();
-    }
-
-    String username = info.getUsername();
-    String clientID = info.getClientID();
-    String tokenValue = info.getTokenValue();
-
-    if (userTokensMap.containsKey(username)) {
-      return userTokensMap.get(username).readAccessToken(clientID, accessToken);
-    } else {
+    OAuth2AccessToken token = accessTokenIndex.get(accessToken);
+    if (token == null || revocationEpochs.isRevoked(token)) {
       return Optional.empty();
     }
+    return Optional.of(token);
   }
 
   @Override
   public Optional<OAuth2RefreshToken> readRefreshToken(String refreshToken) {
-    UserClientTokenInfo info;
-
-    try {
-      info = UserClientTokenInfo.decryptTokenString(aesKey, refreshToken);
-    } catch (InvalidParameterException exception) {
-      log.log(Level.INFO, "Invalid refresh token Value", exception);
+    OAuth2RefreshToken token = findRefreshToken(refreshToken);
+    if (token == null
+        || revocationEpochs.isRevoked(token)
+        || refreshTokenLifetime.isExpired(token, Instant.now().getEpochSecond())) {
       return Optional.empty();
     }
+    return Optional.of(token);
+  }
 
-    String username = info.getUsername();
-    String clientID = info.getClientID();
-
-    if (userTokensMap.containsKey(username)) {
-      return userTokensMap.get(username).readRefreshToken(clientID, refreshToken);
-    } else {
-      return Optional.empty();
+  /** The refresh token, also a revoked one, moving its user back from the cold tier. */
+  OAuth2RefreshToken findRefreshToken(String refreshToken) {
+    OAuth2RefreshToken token = refreshTokenIndex.get(refreshToken);
+    if (coldTier == null) {
+      return token;
+    }
+    if (token == null) {
+      String username = coldTier.findUsername(refreshToken);
+      if (username != null) {
+        faultIn(username);
+      }
+      // Also read again when not found, the user may have been moved back meanwhile.
+      token = refreshTokenIndex.get(refreshToken);
     }
+    if (token != null) {
+      UserTokens user = userTokensMap.get(token.getUsername());
+      if (user != null) {
+        user.reference();
+      }
+    }
+    return token;
   }
 
   @Override
   public boolean revokeByAccessToken(String accessToken) {
-    Optional<OAuth2AccessToken> token = readAccessToken(accessToken);
+    OAuth2AccessToken token = readAccessToken(accessToken).orElse(null);
+    return token != null && revoke(token);
+  }
+
+  @Override
+  public ClientTokenResult<OAuth2AccessToken> revokeByAccessToken(
+      String accessToken, String clientID) {
+    OAuth2AccessToken token = readAccessToken(accessToken).orElse(null);
+    if (token == null) {
+      return ClientTokenResult.notFound();
+    }
+    if (!token.getClientId().equals(clientID)) {
+      return ClientTokenResult.clientMismatch();
+    }
+    return revoke(token) ? ClientTokenResult.done(token) : ClientTokenResult.notFound();
+  }
 
-    if (!token.isPresent()
-        || Instant.ofEpochSecond(token.get().getExpiredTime()).isBefore(Instant.now())) {
+  /**
+   * Remove an access token, or its refresh token together with it if it has one.
+   *
+   * @return false if the token is expired or another update removed it first
+   */
+  private boolean revoke(OAuth2AccessToken token) {
+    if (Instant.ofEpochSecond(token.getExpiredTime()).isBefore(Instant.now())) {
       return false;
     }
 
-    return getUser(token.get().getUsername()).revokeByAccessToken(token.get());
+    if (!token.getFamilyId().isEmpty()) {
+      // Its refresh token may have been rotated since.
+      return revokeFamily(token.getUsername(), token.getClientId(), token.getFamilyId());
+    }
+
+    if (!Strings.isNullOrEmpty(token.getRefreshToken())) {
+      return revokeByRefreshToken(token.getRefreshToken());
+    }
+
+    String accessToken = token.getAccessToken();
+    AtomicBoolean removed = new AtomicBoolean();
+    updateExistingUser(
+        token.getUsername(),
+        user -> {
+          if (accessTokenIndex.remove(accessToken) != null) {
+            accessTokenExpiry.remove(accessToken, token.getExpiredTime());
+            user.revokeAccessToken(token.getClientId(), accessToken);
+            removed.set(true);
+          }
+        });
+    return removed.get();
   }
 
   @Override
   public boolean revokeByRefreshToken(String refreshToken) {
-    Optional<OAuth2RefreshToken> token = readRefreshToken(refreshToken);
+    OAuth2RefreshToken token = findRefreshToken(refreshToken);
 
-    if (!token.isPresent()) {
+    if (token == null) {
       return false;
     }
+    AtomicBoolean removed = new AtomicBoolean();
+    updateExistingUser(token.getUsername(), user -> removed.set(removeRefreshToken(user, token)));
+    return removed.get() && !revocationEpochs.isRevoked(token);
+  }
 
-    return getUser(token.get().getUsername()).revokeByRefreshToken(token.get());
+  @Override
+  public ClientTokenResult<OAuth2RefreshToken> revokeByRefreshToken(
+      String refreshToken, String clientID) {
+    OAuth2RefreshToken token = readRefreshToken(refreshToken).orElse(null);
+    if (token == null) {
+      return ClientTokenResult.notFound();
+    }
+    if (!token.getClientId().equals(clientID)) {
+      return ClientTokenResult.clientMismatch();
+    }
+    AtomicBoolean removed = new AtomicBoolean();
+    updateExistingUser(token.getUsername(), user -> removed.set(removeRefreshToken(user, token)));
+    return removed.get() ? ClientTokenResult.done(token) : ClientTokenResult.notFound();
+  }
+
+  /**
+   * Remove a refresh token and its access tokens. Must run inside an update of the user.
+   *
+   * @return false if another update removed it first
+   */
+  private boolean removeRefreshToken(UserTokens user, OAuth2RefreshToken token) {
+    if (refreshTokenIndex.remove(token.getRefreshToken()) == null) {
+      return false;
+    }
+    for (String accessToken : user.revokeByRefreshToken(token)) {
+      removeFromIndex(accessToken);
+    }
+    return true;
   }
 
   @Override
   public boolean revokeUserClientTokens(String username, String clientID) {
-    if (userTokensMap.containsKey(username)) {
-      return userTokensMap.get(username).revokeUserClientTokens(clientID);
-    } else {
+    boolean hasTokens = hasTokens(username, clientID);
+    revokeScope(username, clientID);
+    return hasTokens;
+  }
+
+  @Override
+  public RevokedTokens revokeAndListUserClientTokens(String username, String clientID) {
+    AtomicReference<RevokedTokens> revoked = new AtomicReference<>();
+    // Listed and revoked in one update of the user, so no token is issued in between.
+    updateUser(
+        username,
+        user -> {
+          ImmutableList.Builder<OAuth2AccessToken> accessTokens = ImmutableList.builder();
+          for (OAuth2AccessToken token : user.listAccessTokens(clientID)) {
+            if (!revocationEpochs.isRevoked(token)) {
+              accessTokens.add(token);
+            }
+          }
+          ImmutableList.Builder<OAuth2RefreshToken> refreshTokens = ImmutableList.builder();
+          for (OAuth2RefreshToken token : user.listRefreshTokens(clientID)) {
+            if (!revocationEpochs.isRevoked(token)) {
+              refreshTokens.add(token);
+            }
+          }
+          revokeScope(username, clientID);
+          revoked.set(new RevokedTokens(accessTokens.build(), refreshTokens.build()));
+        });
+    return revoked.get();
+  }
+
+  @Override
+  public void revokeClientTokens(String clientID) {
+    revokeScope(RevocationEpochs.ANY, clientID);
+  }
+
+  @Override
+  public void revokeUserTokens(String username) {
+    revokeScope(username, RevocationEpochs.ANY);
+  }
+
+  private void revokeScope(String username, String clientID) {
+    revocationEpochs.revoke(username, clientID);
+    revokedScopes.add(Maps.immutableEntry(username, clientID));
+  }
+
+  /** Whether the user has tokens for the client which are not revoked. */
+  private boolean hasTokens(String username, String clientID) {
+    UserTokens user = getUser(username);
+    if (user == null) {
       return false;
     }
+    for (OAuth2AccessToken token : user.listAccessTokens(clientID)) {
+      if (!revocationEpochs.isRevoked(token)) {
+        return true;
+      }
+    }
+    for (OAuth2RefreshToken token : user.listRefreshTokens(clientID)) {
+      if (!revocationEpochs.isRevoked(token)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void removeFromIndex(String accessToken) {
+    OAuth2AccessToken token = accessTokenIndex.remove(accessToken);
+    if (token != null) {
+      accessTokenExpiry.remove(accessToken, token.getExpiredTime());
+    }
   }
 
   @Override
   public List<String> listUserClient(String username) {
-    if (userTokensMap.containsKey(username)) {
-      return userTokensMap.get(username).listClients();
+    UserTokens user = getUser(username);
+    if (user != null) {
+      ImmutableList.Builder<String> clients = ImmutableList.builder();
+      for (String clientID : user.listClients()) {
+        if (hasTokens(username, clientID)) {
+          clients.add(clientID);
+        }
+      }
+      return clients.build();
     } else {
       return ImmutableList.of();
     }
   }
 
+  @Override
+  public UserTokenList listUserTokens(String username) {
+    UserTokens user = getUser(username);
+    if (user == null) {
+      return UserTokenList.EMPTY;
+    }
+    long now = Instant.now().getEpochSecond();
+    List<OAuth2AccessToken> accessTokens = new ArrayList<>();
+    List<OAuth2RefreshToken> refreshTokens = new ArrayList<>();
+    for (String clientID : user.listClients()) {
+      for (OAuth2AccessToken token : user.listAccessTokens(clientID)) {
+        if (!revocationEpochs.isRevoked(token)) {
+          accessTokens.add(token);
+        }
+      }
+      for (OAuth2RefreshToken token : user.listRefreshTokens(clientID)) {
+        if (!revocationEpochs.isRevoked(token) && !refreshTokenLifetime.isExpired(token, now)) {
+          refreshTokens.add(token);
+        }
+      }
+    }
+    return new UserTokenList(accessTokens, refreshTokens);
+  }
+
   @Override
   public List<OAuth2AccessToken> listUserClientAccessTokens(String username, String clientID) {
-    if (userTokensMap.containsKey(username)) {
-      return userTokensMap.get(username).listAccessTokens(clientID);
+    UserTokens user = getUser(username);
+    if (user != null) {
+      ImmutableList.Builder<OAuth2AccessToken> tokens = ImmutableList.builder();
+      for (OAuth2AccessToken token : user.listAccessTokens(clientID)) {
+        if (!revocationEpochs.isRevoked(token)) {
+          tokens.add(token);
+        }
+      }
+      return tokens.build();
     } else {
       return ImmutableList.of();
     }
@@ -278,8 +730,15 @@ public class InMemoryOAuth2TokenService implements OAuth2TokenService {
 
   @Override
   public List<OAuth2RefreshToken> listUserClientRefreshTokens(String username, String clientID) {
-    if (userTokensMap.containsKey(username)) {
-      return userTokensMap.get(username).listRefreshTokens(clientID);
+    UserTokens user = getUser(username);
+    if (user != null) {
+      ImmutableList.Builder<OAuth2RefreshToken> tokens = ImmutableList.builder();
+      for (OAuth2RefreshToken token : user.listRefreshTokens(clientID)) {
+        if (!revocationEpochs.isRevoked(token)) {
+          tokens.add(token);
+        }
+      }
+      return tokens.build();
     } else {
       return ImmutableList.of();
     }
@@ -287,19 +746,315 @@ public class InMemoryOAuth2TokenService implements OAuth2TokenService {
 
   @Override
   public void reset() {
+    if (coldTier != null) {
+      coldTier.clear();
+    }
     userTokensMap.clear();
+    accessTokenIndex.clear();
+    refreshTokenIndex.clear();
+    accessTokenExpiry.clear();
+    revocationEpochs.clear();
+    revokedScopes.clear();
+    supersededRefreshTokens.clear();
+    supersededExpiry.clear();
+  }
+
+  /** The hot tokens of the user, after moving the user back from the cold tier. */
+  private UserTokens getUser(String username) {
+    faultIn(username);
+    return userTokensMap.get(username);
+  }
+
+  /** Move the tokens of the user back from the cold tier, if there are any. */
+  private void faultIn(String username) {
+    if (coldTier == null || !coldTier.contains(username)) {
+      return;
+    }
+    userTokensMap.compute(
+        username,
+        (key, user) -> {
+          UserTokens tokens = user == null ? new UserTokens(key) : user;
+          List<OAuth2RefreshToken> taken = coldTier.take(key);
+          long now = Instant.now().getEpochSecond();
+          for (OAuth2RefreshToken token : taken) {
+            if (!revocationEpochs.isRevoked(token)
+                && !refreshTokenLifetime.isExpired(token, now)
+                && refreshTokenIndex.putIfAbsent(token.getRefreshToken(), token) == null) {
+              tokens.addRefreshToken(token.getClientId(), token);
+            }
+          }
+          coldTier.forget(taken);
+          return tokens.isEmpty() ? null : tokens;
+        });
+  }
+
+  /**
+   * Move the users which have not been used since the last sweep and have no access tokens to the
+   * cold tier, then compact the tier.
+   */
+  @VisibleForTesting
+  void sweepColdUsers() {
+    for (String username : userTokensMap.keySet()) {
+      userTokensMap.computeIfPresent(
+          username,
+          (key, user) -> {
+            if (user.clearReferenced() || user.hasAccessTokens()) {
+              return user;
+            }
+            List<OAuth2RefreshToken> tokens = new ArrayList<>();
+            for (String clientID : user.listClients()) {
+              for (OAuth2RefreshToken token : user.listRefreshTokens(clientID)) {
+                if (!revocationEpochs.isRevoked(token)) {
+                  tokens.add(token);
+                }
+              }
+            }
+            if (!coldTier.put(key, tokens)) {
+              return user;
+            }
+            for (String clientID : user.listClients()) {
+              for (OAuth2RefreshToken token : user.listRefreshTokens(clientID)) {
+                refreshTokenIndex.remove(token.getRefreshToken());
+              }
+            }
+            return null;
+          });
+    }
+    coldTier.compact();
   }
 
+  /** Pass every refresh token which is not revoked, hot or cold, to the consumer. */
+  void forEachRefreshToken(Consumer<OAuth2RefreshToken> consumer) {
+    for (OAuth2RefreshToken token : refreshTokenIndex.values()) {
+      if (!revocationEpochs.isRevoked(token)) {
+        consumer.accept(token);
+      }
+    }
+    if (coldTier != null) {
+      coldTier.forEach(
+          (username, tokens) -> {
+            for (OAuth2RefreshToken token : tokens) {
+              if (!revocationEpochs.isRevoked(token)) {
+                consumer.accept(token);
+              }
+            }
+          });
+    }
+  }
+
+  /**
+   * Add a refresh token issued before, e.g. before a restart. A token which is already there is
+   * replaced if this copy was used later. A token of a family which is there supersedes the token
+   * the family had. A token from before lifetimes were kept starts its lifetimes now.
+   */
+  void restoreRefreshToken(OAuth2RefreshToken restored) {
+    OAuth2RefreshToken token = restored;
+    if (token.getIssuedTime() == 0) {
+      long now = Instant.now().getEpochSecond();
+      token = token.toBuilder().setIssuedTime(now).setLastUsedTime(now).build();
+    }
+    OAuth2RefreshToken added = token;
+    updateUser(
+        added.getUsername(),
+        user -> {
+          OAuth2RefreshToken existing =
+              refreshTokenIndex.putIfAbsent(added.getRefreshToken(), added);
+          if (existing != null) {
+            if (added.getLastUsedTime() > existing.getLastUsedTime()
+                && refreshTokenIndex.replace(added.getRefreshToken(), existing, added)) {
+              user.replaceRefreshToken(added.getClientId(), existing, added);
+            }
+            return;
+          }
+          OAuth2RefreshToken superseded = user.addRefreshToken(added.getClientId(), added);
+          if (superseded != null) {
+            refreshTokenIndex.remove(superseded.getRefreshToken(), superseded);
+            supersede(superseded);
+          }
+        });
+  }
+
+  /** Remember a refresh token superseded before, e.g. before a restart. */
+  void restoreSupersededRefreshToken(OAuth2RefreshToken token) {
+    supersede(token);
+  }
+
+  /**
+   * Add an access token issued before unless it is already there, or its refresh token is gone
+   * since.
+   */
+  void restoreAccessToken(OAuth2AccessToken token) {
+    updateUser(
+        token.getUsername(),
+        user -> {
+          if (accessTokenIndex.putIfAbsent(token.getAccessToken(), token) != null) {
+            return;
+          }
+          if (!user.addAccessToken(token.getClientId(), token)) {
+            accessTokenIndex.remove(token.getAccessToken(), token);
+            return;
+          }
+          accessTokenExpiry.add(token.getAccessToken(), token.getExpiredTime());
+        });
+  }
+
+  /** Remove an access token, also an expired one, without touching its refresh token. */
+  void removeAccessToken(String accessToken) {
+    OAuth2AccessToken token = accessTokenIndex.get(accessToken);
+    if (token == null) {
+      return;
+    }
+    updateExistingUser(
+        token.getUsername(),
+        user -> {
+          if (accessTokenIndex.remove(accessToken, token)) {
+            accessTokenExpiry.remove(accessToken, token.getExpiredTime());
+            user.removeExpiredAccessToken(token);
+          }
+        });
+  }
+
+  /** Record a scope revoked at {@code epoch} before, its tokens are removed by the cleaner. */
+  void restoreRevocation(String username, String clientID, long epoch) {
+    revocationEpochs.restore(username, clientID, epoch);
+    revokedScopes.add(Maps.immutableEntry(username, clientID));
+  }
+
+  /** Remove the tokens of the scopes revoked since the last call. */
+  @VisibleForTesting
+  void removeRevokedTokens() {
+    for (Map.Entry<String, String> scope = revokedScopes.poll();
+        scope != null;
+        scope = revokedScopes.poll()) {
+      List<String> usernames =
+          scope.getKey().equals(RevocationEpochs.ANY)
+              ? ImmutableList.copyOf(userTokensMap.keySet())
+              : ImmutableList.of(scope.getKey());
+      String clientScope = scope.getValue();
+      for (String username : usernames) {
+        updateExistingUser(
+            username,
+            user -> {
+              List<String> clientIDs =
+                  clientScope.equals(RevocationEpochs.ANY)
+                      ? user.listClients()
+                      : ImmutableList.of(clientScope);
+              for (String clientID : clientIDs) {
+                removeRevokedTokens(user, clientID);
+              }
+            });
+      }
+    }
+  }
+
+  private void removeRevokedTokens(UserTokens user, String clientID) {
+    for (OAuth2RefreshToken token : user.listRefreshTokens(clientID)) {
+      if (revocationEpochs.isRevoked(token)) {
+        removeRefreshToken(user, token);
+      }
+    }
+    for (OAuth2AccessToken token : user.listAccessTokens(clientID)) {
+      if (revocationEpochs.isRevoked(token)) {
+        removeFromIndex(token.getAccessToken());
+        user.removeExpiredAccessToken(token);
+      }
+    }
+  }
+
+  /**
+   * Remove the access tokens which expired before {@code now} (epoch seconds), and forget the
+   * superseded refresh tokens whose reuse detection ended.
+   */
+  @VisibleForTesting
+  void removeExpiredTokens(long now) {
+    for (String refreshToken : supersededExpiry.pollExpired(now)) {
+      supersededRefreshTokens.remove(refreshToken);
+    }
+    for (String accessToken : accessTokenExpiry.pollExpired(now)) {
+      OAuth2AccessToken token = accessTokenIndex.get(accessToken);
+      if (token == null) {
+        continue;
+      }
+      updateExistingUser(
+          token.getUsername(),
+          user -> {
+            if (accessTokenIndex.remove(accessToken, token)) {
+              user.removeExpiredAccessToken(token);
+            }
+          });
+    }
+  }
+
+  /**
+   * Remove the refresh tokens which expired at {@code now} (epoch seconds), with their access
+   * tokens, moving back the cold users with expired tokens first. Users left without tokens are
+   * removed.
+   */
+  @VisibleForTesting
+  void removeExpiredRefreshTokens(long now) {
+    RefreshTokenLifetime lifetime = refreshTokenLifetime;
+    if (coldTier != null) {
+      List<String> expiredColdUsers = new ArrayList<>();
+      coldTier.forEach(
+          (username, tokens) -> {
+            for (OAuth2RefreshToken token : tokens) {
+              if (lifetime.isExpired(token, now)) {
+                expiredColdUsers.add(username);
+                return;
+              }
+            }
+          });
+      // Moving a user back leaves its expired tokens behind.
+      for (String username : expiredColdUsers) {
+        faultIn(username);
+      }
+    }
+    for (String username : userTokensMap.keySet()) {
+      // Not an update of the user, which would keep it from going cold.
+      userTokensMap.computeIfPresent(
+          username,
+          (key, user) -> {
+            for (String clientID : user.listClients()) {
+              for (OAuth2RefreshToken token : user.listRefreshTokens(clientID)) {
+                if (lifetime.isExpired(token, now)) {
+                  removeRefreshToken(user, token);
+                }
+              }
+            }
+            return user.isEmpty() ? null : user;
+          });
+    }
+  }
+
+  /**
+   * Forget the revocation epochs of scopes revoked so long ago that every token they revoke has
+   * expired, access tokens after their valid time and refresh tokens once they are no longer used,
+   * see {@link RefreshTokenLifetime#maxUnusedSeconds()}. Without a refresh token lifetime they
+   * are kept.
+   */
+  @VisibleForTesting
+  void removeOldRevocations(long now) {
+    long retention =
+        Math.max(tokenValidTime.getSeconds(), refreshTokenLifetime.maxUnusedSeconds());
+    if (retention != Long.MAX_VALUE) {
+      revocationEpochs.removeRevokedBefore(now - retention);
+    }
+  }
+
+  /** Remove the expired refresh tokens and the revocations older than any token left. */
+  private void sweepRefreshTokens() {
+    long now = Instant.now().getEpochSecond();
+    removeExpiredRefreshTokens(now);
+    removeOldRevocations(now);
+  }
+
+  /** Remove the access tokens which expired and the tokens revoked since the last run. */
   private class TokenCleaner implements Runnable {
 
     @Override
     public void run() {
-      for (Map.Entry<String, UserTokens> user : userTokensMap.entrySet()) {
-        user.getValue().clearExpiredTokens();
-        if (user.getValue().isEmpty()) {
-          userTokensMap.remove(user.getKey());
-        }
-      }
+      removeExpiredTokens(Instant.now().getEpochSecond());
+      removeRevokedTokens();
     }
   }
 }
@@ -16,187 +16,463 @@
 
 package com.google.googleidentity.oauth2.token;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import com.google.common.io.BaseEncoding;
 import com.google.googleidentity.oauth2.exception.OAuth2ServerException;
 import com.google.googleidentity.oauth2.request.OAuth2Request;
 import com.google.googleidentity.oauth2.util.OAuth2Utils;
+import java.security.SecureRandom;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.Types;
 import java.time.Duration;
 import java.time.Instant;
-import java.util.HashSet;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Optional;
-import java.util.Set;
-import java.util.UUID;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.inject.Inject;
 import javax.sql.DataSource;
 
-public class JdbcOAuth2TokenService implements OAuth2TokenService {
+/**
+ * Token service on the token tables of the Cloud SQL database.
+ *
+ * <p>Rows are keyed by the {@link TokenHashes#key} of the token, an access token refers to its
+ * refresh token by the key as well, and the token values themselves are not stored. A token read
+ * by its value is returned with that value, a listed token only with its {@link
+ * TokenHashes#riscIdentifier}, which RISC events still need.
+ *
+ * <p>user_client_link holds a row for every user and client with tokens, inserted with the tokens
+ * and deleted by the {@link ExpiredTokenPurger} once their rows are gone, so listing the clients
+ * of a user reads only those rows. It may lag behind revocations, which is why listing still
+ * checks for tokens which are not revoked.
+ *
+ * <p>With REFRESH_TOKEN_ROTATION=true every refresh replaces the refresh token row by one of the
+ * same family_id, which the access tokens of the family carry too. A token of a family is only
+ * readable while the family has its refresh token row, so revoking a family deletes one row
+ * however many access tokens it issued, and the purge deletes those once they expire. The key of
+ * a superseded refresh token is kept in superseded_refresh_token for
+ * REFRESH_TOKEN_REUSE_DETECTION_SECONDS, presenting it again revokes its family.
+ *
+ * <p>Refresh tokens expire after their {@link RefreshTokenLifetime}s. An expired token is no
+ * longer read, and the purge deletes it with its access tokens. Its last use is written after the
+ * refresh, outside of its transaction, and only once it is older than the granularity.
+ */
+public class JdbcOAuth2TokenService implements OAuth2TokenService, AccessTokenScanner {
+
+  private static final int TOKEN_VALUE_BYTES = 32;
+  private static final int MAX_INSERT_ATTEMPTS = 3;
+  private static final SecureRandom random = new SecureRandom();
+
+  /** 0 turns group commit off. */
+  private static final Duration GROUP_COMMIT_MAX_DELAY =
+      Duration.ofMillis(
+          System.getenv("TOKEN_GROUP_COMMIT_MAX_DELAY_MILLIS") == null
+              ? 0
+              : Long.parseLong(System.getenv("TOKEN_GROUP_COMMIT_MAX_DELAY_MILLIS")));
+
+  private static final int GROUP_COMMIT_MAX_BATCH_SIZE =
+      System.getenv("TOKEN_GROUP_COMMIT_MAX_BATCH_SIZE") == null
+          ? 256
+          : Integer.parseInt(System.getenv("TOKEN_GROUP_COMMIT_MAX_BATCH_SIZE"));
+
+  /** Writes which may wait for the group commit writer, more are refused. */
+  private static final int GROUP_COMMIT_QUEUE_CAPACITY =
+      System.getenv("TOKEN_GROUP_COMMIT_QUEUE_CAPACITY") == null
+          ? 4096
+          : Integer.parseInt(System.getenv("TOKEN_GROUP_COMMIT_QUEUE_CAPACITY"));
+
+  /** Rows deleted per transaction by the expired token purge. */
+  private static final int PURGE_CHUNK_SIZE =
+      System.getenv("TOKEN_PURGE_CHUNK_SIZE") == null
+          ? 1000
+          : Integer.parseInt(System.getenv("TOKEN_PURGE_CHUNK_SIZE"));
+
+  private static final boolean ROTATE_REFRESH_TOKENS =
+      "true".equals(System.getenv("REFRESH_TOKEN_ROTATION"));
+
+  private static final long REUSE_DETECTION_SECONDS =
+      System.getenv("REFRESH_TOKEN_REUSE_DETECTION_SECONDS") == null
+          ? TimeUnit.DAYS.toSeconds(30)
+          : Long.parseLong(System.getenv("REFRESH_TOKEN_REUSE_DETECTION_SECONDS"));
+
+  private static final Duration PURGE_PAUSE =
+      Duration.ofMillis(
+          System.getenv("TOKEN_PURGE_PAUSE_MILLIS") == null
+              ? 100
+              : Long.parseLong(System.getenv("TOKEN_PURGE_PAUSE_MILLIS")));
+
+  /**
+   * New tokens take the current revocation epoch in the insert itself, so the tokens returned at
+   * issuance do not carry it, the tokens read back do.
+   */
+  private static final String CURRENT_EPOCH =
+      "(SELECT value FROM revocation_sequence WHERE id = 1)";
+
+  static final String INSERT_REFRESH_TOKEN =
+      "INSERT INTO refresh_token "
+          + "(refresh_token, client_id, username, is_scoped, scopes, risc_id, family_id, "
+          + "issued_time, last_used_time, epoch) "
+          + "VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, "
+          + CURRENT_EPOCH
+          + ");";
+  static final String INSERT_ACCESS_TOKEN =
+      "INSERT INTO access_token (access_token, client_id, username, is_scoped, scopes, "
+          + "expired_time, refresh_token, risc_id, family_id, epoch) "
+          + "VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, "
+          + CURRENT_EPOCH
+          + ");";
+
+  /**
+   * The refresh token replacing a rotated one, copied from its row so it keeps the epoch the
+   * rotated token was issued under and the issued time of its family.
+   */
+  private static final String INSERT_ROTATED_REFRESH_TOKEN =
+      "INSERT INTO refresh_token "
+          + "(refresh_token, client_id, username, is_scoped, scopes, risc_id, family_id, "
+          + "issued_time, last_used_time, epoch) "
+          + "SELECT ?, client_id, username, is_scoped, scopes, ?, ?, issued_time, ?, epoch "
+          + "FROM refresh_token WHERE refresh_token = ?;";
+
+  /**
+   * Taken before the tokens are inserted. Besides inserting a missing link, it locks an existing
+   * one until the commit, which the {@link ExpiredTokenPurger} relies on to never drop the link of
+   * tokens being issued.
+   */
+  static final String INSERT_USER_CLIENT_LINK =
+      "INSERT INTO user_client_link (username, client_id) VALUES(?, ?) "
+          + "ON DUPLICATE KEY UPDATE username = username;";
+
+  /**
+   * Condition on a token table aliased t that the token is not revoked by the epoch of its user,
+   * client or user and client, see {@link RevocationEpochs}, nor by the revocation of its family.
+   * An empty username or client id in revocation_epoch stands for all of them.
+   */
+  private static final String NOT_REVOKED =
+      "t.epoch >= (SELECT IFNULL(MAX(e.epoch), 0) FROM revocation_epoch e "
+          + "WHERE (e.username = t.username AND e.client_id IN (t.client_id, '')) "
+          + "OR (e.username = '' AND e.client_id = t.client_id)) "
+          + "AND (t.family_id IS NULL "
+          + "OR EXISTS (SELECT 1 FROM refresh_token f WHERE f.family_id = t.family_id))";
+
+  /**
+   * Condition on refresh_token aliased t that the token has not expired, bound by {@link
+   * #bindNotExpired}.
+   */
+  private static final String NOT_EXPIRED = "t.issued_time >= ? AND t.last_used_time >= ?";
+
+  /** Condition on a token table aliased t that the token is of the user_client_link aliased l. */
+  private static final String LINKED_TOKEN =
+      "t.username = l.username AND t.client_id = l.client_id AND " + NOT_REVOKED;
+
+  /**
+   * Like {@link #LINKED_TOKEN} for refresh_token, which also needs the token not to have expired,
+   * bound by {@link #bindNotExpired}.
+   */
+  private static final String LINKED_REFRESH_TOKEN = LINKED_TOKEN + " AND " + NOT_EXPIRED;
 
   private final DataSource dataSource;
   private final Logger log = Logger.getLogger("JdbcOAuth2TokenService");
-  private boolean isRefreshTokenRotatable = false;
+  private volatile boolean isRefreshTokenRotatable = ROTATE_REFRESH_TOKENS;
+  private final RefreshTokenLifetime refreshTokenLifetime = RefreshTokenLifetime.DEFAULT;
   private Duration tokenValidTime = Duration.ofMinutes(10);
 
   private ScheduledExecutorService service;
+  private final ExpiredTokenPurger purger;
+  private final GroupCommitWriter groupCommitWriter;
 
   @Inject
   public JdbcOAuth2TokenService(DataSource dataSource) {
+    this(dataSource, GROUP_COMMIT_MAX_DELAY);
+  }
+
+  /**
+   * @param groupCommitMaxDelay how long an insert may wait for others to share its commit, zero
+   *     to commit every issuance on its own
+   */
+  @VisibleForTesting
+  JdbcOAuth2TokenService(DataSource dataSource, Duration groupCommitMaxDelay) {
     this.dataSource = dataSource;
+    this.purger =
+        new ExpiredTokenPurger(
+            dataSource, PURGE_CHUNK_SIZE, PURGE_PAUSE, tokenValidTime, refreshTokenLifetime);
+    this.groupCommitWriter =
+        groupCommitMaxDelay.isZero()
+            ? null
+            : new GroupCommitWriter(
+                dataSource,
+                groupCommitMaxDelay,
+                GROUP_COMMIT_MAX_BATCH_SIZE,
+                GROUP_COMMIT_QUEUE_CAPACITY);
     setTokenCleaner();
   }
 
+  /** Whether refreshing replaces the refresh token, see the class comment. */
   public void setRotateAndValidTime(boolean isRefreshTokenRotatable) {
     this.isRefreshTokenRotatable = isRefreshTokenRotatable;
   }
 
   private void setTokenCleaner() {
     service = Executors.newSingleThreadScheduledExecutor();
-    service.scheduleAtFixedRate(new TokenCleaner(), 1, 1, TimeUnit.HOURS);
+    service.scheduleWithFixedDelay(new TokenCleaner(), 1, 1, TimeUnit.HOURS);
   }
 
   @Override
   public OAuth2AccessToken generateAccessToken(OAuth2Request request) {
-    String clientID = request.getRequestAuth().getClientId();
-    String username = request.getRequestAuth().getUsername();
-
-    Optional<String> refreshTokenString = Optional.empty();
-
-    Connection conn = null;
-    PreparedStatement statement = null;
-    ResultSet result = null;
-    try {
-      conn = dataSource.getConnection();
-      conn.setAutoCommit(false);
-      if (request.getRequestBody().getRefreshable()) {
-        String refreshTokenValue = UUID.randomUUID().toString();
-        while (readRefreshToken(refreshTokenValue).isPresent()) {
-          refreshTokenValue = UUID.randomUUID().toString();
-        }
-        refreshTokenString = Optional.of(refreshTokenValue);
-        String stmt = "INSERT INTO refresh_token VALUES(?, ?, ?, ?, ?);";
-        statement = conn.prepareStatement(stmt);
-        statement.setString(1, refreshTokenValue);
-        statement.setString(2, clientID);
-        statement.setString(3, username);
-        statement.setBoolean(4, request.getRequestBody().getIsScoped());
-        statement.setString(5, String.join("\t", request.getRequestBody().getScopesList()));
-
-        statement.execute();
-        conn.commit();
-      }
-    } catch (SQLException exception) {
-      try {
-        if (conn != null) {
-          conn.rollback();
-        }
-      } catch (SQLException exception1) {
-        throw new OAuth2ServerException(exception1);
-      }
-      throw new OAuth2ServerException(exception);
-    } finally {
-      if (result != null) {
-        try {
-          result.close();
-        } catch (SQLException exception2) {
-          throw new OAuth2ServerException(exception2);
-        }
-      }
-      if (statement != null) {
-        try {
-          statement.close();
-        } catch (SQLException exception3) {
-          throw new OAuth2ServerException(exception3);
-        }
-      }
-      if (conn != null) {
-        try {
-          conn.close();
-        } catch (SQLException exception4) {
-          throw new OAuth2ServerException(exception4);
-        }
-      }
-    }
-    return getNewAccessToken(request, refreshTokenString);
+    return issueTokens(request, Optional.empty());
   }
 
   @Override
   public Optional<OAuth2AccessToken> refreshToken(String refreshToken) {
+    if (isRefreshTokenRotatable) {
+      return refresh(refreshToken, Optional.empty()).getValue();
+    }
     Optional<OAuth2RefreshToken> token = readRefreshToken(refreshToken);
     // The refreshToken may be wrong or not existed
     if (!token.isPresent()) {
       return Optional.empty();
     }
+    OAuth2AccessToken accessToken =
+        issueTokens(refreshRequest(token.get()), Optional.of(token.get()));
+    touchIfDue(token.get());
+    return Optional.of(accessToken);
+  }
 
-    String username = token.get().getUsername();
-    String clientID = token.get().getClientId();
+  /**
+   * Read the refresh token with a shared lock, so it cannot be revoked meanwhile, and insert the
+   * access token in the same transaction, without waiting for a group commit.
+   */
+  @Override
+  public ClientTokenResult<OAuth2AccessToken> refreshToken(String refreshToken, String clientID) {
+    return refresh(refreshToken, Optional.of(clientID));
+  }
+
+  /**
+   * Refresh in one transaction. A rotated refresh token is read with an exclusive lock, so of two
+   * refreshes with the same token the second finds it superseded, and revokes its family.
+   *
+   * @param clientID the client the token must have been issued to, any if empty
+   */
+  private ClientTokenResult<OAuth2AccessToken> refresh(
+      String refreshToken, Optional<String> clientID) {
+    boolean rotate = isRefreshTokenRotatable;
+    AtomicReference<OAuth2RefreshToken> used = new AtomicReference<>();
+    ClientTokenResult<OAuth2AccessToken> result =
+        inTransaction(
+            conn -> {
+              Optional<OAuth2RefreshToken> token =
+                  readRefreshToken(
+                      conn, refreshToken, rotate ? " FOR UPDATE" : " LOCK IN SHARE MODE");
+              if (!token.isPresent()) {
+                revokeReusedFamily(conn, refreshToken);
+                return ClientTokenResult.notFound();
+              }
+              if (clientID.isPresent() && !clientID.get().equals(token.get().getClientId())) {
+                return ClientTokenResult.clientMismatch();
+              }
+              OAuth2RefreshToken current = token.get();
+              if (rotate) {
+                current = rotate(conn, current);
+              } else {
+                used.set(current);
+              }
+              OAuth2AccessToken accessToken =
+                  buildAccessToken(refreshRequest(current), Optional.of(current));
+              try (PreparedStatement statement = conn.prepareStatement(INSERT_USER_CLIENT_LINK)) {
+                bindUserClientLink(statement, accessToken);
+                statement.execute();
+              }
+              return ClientTokenResult.done(insertAccessToken(conn, accessToken));
+            });
+    if (result.getStatus() == ClientTokenResult.Status.DONE && used.get() != null) {
+      touchIfDue(used.get());
+    }
+    return result;
+  }
+
+  /**
+   * Write the last use of a refresh token used now if it is due, in a statement of its own, so a
+   * refresh does not take an exclusive lock on its token for it. A concurrent refresh may have
+   * written it already.
+   */
+  private void touchIfDue(OAuth2RefreshToken token) {
+    long now = Instant.now().getEpochSecond();
+    if (!refreshTokenLifetime.needsTouch(token.getLastUsedTime(), now)) {
+      return;
+    }
+    try (Connection conn = dataSource.getConnection();
+        PreparedStatement statement =
+            conn.prepareStatement(
+                "UPDATE refresh_token SET last_used_time = ? "
+                    + "WHERE refresh_token = ? AND last_used_time < ?;")) {
+      statement.setLong(1, now);
+      statement.setBytes(2, TokenHashes.key(token.getRefreshToken()));
+      statement.setLong(3, now);
+      statement.execute();
+    } catch (SQLException exception) {
+      throw new OAuth2ServerException(exception);
+    }
+  }
 
+  private static OAuth2Request refreshRequest(OAuth2RefreshToken token) {
     OAuth2Request.Builder requestBuilder = OAuth2Request.newBuilder();
-    requestBuilder.getRequestAuthBuilder().setClientId(clientID).setUsername(username);
+    requestBuilder
+        .getRequestAuthBuilder()
+        .setClientId(token.getClientId())
+        .setUsername(token.getUsername());
     requestBuilder
         .getRequestBodyBuilder()
-        .setIsScoped(token.get().getIsScoped())
-        .addAllScopes(token.get().getScopesList())
+        .setIsScoped(token.getIsScoped())
+        .addAllScopes(token.getScopesList())
         .setRefreshable(true);
-    return Optional.of(getNewAccessToken(requestBuilder.build(), Optional.of(refreshToken)));
+    return requestBuilder.build();
   }
 
   /**
-   * Generate a new access token for a request. The refresh token is already there or no refresh
-   * token is needed for the request.
+   * Replace the refresh token, locked for update, by a new one of its family, and remember the
+   * key of the old one. A token issued without rotation starts a family, with the access tokens
+   * issued from it.
+   *
+   * @return the new token
    */
-  private OAuth2AccessToken getNewAccessToken(
-      OAuth2Request request, Optional<String> refreshTokenString) {
+  private OAuth2RefreshToken rotate(Connection conn, OAuth2RefreshToken token)
+      throws SQLException {
+    byte[] key = TokenHashes.key(token.getRefreshToken());
+    String familyID = token.getFamilyId();
+    if (familyID.isEmpty()) {
+      familyID = newTokenValue();
+      try (PreparedStatement statement =
+          conn.prepareStatement("UPDATE access_token SET family_id = ? WHERE refresh_token = ?;")) {
+        statement.setString(1, familyID);
+        statement.setBytes(2, key);
+        statement.execute();
+      }
+    }
+    long now = Instant.now().getEpochSecond();
+    OAuth2RefreshToken next =
+        token.toBuilder()
+            .setRefreshToken(newTokenValue())
+            .setFamilyId(familyID)
+            .setLastUsedTime(now)
+            .build();
+    try (PreparedStatement statement = conn.prepareStatement(INSERT_ROTATED_REFRESH_TOKEN)) {
+      for (int attempt = 1; ; attempt++) {
+        statement.setBytes(1, TokenHashes.key(next.getRefreshToken()));
+        statement.setBytes(2, TokenHashes.riscIdentifierBytes(next.getRefreshToken()));
+        statement.setString(3, familyID);
+        statement.setLong(4, now);
+        statement.setBytes(5, key);
+        try {
+          statement.execute();
+          break;
+        } catch (SQLIntegrityConstraintViolationException exception) {
+          if (attempt >= MAX_INSERT_ATTEMPTS) {
+            throw exception;
+          }
+          log.warning("Refresh token value collision, retrying.");
+          next = next.toBuilder().setRefreshToken(newTokenValue()).build();
+        }
+      }
+    }
+    try (PreparedStatement statement =
+        conn.prepareStatement("DELETE FROM refresh_token WHERE refresh_token = ?;")) {
+      statement.setBytes(1, key);
+      statement.execute();
+    }
+    try (PreparedStatement statement =
+        conn.prepareStatement(
+            "INSERT INTO superseded_refresh_token VALUES(?, ?, ?) "
+                + "ON DUPLICATE KEY UPDATE family_id = VALUES(family_id);")) {
+      statement.setBytes(1, key);
+      statement.setString(2, familyID);
+      statement.setLong(3, now + REUSE_DETECTION_SECONDS);
+      statement.execute();
+    }
+    return next;
+  }
 
-    String clientID = request.getRequestAuth().getClientId();
-    String username = request.getRequestAuth().getUsername();
+  /** Revoke the family of a superseded refresh token presented again, it may have leaked. */
+  private void revokeReusedFamily(Connection conn, String refreshToken) throws SQLException {
+    String familyID;
+    try (PreparedStatement statement =
+        conn.prepareStatement(
+            "SELECT family_id FROM superseded_refresh_token "
+                + "WHERE refresh_token = ? AND expired_time >= ?;")) {
+      statement.setBytes(1, TokenHashes.key(refreshToken));
+      statement.setLong(2, Instant.now().getEpochSecond());
+      try (ResultSet result = statement.executeQuery()) {
+        if (!result.next()) {
+          return;
+        }
+        familyID = result.getString(1);
+      }
+    }
+    if (deleteFamily(conn, familyID) > 0) {
+      log.warning("Superseded refresh token presented again, revoked its family.");
+    }
+  }
 
-    String accessTokenValue = UUID.randomUUID().toString();
+  /**
+   * Delete the refresh token of the family, which makes its access tokens unreadable too.
+   *
+   * @return the number of deleted rows
+   */
+  private static int deleteFamily(Connection conn, String familyID) throws SQLException {
+    try (PreparedStatement statement =
+        conn.prepareStatement("DELETE FROM refresh_token WHERE family_id = ?;")) {
+      statement.setString(1, familyID);
+      return statement.executeUpdate();
+    }
+  }
 
-    while (readAccessToken(accessTokenValue).isPresent()) {
-      accessTokenValue = UUID.randomUUID().toString();
+  /**
+   * Insert a new access token, and a new refresh token if the request is refreshable and no
+   * existing refresh token is given, in one connection and one transaction.
+   */
+  private OAuth2AccessToken issueTokens(
+      OAuth2Request request, Optional<OAuth2RefreshToken> existingRefreshToken) {
+    Optional<OAuth2RefreshToken> refreshToken = Optional.empty();
+    if (!existingRefreshToken.isPresent() && request.getRequestBody().getRefreshable()) {
+      refreshToken =
+          Optional.of(
+              buildRefreshToken(request, isRefreshTokenRotatable ? newTokenValue() : ""));
     }
+    OAuth2AccessToken accessToken =
+        buildAccessToken(request, refreshToken.isPresent() ? refreshToken : existingRefreshToken);
 
-    OAuth2AccessToken.Builder builder =
-        OAuth2AccessToken.newBuilder()
-            .setAccessToken(accessTokenValue)
-            .setClientId(request.getRequestAuth().getClientId())
-            .setUsername(request.getRequestAuth().getUsername())
-            .setIsScoped(request.getRequestBody().getIsScoped())
-            .addAllScopes(request.getRequestBody().getScopesList())
-            .setExpiredTime(
-                Instant.now().plusSeconds(tokenValidTime.getSeconds()).getEpochSecond());
-    refreshTokenString.ifPresent(builder::setRefreshToken);
-    OAuth2AccessToken newToken = builder.build();
+    if (groupCommitWriter != null && groupCommitWriter.write(refreshToken, accessToken)) {
+      return accessToken;
+    }
 
     Connection conn = null;
-    PreparedStatement statement = null;
-    ResultSet result = null;
     try {
       conn = dataSource.getConnection();
       conn.setAutoCommit(false);
-      String stmt = "INSERT INTO access_token VALUES(?, ?, ?, ?, ?, ?, ?);";
-      statement = conn.prepareStatement(stmt);
-
-      statement.setString(1, newToken.getAccessToken());
-      statement.setString(2, newToken.getClientId());
-      statement.setString(3, newToken.getUsername());
-      statement.setBoolean(4, newToken.getIsScoped());
-      statement.setString(5, String.join("\t", newToken.getScopesList()));
-      statement.setLong(6, newToken.getExpiredTime());
-      statement.setString(7, newToken.getRefreshToken());
-
-      statement.execute();
+      try (PreparedStatement statement = conn.prepareStatement(INSERT_USER_CLIENT_LINK)) {
+        bindUserClientLink(statement, accessToken);
+        statement.execute();
+      }
+      if (refreshToken.isPresent()) {
+        String refreshTokenString = insertRefreshToken(conn, refreshToken.get());
+        if (!refreshTokenString.equals(refreshToken.get().getRefreshToken())) {
+          accessToken = accessToken.toBuilder().setRefreshToken(refreshTokenString).build();
+        }
+      }
+      accessToken = insertAccessToken(conn, accessToken);
       conn.commit();
+      return accessToken;
     } catch (SQLException exception) {
       try {
         if (conn != null) {
@@ -207,29 +483,140 @@ public class JdbcOAuth2TokenService implements OAuth2TokenService {
       }
       throw new OAuth2ServerException(exception);
     } finally {
-      if (result != null) {
+      if (conn != null) {
         try {
-          result.close();
-        } catch (SQLException exception2) {
-          throw new OAuth2ServerException(exception2);
+          conn.close();
+        } catch (SQLException exception4) {
+          throw new OAuth2ServerException(exception4);
         }
       }
-      if (statement != null) {
+    }
+  }
+
+  /** @param familyID the family of the token, empty if refresh tokens are not rotated */
+  private static OAuth2RefreshToken buildRefreshToken(OAuth2Request request, String familyID) {
+    long now = Instant.now().getEpochSecond();
+    return OAuth2RefreshToken.newBuilder()
+        .setRefreshToken(newTokenValue())
+        .setClientId(request.getRequestAuth().getClientId())
+        .setUsername(request.getRequestAuth().getUsername())
+        .setIsScoped(request.getRequestBody().getIsScoped())
+        .addAllScopes(request.getRequestBody().getScopesList())
+        .setFamilyId(familyID)
+        .setIssuedTime(now)
+        .setLastUsedTime(now)
+        .build();
+  }
+
+  private OAuth2AccessToken buildAccessToken(
+      OAuth2Request request, Optional<OAuth2RefreshToken> refreshToken) {
+    OAuth2AccessToken.Builder builder =
+        OAuth2AccessToken.newBuilder()
+            .setAccessToken(newTokenValue())
+            .setClientId(request.getRequestAuth().getClientId())
+            .setUsername(request.getRequestAuth().getUsername())
+            .setIsScoped(request.getRequestBody().getIsScoped())
+            .addAllScopes(request.getRequestBody().getScopesList())
+            .setExpiredTime(
+                Instant.now().plusSeconds(tokenValidTime.getSeconds()).getEpochSecond());
+    if (refreshToken.isPresent()) {
+      builder
+          .setRefreshToken(refreshToken.get().getRefreshToken())
+          .setFamilyId(refreshToken.get().getFamilyId());
+    }
+    return builder.build();
+  }
+
+  /**
+   * Insert the refresh token, with a new value if its value is already taken.
+   *
+   * @return the value of the inserted refresh token
+   */
+  private String insertRefreshToken(Connection conn, OAuth2RefreshToken token)
+      throws SQLException {
+    try (PreparedStatement statement = conn.prepareStatement(INSERT_REFRESH_TOKEN)) {
+      bindRefreshToken(statement, token);
+      for (int attempt = 1; ; attempt++) {
         try {
-          statement.close();
-        } catch (SQLException exception3) {
-          throw new OAuth2ServerException(exception3);
+          statement.execute();
+          return token.getRefreshToken();
+        } catch (SQLIntegrityConstraintViolationException exception) {
+          if (attempt >= MAX_INSERT_ATTEMPTS) {
+            throw exception;
+          }
+          log.warning("Refresh token value collision, retrying.");
+          token = token.toBuilder().setRefreshToken(newTokenValue()).build();
+          bindRefreshToken(statement, token);
         }
       }
-      if (conn != null) {
+    }
+  }
+
+  /** Insert the access token, with a new value if its value is already taken. */
+  private OAuth2AccessToken insertAccessToken(Connection conn, OAuth2AccessToken token)
+      throws SQLException {
+    try (PreparedStatement statement = conn.prepareStatement(INSERT_ACCESS_TOKEN)) {
+      bindAccessToken(statement, token);
+      for (int attempt = 1; ; attempt++) {
         try {
-          conn.close();
-        } catch (SQLException exception4) {
-          throw new OAuth2ServerException(exception4);
+          statement.execute();
+          return token;
+        } catch (SQLIntegrityConstraintViolationException exception) {
+          if (attempt >= MAX_INSERT_ATTEMPTS) {
+            throw exception;
+          }
+          log.warning("Access token value collision, retrying.");
+          token = token.toBuilder().setAccessToken(newTokenValue()).build();
+          bindAccessToken(statement, token);
         }
       }
     }
-    return newToken;
+  }
+
+  static void bindUserClientLink(PreparedStatement statement, OAuth2AccessToken token)
+      throws SQLException {
+    statement.setString(1, token.getUsername());
+    statement.setString(2, token.getClientId());
+  }
+
+  static void bindRefreshToken(PreparedStatement statement, OAuth2RefreshToken token)
+      throws SQLException {
+    statement.setBytes(1, TokenHashes.key(token.getRefreshToken()));
+    statement.setString(2, token.getClientId());
+    statement.setString(3, token.getUsername());
+    statement.setBoolean(4, token.getIsScoped());
+    statement.setString(5, String.join("\t", token.getScopesList()));
+    statement.setBytes(6, TokenHashes.riscIdentifierBytes(token.getRefreshToken()));
+    statement.setString(7, Strings.emptyToNull(token.getFamilyId()));
+    statement.setLong(8, token.getIssuedTime());
+    statement.setLong(9, token.getLastUsedTime());
+  }
+
+  static void bindAccessToken(PreparedStatement statement, OAuth2AccessToken token)
+      throws SQLException {
+    statement.setBytes(1, TokenHashes.key(token.getAccessToken()));
+    statement.setString(2, token.getClientId());
+    statement.setString(3, token.getUsername());
+    statement.setBoolean(4, token.getIsScoped());
+    statement.setString(5, String.join("\t", token.getScopesList()));
+    statement.setLong(6, token.getExpiredTime());
+    if (Strings.isNullOrEmpty(token.getRefreshToken())) {
+      statement.setNull(7, Types.BINARY);
+    } else {
+      statement.setBytes(7, TokenHashes.key(token.getRefreshToken()));
+    }
+    statement.setBytes(8, TokenHashes.riscIdentifierBytes(token.getAccessToken()));
+    statement.setString(9, Strings.emptyToNull(token.getFamilyId()));
+  }
+
+  /**
+   * A random token value with 256 bits of entropy. Collisions are left to the primary key of the
+   * token tables instead of being checked with a SELECT before each insert.
+   */
+  private static String newTokenValue() {
+    byte[] bytes = new byte[TOKEN_VALUE_BYTES];
+    random.nextBytes(bytes);
+    return BaseEncoding.base64Url().omitPadding().encode(bytes);
   }
 
   @Override
@@ -239,12 +626,12 @@ public class JdbcOAuth2TokenService implements OAuth2TokenService {
     ResultSet result = null;
     try {
       conn = dataSource.getConnection();
-      String stmt = "SELECT * FROM access_token WHERE access_token = ?;";
+      String stmt = "SELECT * FROM access_token t WHERE access_token = ? AND " + NOT_REVOKED + ";";
       statement = conn.prepareStatement(stmt);
-      statement.setString(1, accessToken);
+      statement.setBytes(1, TokenHashes.key(accessToken));
       result = statement.executeQuery();
       if (result.next()) {
-        OAuth2AccessToken token = buildAccessTokenFromJdbcResult(result);
+        OAuth2AccessToken token = buildAccessTokenFromJdbcResult(result, accessToken);
         return Optional.ofNullable(token);
       }
     } catch (SQLException exception) {
@@ -282,12 +669,18 @@ public class JdbcOAuth2TokenService implements OAuth2TokenService {
     ResultSet result = null;
     try {
       conn = dataSource.getConnection();
-      String stmt = "SELECT * FROM refresh_token WHERE refresh_token = ?;";
+      String stmt =
+          "SELECT * FROM refresh_token t WHERE refresh_token = ? AND "
+              + NOT_EXPIRED
+              + " AND "
+              + NOT_REVOKED
+              + ";";
       statement = conn.prepareStatement(stmt);
-      statement.setString(1, refreshToken);
+      statement.setBytes(1, TokenHashes.key(refreshToken));
+      bindNotExpired(statement, 2);
       result = statement.executeQuery();
       if (result.next()) {
-        OAuth2RefreshToken token = buildRefreshTokenFromJdbcResult(result);
+        OAuth2RefreshToken token = buildRefreshTokenFromJdbcResult(result, refreshToken);
         return Optional.ofNullable(token);
       }
     } catch (SQLException exception) {
@@ -318,152 +711,279 @@ public class JdbcOAuth2TokenService implements OAuth2TokenService {
     return Optional.empty();
   }
 
-  @Override
-  public boolean revokeByAccessToken(String accessToken) {
-    Optional<OAuth2AccessToken> token = readAccessToken(accessToken);
-
-    if (!token.isPresent()
-        || Instant.ofEpochSecond(token.get().getExpiredTime()).isBefore(Instant.now())) {
-      return false;
-    }
-    if (!Strings.isNullOrEmpty(token.get().getRefreshToken())) {
-      return revokeByRefreshToken(token.get().getRefreshToken());
-    }
-
-    Connection conn = null;
-    PreparedStatement statement = null;
-    ResultSet result = null;
-    try {
-      conn = dataSource.getConnection();
-      conn.setAutoCommit(false);
-      String stmt = "DELETE FROM access_token WHERE access_token = ?;";
-      statement = conn.prepareStatement(stmt);
-      statement.setString(1, accessToken);
-      statement.execute();
-      conn.commit();
-    } catch (SQLException exception) {
-      try {
-        if (conn != null) {
-          conn.rollback();
-        }
-      } catch (SQLException exception1) {
-        throw new OAuth2ServerException(exception1);
-      }
-      throw new OAuth2ServerException(exception);
-    } finally {
-      if (result != null) {
-        try {
-          result.close();
-        } catch (SQLException exception2) {
-          throw new OAuth2ServerException(exception2);
-        }
-      }
-      if (statement != null) {
-        try {
-          statement.close();
-        } catch (SQLException exception3) {
-          throw new OAuth2ServerException(exception3);
-        }
-      }
-      if (conn != null) {
-        try {
-          conn.close();
-        } catch (SQLException exception4) {
-          throw new OAuth2ServerException(exception4);
+  /**
+   * Read the refresh token on the connection.
+   *
+   * @param lock the locking clause of the read, e.g. " FOR UPDATE"
+   */
+  private Optional<OAuth2RefreshToken> readRefreshToken(
+      Connection conn, String refreshToken, String lock) throws SQLException {
+    try (PreparedStatement statement =
+        conn.prepareStatement(
+            "SELECT * FROM refresh_token t WHERE refresh_token = ? AND "
+                + NOT_EXPIRED
+                + " AND "
+                + NOT_REVOKED
+                + lock
+                + ";")) {
+      statement.setBytes(1, TokenHashes.key(refreshToken));
+      bindNotExpired(statement, 2);
+      try (ResultSet result = statement.executeQuery()) {
+        if (result.next()) {
+          return Optional.of(buildRefreshTokenFromJdbcResult(result, refreshToken));
         }
+        return Optional.empty();
       }
     }
-    return true;
+  }
+
+  /** Bind the bounds of {@link #NOT_EXPIRED} from {@code index} on. */
+  private void bindNotExpired(PreparedStatement statement, int index) throws SQLException {
+    long now = Instant.now().getEpochSecond();
+    statement.setLong(index, refreshTokenLifetime.issuedAfter(now));
+    statement.setLong(index + 1, refreshTokenLifetime.lastUsedAfter(now));
+  }
+
+  @Override
+  public boolean revokeByAccessToken(String accessToken) {
+    return revokeAccessToken(accessToken, Optional.empty()).getStatus()
+        == ClientTokenResult.Status.DONE;
   }
 
   @Override
   public boolean revokeByRefreshToken(String refreshToken) {
-    Optional<OAuth2RefreshToken> token = readRefreshToken(refreshToken);
+    return revokeRefreshToken(refreshToken, Optional.empty()).getStatus()
+        == ClientTokenResult.Status.DONE;
+  }
 
-    if (!token.isPresent()) {
-      return false;
-    }
+  @Override
+  public ClientTokenResult<OAuth2AccessToken> revokeByAccessToken(
+      String accessToken, String clientID) {
+    return revokeAccessToken(accessToken, Optional.of(clientID));
+  }
 
-    Connection conn = null;
-    PreparedStatement statement = null;
-    ResultSet result = null;
-    try {
-      conn = dataSource.getConnection();
-      conn.setAutoCommit(false);
-      String stmt = "DELETE FROM refresh_token WHERE refresh_token = ?;";
-      statement = conn.prepareStatement(stmt);
-      statement.setString(1, refreshToken);
+  @Override
+  public ClientTokenResult<OAuth2RefreshToken> revokeByRefreshToken(
+      String refreshToken, String clientID) {
+    return revokeRefreshToken(refreshToken, Optional.of(clientID));
+  }
+
+  /**
+   * Lock the row of the access token, check it and delete it, or its refresh token if it has one,
+   * in one transaction. For a token of a family the refresh token of the family is deleted, which
+   * may have been rotated since the access token was issued.
+   *
+   * @param clientID the client the token must have been issued to, any if empty
+   */
+  private ClientTokenResult<OAuth2AccessToken> revokeAccessToken(
+      String accessToken, Optional<String> clientID) {
+    return inTransaction(
+        conn -> {
+          OAuth2AccessToken token;
+          byte[] refreshTokenKey;
+          try (PreparedStatement statement =
+              conn.prepareStatement(
+                  "SELECT * FROM access_token t WHERE access_token = ? AND "
+                      + NOT_REVOKED
+                      + " FOR UPDATE;")) {
+            statement.setBytes(1, TokenHashes.key(accessToken));
+            try (ResultSet result = statement.executeQuery()) {
+              if (!result.next()) {
+                return ClientTokenResult.notFound();
+              }
+              token = buildAccessTokenFromJdbcResult(result, accessToken);
+              // Read tokens do not carry their refresh token, only the row has its key.
+              refreshTokenKey = result.getBytes("refresh_token");
+            }
+          }
+          if (clientID.isPresent() && !clientID.get().equals(token.getClientId())) {
+            return ClientTokenResult.clientMismatch();
+          }
+          if (Instant.ofEpochSecond(token.getExpiredTime()).isBefore(Instant.now())) {
+            return ClientTokenResult.notFound();
+          }
+          if (!token.getFamilyId().isEmpty()) {
+            deleteFamily(conn, token.getFamilyId());
+          } else if (refreshTokenKey != null) {
+            deleteRefreshToken(conn, refreshTokenKey);
+          } else {
+            try (PreparedStatement statement =
+                conn.prepareStatement("DELETE FROM access_token WHERE access_token = ?;")) {
+              statement.setBytes(1, TokenHashes.key(accessToken));
+              statement.execute();
+            }
+          }
+          return ClientTokenResult.done(token);
+        });
+  }
+
+  /** Like {@link #revokeAccessToken}, for the refresh token and its access tokens. */
+  private ClientTokenResult<OAuth2RefreshToken> revokeRefreshToken(
+      String refreshToken, Optional<String> clientID) {
+    return inTransaction(
+        conn -> {
+          Optional<OAuth2RefreshToken> token = readRefreshToken(conn, refreshToken, " FOR UPDATE");
+          if (!token.isPresent()) {
+            return ClientTokenResult.notFound();
+          }
+          if (clientID.isPresent() && !clientID.get().equals(token.get().getClientId())) {
+            return ClientTokenResult.clientMismatch();
+          }
+          deleteRefreshToken(conn, TokenHashes.key(refreshToken));
+          return ClientTokenResult.done(token.get());
+        });
+  }
+
+  /**
+   * Like {@link #revokeScope}, whether the user had tokens for the client is read in the same
+   * transaction, before the epoch which revokes them is recorded.
+   */
+  @Override
+  public boolean revokeUserClientTokens(String username, String clientID) {
+    return inTransaction(
+        conn -> {
+          advanceRevocationSequence(conn);
+          boolean hasTokens;
+          try (PreparedStatement statement =
+              conn.prepareStatement(
+                  "SELECT EXISTS (SELECT 1 FROM access_token t WHERE username = ? "
+                      + "AND client_id = ? AND "
+                      + NOT_REVOKED
+                      + ") OR EXISTS (SELECT 1 FROM refresh_token t WHERE username = ? "
+                      + "AND client_id = ? AND "
+                      + NOT_EXPIRED
+                      + " AND "
+                      + NOT_REVOKED
+                      + ") AS has_tokens;")) {
+            statement.setString(1, username);
+            statement.setString(2, clientID);
+            statement.setString(3, username);
+            statement.setString(4, clientID);
+            bindNotExpired(statement, 5);
+            try (ResultSet result = statement.executeQuery()) {
+              hasTokens = result.next() && result.getBoolean("has_tokens");
+            }
+          }
+          recordRevocationEpoch(conn, username, clientID);
+          return hasTokens;
+        });
+  }
+
+  /**
+   * Advance the revocation sequence first, then list the tokens with locking reads, which wait for
+   * issuances that took the old epoch to commit, and record the epoch, in one transaction. So
+   * every token the epoch revokes is listed.
+   */
+  @Override
+  public RevokedTokens revokeAndListUserClientTokens(String username, String clientID) {
+    return inTransaction(
+        conn -> {
+          advanceRevocationSequence(conn);
+          List<OAuth2AccessToken> accessTokens = new ArrayList<>();
+          try (PreparedStatement statement =
+              conn.prepareStatement(
+                  "SELECT * FROM access_token t WHERE username = ? AND client_id = ? AND "
+                      + NOT_REVOKED
+                      + " LOCK IN SHARE MODE;")) {
+            statement.setString(1, username);
+            statement.setString(2, clientID);
+            try (ResultSet result = statement.executeQuery()) {
+              while (result.next()) {
+                accessTokens.add(buildAccessTokenFromJdbcResult(result, ""));
+              }
+            }
+          }
+          List<OAuth2RefreshToken> refreshTokens = new ArrayList<>();
+          try (PreparedStatement statement =
+              conn.prepareStatement(
+                  "SELECT * FROM refresh_token t WHERE username = ? AND client_id = ? AND "
+                      + NOT_REVOKED
+                      + " LOCK IN SHARE MODE;")) {
+            statement.setString(1, username);
+            statement.setString(2, clientID);
+            try (ResultSet result = statement.executeQuery()) {
+              while (result.next()) {
+                refreshTokens.add(buildRefreshTokenFromJdbcResult(result, ""));
+              }
+            }
+          }
+          recordRevocationEpoch(conn, username, clientID);
+          return new RevokedTokens(accessTokens, refreshTokens);
+        });
+  }
+
+  /** Advance the revocation sequence, the new value is then LAST_INSERT_ID() on the connection. */
+  private static void advanceRevocationSequence(Connection conn) throws SQLException {
+    try (PreparedStatement statement =
+        conn.prepareStatement(
+            "UPDATE revocation_sequence SET value = LAST_INSERT_ID(value + 1) WHERE id = 1;")) {
       statement.execute();
-      stmt = "DELETE FROM access_token WHERE refresh_token = ?;";
-      statement = conn.prepareStatement(stmt);
-      statement.setString(1, refreshToken);
+    }
+  }
+
+  /** Record the value {@link #advanceRevocationSequence} took as the epoch of the scope. */
+  private static void recordRevocationEpoch(Connection conn, String username, String clientID)
+      throws SQLException {
+    try (PreparedStatement statement =
+        conn.prepareStatement(
+            "INSERT INTO revocation_epoch (username, client_id, epoch, revoked_time) "
+                + "VALUES(?, ?, LAST_INSERT_ID(), ?) "
+                + "ON DUPLICATE KEY UPDATE epoch = VALUES(epoch), "
+                + "revoked_time = VALUES(revoked_time);")) {
+      statement.setString(1, username);
+      statement.setString(2, clientID);
+      statement.setLong(3, Instant.now().getEpochSecond());
       statement.execute();
-      conn.commit();
-    } catch (SQLException exception) {
-      try {
-        if (conn != null) {
-          conn.rollback();
-        }
-      } catch (SQLException exception1) {
-        throw new OAuth2ServerException(exception1);
-      }
-      throw new OAuth2ServerException(exception);
-    } finally {
-      if (result != null) {
-        try {
-          result.close();
-        } catch (SQLException exception2) {
-          throw new OAuth2ServerException(exception2);
-        }
-      }
-      if (statement != null) {
-        try {
-          statement.close();
-        } catch (SQLException exception3) {
-          throw new OAuth2ServerException(exception3);
-        }
-      }
-      if (conn != null) {
-        try {
-          conn.close();
-        } catch (SQLException exception4) {
-          throw new OAuth2ServerException(exception4);
-        }
-      }
     }
-    return true;
   }
 
   @Override
-  public boolean revokeUserClientTokens(String username, String clientID) {
-    if (listUserClientAccessTokens(username, clientID).isEmpty()) {
-      return false;
-    }
+  public void revokeClientTokens(String clientID) {
+    revokeScope(RevocationEpochs.ANY, clientID);
+  }
+
+  @Override
+  public void revokeUserTokens(String username) {
+    revokeScope(username, RevocationEpochs.ANY);
+  }
+
+  /**
+   * Advance the revocation sequence and record it as the epoch of the scope, in one transaction.
+   * The rows of the revoked tokens are deleted later by the {@link ExpiredTokenPurger}.
+   */
+  private void revokeScope(String username, String clientID) {
+    inTransaction(
+        conn -> {
+          advanceRevocationSequence(conn);
+          recordRevocationEpoch(conn, username, clientID);
+          return null;
+        });
+  }
+
+  /** One indexed read of user_client_link, the tokens of each client are only probed. */
+  @Override
+  public List<String> listUserClient(String username) {
+    ImmutableList.Builder<String> clients = ImmutableList.builder();
     Connection conn = null;
     PreparedStatement statement = null;
     ResultSet result = null;
     try {
       conn = dataSource.getConnection();
-      conn.setAutoCommit(false);
-      String stmt = "DELETE FROM refresh_token WHERE username = ? AND client_id = ?;";
+      String stmt =
+          "SELECT client_id FROM user_client_link l WHERE username = ? "
+              + "AND (EXISTS (SELECT 1 FROM access_token t WHERE "
+              + LINKED_TOKEN
+              + ") OR EXISTS (SELECT 1 FROM refresh_token t WHERE "
+              + LINKED_REFRESH_TOKEN
+              + "));";
       statement = conn.prepareStatement(stmt);
       statement.setString(1, username);
-      statement.setString(2, clientID);
-      statement.execute();
-      stmt = "DELETE FROM access_token WHERE username = ? AND client_id = ?;";
-      statement = conn.prepareStatement(stmt);
-      statement.setString(1, username);
-      statement.setString(2, clientID);
-      statement.execute();
-      conn.commit();
-    } catch (SQLException exception) {
-      try {
-        if (conn != null) {
-          conn.rollback();
-        }
-      } catch (SQLException exception1) {
-        throw new OAuth2ServerException(exception1);
+      bindNotExpired(statement, 2);
+      result = statement.executeQuery();
+      while (result.next()) {
+        clients.add(result.getString("client_id"));
       }
+    } catch (SQLException exception) {
       throw new OAuth2ServerException(exception);
     } finally {
       if (result != null) {
@@ -488,30 +1008,44 @@ public class JdbcOAuth2TokenService implements OAuth2TokenService {
         }
       }
     }
-    return true;
+    return clients.build();
   }
 
+  /**
+   * One indexed read of user_client_link, joined to the access and refresh tokens of each client
+   * through the username and client id indexes of the token tables.
+   */
   @Override
-  public List<String> listUserClient(String username) {
-    Set<String> clients = new HashSet<>();
+  public UserTokenList listUserTokens(String username) {
+    List<OAuth2AccessToken> accessTokens = new ArrayList<>();
+    List<OAuth2RefreshToken> refreshTokens = new ArrayList<>();
     Connection conn = null;
     PreparedStatement statement = null;
     ResultSet result = null;
     try {
       conn = dataSource.getConnection();
-      String stmt = "SELECT DISTINCT client_id FROM access_token WHERE username = ?;";
+      String stmt =
+          "SELECT 'access' AS token_type, t.client_id, t.username, t.is_scoped, t.scopes, "
+              + "t.expired_time, 0 AS issued_time, 0 AS last_used_time, t.epoch, t.family_id, "
+              + "t.risc_id FROM user_client_link l JOIN access_token t ON "
+              + LINKED_TOKEN
+              + " WHERE l.username = ? "
+              + "UNION ALL SELECT 'refresh', t.client_id, t.username, t.is_scoped, t.scopes, "
+              + "0, t.issued_time, t.last_used_time, t.epoch, t.family_id, "
+              + "t.risc_id FROM user_client_link l JOIN refresh_token t ON "
+              + LINKED_REFRESH_TOKEN
+              + " WHERE l.username = ?;";
       statement = conn.prepareStatement(stmt);
       statement.setString(1, username);
+      bindNotExpired(statement, 2);
+      statement.setString(4, username);
       result = statement.executeQuery();
       while (result.next()) {
-        clients.add(result.getString("client_id"));
-      }
-      stmt = "SELECT DISTINCT client_id FROM refresh_token WHERE username = ?;";
-      statement = conn.prepareStatement(stmt);
-      statement.setString(1, username);
-      result = statement.executeQuery();
-      while (result.next()) {
-        clients.add(result.getString("client_id"));
+        if (result.getString("token_type").equals("access")) {
+          accessTokens.add(buildAccessTokenFromJdbcResult(result, ""));
+        } else {
+          refreshTokens.add(buildRefreshTokenFromJdbcResult(result, ""));
+        }
       }
     } catch (SQLException exception) {
       throw new OAuth2ServerException(exception);
@@ -538,7 +1072,7 @@ public class JdbcOAuth2TokenService implements OAuth2TokenService {
         }
       }
     }
-    return ImmutableList.copyOf(clients);
+    return new UserTokenList(accessTokens, refreshTokens);
   }
 
   @Override
@@ -549,13 +1083,16 @@ public class JdbcOAuth2TokenService implements OAuth2TokenService {
     ResultSet result = null;
     try {
       conn = dataSource.getConnection();
-      String stmt = "SELECT * FROM access_token WHERE username = ? AND client_id = ?;";
+      String stmt =
+          "SELECT * FROM access_token t WHERE username = ? AND client_id = ? AND "
+              + NOT_REVOKED
+              + ";";
       statement = conn.prepareStatement(stmt);
       statement.setString(1, username);
       statement.setString(2, clientID);
       result = statement.executeQuery();
       while (result.next()) {
-        tokenList.add(buildAccessTokenFromJdbcResult(result));
+        tokenList.add(buildAccessTokenFromJdbcResult(result, ""));
       }
     } catch (SQLException exception) {
       throw new OAuth2ServerException(exception);
@@ -593,13 +1130,19 @@ public class JdbcOAuth2TokenService implements OAuth2TokenService {
     ResultSet result = null;
     try {
       conn = dataSource.getConnection();
-      String stmt = "SELECT * FROM refresh_token WHERE username = ? AND client_id = ?;";
+      String stmt =
+          "SELECT * FROM refresh_token t WHERE username = ? AND client_id = ? AND "
+              + NOT_EXPIRED
+              + " AND "
+              + NOT_REVOKED
+              + ";";
       statement = conn.prepareStatement(stmt);
       statement.setString(1, username);
       statement.setString(2, clientID);
+      bindNotExpired(statement, 3);
       result = statement.executeQuery();
       while (result.next()) {
-        tokenList.add(buildRefreshTokenFromJdbcResult(result));
+        tokenList.add(buildRefreshTokenFromJdbcResult(result, ""));
       }
     } catch (SQLException exception) {
       throw new OAuth2ServerException(exception);
@@ -643,6 +1186,15 @@ public class JdbcOAuth2TokenService implements OAuth2TokenService {
       stmt = "DELETE FROM access_token;";
       statement = conn.prepareStatement(stmt);
       statement.execute();
+      stmt = "DELETE FROM revocation_epoch;";
+      statement = conn.prepareStatement(stmt);
+      statement.execute();
+      stmt = "DELETE FROM user_client_link;";
+      statement = conn.prepareStatement(stmt);
+      statement.execute();
+      stmt = "DELETE FROM superseded_refresh_token;";
+      statement = conn.prepareStatement(stmt);
+      statement.execute();
       conn.commit();
     } catch (SQLException exception) {
       try {
@@ -678,79 +1230,120 @@ public class JdbcOAuth2TokenService implements OAuth2TokenService {
     }
   }
 
-  private OAuth2AccessToken buildAccessTokenFromJdbcResult(ResultSet result) throws SQLException {
-    return OAuth2AccessToken.newBuilder()
-        .setAccessToken(result.getString("access_token"))
-        .setClientId(result.getString("client_id"))
-        .setUsername(result.getString("username"))
-        .setIsScoped(result.getBoolean("is_scoped"))
-        .addAllScopes(OAuth2Utils.parseScope(result.getString("scopes")))
-        .setExpiredTime(result.getLong("expired_time"))
-        .setRefreshToken(result.getString("refresh_token"))
-        .build();
+  /**
+   * Walks idx_access_token_expired_time. The rows are streamed instead of read into memory, a scan
+   * from now at startup passes every live access token.
+   */
+  @Override
+  public void scanAccessTokens(long expiringFrom, AccessTokenConsumer consumer) {
+    try (Connection conn = dataSource.getConnection();
+        PreparedStatement statement =
+            conn.prepareStatement(
+                "SELECT access_token, expired_time FROM access_token WHERE expired_time >= ?;",
+                ResultSet.TYPE_FORWARD_ONLY,
+                ResultSet.CONCUR_READ_ONLY)) {
+      // Makes MySQL Connector/J stream the result row by row.
+      statement.setFetchSize(Integer.MIN_VALUE);
+      statement.setLong(1, expiringFrom);
+      try (ResultSet result = statement.executeQuery()) {
+        while (result.next()) {
+          consumer.accept(result.getBytes(1), result.getLong(2));
+        }
+      }
+    } catch (SQLException exception) {
+      throw new OAuth2ServerException(exception);
+    }
   }
 
-  private OAuth2RefreshToken buildRefreshTokenFromJdbcResult(ResultSet result) throws SQLException {
-    return OAuth2RefreshToken.newBuilder()
-        .setRefreshToken(result.getString("refresh_token"))
-        .setClientId(result.getString("client_id"))
-        .setUsername(result.getString("username"))
-        .setIsScoped(result.getBoolean("is_scoped"))
-        .addAllScopes(OAuth2Utils.parseScope(result.getString("scopes")))
-        .build();
+  /** Run the work on one connection in one transaction, rolled back if it throws. */
+  private <T> T inTransaction(TransactionWork<T> work) {
+    try (Connection conn = dataSource.getConnection()) {
+      conn.setAutoCommit(false);
+      try {
+        T result = work.run(conn);
+        conn.commit();
+        return result;
+      } catch (SQLException | RuntimeException exception) {
+        conn.rollback();
+        throw exception;
+      }
+    } catch (SQLException exception) {
+      throw new OAuth2ServerException(exception);
+    }
+  }
+
+  private interface TransactionWork<T> {
+    T run(Connection conn) throws SQLException;
+  }
+
+  /** Delete the refresh token and the access tokens issued from it. */
+  private static void deleteRefreshToken(Connection conn, byte[] refreshTokenKey)
+      throws SQLException {
+    try (PreparedStatement statement =
+        conn.prepareStatement("DELETE FROM refresh_token WHERE refresh_token = ?;")) {
+      statement.setBytes(1, refreshTokenKey);
+      statement.execute();
+    }
+    try (PreparedStatement statement =
+        conn.prepareStatement("DELETE FROM access_token WHERE refresh_token = ?;")) {
+      statement.setBytes(1, refreshTokenKey);
+      statement.execute();
+    }
+  }
+
+  /**
+   * @param accessToken the value the token was read by, empty when listing, the token carries its
+   *     RISC identifier then
+   */
+  private OAuth2AccessToken buildAccessTokenFromJdbcResult(ResultSet result, String accessToken)
+      throws SQLException {
+    OAuth2AccessToken.Builder builder =
+        OAuth2AccessToken.newBuilder()
+            .setAccessToken(accessToken)
+            .setClientId(result.getString("client_id"))
+            .setUsername(result.getString("username"))
+            .setIsScoped(result.getBoolean("is_scoped"))
+            .addAllScopes(OAuth2Utils.parseScope(result.getString("scopes")))
+            .setExpiredTime(result.getLong("expired_time"))
+            .setEpoch(result.getLong("epoch"))
+            .setFamilyId(Strings.nullToEmpty(result.getString("family_id")));
+    if (accessToken.isEmpty()) {
+      builder.setRiscIdentifier(HashCode.fromBytes(result.getBytes("risc_id")).toString());
+    }
+    return builder.build();
+  }
+
+  /** Like {@link #buildAccessTokenFromJdbcResult}. */
+  private OAuth2RefreshToken buildRefreshTokenFromJdbcResult(ResultSet result, String refreshToken)
+      throws SQLException {
+    OAuth2RefreshToken.Builder builder =
+        OAuth2RefreshToken.newBuilder()
+            .setRefreshToken(refreshToken)
+            .setClientId(result.getString("client_id"))
+            .setUsername(result.getString("username"))
+            .setIsScoped(result.getBoolean("is_scoped"))
+            .addAllScopes(OAuth2Utils.parseScope(result.getString("scopes")))
+            .setEpoch(result.getLong("epoch"))
+            .setFamilyId(Strings.nullToEmpty(result.getString("family_id")))
+            .setIssuedTime(result.getLong("issued_time"))
+            .setLastUsedTime(result.getLong("last_used_time"));
+    if (refreshToken.isEmpty()) {
+      builder.setRiscIdentifier(HashCode.fromBytes(result.getBytes("risc_id")).toString());
+    }
+    return builder.build();
   }
 
+  /** Purges expired tokens in chunks, logging failures so later runs are still scheduled. */
   private class TokenCleaner implements Runnable {
 
     @Override
     public void run() {
-      Connection conn = null;
-      PreparedStatement statement = null;
-      ResultSet result = null;
       try {
-        conn = dataSource.getConnection();
-        conn.setAutoCommit(false);
-        String stmt = "DELETE FROM refresh_token WHERE expired_time < ? ;";
-        statement = conn.prepareStatement(stmt);
-        statement.setLong(1, Instant.now().getEpochSecond());
-        statement.execute();
-        stmt = "DELETE FROM access_token WHERE expired_time < ? ;";
-        statement = conn.prepareStatement(stmt);
-        statement.setLong(1, Instant.now().getEpochSecond());
-        statement.execute();
-        conn.commit();
-
-      } catch (SQLException exception) {
-        try {
-          if (conn != null) {
-            conn.rollback();
-          }
-        } catch (SQLException exception1) {
-          throw new OAuth2ServerException(exception1);
-        }
-        throw new OAuth2ServerException(exception);
-      } finally {
-        if (result != null) {
-          try {
-            result.close();
-          } catch (SQLException exception2) {
-            throw new OAuth2ServerException(exception2);
-          }
-        }
-        if (statement != null) {
-          try {
-            statement.close();
-          } catch (SQLException exception3) {
-            throw new OAuth2ServerException(exception3);
-          }
-        }
-        if (conn != null) {
-          try {
-            conn.close();
-          } catch (SQLException exception4) {
-            throw new OAuth2ServerException(exception4);
-          }
-        }
+        purger.purge(Instant.now().getEpochSecond());
+      } catch (SQLException | RuntimeException exception) {
+        log.log(Level.WARNING, "Error when purging expired tokens!", exception);
+      } catch (InterruptedException exception) {
+        Thread.currentThread().interrupt();
       }
     }
   }
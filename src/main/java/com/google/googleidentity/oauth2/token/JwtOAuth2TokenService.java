@@ -0,0 +1,309 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.token;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.googleidentity.oauth2.exception.OAuth2ServerException;
+import com.google.googleidentity.oauth2.jwt.JwkStore;
+import com.google.googleidentity.oauth2.request.OAuth2Request;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.jwk.JWK;
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.ExpiredJwtException;
+import io.jsonwebtoken.JwsHeader;
+import io.jsonwebtoken.JwtException;
+import io.jsonwebtoken.JwtParser;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.SigningKeyResolverAdapter;
+import io.jsonwebtoken.security.SignatureException;
+import java.security.Key;
+import java.time.Clock;
+import java.time.Instant;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hand out access tokens as JWS signed with a key of the {@link JwkStore}, so they can be read by
+ * checking the signature instead of looking them up.
+ *
+ * <p>Tokens are still issued and stored by another {@link OAuth2TokenService}, the JWS carries the
+ * stored access token as its jti next to the client_id, the username as sub, the scopes and the
+ * expiry, which is capped at ACCESS_TOKEN_JWT_LIFETIME_SECONDS. {@link #readAccessToken(String)}
+ * never reads the store for a JWS. The keys are the ones shared by every instance through the
+ * {@link JwkStore}, so any instance, or a resource server with the JWK set, verifies a JWS signed
+ * by another. Access tokens which are not a JWS, e.g. issued before the format was switched, are
+ * read from the store.
+ *
+ * <p>The store keeps the access tokens so revoking, listing and RISC events work through the jti,
+ * but revoking does not reach a JWS: a revoked JWS stays valid until it expires, up to
+ * ACCESS_TOKEN_JWT_LIFETIME_SECONDS after it was issued, 300 by default.
+ *
+ * <p>Refresh tokens and everything else are passed to the store as they are.
+ */
+@Singleton
+public class JwtOAuth2TokenService implements OAuth2TokenService {
+
+  /** Name of the binding of the {@link OAuth2TokenService} which issues and stores the tokens. */
+  public static final String DELEGATE = "JwtOAuth2TokenServiceDelegate";
+
+  private static final String ISSUER =
+      System.getenv("WEB_URL") == null ? "localhost:8080" : System.getenv("WEB_URL");
+
+  /** Also how long a revoked JWS stays valid at most, see the class comment. */
+  private static final long LIFETIME_SECONDS =
+      System.getenv("ACCESS_TOKEN_JWT_LIFETIME_SECONDS") == null
+          ? 300
+          : Long.parseLong(System.getenv("ACCESS_TOKEN_JWT_LIFETIME_SECONDS"));
+
+  private static final String CLIENT_ID = "client_id";
+  private static final String SCOPE = "scope";
+  private static final String IS_SCOPED = "is_scoped";
+
+  private final OAuth2TokenService delegate;
+  private final JwkStore jwkStore;
+  private final Clock clock;
+  private final JwtParser parser;
+
+  /** Converted keys by kid, converting a JWK costs more than verifying with it. */
+  private final Map<String, Key> privateKeys = new ConcurrentHashMap<>();
+  private final Map<String, Key> publicKeys = new ConcurrentHashMap<>();
+
+  @Inject
+  public JwtOAuth2TokenService(@Named(DELEGATE) OAuth2TokenService delegate, JwkStore jwkStore) {
+    this(delegate, jwkStore, Clock.systemUTC());
+  }
+
+  @VisibleForTesting
+  JwtOAuth2TokenService(OAuth2TokenService delegate, JwkStore jwkStore, Clock clock) {
+    this.delegate = delegate;
+    this.jwkStore = jwkStore;
+    this.clock = clock;
+    this.parser =
+        Jwts.parserBuilder()
+            .requireIssuer(ISSUER)
+            .setClock(() -> Date.from(clock.instant()))
+            .setSigningKeyResolver(
+                new SigningKeyResolverAdapter() {
+                  @Override
+                  public Key resolveSigningKey(JwsHeader header, Claims claims) {
+                    return publicKey(header.getKeyId());
+                  }
+                })
+            .build();
+  }
+
+  @Override
+  public OAuth2AccessToken generateAccessToken(OAuth2Request request) {
+    return toJws(delegate.generateAccessToken(request));
+  }
+
+  @Override
+  public Optional<OAuth2AccessToken> refreshToken(String refreshToken) {
+    return delegate.refreshToken(refreshToken).map(this::toJws);
+  }
+
+  @Override
+  public ClientTokenResult<OAuth2AccessToken> refreshToken(String refreshToken, String clientID) {
+    return delegate.refreshToken(refreshToken, clientID).map(this::toJws);
+  }
+
+  /**
+   * Read a JWS by its signature alone. Like the stores, an expired token is still returned and
+   * callers check the expired time.
+   */
+  @Override
+  public Optional<OAuth2AccessToken> readAccessToken(String accessToken) {
+    if (!isJws(accessToken)) {
+      return delegate.readAccessToken(accessToken);
+    }
+    return parse(accessToken).map(claims -> fromClaims(accessToken, claims));
+  }
+
+  @Override
+  public Optional<OAuth2RefreshToken> readRefreshToken(String refreshToken) {
+    return delegate.readRefreshToken(refreshToken);
+  }
+
+  @Override
+  public boolean revokeByAccessToken(String accessToken) {
+    if (!isJws(accessToken)) {
+      return delegate.revokeByAccessToken(accessToken);
+    }
+    Optional<Claims> claims = parse(accessToken);
+    return claims.isPresent() && delegate.revokeByAccessToken(claims.get().getId());
+  }
+
+  @Override
+  public boolean revokeByRefreshToken(String refreshToken) {
+    return delegate.revokeByRefreshToken(refreshToken);
+  }
+
+  /** Returns the stored token, i.e. the jti, when a JWS was revoked. */
+  @Override
+  public ClientTokenResult<OAuth2AccessToken> revokeByAccessToken(
+      String accessToken, String clientID) {
+    if (!isJws(accessToken)) {
+      return delegate.revokeByAccessToken(accessToken, clientID);
+    }
+    Optional<Claims> claims = parse(accessToken);
+    if (!claims.isPresent()) {
+      return ClientTokenResult.notFound();
+    }
+    return delegate.revokeByAccessToken(claims.get().getId(), clientID);
+  }
+
+  @Override
+  public ClientTokenResult<OAuth2RefreshToken> revokeByRefreshToken(
+      String refreshToken, String clientID) {
+    return delegate.revokeByRefreshToken(refreshToken, clientID);
+  }
+
+  @Override
+  public boolean revokeUserClientTokens(String username, String clientID) {
+    return delegate.revokeUserClientTokens(username, clientID);
+  }
+
+  @Override
+  public RevokedTokens revokeAndListUserClientTokens(String username, String clientID) {
+    return delegate.revokeAndListUserClientTokens(username, clientID);
+  }
+
+  @Override
+  public void revokeClientTokens(String clientID) {
+    delegate.revokeClientTokens(clientID);
+  }
+
+  @Override
+  public void revokeUserTokens(String username) {
+    delegate.revokeUserTokens(username);
+  }
+
+  @Override
+  public List<String> listUserClient(String username) {
+    return delegate.listUserClient(username);
+  }
+
+  @Override
+  public UserTokenList listUserTokens(String username) {
+    return delegate.listUserTokens(username);
+  }
+
+  /** Lists the stored tokens, i.e. the jti of the JWS handed out. */
+  @Override
+  public List<OAuth2AccessToken> listUserClientAccessTokens(String username, String clientID) {
+    return delegate.listUserClientAccessTokens(username, clientID);
+  }
+
+  @Override
+  public List<OAuth2RefreshToken> listUserClientRefreshTokens(String username, String clientID) {
+    return delegate.listUserClientRefreshTokens(username, clientID);
+  }
+
+  @Override
+  public void reset() {
+    delegate.reset();
+  }
+
+  private OAuth2AccessToken toJws(OAuth2AccessToken token) {
+    Instant now = clock.instant();
+    long expiredTime = Math.min(token.getExpiredTime(), now.getEpochSecond() + LIFETIME_SECONDS);
+    JWK jwk = jwkStore.getJWK();
+    String jws =
+        Jwts.builder()
+            .setHeaderParam("kid", jwk.getKeyID())
+            .setIssuer(ISSUER)
+            .setSubject(token.getUsername())
+            .setId(token.getAccessToken())
+            .setIssuedAt(Date.from(now))
+            .setExpiration(Date.from(Instant.ofEpochSecond(expiredTime)))
+            .claim(CLIENT_ID, token.getClientId())
+            .claim(IS_SCOPED, token.getIsScoped())
+            .claim(SCOPE, String.join(" ", token.getScopesList()))
+            .signWith(privateKey(jwk))
+            .compact();
+    return token.toBuilder().setAccessToken(jws).setExpiredTime(expiredTime).build();
+  }
+
+  /** The verified claims, also of an expired JWS, or empty if the JWS is not valid. */
+  private Optional<Claims> parse(String jws) {
+    try {
+      return Optional.of(parser.parseClaimsJws(jws).getBody());
+    } catch (ExpiredJwtException exception) {
+      // Only thrown once the signature has been verified.
+      return Optional.of(exception.getClaims());
+    } catch (JwtException | IllegalArgumentException exception) {
+      return Optional.empty();
+    }
+  }
+
+  private static OAuth2AccessToken fromClaims(String jws, Claims claims) {
+    return OAuth2AccessToken.newBuilder()
+        .setAccessToken(jws)
+        .setClientId(claims.get(CLIENT_ID, String.class))
+        .setUsername(claims.getSubject())
+        .setIsScoped(Boolean.TRUE.equals(claims.get(IS_SCOPED, Boolean.class)))
+        .addAllScopes(
+            Splitter.on(' ')
+                .omitEmptyStrings()
+                .split(Strings.nullToEmpty(claims.get(SCOPE, String.class))))
+        .setExpiredTime(claims.getExpiration().toInstant().getEpochSecond())
+        .build();
+  }
+
+  /** Stored tokens are base64url, which has no dots, a JWS always has two. */
+  private static boolean isJws(String accessToken) {
+    return accessToken.indexOf('.') >= 0;
+  }
+
+  private Key privateKey(JWK jwk) {
+    return privateKeys.computeIfAbsent(
+        jwk.getKeyID(),
+        kid -> {
+          try {
+            return jwk.toRSAKey().toPrivateKey();
+          } catch (JOSEException exception) {
+            throw new OAuth2ServerException("Error when loading the signing key!", exception);
+          }
+        });
+  }
+
+  private Key publicKey(String kid) {
+    Key key = kid == null ? null : publicKeys.get(kid);
+    if (key != null) {
+      return key;
+    }
+    Optional<JWK> jwk = kid == null ? Optional.empty() : jwkStore.findPublicJWK(kid);
+    if (!jwk.isPresent()) {
+      throw new SignatureException("Unknown kid: " + kid);
+    }
+    try {
+      key = jwk.get().toRSAKey().toPublicKey();
+    } catch (JOSEException exception) {
+      throw new OAuth2ServerException("Error when loading the verification key!", exception);
+    }
+    publicKeys.put(kid, key);
+    return key;
+  }
+}
@@ -33,6 +33,12 @@ public interface OAuth2TokenService {
    */
   Optional<OAuth2AccessToken> refreshToken(String refreshToken);
 
+  /**
+   * Refresh the access token if the refresh token was issued to the client, reading the refresh
+   * token and issuing the access token in one step.
+   */
+  ClientTokenResult<OAuth2AccessToken> refreshToken(String refreshToken, String clientID);
+
   /**
    * Read the token information related to the access token string. If token cannot be found, return
    * empty.
@@ -51,12 +57,48 @@ public interface OAuth2TokenService {
   /** Revoke by refresh token, if token cannot be found, return false. */
   boolean revokeByRefreshToken(String refreshToken);
 
+  /**
+   * Revoke the access token if it was issued to the client, like {@link
+   * #revokeByAccessToken(String)} but in one step, returning the revoked token.
+   */
+  ClientTokenResult<OAuth2AccessToken> revokeByAccessToken(String accessToken, String clientID);
+
+  /**
+   * Revoke the refresh token if it was issued to the client, like {@link
+   * #revokeByRefreshToken(String)} but in one step, returning the revoked token.
+   */
+  ClientTokenResult<OAuth2RefreshToken> revokeByRefreshToken(String refreshToken, String clientID);
+
   /** Revoke tokens between a user and a client, if token cannot be found, return false */
   boolean revokeUserClientTokens(String username, String clientID);
 
+  /**
+   * Revoke tokens between a user and a client and return the ones revoked, listed in the same step,
+   * e.g. to send RISC events about them.
+   */
+  RevokedTokens revokeAndListUserClientTokens(String username, String clientID);
+
+  /**
+   * Revoke all tokens issued to a client, for every user. Takes the same time however many tokens
+   * there are, they stop being readable at once and are deleted later.
+   */
+  void revokeClientTokens(String clientID);
+
+  /**
+   * Revoke all tokens of a user, for every client. Takes the same time however many tokens there
+   * are, they stop being readable at once and are deleted later.
+   */
+  void revokeUserTokens(String username);
+
   /** List all client linked by this user */
   List<String> listUserClient(String username);
 
+  /**
+   * List all tokens of this user for every client, in one read instead of listing the tokens of
+   * every client.
+   */
+  UserTokenList listUserTokens(String username);
+
   /** List all access tokens between a user and a client */
   List<OAuth2AccessToken> listUserClientAccessTokens(String username, String clientID);
 
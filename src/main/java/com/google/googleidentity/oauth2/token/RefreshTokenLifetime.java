@@ -0,0 +1,96 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+
+package com.google.googleidentity.oauth2.token;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Absolute and idle lifetimes of refresh tokens, shared by {@link InMemoryOAuth2TokenService} and
+ * {@link JdbcOAuth2TokenService}.
+ *
+ * <p>A token expires {@code absoluteSeconds} after the first token of its family was issued, or
+ * when it has not been used for {@code idleSeconds}, either of which may be 0 for no limit. The
+ * last use of a token is only written once it is older than the {@link #touchGranularity()}, so
+ * refreshing does not write every time. A token is kept for one granularity past its idle
+ * lifetime, so it never expires early because its last use was not written.
+ */
+final class RefreshTokenLifetime {
+
+  static final RefreshTokenLifetime DEFAULT =
+      new RefreshTokenLifetime(
+          System.getenv("REFRESH_TOKEN_ABSOLUTE_LIFETIME_SECONDS") == null
+              ? 0
+              : Long.parseLong(System.getenv("REFRESH_TOKEN_ABSOLUTE_LIFETIME_SECONDS")),
+          System.getenv("REFRESH_TOKEN_IDLE_LIFETIME_SECONDS") == null
+              ? TimeUnit.DAYS.toSeconds(180)
+              : Long.parseLong(System.getenv("REFRESH_TOKEN_IDLE_LIFETIME_SECONDS")));
+
+  /** Fraction of the idle lifetime the last use of a token may be behind. */
+  private static final long TOUCH_GRANULARITY_DIVISOR = 16;
+
+  private final long absoluteSeconds;
+  private final long idleSeconds;
+  private final long touchGranularity;
+
+  RefreshTokenLifetime(long absoluteSeconds, long idleSeconds) {
+    if (absoluteSeconds < 0 || idleSeconds < 0) {
+      throw new IllegalArgumentException("lifetimes must not be negative");
+    }
+    this.absoluteSeconds = absoluteSeconds;
+    this.idleSeconds = idleSeconds;
+    this.touchGranularity = Math.max(1, idleSeconds / TOUCH_GRANULARITY_DIVISOR);
+  }
+
+  /** How far the recorded last use of a token may be behind, in seconds. */
+  long touchGranularity() {
+    return touchGranularity;
+  }
+
+  /** Whether the last use of a token used {@code now} (epoch seconds) should be written. */
+  boolean needsTouch(long lastUsedTime, long now) {
+    return idleSeconds > 0 && now - lastUsedTime >= touchGranularity;
+  }
+
+  /** Whether a token issued and last used at the times (epoch seconds) has expired at now. */
+  boolean isExpired(long issuedTime, long lastUsedTime, long now) {
+    return issuedTime < issuedAfter(now) || lastUsedTime < lastUsedAfter(now);
+  }
+
+  boolean isExpired(OAuth2RefreshToken token, long now) {
+    return isExpired(token.getIssuedTime(), token.getLastUsedTime(), now);
+  }
+
+  /**
+   * Seconds after which a token which is no longer used, e.g. because it was revoked, has surely
+   * expired, {@link Long#MAX_VALUE} without a limit.
+   */
+  long maxUnusedSeconds() {
+    long idle = idleSeconds == 0 ? Long.MAX_VALUE : idleSeconds + touchGranularity;
+    return absoluteSeconds == 0 ? idle : Math.min(absoluteSeconds, idle);
+  }
+
+  /** Tokens of families first issued before this (epoch seconds) have expired at now. */
+  long issuedAfter(long now) {
+    return absoluteSeconds == 0 ? Long.MIN_VALUE : now - absoluteSeconds;
+  }
+
+  /** Tokens last used before this (epoch seconds) have expired at now. */
+  long lastUsedAfter(long now) {
+    return idleSeconds == 0 ? Long.MIN_VALUE : now - idleSeconds - touchGranularity;
+  }
+}
@@ -0,0 +1,160 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.token;
+
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Revocation epochs of users, clients and user client pairs for {@link
+ * InMemoryOAuth2TokenService}.
+ *
+ * <p>Every token is issued under the {@link #current()} epoch of a single increasing sequence.
+ * Revoking a scope advances the sequence and records the new value for the scope, so every token
+ * of the scope issued before is older than it and every token issued after is not. A token is
+ * revoked when its epoch is older than the epoch of its user, its client or its user and client,
+ * which makes revoking any number of tokens one map update.
+ *
+ * <p>Epochs keep the time they were revoked at. Once no token they could revoke can still exist,
+ * the stores remove them with {@link #removeRevokedBefore(long)} or {@link #remove}, so the map
+ * only holds recent revocations.
+ *
+ * <p>{@link #ANY} stands for all users or all clients of a scope. {@link JdbcOAuth2TokenService}
+ * keeps the same layout in the revocation_sequence and revocation_epoch tables.
+ */
+final class RevocationEpochs {
+
+  /** The username or client id of a scope which covers all of them. */
+  static final String ANY = "";
+
+  private final AtomicLong sequence = new AtomicLong();
+  private final Map<String, Revocation> epochs = new ConcurrentHashMap<>();
+
+  /** The epoch new tokens are issued under. */
+  long current() {
+    return sequence.get();
+  }
+
+  /**
+   * Revoke the tokens issued so far to the user and client, either of which may be {@link #ANY}.
+   *
+   * @return the new epoch of the scope
+   */
+  long revoke(String username, String clientID) {
+    long epoch = sequence.incrementAndGet();
+    epochs.merge(
+        key(username, clientID),
+        new Revocation(epoch, Instant.now().getEpochSecond()),
+        Revocation::later);
+    return epoch;
+  }
+
+  /** Whether a token of the user and client issued under {@code epoch} has been revoked. */
+  boolean isRevoked(String username, String clientID, long epoch) {
+    return epoch < epochOf(key(username, clientID))
+        || epoch < epochOf(key(username, ANY))
+        || epoch < epochOf(key(ANY, clientID));
+  }
+
+  boolean isRevoked(OAuth2AccessToken token) {
+    return isRevoked(token.getUsername(), token.getClientId(), token.getEpoch());
+  }
+
+  boolean isRevoked(OAuth2RefreshToken token) {
+    return isRevoked(token.getUsername(), token.getClientId(), token.getEpoch());
+  }
+
+  /** The epoch the scope was last revoked at, 0 if never. */
+  long epochOf(String username, String clientID) {
+    return epochOf(key(username, clientID));
+  }
+
+  /**
+   * Record a scope revoked at {@code epoch} earlier, e.g. before a restart. The time it was
+   * revoked at is not known, it is kept as if revoked now.
+   */
+  void restore(String username, String clientID, long epoch) {
+    sequence.accumulateAndGet(epoch, Math::max);
+    epochs.merge(
+        key(username, clientID),
+        new Revocation(epoch, Instant.now().getEpochSecond()),
+        Revocation::later);
+  }
+
+  /** Pass every revoked scope to the consumer. */
+  void forEach(ScopeConsumer consumer) {
+    for (Map.Entry<String, Revocation> entry : epochs.entrySet()) {
+      int tab = entry.getKey().indexOf('\t');
+      consumer.accept(
+          entry.getKey().substring(0, tab),
+          entry.getKey().substring(tab + 1),
+          entry.getValue().epoch);
+    }
+  }
+
+  /**
+   * Forget the scopes revoked before {@code time} (epoch seconds), when every token issued before
+   * has expired.
+   */
+  void removeRevokedBefore(long time) {
+    epochs.values().removeIf(revocation -> revocation.revokedTime < time);
+  }
+
+  /**
+   * Forget the scope if it was last revoked at {@code epoch}, when its tokens issued before have
+   * been removed.
+   */
+  void remove(String username, String clientID, long epoch) {
+    epochs.computeIfPresent(
+        key(username, clientID),
+        (key, revocation) -> revocation.epoch == epoch ? null : revocation);
+  }
+
+  void clear() {
+    epochs.clear();
+  }
+
+  private long epochOf(String key) {
+    Revocation revocation = epochs.get(key);
+    return revocation == null ? 0 : revocation.epoch;
+  }
+
+  private static String key(String username, String clientID) {
+    return username + "\t" + clientID;
+  }
+
+  interface ScopeConsumer {
+    void accept(String username, String clientID, long epoch);
+  }
+
+  /** The epoch of a scope and when it was revoked, in epoch seconds. */
+  private static final class Revocation {
+    private final long epoch;
+    private final long revokedTime;
+
+    Revocation(long epoch, long revokedTime) {
+      this.epoch = epoch;
+      this.revokedTime = revokedTime;
+    }
+
+    static Revocation later(Revocation a, Revocation b) {
+      return a.epoch >= b.epoch ? a : b;
+    }
+  }
+}
@@ -0,0 +1,50 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.token;
+
+import com.google.common.collect.ImmutableList;
+import java.util.List;
+
+/**
+ * The tokens revoked by {@link OAuth2TokenService#revokeAndListUserClientTokens}, listed in the
+ * same step as they were revoked, so none issued meanwhile is missed.
+ */
+public final class RevokedTokens {
+
+  static final RevokedTokens NONE = new RevokedTokens(ImmutableList.of(), ImmutableList.of());
+
+  private final List<OAuth2AccessToken> accessTokens;
+  private final List<OAuth2RefreshToken> refreshTokens;
+
+  public RevokedTokens(
+      List<OAuth2AccessToken> accessTokens, List<OAuth2RefreshToken> refreshTokens) {
+    this.accessTokens = ImmutableList.copyOf(accessTokens);
+    this.refreshTokens = ImmutableList.copyOf(refreshTokens);
+  }
+
+  public List<OAuth2AccessToken> getAccessTokens() {
+    return accessTokens;
+  }
+
+  public List<OAuth2RefreshToken> getRefreshTokens() {
+    return refreshTokens;
+  }
+
+  public boolean isEmpty() {
+    return accessTokens.isEmpty() && refreshTokens.isEmpty();
+  }
+}
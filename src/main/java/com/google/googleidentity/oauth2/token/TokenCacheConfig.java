@@ -0,0 +1,70 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.token;
+
+import java.time.Duration;
+
+/** Settings of {@link CachingOAuth2TokenService}. A maximum size of 0 disables the cache. */
+public final class TokenCacheConfig {
+
+  private final long maximumSize;
+  private final Duration positiveTtl;
+  private final Duration negativeTtl;
+
+  public TokenCacheConfig(long maximumSize, Duration positiveTtl, Duration negativeTtl) {
+    this.maximumSize = maximumSize;
+    this.positiveTtl = positiveTtl;
+    this.negativeTtl = negativeTtl;
+  }
+
+  /**
+   * Read from TOKEN_CACHE_SIZE (default 0, the cache is off unless a size is set),
+   * TOKEN_CACHE_TTL_SECONDS (default 30) and TOKEN_CACHE_NEGATIVE_TTL_SECONDS (default 5). With
+   * several server instances, a token revoked on one stays valid on the others for up to
+   * TOKEN_CACHE_TTL_SECONDS, see {@link CachingOAuth2TokenService}.
+   */
+  public static TokenCacheConfig fromEnv() {
+    return new TokenCacheConfig(
+        System.getenv("TOKEN_CACHE_SIZE") == null
+            ? 0
+            : Long.parseLong(System.getenv("TOKEN_CACHE_SIZE")),
+        Duration.ofSeconds(
+            System.getenv("TOKEN_CACHE_TTL_SECONDS") == null
+                ? 30
+                : Long.parseLong(System.getenv("TOKEN_CACHE_TTL_SECONDS"))),
+        Duration.ofSeconds(
+            System.getenv("TOKEN_CACHE_NEGATIVE_TTL_SECONDS") == null
+                ? 5
+                : Long.parseLong(System.getenv("TOKEN_CACHE_NEGATIVE_TTL_SECONDS"))));
+  }
+
+  public boolean isEnabled() {
+    return maximumSize > 0;
+  }
+
+  public long getMaximumSize() {
+    return maximumSize;
+  }
+
+  public Duration getPositiveTtl() {
+    return positiveTtl;
+  }
+
+  public Duration getNegativeTtl() {
+    return negativeTtl;
+  }
+}
@@ -0,0 +1,271 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.token;
+
+import com.google.googleidentity.oauth2.exception.OAuth2ServerException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.InvalidParameterException;
+import java.security.Key;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Encrypt {@link UserClientTokenInfo} into token strings with AES-GCM and decrypt them back.
+ *
+ * <p>A token is base64url(nonce | ciphertext | tag) without padding, where the plaintext is the
+ * length prefixed username, the length prefixed client ID and the random token value. Each thread
+ * keeps its own {@link Cipher} and byte buffers, so encoding a token does not go through the
+ * synchronized provider lookup of {@link Cipher#getInstance(String)}.
+ *
+ * <p>Nonces are a random per codec prefix followed by a counter, which never repeats for a key
+ * within the lifetime of the codec.
+ */
+final class TokenCodec {
+
+  private static final Logger log = Logger.getLogger("TokenCodec");
+
+  private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+  private static final int NONCE_LENGTH = 12;
+  private static final int TAG_LENGTH = 16;
+  private static final int TOKEN_VALUE_LENGTH = 16;
+  private static final int MAX_FIELD_LENGTH = 0xFFFF;
+
+  private static final char[] BASE64_URL =
+      "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+  private static final byte[] BASE64_URL_INVERSE = new byte[128];
+
+  static {
+    Arrays.fill(BASE64_URL_INVERSE, (byte) -1);
+    for (int i = 0; i < BASE64_URL.length; i++) {
+      BASE64_URL_INVERSE[BASE64_URL[i]] = (byte) i;
+    }
+  }
+
+  private static final ThreadLocal<Cipher> cipher =
+      ThreadLocal.withInitial(
+          () -> {
+            try {
+              return Cipher.getInstance(TRANSFORMATION);
+            } catch (GeneralSecurityException e) {
+              throw new OAuth2ServerException("Error when init cipher!", e);
+            }
+          });
+
+  private static final ThreadLocal<SecureRandom> random =
+      ThreadLocal.withInitial(SecureRandom::new);
+
+  private static final ThreadLocal<Buffers> buffers = ThreadLocal.withInitial(Buffers::new);
+
+  private final Key aesKey;
+  private final int noncePrefix;
+  private final AtomicLong nonceCounter = new AtomicLong();
+
+  TokenCodec(Key aesKey) {
+    this.aesKey = aesKey;
+    this.noncePrefix = new SecureRandom().nextInt();
+  }
+
+  /** Generate a new token string for the user and client with a random token value. */
+  String encode(String username, String clientID) {
+    byte[] tokenValue = new byte[TOKEN_VALUE_LENGTH];
+    random.get().nextBytes(tokenValue);
+    return encode(new UserClientTokenInfo(username, clientID, tokenValue));
+  }
+
+  String encode(UserClientTokenInfo info) {
+    byte[] username = info.getUsername().getBytes(StandardCharsets.UTF_8);
+    byte[] clientID = info.getClientID().getBytes(StandardCharsets.UTF_8);
+    byte[] tokenValue = info.getTokenValue();
+    if (username.length > MAX_FIELD_LENGTH || clientID.length > MAX_FIELD_LENGTH) {
+      throw new IllegalArgumentException("Username or client ID too long for a token!");
+    }
+
+    Buffers buffer = buffers.get();
+    int plainLength = 2 + username.length + 2 + clientID.length + tokenValue.length;
+    byte[] plain = buffer.plain(plainLength);
+    int offset = writeField(plain, 0, username);
+    offset = writeField(plain, offset, clientID);
+    System.arraycopy(tokenValue, 0, plain, offset, tokenValue.length);
+
+    int sealedLength = NONCE_LENGTH + plainLength + TAG_LENGTH;
+    byte[] sealed = buffer.sealed(sealedLength);
+    writeNonce(sealed);
+
+    try {
+      Cipher aes = cipher.get();
+      aes.init(
+          Cipher.ENCRYPT_MODE,
+          aesKey,
+          new GCMParameterSpec(TAG_LENGTH * 8, sealed, 0, NONCE_LENGTH));
+      aes.doFinal(plain, 0, plainLength, sealed, NONCE_LENGTH);
+    } catch (GeneralSecurityException e) {
+      throw new OAuth2ServerException("Error when encrypting token!", e);
+    }
+
+    char[] encoded = buffer.encoded((sealedLength * 4 + 2) / 3);
+    int encodedLength = encodeBase64Url(sealed, sealedLength, encoded);
+    return new String(encoded, 0, encodedLength);
+  }
+
+  /**
+   * Decrypt a token string generated by this codec.
+   *
+   * @throws InvalidParameterException if the token is malformed, tampered with or was encrypted
+   *     with another key
+   */
+  UserClientTokenInfo decode(String tokenString) {
+    Buffers buffer = buffers.get();
+    byte[] sealed = buffer.sealed(tokenString.length() * 3 / 4);
+    int sealedLength = decodeBase64Url(tokenString, sealed);
+    if (sealedLength < NONCE_LENGTH + TAG_LENGTH + 4) {
+      throw new InvalidParameterException("Malformed token!");
+    }
+
+    byte[] plain = buffer.plain(sealedLength - NONCE_LENGTH - TAG_LENGTH);
+    int plainLength;
+    try {
+      Cipher aes = cipher.get();
+      aes.init(
+          Cipher.DECRYPT_MODE,
+          aesKey,
+          new GCMParameterSpec(TAG_LENGTH * 8, sealed, 0, NONCE_LENGTH));
+      plainLength = aes.doFinal(sealed, NONCE_LENGTH, sealedLength - NONCE_LENGTH, plain, 0);
+    } catch (GeneralSecurityException e) {
+      log.log(Level.INFO, "Error when decrypting tokenString!", e);
+      throw new InvalidParameterException();
+    }
+
+    int usernameLength = readLength(plain, 0);
+    int clientIDOffset = 2 + usernameLength;
+    if (clientIDOffset + 2 > plainLength) {
+      throw new InvalidParameterException("Malformed token!");
+    }
+    int clientIDLength = readLength(plain, clientIDOffset);
+    int tokenValueOffset = clientIDOffset + 2 + clientIDLength;
+    if (tokenValueOffset > plainLength) {
+      throw new InvalidParameterException("Malformed token!");
+    }
+
+    return new UserClientTokenInfo(
+        new String(plain, 2, usernameLength, StandardCharsets.UTF_8),
+        new String(plain, clientIDOffset + 2, clientIDLength, StandardCharsets.UTF_8),
+        Arrays.copyOfRange(plain, tokenValueOffset, plainLength));
+  }
+
+  private void writeNonce(byte[] sealed) {
+    long counter = nonceCounter.getAndIncrement();
+    sealed[0] = (byte) (noncePrefix >>> 24);
+    sealed[1] = (byte) (noncePrefix >>> 16);
+    sealed[2] = (byte) (noncePrefix >>> 8);
+    sealed[3] = (byte) noncePrefix;
+    for (int i = 0; i < 8; i++) {
+      sealed[4 + i] = (byte) (counter >>> (56 - 8 * i));
+    }
+  }
+
+  private static int writeField(byte[] buffer, int offset, byte[] field) {
+    buffer[offset] = (byte) (field.length >>> 8);
+    buffer[offset + 1] = (byte) field.length;
+    System.arraycopy(field, 0, buffer, offset + 2, field.length);
+    return offset + 2 + field.length;
+  }
+
+  /** Base64url without padding, written into a reusable char buffer. */
+  private static int encodeBase64Url(byte[] src, int length, char[] dst) {
+    int out = 0;
+    int i = 0;
+    for (; i + 3 <= length; i += 3) {
+      int bits = (src[i] & 0xFF) << 16 | (src[i + 1] & 0xFF) << 8 | (src[i + 2] & 0xFF);
+      dst[out++] = BASE64_URL[bits >>> 18];
+      dst[out++] = BASE64_URL[(bits >>> 12) & 0x3F];
+      dst[out++] = BASE64_URL[(bits >>> 6) & 0x3F];
+      dst[out++] = BASE64_URL[bits & 0x3F];
+    }
+    if (length - i == 1) {
+      int bits = (src[i] & 0xFF) << 16;
+      dst[out++] = BASE64_URL[bits >>> 18];
+      dst[out++] = BASE64_URL[(bits >>> 12) & 0x3F];
+    } else if (length - i == 2) {
+      int bits = (src[i] & 0xFF) << 16 | (src[i + 1] & 0xFF) << 8;
+      dst[out++] = BASE64_URL[bits >>> 18];
+      dst[out++] = BASE64_URL[(bits >>> 12) & 0x3F];
+      dst[out++] = BASE64_URL[(bits >>> 6) & 0x3F];
+    }
+    return out;
+  }
+
+  private static int decodeBase64Url(String src, byte[] dst) {
+    if (src.length() % 4 == 1) {
+      throw new InvalidParameterException("Malformed token!");
+    }
+    int out = 0;
+    int bits = 0;
+    int bitCount = 0;
+    for (int i = 0; i < src.length(); i++) {
+      char c = src.charAt(i);
+      int value = c < 128 ? BASE64_URL_INVERSE[c] : -1;
+      if (value < 0) {
+        throw new InvalidParameterException("Malformed token!");
+      }
+      bits = bits << 6 | value;
+      bitCount += 6;
+      if (bitCount >= 8) {
+        bitCount -= 8;
+        dst[out++] = (byte) (bits >>> bitCount);
+      }
+    }
+    return out;
+  }
+
+  private static int readLength(byte[] buffer, int offset) {
+    return ((buffer[offset] & 0xFF) << 8) | (buffer[offset + 1] & 0xFF);
+  }
+
+  /** Per thread scratch buffers, grown on demand and reused across tokens. */
+  private static final class Buffers {
+    private byte[] plain = new byte[256];
+    private byte[] sealed = new byte[256];
+    private char[] encoded = new char[512];
+
+    byte[] plain(int length) {
+      if (plain.length < length) {
+        plain = new byte[length];
+      }
+      return plain;
+    }
+
+    byte[] sealed(int length) {
+      if (sealed.length < length) {
+        sealed = new byte[length];
+      }
+      return sealed;
+    }
+
+    char[] encoded(int length) {
+      if (encoded.length < length) {
+        encoded = new char[length];
+      }
+      return encoded;
+    }
+  }
+}
@@ -0,0 +1,48 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+
+package com.google.googleidentity.oauth2.token;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Hashes of token values, for {@link JdbcOAuth2TokenService} which only keeps the hashes so the
+ * rows are no use to anyone who reads them.
+ */
+public final class TokenHashes {
+
+  static final int KEY_LENGTH = 32;
+
+  private TokenHashes() {}
+
+  /** The SHA-256 of the token, the key its row is stored under. */
+  static byte[] key(String token) {
+    return Hashing.sha256().hashString(token, StandardCharsets.UTF_8).asBytes();
+  }
+
+  /** The identifier RISC events carry for the token, the hex SHA-512 of the SHA-512 of it. */
+  public static String riscIdentifier(String token) {
+    return HashCode.fromBytes(riscIdentifierBytes(token)).toString();
+  }
+
+  static byte[] riscIdentifierBytes(String token) {
+    byte[] hash = Hashing.sha512().hashString(token, StandardCharsets.UTF_8).asBytes();
+    return Hashing.sha512().hashBytes(hash).asBytes();
+  }
+}
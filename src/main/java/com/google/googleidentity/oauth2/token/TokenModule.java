@@ -16,16 +16,108 @@
 
 package com.google.googleidentity.oauth2.token;
 
+import com.google.googleidentity.oauth2.jwt.JwkStore;
+import com.google.googleidentity.persistence.DurableStore;
+import com.google.googleidentity.persistence.Persistence;
 import com.google.inject.AbstractModule;
+import com.google.inject.Provides;
+import com.google.inject.Scopes;
+import com.google.inject.Singleton;
+import com.google.inject.multibindings.Multibinder;
+import com.google.inject.name.Names;
 
+/**
+ * Bind the {@link OAuth2TokenService}. Without cloud sql, TOKEN_STORE=compact keeps the tokens in a
+ * {@link CompactInMemoryOAuth2TokenService}, which cannot rotate, expire or persist refresh tokens,
+ * so REFRESH_TOKEN_ROTATION=true, the refresh token lifetimes and PERSISTENCE_DIR are refused at
+ * startup. Otherwise with PERSISTENCE_DIR set the default in memory store is wrapped in a {@link
+ * DurableOAuth2TokenService}. With cloud sql the service is wrapped in a {@link
+ * CachingOAuth2TokenService} when TOKEN_CACHE_SIZE is set, revocations on other instances are then
+ * seen up to TOKEN_CACHE_TTL_SECONDS late, and with TOKEN_BLOOM_FILTER=true in a {@link
+ * BloomFilterOAuth2TokenService}. With ACCESS_TOKEN_FORMAT=jwt the result is wrapped in a {@link
+ * JwtOAuth2TokenService}, which hands out signed access tokens. It needs the signing keys shared
+ * through JWK_SET_FILE or JWK_SET, see {@link JwkStore}, and a revoked signed token stays valid
+ * until it expires.
+ */
 public class TokenModule extends AbstractModule {
 
+  private static final TokenCacheConfig CACHE_CONFIG = TokenCacheConfig.fromEnv();
+
+  private static final boolean COMPACT_STORE =
+      "compact".equalsIgnoreCase(System.getenv("TOKEN_STORE"));
+
+  private static final boolean ROTATE_REFRESH_TOKENS =
+      "true".equals(System.getenv("REFRESH_TOKEN_ROTATION"));
+
+  private static final boolean REFRESH_TOKEN_LIFETIMES_SET =
+      System.getenv("REFRESH_TOKEN_ABSOLUTE_LIFETIME_SECONDS") != null
+          || System.getenv("REFRESH_TOKEN_IDLE_LIFETIME_SECONDS") != null;
+
+  private static final boolean BLOOM_FILTER = "true".equals(System.getenv("TOKEN_BLOOM_FILTER"));
+
+  private static final boolean JWT_ACCESS_TOKENS =
+      "jwt".equalsIgnoreCase(System.getenv("ACCESS_TOKEN_FORMAT"));
+
   @Override
   protected void configure() {
-    bind(OAuth2TokenService.class)
-        .to(
-            ("true").equals(System.getenv("USE_CLOUD_SQL"))
-                ? JdbcOAuth2TokenService.class
-                : InMemoryOAuth2TokenService.class);
+    boolean useCloudSql = ("true").equals(System.getenv("USE_CLOUD_SQL"));
+    if (COMPACT_STORE && !useCloudSql && ROTATE_REFRESH_TOKENS) {
+      throw new IllegalStateException(
+          "TOKEN_STORE=compact does not rotate refresh tokens, unset REFRESH_TOKEN_ROTATION!");
+    }
+    if (COMPACT_STORE && !useCloudSql && REFRESH_TOKEN_LIFETIMES_SET) {
+      throw new IllegalStateException(
+          "TOKEN_STORE=compact does not expire refresh tokens, unset "
+              + "REFRESH_TOKEN_ABSOLUTE_LIFETIME_SECONDS and REFRESH_TOKEN_IDLE_LIFETIME_SECONDS!");
+    }
+    if (COMPACT_STORE && !useCloudSql && Persistence.isEnabled()) {
+      throw new IllegalStateException(
+          "TOKEN_STORE=compact is not persisted, unset TOKEN_STORE or PERSISTENCE_DIR!");
+    }
+    if (JWT_ACCESS_TOKENS && !JwkStore.isConfigured()) {
+      throw new IllegalStateException(
+          "ACCESS_TOKEN_FORMAT=jwt needs the signing keys in JWK_SET_FILE or JWK_SET!");
+    }
+    Class<? extends OAuth2TokenService> service;
+    if (useCloudSql) {
+      // Also bound as the AccessTokenScanner, which must be the same store.
+      bind(JdbcOAuth2TokenService.class).in(Scopes.SINGLETON);
+      service = JdbcOAuth2TokenService.class;
+    } else if (COMPACT_STORE) {
+      service = CompactInMemoryOAuth2TokenService.class;
+    } else if (Persistence.isEnabled()) {
+      Multibinder.newSetBinder(binder(), DurableStore.class)
+          .addBinding()
+          .to(DurableOAuth2TokenService.class);
+      service = DurableOAuth2TokenService.class;
+    } else {
+      service = InMemoryOAuth2TokenService.class;
+    }
+    if (useCloudSql && CACHE_CONFIG.isEnabled()) {
+      bind(OAuth2TokenService.class)
+          .annotatedWith(Names.named(CachingOAuth2TokenService.DELEGATE))
+          .to(service);
+      service = CachingOAuth2TokenService.class;
+    }
+    if (useCloudSql && BLOOM_FILTER) {
+      bind(AccessTokenScanner.class).to(JdbcOAuth2TokenService.class);
+      bind(OAuth2TokenService.class)
+          .annotatedWith(Names.named(BloomFilterOAuth2TokenService.DELEGATE))
+          .to(service);
+      service = BloomFilterOAuth2TokenService.class;
+    }
+    if (JWT_ACCESS_TOKENS) {
+      bind(OAuth2TokenService.class)
+          .annotatedWith(Names.named(JwtOAuth2TokenService.DELEGATE))
+          .to(service);
+      service = JwtOAuth2TokenService.class;
+    }
+    bind(OAuth2TokenService.class).to(service);
+  }
+
+  @Provides
+  @Singleton
+  public TokenCacheConfig provideTokenCacheConfig() {
+    return CACHE_CONFIG;
   }
 }
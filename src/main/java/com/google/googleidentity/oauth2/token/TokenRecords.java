@@ -0,0 +1,277 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.token;
+
+import java.util.Arrays;
+
+/**
+ * Token records of one {@link CompactTokenShard} in parallel primitive arrays, with an open
+ * addressing index on the 128 bit token id.
+ *
+ * <p>A record is a number into the arrays, it keeps its number until it is removed and removed
+ * numbers are reused. Besides the id a record has the interned user, client and scope set, the
+ * revocation epoch and, for access tokens, the expiry in unsigned epoch seconds and the record of
+ * its refresh token. The records of one user and client are linked into a list, whose head the
+ * shard keeps.
+ *
+ * <p>The index maps slots to record numbers plus one, 0 marks a free slot. It is probed linearly
+ * and kept at most half full, removing a record shifts the following slots back instead of leaving
+ * tombstones.
+ *
+ * <p>Not thread safe, the shard guards it with its lock.
+ */
+final class TokenRecords {
+
+  static final int NONE = -1;
+
+  private static final int INITIAL_CAPACITY = 16;
+
+  private final boolean accessTokens;
+
+  private long[] idHigh;
+  private long[] idLow;
+  private int[] user;
+  private int[] client;
+  private int[] scopes;
+  private long[] epoch;
+  private int[] expiry;
+  private int[] refresh;
+  private int[] next;
+  private int[] prev;
+
+  private int[] index;
+  private int highWater;
+  private int free = NONE;
+  private int size;
+
+  /** @param accessTokens whether the records have an expiry and a refresh token */
+  TokenRecords(boolean accessTokens) {
+    this.accessTokens = accessTokens;
+    clear();
+  }
+
+  void clear() {
+    idHigh = new long[INITIAL_CAPACITY];
+    idLow = new long[INITIAL_CAPACITY];
+    user = new int[INITIAL_CAPACITY];
+    client = new int[INITIAL_CAPACITY];
+    scopes = new int[INITIAL_CAPACITY];
+    epoch = new long[INITIAL_CAPACITY];
+    expiry = accessTokens ? new int[INITIAL_CAPACITY] : null;
+    refresh = accessTokens ? new int[INITIAL_CAPACITY] : null;
+    next = new int[INITIAL_CAPACITY];
+    prev = new int[INITIAL_CAPACITY];
+    index = new int[INITIAL_CAPACITY * 2];
+    highWater = 0;
+    free = NONE;
+    size = 0;
+  }
+
+  /** The record with the id, or {@link #NONE}. */
+  int find(long high, long low) {
+    int mask = index.length - 1;
+    for (int slot = hash(high, low) & mask; index[slot] != 0; slot = (slot + 1) & mask) {
+      int record = index[slot] - 1;
+      if (idHigh[record] == high && idLow[record] == low) {
+        return record;
+      }
+    }
+    return NONE;
+  }
+
+  /**
+   * Add a record for an id which is not there yet. {@code expiry} and {@code refresh} are ignored
+   * for refresh tokens.
+   *
+   * @return the record
+   */
+  int add(
+      long high, long low, int user, int client, int scopes, long epoch, int expiry, int refresh) {
+    int record;
+    if (free != NONE) {
+      record = free;
+      free = next[record];
+    } else {
+      if (highWater == idHigh.length) {
+        grow();
+      }
+      record = highWater++;
+    }
+    idHigh[record] = high;
+    idLow[record] = low;
+    this.user[record] = user;
+    this.client[record] = client;
+    this.scopes[record] = scopes;
+    this.epoch[record] = epoch;
+    if (accessTokens) {
+      this.expiry[record] = expiry;
+      this.refresh[record] = refresh;
+    }
+    next[record] = NONE;
+    prev[record] = NONE;
+
+    size++;
+    if (size * 2 > index.length) {
+      rehash(index.length * 2);
+    }
+    insert(record);
+    return record;
+  }
+
+  /** Remove a record, which must have been unlinked from its list. */
+  void remove(int record) {
+    removeFromIndex(record);
+    user[record] = NONE;
+    next[record] = free;
+    free = record;
+    size--;
+  }
+
+  /** Whether the number below {@link #highWater()} is a record which has not been removed. */
+  boolean isLive(int record) {
+    return user[record] != NONE;
+  }
+
+  /** Link the record in front of the list starting at {@code head} and return the new head. */
+  int link(int record, int head) {
+    next[record] = head;
+    prev[record] = NONE;
+    if (head != NONE) {
+      prev[head] = record;
+    }
+    return record;
+  }
+
+  /** Unlink the record from the list starting at {@code head} and return the new head. */
+  int unlink(int record, int head) {
+    int before = prev[record];
+    int after = next[record];
+    if (after != NONE) {
+      prev[after] = before;
+    }
+    if (before != NONE) {
+      next[before] = after;
+      return head;
+    }
+    return after;
+  }
+
+  long idHigh(int record) {
+    return idHigh[record];
+  }
+
+  long idLow(int record) {
+    return idLow[record];
+  }
+
+  int user(int record) {
+    return user[record];
+  }
+
+  int client(int record) {
+    return client[record];
+  }
+
+  int scopes(int record) {
+    return scopes[record];
+  }
+
+  long epoch(int record) {
+    return epoch[record];
+  }
+
+  /** The expiry in epoch seconds. */
+  long expiry(int record) {
+    return Integer.toUnsignedLong(expiry[record]);
+  }
+
+  int refresh(int record) {
+    return refresh[record];
+  }
+
+  /** The next record of the list, or {@link #NONE}. */
+  int next(int record) {
+    return next[record];
+  }
+
+  /** One more than the highest record number ever used. */
+  int highWater() {
+    return highWater;
+  }
+
+  int size() {
+    return size;
+  }
+
+  private void grow() {
+    int capacity = idHigh.length * 2;
+    idHigh = Arrays.copyOf(idHigh, capacity);
+    idLow = Arrays.copyOf(idLow, capacity);
+    user = Arrays.copyOf(user, capacity);
+    client = Arrays.copyOf(client, capacity);
+    scopes = Arrays.copyOf(scopes, capacity);
+    epoch = Arrays.copyOf(epoch, capacity);
+    if (accessTokens) {
+      expiry = Arrays.copyOf(expiry, capacity);
+      refresh = Arrays.copyOf(refresh, capacity);
+    }
+    next = Arrays.copyOf(next, capacity);
+    prev = Arrays.copyOf(prev, capacity);
+  }
+
+  private void rehash(int length) {
+    int[] old = index;
+    index = new int[length];
+    for (int entry : old) {
+      if (entry != 0) {
+        insert(entry - 1);
+      }
+    }
+  }
+
+  private void insert(int record) {
+    int mask = index.length - 1;
+    int slot = hash(idHigh[record], idLow[record]) & mask;
+    while (index[slot] != 0) {
+      slot = (slot + 1) & mask;
+    }
+    index[slot] = record + 1;
+  }
+
+  private void removeFromIndex(int record) {
+    int mask = index.length - 1;
+    int hole = hash(idHigh[record], idLow[record]) & mask;
+    while (index[hole] != record + 1) {
+      hole = (hole + 1) & mask;
+    }
+    // Move back every following entry which may sit in the hole, up to the next free slot.
+    for (int slot = (hole + 1) & mask; index[slot] != 0; slot = (slot + 1) & mask) {
+      int entry = index[slot] - 1;
+      int home = hash(idHigh[entry], idLow[entry]) & mask;
+      if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+        index[hole] = index[slot];
+        hole = slot;
+      }
+    }
+    index[hole] = 0;
+  }
+
+  private static int hash(long high, long low) {
+    long mixed = (high ^ Long.rotateLeft(low, 32)) * 0x9E3779B97F4A7C15L;
+    return (int) (mixed >>> 32);
+  }
+}
@@ -16,50 +16,21 @@
 
 package com.google.googleidentity.oauth2.token;
 
-import com.google.common.io.BaseEncoding;
-
-import com.google.googleidentity.oauth2.exception.OAuth2ServerException;
-import javax.crypto.Cipher;
-import java.nio.charset.StandardCharsets;
-import java.security.InvalidParameterException;
-import java.security.Key;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-
-/** Used for encrypt username and clientID */
+/**
+ * The username, client ID and random value carried inside an in memory token string. See {@link
+ * TokenCodec} for how it is encrypted.
+ */
 final class UserClientTokenInfo {
-  private static final Logger log = Logger.getLogger("UserClientTokenInfo");
-  private static final String delimiter = "\t";
   private final String username;
   private final String clientID;
-  private final String tokenValue;
+  private final byte[] tokenValue;
 
-  UserClientTokenInfo(String username, String clientID, String tokenValue) {
+  UserClientTokenInfo(String username, String clientID, byte[] tokenValue) {
     this.username = username;
     this.clientID = clientID;
     this.tokenValue = tokenValue;
   }
 
-  public static UserClientTokenInfo decryptTokenString(Key aesKey, String tokenString) {
-    try {
-      Cipher cipher = Cipher.getInstance("AES");
-      byte[] bytesToDecrypt = BaseEncoding.base64Url().withPadChar('*').decode(tokenString);
-      cipher.init(Cipher.DECRYPT_MODE, aesKey);
-      byte[] decryptedBytes = cipher.doFinal(bytesToDecrypt);
-      String tokenInfoString = new String(decryptedBytes, StandardCharsets.UTF_8);
-      String[] tokenInfo = tokenInfoString.split(delimiter);
-
-      if (tokenInfo.length != 3) {
-        throw new InvalidParameterException();
-      }
-
-      return new UserClientTokenInfo(tokenInfo[0], tokenInfo[1], tokenInfo[2]);
-    } catch (Exception e) {
-      log.log(Level.INFO, "Error when decrypting tokenString!", e);
-      throw new InvalidParameterException();
-    }
-  }
-
   public String getUsername() {
     return username;
   }
@@ -68,25 +39,8 @@ final class UserClientTokenInfo {
     return clientID;
   }
 
-  /** The random string generated for a token. */
-  public String getTokenValue() {
+  /** The random bytes generated for a token. Not copied, callers must not modify it. */
+  public byte[] getTokenValue() {
     return tokenValue;
   }
-
-  /**
-   * The string contains information of username, client ID and tokenValue. It is encrypt and send
-   * to user as token string.
-   */
-  public String getEncryptTokenString(Key aesKey) {
-    try {
-      String tokenInfo = username + delimiter + clientID + delimiter + tokenValue;
-      Cipher cipher = Cipher.getInstance("AES");
-      cipher.init(Cipher.ENCRYPT_MODE, aesKey);
-      byte[] bytesToEncrypt = tokenInfo.getBytes(StandardCharsets.UTF_8);
-      byte[] encryptedBytes = cipher.doFinal(bytesToEncrypt);
-      return BaseEncoding.base64Url().withPadChar('*').encode(encryptedBytes);
-    } catch (Exception e) {
-      throw new OAuth2ServerException(e);
-    }
-  }
 }
@@ -18,9 +18,8 @@ package com.google.googleidentity.oauth2.token;
 
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 
-import java.time.Instant;
-import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -28,65 +27,111 @@ import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
-/** Store user tokens in memory */
+/**
+ * Store user tokens in memory.
+ *
+ * <p>Reads never lock. Updates only use atomic map operations, a client is added with {@code
+ * computeIfAbsent} and only removed together with the check that it is empty. {@link
+ * InMemoryOAuth2TokenService} makes every update of a user inside a {@code compute} on its entry,
+ * so updates of one user are also ordered against adding and removing the user itself.
+ */
 public final class UserTokens {
 
   private final String username;
-  Map<String, ClientTokens> clientTokensMap = new ConcurrentHashMap<>();
+  final Map<String, ClientTokens> clientTokensMap = new ConcurrentHashMap<>();
+
+  /** Clock bit of the cold tier, set on use and cleared by each sweep. */
+  private volatile boolean referenced = true;
 
   UserTokens(String username) {
     this.username = username;
   }
 
   public Optional<OAuth2AccessToken> readAccessToken(String clientID, String tokenValue) {
-    if (clientTokensMap.containsKey(clientID)) {
-      return clientTokensMap.get(clientID).readAccessToken(tokenValue);
-    } else {
-      return Optional.empty();
-    }
+    ClientTokens client = clientTokensMap.get(clientID);
+    return client == null ? Optional.empty() : client.readAccessToken(tokenValue);
   }
 
-  public void addAccessToken(String clientID, OAuth2AccessToken token) {
-    if (!clientTokensMap.containsKey(clientID)) {
-      clientTokensMap.put(clientID, new ClientTokens(clientID));
+  /**
+   * Add an access token, to the token group of its refresh token if it has one.
+   *
+   * @return false if the refresh token is gone, the access token is not added then
+   */
+  public boolean addAccessToken(String clientID, OAuth2AccessToken token) {
+    if (clientTokensMap.computeIfAbsent(clientID, ClientTokens::new).addAccessToken(token)) {
+      return true;
     }
-    clientTokensMap.get(clientID).addAccessToken(token);
+    removeIfEmpty(clientID);
+    return false;
+  }
+
+  /**
+   * Add a refresh token. A token of a family which is already there takes the place of the token
+   * the family had, keeping the access tokens of the family.
+   *
+   * @return the token of the family it superseded, or null
+   */
+  public OAuth2RefreshToken addRefreshToken(String clientID, OAuth2RefreshToken token) {
+    return clientTokensMap.computeIfAbsent(clientID, ClientTokens::new).addRefreshToken(token);
+  }
+
+  /**
+   * Replace a refresh token by a copy with other fields, e.g. its last use, keeping its access
+   * tokens.
+   *
+   * @return false if {@code current} is no longer there
+   */
+  public boolean replaceRefreshToken(
+      String clientID, OAuth2RefreshToken current, OAuth2RefreshToken replacement) {
+    ClientTokens client = clientTokensMap.get(clientID);
+    return client != null && client.replaceRefreshToken(current, replacement);
   }
 
-  public void addRefreshToken(String clientID, OAuth2RefreshToken token) {
-    if (!clientTokensMap.containsKey(clientID)) {
-      clientTokensMap.put(clientID, new ClientTokens(clientID));
+  /** The current refresh token of the family, or null if the family is gone. */
+  public OAuth2RefreshToken readFamily(String clientID, String familyID) {
+    ClientTokens client = clientTokensMap.get(clientID);
+    if (client == null) {
+      return null;
     }
-    clientTokensMap.get(clientID).addRefreshToken(token);
+    ClientTokens.TokenGroup group = client.refreshTokenMap.get(familyID);
+    return group == null ? null : group.getRefreshToken();
   }
 
   public List<OAuth2RefreshToken> listRefreshTokens(String clientID) {
-    if (clientTokensMap.containsKey(clientID)) {
-      return clientTokensMap.get(clientID).listRefreshTokens();
-    } else {
-      return ImmutableList.of();
-    }
+    ClientTokens client = clientTokensMap.get(clientID);
+    return client == null ? ImmutableList.of() : client.listRefreshTokens();
   }
 
   public Optional<OAuth2RefreshToken> readRefreshToken(String clientID, String tokenString) {
-    if (clientTokensMap.containsKey(clientID)) {
-      return clientTokensMap.get(clientID).readRefreshToken(tokenString);
-    } else {
-      return Optional.empty();
-    }
+    ClientTokens client = clientTokensMap.get(clientID);
+    return client == null ? Optional.empty() : client.readRefreshToken(tokenString);
+  }
+
+  public boolean isEmpty() {
+    return clientTokensMap.isEmpty();
   }
 
-  public void clearExpiredTokens() {
-    for (Map.Entry<String, ClientTokens> client : clientTokensMap.entrySet()) {
-      client.getValue().clearExpiredTokens();
-      if (client.getValue().isEmpty()) {
-        clientTokensMap.remove(client.getKey());
+  public boolean hasAccessTokens() {
+    for (ClientTokens client : clientTokensMap.values()) {
+      if (!client.accessTokenMap.isEmpty()) {
+        return true;
       }
     }
+    return false;
   }
 
-  public boolean isEmpty() {
-    return clientTokensMap.isEmpty();
+  /** Mark the user as used since the last sweep of the cold tier. */
+  void reference() {
+    if (!referenced) {
+      referenced = true;
+    }
+  }
+
+  /** @return whether the user was used since the last call */
+  boolean clearReferenced() {
+    boolean wasReferenced = referenced;
+    referenced = false;
+    return wasReferenced;
   }
 
   public List<String> listClients() {
@@ -94,58 +139,91 @@ public final class UserTokens {
   }
 
   public List<OAuth2AccessToken> listAccessTokens(String clientID) {
-    if (clientTokensMap.containsKey(clientID)) {
-      return clientTokensMap.get(clientID).listAccessTokens();
-    } else {
-      return ImmutableList.of();
-    }
+    ClientTokens client = clientTokensMap.get(clientID);
+    return client == null ? ImmutableList.of() : client.listAccessTokens();
   }
 
-  public boolean revokeByAccessToken(OAuth2AccessToken accessToken) {
-    if (Strings.isNullOrEmpty(accessToken.getRefreshToken())) {
-      clientTokensMap
-          .get(accessToken.getClientId())
-          .accessTokenMap
-          .remove(accessToken.getAccessToken());
-      return true;
-    } else {
-      Optional<OAuth2RefreshToken> refreshToken =
-          clientTokensMap
-              .get(accessToken.getClientId())
-              .readRefreshToken(accessToken.getRefreshToken());
-      if (!refreshToken.isPresent()) {
-        return false;
-      }
-      return revokeByRefreshToken(refreshToken.get());
+  /** Remove an access token which has no refresh token. */
+  public boolean revokeAccessToken(String clientID, String accessToken) {
+    ClientTokens client = clientTokensMap.get(clientID);
+    if (client == null || client.accessTokenMap.remove(accessToken) == null) {
+      return false;
     }
+    removeIfEmpty(clientID);
+    return true;
   }
 
-  public boolean revokeByRefreshToken(OAuth2RefreshToken refreshToken) {
-    for (String accessToken :
-        clientTokensMap
-            .get(refreshToken.getClientId())
-            .refreshTokenMap
-            .get(refreshToken.getRefreshToken())
-            .accessTokens) {
-      clientTokensMap.get(refreshToken.getClientId()).accessTokenMap.remove(accessToken);
+  /**
+   * Remove an expired access token, also from the token group of its refresh token.
+   *
+   * @return true if the token was still there
+   */
+  public boolean removeExpiredAccessToken(OAuth2AccessToken token) {
+    ClientTokens client = clientTokensMap.get(token.getClientId());
+    if (client == null || !client.removeAccessToken(token)) {
+      return false;
     }
-    clientTokensMap
-        .get(refreshToken.getClientId())
-        .refreshTokenMap
-        .remove(refreshToken.getRefreshToken());
+    removeIfEmpty(token.getClientId());
     return true;
   }
 
-  public boolean revokeUserClientTokens(String clientID) {
-    boolean result = clientTokensMap.containsKey(clientID);
-    clientTokensMap.remove(clientID);
-    return result;
+  /**
+   * @return the access token strings removed together with the refresh token, for a token of a
+   *     family those of the whole family
+   */
+  public Set<String> revokeByRefreshToken(OAuth2RefreshToken refreshToken) {
+    ClientTokens client = clientTokensMap.get(refreshToken.getClientId());
+    if (client == null) {
+      return ImmutableSet.of();
+    }
+    ClientTokens.TokenGroup group = client.refreshTokenMap.get(groupKey(refreshToken));
+    if (group == null
+        || !group.getRefreshToken().getRefreshToken().equals(refreshToken.getRefreshToken())) {
+      return ImmutableSet.of();
+    }
+    client.refreshTokenMap.remove(groupKey(refreshToken));
+    for (String accessToken : group.getAccessTokens()) {
+      client.accessTokenMap.remove(accessToken);
+    }
+    removeIfEmpty(refreshToken.getClientId());
+    return group.getAccessTokens();
+  }
+
+  /** @return all access and refresh token strings removed */
+  public List<String> revokeUserClientTokens(String clientID) {
+    ClientTokens client = clientTokensMap.remove(clientID);
+    if (client == null) {
+      return ImmutableList.of();
+    }
+    return ImmutableList.<String>builder()
+        .addAll(client.accessTokenMap.keySet())
+        .addAll(client.refreshTokenMap.keySet())
+        .build();
+  }
+
+  /**
+   * The key of the token group of a refresh token, its family if it has one, so the group outlives
+   * the rotation of the token.
+   */
+  private static String groupKey(OAuth2RefreshToken token) {
+    return token.getFamilyId().isEmpty() ? token.getRefreshToken() : token.getFamilyId();
+  }
+
+  /** The key of the token group an access token with a refresh token belongs to. */
+  private static String groupKey(OAuth2AccessToken token) {
+    return token.getFamilyId().isEmpty() ? token.getRefreshToken() : token.getFamilyId();
+  }
+
+  /** Remove the client if it has no tokens, atomically, so a token added meanwhile is kept. */
+  private void removeIfEmpty(String clientID) {
+    clientTokensMap.computeIfPresent(clientID, (key, client) -> client.isEmpty() ? null : client);
   }
 
   private static final class ClientTokens {
 
     private final String clientID;
     private final Map<String, OAuth2AccessToken> accessTokenMap = new ConcurrentHashMap<>();
+    /** Token groups by {@link UserTokens#groupKey}. */
     private final Map<String, TokenGroup> refreshTokenMap = new ConcurrentHashMap<>();
 
     ClientTokens(String clientID) {
@@ -156,37 +234,70 @@ public final class UserTokens {
       return Optional.ofNullable(accessTokenMap.get(tokenValue));
     }
 
-    public void addAccessToken(OAuth2AccessToken token) {
-      accessTokenMap.put(token.getAccessToken(), token);
+    /** @return false if the refresh token of the access token is gone */
+    public boolean addAccessToken(OAuth2AccessToken token) {
       if (!Strings.isNullOrEmpty(token.getRefreshToken())) {
-        refreshTokenMap.get(token.getRefreshToken()).getAccessTokens().add(token.getAccessToken());
+        // Joins the group while holding its entry, so a revocation of the refresh token either
+        // sees the access token in the group or the group is already gone here.
+        TokenGroup group =
+            refreshTokenMap.computeIfPresent(
+                groupKey(token),
+                (key, tokens) -> {
+                  tokens.getAccessTokens().add(token.getAccessToken());
+                  accessTokenMap.put(token.getAccessToken(), token);
+                  return tokens;
+                });
+        return group != null;
+      }
+      accessTokenMap.put(token.getAccessToken(), token);
+      return true;
+    }
+
+    public OAuth2RefreshToken addRefreshToken(OAuth2RefreshToken token) {
+      TokenGroup group = refreshTokenMap.get(groupKey(token));
+      if (group != null && !token.getFamilyId().isEmpty()) {
+        OAuth2RefreshToken superseded = group.getRefreshToken();
+        group.setRefreshToken(token);
+        return superseded;
       }
+      refreshTokenMap.put(groupKey(token), new TokenGroup(token));
+      return null;
     }
 
-    public void addRefreshToken(OAuth2RefreshToken token) {
-      refreshTokenMap.put(token.getRefreshToken(), new TokenGroup(token));
+    public boolean replaceRefreshToken(OAuth2RefreshToken current, OAuth2RefreshToken replacement) {
+      TokenGroup group = refreshTokenMap.get(groupKey(current));
+      if (group == null || !group.getRefreshToken().equals(current)) {
+        return false;
+      }
+      group.setRefreshToken(replacement);
+      return true;
     }
 
     public Optional<OAuth2RefreshToken> readRefreshToken(String tokenString) {
-      if (refreshTokenMap.containsKey(tokenString)) {
-        return Optional.of(refreshTokenMap.get(tokenString).getRefreshToken());
-      } else {
-        return Optional.empty();
+      TokenGroup group = refreshTokenMap.get(tokenString);
+      if (group != null) {
+        return Optional.of(group.getRefreshToken());
       }
+      // The group of a rotated token is under its family, the service reads through its index.
+      for (TokenGroup tokens : refreshTokenMap.values()) {
+        if (tokens.getRefreshToken().getRefreshToken().equals(tokenString)) {
+          return Optional.of(tokens.getRefreshToken());
+        }
+      }
+      return Optional.empty();
     }
 
-    public void clearExpiredTokens() {
-      for (Map.Entry<String, OAuth2AccessToken> token : accessTokenMap.entrySet()) {
-        if (Instant.ofEpochSecond(token.getValue().getExpiredTime()).isBefore(Instant.now())) {
-          if (!Strings.isNullOrEmpty(token.getValue().getRefreshToken())) {
-            refreshTokenMap
-                .get(token.getValue().getRefreshToken())
-                .getAccessTokens()
-                .remove(token.getKey());
-          }
-          accessTokenMap.remove(token.getKey());
+    public boolean removeAccessToken(OAuth2AccessToken token) {
+      if (accessTokenMap.remove(token.getAccessToken()) == null) {
+        return false;
+      }
+      if (!Strings.isNullOrEmpty(token.getRefreshToken())) {
+        TokenGroup group = refreshTokenMap.get(groupKey(token));
+        if (group != null) {
+          group.getAccessTokens().remove(token.getAccessToken());
         }
       }
+      return true;
     }
 
     public boolean isEmpty() {
@@ -206,8 +317,9 @@ public final class UserTokens {
     }
 
     private static final class TokenGroup {
-      private final OAuth2RefreshToken refreshToken;
-      private Set<String> accessTokens = new HashSet<>();
+      /** Replaced when the token is rotated or its last use written, in an update of the user. */
+      private volatile OAuth2RefreshToken refreshToken;
+      private final Set<String> accessTokens = ConcurrentHashMap.newKeySet();
 
       TokenGroup(OAuth2RefreshToken refreshToken) {
         this.refreshToken = refreshToken;
@@ -217,6 +329,10 @@ public final class UserTokens {
         return refreshToken;
       }
 
+      void setRefreshToken(OAuth2RefreshToken refreshToken) {
+        this.refreshToken = refreshToken;
+      }
+
       public Set<String> getAccessTokens() {
         return accessTokens;
       }
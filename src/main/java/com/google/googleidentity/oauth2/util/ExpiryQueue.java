@@ -0,0 +1,92 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.util;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Keys bucketed by the time they expire, so expired keys can be found without scanning the live
+ * ones.
+ *
+ * <p>Each bucket covers {@code granularity} units of time (the unit is up to the caller, e.g. epoch
+ * seconds). {@link #pollExpired(long)} only walks the buckets that are entirely in the past, so the
+ * work per call is proportional to the number of keys that actually expired. Keys may come out up
+ * to one bucket late, never early.
+ *
+ * <p>Keys are expected to expire in the future when added: a key added to a bucket which is being
+ * polled at the same time may be missed.
+ */
+public final class ExpiryQueue<K> {
+
+  private final long granularity;
+  private final ConcurrentSkipListMap<Long, Set<K>> buckets = new ConcurrentSkipListMap<>();
+
+  public ExpiryQueue(long granularity) {
+    if (granularity <= 0) {
+      throw new IllegalArgumentException("granularity must be positive");
+    }
+    this.granularity = granularity;
+  }
+
+  /** Track a key which expires at {@code expiredTime}. */
+  public void add(K key, long expiredTime) {
+    buckets.computeIfAbsent(bucket(expiredTime), k -> ConcurrentHashMap.newKeySet()).add(key);
+  }
+
+  /** Stop tracking a key, e.g. after it is revoked. {@code expiredTime} must be the one added. */
+  public void remove(K key, long expiredTime) {
+    Set<K> keys = buckets.get(bucket(expiredTime));
+    if (keys != null) {
+      keys.remove(key);
+    }
+  }
+
+  /** Remove and return all keys whose bucket ended at or before {@code now}. */
+  public List<K> pollExpired(long now) {
+    List<K> expired = new LinkedList<>();
+    ConcurrentNavigableMap<Long, Set<K>> due = buckets.headMap(bucket(now));
+    for (Map.Entry<Long, Set<K>> entry = due.pollFirstEntry();
+        entry != null;
+        entry = due.pollFirstEntry()) {
+      expired.addAll(entry.getValue());
+    }
+    return expired;
+  }
+
+  public void clear() {
+    buckets.clear();
+  }
+
+  /** Number of keys currently tracked. Walks every bucket, for tests and monitoring only. */
+  public int size() {
+    int size = 0;
+    for (Set<K> keys : buckets.values()) {
+      size += keys.size();
+    }
+    return size;
+  }
+
+  private long bucket(long time) {
+    return Math.floorDiv(time, granularity);
+  }
+}
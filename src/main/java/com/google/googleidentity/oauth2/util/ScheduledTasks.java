@@ -0,0 +1,57 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.util;
+
+import java.util.concurrent.Callable;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/** Helpers for the tasks stores run on a {@link java.util.concurrent.ScheduledExecutorService}. */
+public final class ScheduledTasks {
+
+  private ScheduledTasks() {}
+
+  /**
+   * Wrap the task so a runtime exception is logged as a warning instead of cancelling the later
+   * runs of the task, as the executor would.
+   */
+  public static Runnable quietly(Logger log, String error, Runnable task) {
+    return () -> {
+      try {
+        task.run();
+      } catch (RuntimeException exception) {
+        log.log(Level.WARNING, error, exception);
+      }
+    };
+  }
+
+  /**
+   * Like {@link #quietly(Logger, String, Runnable)} for a task which throws checked exceptions. An
+   * interrupt ends the run and is kept on the thread, any other exception is logged.
+   */
+  public static Runnable quietly(Logger log, String error, Callable<?> task) {
+    return () -> {
+      try {
+        task.call();
+      } catch (InterruptedException exception) {
+        Thread.currentThread().interrupt();
+      } catch (Exception exception) {
+        log.log(Level.WARNING, error, exception);
+      }
+    };
+  }
+}
@@ -0,0 +1,44 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.persistence;
+
+import java.io.IOException;
+
+/**
+ * An in memory store whose mutations are logged to the {@link Persistence} write-ahead log and
+ * recovered from it on start.
+ *
+ * <p>A store applies a mutation and appends its record atomically for the key it affects, so
+ * records of a key are logged in the order they were applied, then waits for the record to be
+ * durable before returning. Applying a record has to be idempotent: a snapshot is taken while the
+ * store changes, and records logged during it are applied on top of entries which may already
+ * include them.
+ */
+public interface DurableStore {
+
+  /** Identifies the records of the store, unique among the stores. */
+  byte getStoreId();
+
+  /** Write records which recreate every entry of the store. */
+  void writeSnapshot(SnapshotWriter snapshot) throws IOException;
+
+  /**
+   * Apply a record of the store during recovery, without logging it. Records of different keys
+   * are applied concurrently.
+   */
+  void apply(LogRecord record) throws IOException;
+}
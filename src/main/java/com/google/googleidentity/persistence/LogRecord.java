@@ -0,0 +1,126 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.persistence;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * A mutation of a {@link DurableStore}, as written to the {@link WriteAheadLog} and to snapshots.
+ *
+ * <p>On disk a record is its length, a CRC32 of the rest, the store id, the record type, whether it
+ * is a barrier, the key hash and the payload. Records with the same key are replayed in order and
+ * records with different keys concurrently, a barrier is replayed after every record before it and
+ * before every record after it, e.g. to clear a whole store.
+ */
+public final class LogRecord {
+
+  /** Length, CRC32, store, type, barrier and key. */
+  static final int HEADER_LENGTH = 4 + 4 + 1 + 1 + 1 + 4;
+
+  private final byte store;
+  private final byte type;
+  private final boolean barrier;
+  private final int key;
+  private final byte[] payload;
+
+  private LogRecord(byte store, byte type, boolean barrier, int key, byte[] payload) {
+    this.store = store;
+    this.type = type;
+    this.barrier = barrier;
+    this.key = key;
+    this.payload = payload;
+  }
+
+  /** A record of the entry with the key, ordered with the other records of the key. */
+  public static LogRecord of(byte store, byte type, String key, byte[] payload) {
+    return new LogRecord(store, type, false, key.hashCode(), payload);
+  }
+
+  /** A record of the whole store, ordered with all its other records. */
+  public static LogRecord barrier(byte store, byte type, byte[] payload) {
+    return new LogRecord(store, type, true, 0, payload);
+  }
+
+  public byte getStore() {
+    return store;
+  }
+
+  public byte getType() {
+    return type;
+  }
+
+  public boolean isBarrier() {
+    return barrier;
+  }
+
+  public int getKey() {
+    return key;
+  }
+
+  public byte[] getPayload() {
+    return payload;
+  }
+
+  int encodedLength() {
+    return HEADER_LENGTH + payload.length;
+  }
+
+  void writeTo(ByteBuffer buffer) {
+    int start = buffer.position();
+    buffer.putInt(encodedLength() - 8);
+    buffer.putInt(0);
+    buffer.put(store).put(type).put(barrier ? (byte) 1 : 0).putInt(key).put(payload);
+    buffer.putInt(start + 4, crc(buffer, start + 8, encodedLength() - 8));
+  }
+
+  /**
+   * Read the record at the position of the buffer and move past it.
+   *
+   * @return null if the buffer ends within the record or the record is corrupt, as the last record
+   *     of a log is after a crash
+   */
+  static LogRecord readFrom(ByteBuffer buffer) {
+    if (buffer.remaining() < 8) {
+      return null;
+    }
+    int start = buffer.position();
+    int length = buffer.getInt(start);
+    if (length < HEADER_LENGTH - 8 || length > buffer.remaining() - 8) {
+      return null;
+    }
+    if (buffer.getInt(start + 4) != crc(buffer, start + 8, length)) {
+      return null;
+    }
+    buffer.position(start + 8);
+    byte store = buffer.get();
+    byte type = buffer.get();
+    boolean barrier = buffer.get() != 0;
+    int key = buffer.getInt();
+    byte[] payload = new byte[length - (HEADER_LENGTH - 8)];
+    buffer.get(payload);
+    return new LogRecord(store, type, barrier, key, payload);
+  }
+
+  private static int crc(ByteBuffer buffer, int offset, int length) {
+    CRC32 crc = new CRC32();
+    ByteBuffer range = buffer.duplicate();
+    range.limit(offset + length).position(offset);
+    crc.update(range);
+    return (int) crc.getValue();
+  }
+}
@@ -0,0 +1,369 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.persistence;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the in memory stores across restarts with a write-ahead log and periodic snapshots, in the
+ * directory given by PERSISTENCE_DIR. Without it nothing is persisted.
+ *
+ * <p>Every PERSISTENCE_SNAPSHOT_INTERVAL_SECONDS a checkpoint rotates the log to a new segment,
+ * then writes a snapshot numbered like the new segment while the stores keep changing, and deletes
+ * the older segments and snapshots once the snapshot is done. Recovery loads the latest done
+ * snapshot and replays the segments from its number on. Snapshot partitions are loaded in
+ * parallel, log records are replayed by PERSISTENCE_THREADS threads partitioned by key, so records
+ * of the same key keep their order.
+ *
+ * <p>Reads never touch the log, writes wait for the fsync of their record, which the log shares
+ * between concurrent writes.
+ */
+@Singleton
+public final class Persistence {
+
+  private static final Logger log = Logger.getLogger("Persistence");
+
+  private static final String DIRECTORY = System.getenv("PERSISTENCE_DIR");
+
+  private static final long SNAPSHOT_INTERVAL_SECONDS =
+      System.getenv("PERSISTENCE_SNAPSHOT_INTERVAL_SECONDS") == null
+          ? 300
+          : Long.parseLong(System.getenv("PERSISTENCE_SNAPSHOT_INTERVAL_SECONDS"));
+
+  private static final int THREADS =
+      System.getenv("PERSISTENCE_THREADS") == null
+          ? Runtime.getRuntime().availableProcessors()
+          : Integer.parseInt(System.getenv("PERSISTENCE_THREADS"));
+
+  /** Records replayed by a thread are handed over in batches of this size. */
+  private static final int REPLAY_BATCH_SIZE = 1024;
+
+  private final Path directory;
+  private final int threads;
+  private final Map<Byte, DurableStore> stores = new HashMap<>();
+
+  private volatile WriteAheadLog wal;
+  private ScheduledExecutorService checkpoints;
+
+  @Inject
+  public Persistence() {
+    this(DIRECTORY == null ? null : Paths.get(DIRECTORY), THREADS);
+  }
+
+  @VisibleForTesting
+  public Persistence(Path directory, int threads) {
+    this.directory = directory;
+    this.threads = threads;
+  }
+
+  public static boolean isEnabled() {
+    return DIRECTORY != null;
+  }
+
+  /**
+   * Recover the stores from the directory, then log their mutations and checkpoint them every
+   * interval.
+   */
+  public void start(Set<DurableStore> durableStores) throws IOException {
+    recover(durableStores);
+    checkpoints =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "PersistenceCheckpoint");
+              thread.setDaemon(true);
+              return thread;
+            });
+    checkpoints.scheduleWithFixedDelay(
+        () -> {
+          try {
+            checkpoint();
+          } catch (IOException | RuntimeException exception) {
+            log.log(Level.WARNING, "Error when writing a snapshot!", exception);
+          }
+        },
+        SNAPSHOT_INTERVAL_SECONDS,
+        SNAPSHOT_INTERVAL_SECONDS,
+        TimeUnit.SECONDS);
+  }
+
+  /** Recover the stores and open a new log segment, without scheduling checkpoints. */
+  @VisibleForTesting
+  public synchronized void recover(Set<DurableStore> durableStores) throws IOException {
+    for (DurableStore store : durableStores) {
+      if (stores.put(store.getStoreId(), store) != null) {
+        throw new IllegalArgumentException("Duplicate store id " + store.getStoreId());
+      }
+    }
+    Files.createDirectories(directory);
+    long start = System.nanoTime();
+    long snapshot = latestSnapshot();
+    long snapshotRecords = snapshot < 0 ? 0 : loadSnapshot(snapshot);
+    long logRecords = 0;
+    long lastSegment = Math.max(snapshot, 0);
+    for (long segment : list("wal-", ".log")) {
+      if (segment >= snapshot) {
+        logRecords += replay(directory.resolve(RecordFile.segmentName(segment)));
+        lastSegment = segment;
+      }
+    }
+    wal = new WriteAheadLog(directory, lastSegment + 1);
+    log.info(
+        "Recovered "
+            + snapshotRecords
+            + " snapshot records and "
+            + logRecords
+            + " log records in "
+            + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+            + " ms.");
+  }
+
+  /**
+   * Log a mutation, to be called in the same critical section which applied it.
+   *
+   * @return completes once the record is durable, wait for it with {@link #await} after leaving
+   *     the critical section
+   */
+  public CompletableFuture<Void> append(LogRecord record) {
+    WriteAheadLog current = wal;
+    if (current == null) {
+      throw new IllegalStateException("Persistence has not been started");
+    }
+    return current.append(record);
+  }
+
+  /** Wait until a record is durable. */
+  public static void await(CompletableFuture<Void> durable) {
+    try {
+      durable.get();
+    } catch (InterruptedException exception) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted when writing the write-ahead log!", exception);
+    } catch (ExecutionException exception) {
+      throw new UncheckedIOException(
+          "Error when writing the write-ahead log!",
+          exception.getCause() instanceof IOException
+              ? (IOException) exception.getCause()
+              : new IOException(exception.getCause()));
+    }
+  }
+
+  /** Snapshot the stores and delete the log segments and snapshots the snapshot replaces. */
+  @VisibleForTesting
+  public synchronized void checkpoint() throws IOException {
+    long snapshot = wal.rotate();
+    long start = System.nanoTime();
+    try (SnapshotWriter writer = new SnapshotWriter(directory, snapshot, threads)) {
+      for (DurableStore store : stores.values()) {
+        store.writeSnapshot(writer);
+      }
+      writer.commit();
+      log.info(
+          "Wrote snapshot "
+              + snapshot
+              + " of "
+              + writer.getRecordCount()
+              + " records in "
+              + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+              + " ms.");
+    }
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        long segment = RecordFile.sequenceOf(name, "wal-", ".log");
+        long older = RecordFile.sequenceOf(name, "snapshot-", "");
+        if ((segment >= 0 && segment < snapshot) || (older >= 0 && older < snapshot)) {
+          Files.delete(file);
+        }
+      }
+    }
+  }
+
+  /** Stop checkpointing and close the log. */
+  public synchronized void stop() throws IOException {
+    if (checkpoints != null) {
+      checkpoints.shutdownNow();
+    }
+    if (wal != null) {
+      wal.close();
+      wal = null;
+    }
+  }
+
+  private long latestSnapshot() throws IOException {
+    List<Long> snapshots = list("snapshot-", ".done");
+    return snapshots.isEmpty() ? -1 : snapshots.get(snapshots.size() - 1);
+  }
+
+  /** Load the partitions of the snapshot, each by a thread of its own. */
+  private long loadSnapshot(long snapshot) throws IOException {
+    List<Path> partitions = new ArrayList<>();
+    for (int i = 0; ; i++) {
+      Path partition = directory.resolve(RecordFile.snapshotPartitionName(snapshot, i));
+      if (!Files.exists(partition)) {
+        break;
+      }
+      partitions.add(partition);
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, partitions.size()));
+    try {
+      List<Future<Long>> counts = new ArrayList<>();
+      for (Path partition : partitions) {
+        counts.add(executor.submit(() -> RecordFile.read(partition, this::apply)));
+      }
+      long count = 0;
+      for (Future<Long> partitionCount : counts) {
+        count += get(partitionCount);
+      }
+      return count;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Replay a log segment. The segment is read by this thread, which hands its records over to a
+   * thread per key partition, and applies barriers itself once all records before them are
+   * applied.
+   */
+  private long replay(Path segment) throws IOException {
+    ExecutorService[] partitions = new ExecutorService[threads];
+    List<List<LogRecord>> batches = new ArrayList<>(threads);
+    for (int i = 0; i < threads; i++) {
+      partitions[i] = Executors.newSingleThreadExecutor();
+      batches.add(new ArrayList<>(REPLAY_BATCH_SIZE));
+    }
+    List<Future<?>> pending = new ArrayList<>();
+    try {
+      long count =
+          RecordFile.read(
+              segment,
+              record -> {
+                if (record.isBarrier()) {
+                  drain(partitions, batches, pending);
+                  apply(record);
+                  return;
+                }
+                int partition = Math.floorMod(record.getKey(), threads);
+                List<LogRecord> batch = batches.get(partition);
+                batch.add(record);
+                if (batch.size() == REPLAY_BATCH_SIZE) {
+                  pending.add(partitions[partition].submit(() -> applyAll(batch)));
+                  batches.set(partition, new ArrayList<>(REPLAY_BATCH_SIZE));
+                }
+              });
+      drain(partitions, batches, pending);
+      return count;
+    } catch (UncheckedIOException exception) {
+      throw exception.getCause();
+    } finally {
+      for (ExecutorService partition : partitions) {
+        partition.shutdownNow();
+      }
+    }
+  }
+
+  /** Hand over the partial batches and wait until every record handed over is applied. */
+  private void drain(
+      ExecutorService[] partitions, List<List<LogRecord>> batches, List<Future<?>> pending) {
+    for (int i = 0; i < partitions.length; i++) {
+      List<LogRecord> batch = batches.get(i);
+      if (!batch.isEmpty()) {
+        pending.add(partitions[i].submit(() -> applyAll(batch)));
+        batches.set(i, new ArrayList<>(REPLAY_BATCH_SIZE));
+      }
+    }
+    try {
+      for (Future<?> future : pending) {
+        get(future);
+      }
+    } catch (IOException exception) {
+      throw new UncheckedIOException(exception);
+    }
+    pending.clear();
+  }
+
+  private void applyAll(List<LogRecord> batch) {
+    for (LogRecord record : batch) {
+      apply(record);
+    }
+  }
+
+  private void apply(LogRecord record) {
+    DurableStore store = stores.get(record.getStore());
+    if (store == null) {
+      // The store is not durable in this configuration.
+      return;
+    }
+    try {
+      store.apply(record);
+    } catch (IOException exception) {
+      throw new UncheckedIOException(exception);
+    }
+  }
+
+  /** The sorted numbers of the files of the kind in the directory. */
+  private List<Long> list(String prefix, String suffix) throws IOException {
+    List<Long> sequences = new ArrayList<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+      for (Path file : files) {
+        long sequence = RecordFile.sequenceOf(file.getFileName().toString(), prefix, suffix);
+        if (sequence >= 0) {
+          sequences.add(sequence);
+        }
+      }
+    }
+    Collections.sort(sequences);
+    return sequences;
+  }
+
+  private static <T> T get(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException exception) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted when recovering!", exception);
+    } catch (ExecutionException exception) {
+      if (exception.getCause() instanceof UncheckedIOException) {
+        throw ((UncheckedIOException) exception.getCause()).getCause();
+      }
+      throw new IOException("Error when recovering!", exception.getCause());
+    }
+  }
+}
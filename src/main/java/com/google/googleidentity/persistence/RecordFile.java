@@ -0,0 +1,102 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.persistence;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/** Reading the records of log segments and snapshot partitions, and the names of these files. */
+final class RecordFile {
+
+  private static final Logger log = Logger.getLogger("RecordFile");
+
+  /** Files are mapped this much at a time, a mapping can not exceed 2GB. */
+  private static final long MAP_WINDOW = 1L << 30;
+
+  private RecordFile() {}
+
+  static String segmentName(long segment) {
+    return "wal-" + segment + ".log";
+  }
+
+  static String snapshotPartitionName(long snapshot, int partition) {
+    return "snapshot-" + snapshot + "-" + partition + ".snap";
+  }
+
+  /** Written last, a snapshot without it was not finished and is ignored. */
+  static String snapshotDoneName(long snapshot) {
+    return "snapshot-" + snapshot + ".done";
+  }
+
+  /**
+   * The segment or snapshot number in a file name of the kind, or -1 for other files.
+   *
+   * @param prefix "wal-" or "snapshot-"
+   * @param suffix the end of the name, e.g. ".log", or "" for all files of a snapshot
+   */
+  static long sequenceOf(String fileName, String prefix, String suffix) {
+    if (!fileName.startsWith(prefix) || !fileName.endsWith(suffix)) {
+      return -1;
+    }
+    int end = prefix.length();
+    while (end < fileName.length() && Character.isDigit(fileName.charAt(end))) {
+      end++;
+    }
+    if (end == prefix.length() || end - prefix.length() > 18) {
+      return -1;
+    }
+    return Long.parseLong(fileName.substring(prefix.length(), end));
+  }
+
+  /**
+   * Pass the records of the file to the consumer in order, through a memory mapping. Reading stops
+   * at the first torn or corrupt record, which is expected at the end of the last segment after a
+   * crash.
+   *
+   * @return the number of records read
+   */
+  static long read(Path file, Consumer<LogRecord> consumer) throws IOException {
+    long count = 0;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long size = channel.size();
+      long position = 0;
+      while (position < size) {
+        MappedByteBuffer buffer =
+            channel.map(
+                FileChannel.MapMode.READ_ONLY, position, Math.min(size - position, MAP_WINDOW));
+        LogRecord record;
+        while ((record = LogRecord.readFrom(buffer)) != null) {
+          consumer.accept(record);
+          count++;
+        }
+        if (buffer.position() == 0) {
+          break;
+        }
+        position += buffer.position();
+      }
+      if (position < size) {
+        log.warning("Ignored the last " + (size - position) + " bytes of " + file + ".");
+      }
+    }
+    return count;
+  }
+}
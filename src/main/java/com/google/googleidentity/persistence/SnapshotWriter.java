@@ -0,0 +1,127 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.persistence;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes a snapshot, the records which recreate the entries of the stores, to partition files
+ * which are loaded in parallel. Records of the same key go to the same partition.
+ *
+ * <p>Partitions are written under a temporary name and only renamed once forced to disk, the done
+ * file is written after all of them. A snapshot without it is ignored on recovery.
+ */
+public final class SnapshotWriter implements AutoCloseable {
+
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private final Path directory;
+  private final long snapshot;
+  private final FileChannel[] channels;
+  private final ByteBuffer[] buffers;
+  private long recordCount;
+  private boolean committed;
+
+  SnapshotWriter(Path directory, long snapshot, int partitions) throws IOException {
+    this.directory = directory;
+    this.snapshot = snapshot;
+    this.channels = new FileChannel[partitions];
+    this.buffers = new ByteBuffer[partitions];
+    for (int i = 0; i < partitions; i++) {
+      channels[i] =
+          FileChannel.open(
+              temporary(i),
+              StandardOpenOption.CREATE,
+              StandardOpenOption.TRUNCATE_EXISTING,
+              StandardOpenOption.WRITE);
+      buffers[i] = ByteBuffer.allocate(BUFFER_SIZE);
+    }
+  }
+
+  /** Add a record of an entry, barriers have no place in a snapshot. */
+  public void write(LogRecord record) throws IOException {
+    if (record.isBarrier()) {
+      throw new IllegalArgumentException("Barrier in a snapshot");
+    }
+    int partition = Math.floorMod(record.getKey(), channels.length);
+    ByteBuffer buffer = buffers[partition];
+    if (record.encodedLength() > buffer.remaining()) {
+      flush(partition);
+      if (record.encodedLength() > buffer.capacity()) {
+        buffers[partition] = buffer = ByteBuffer.allocate(record.encodedLength());
+      }
+    }
+    record.writeTo(buffer);
+    recordCount++;
+  }
+
+  long getRecordCount() {
+    return recordCount;
+  }
+
+  /** Force the partitions to disk and mark the snapshot done. */
+  void commit() throws IOException {
+    for (int i = 0; i < channels.length; i++) {
+      flush(i);
+      channels[i].force(true);
+      channels[i].close();
+      Files.move(
+          temporary(i),
+          directory.resolve(RecordFile.snapshotPartitionName(snapshot, i)),
+          StandardCopyOption.ATOMIC_MOVE);
+    }
+    try (FileChannel done =
+        FileChannel.open(
+            directory.resolve(RecordFile.snapshotDoneName(snapshot)),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE)) {
+      done.force(true);
+    }
+    committed = true;
+  }
+
+  /** Drop the partitions unless committed. */
+  @Override
+  public void close() throws IOException {
+    if (committed) {
+      return;
+    }
+    for (int i = 0; i < channels.length; i++) {
+      channels[i].close();
+      Files.deleteIfExists(temporary(i));
+    }
+  }
+
+  private void flush(int partition) throws IOException {
+    ByteBuffer buffer = buffers[partition];
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      channels[partition].write(buffer);
+    }
+    buffer.clear();
+  }
+
+  private Path temporary(int partition) {
+    return directory.resolve(RecordFile.snapshotPartitionName(snapshot, partition) + ".tmp");
+  }
+}
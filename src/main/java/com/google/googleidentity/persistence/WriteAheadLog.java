@@ -0,0 +1,223 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.persistence;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Append-only log of {@link LogRecord}, split into numbered segment files.
+ *
+ * <p>A single writer thread takes all pending records, writes them to the current segment and
+ * forces the segment once for all of them, so concurrent writers share an fsync instead of paying
+ * for one each. {@link #append(LogRecord)} returns once the record is queued, the future completes
+ * once it is on disk. Records are written in the order they were appended.
+ *
+ * <p>{@link #rotate()} starts a new segment, records appended before it went to the old segments
+ * and records appended after it go to the new one.
+ */
+final class WriteAheadLog implements AutoCloseable {
+
+  private static final Logger log = Logger.getLogger("WriteAheadLog");
+
+  private static final int MAX_BATCH_SIZE = 4096;
+  private static final int BUFFER_SIZE = 1 << 20;
+
+  private final Path directory;
+  private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+  private final AtomicLong segment;
+  private final Thread writer;
+
+  private final AtomicLong batchCount = new AtomicLong();
+  private final AtomicLong recordCount = new AtomicLong();
+
+  private FileChannel channel;
+  private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+  /** Start writing to a new segment {@code segment} of the directory. */
+  WriteAheadLog(Path directory, long segment) throws IOException {
+    this.directory = directory;
+    this.segment = new AtomicLong(segment);
+    this.channel = open(segment);
+    writer = new Thread(this::run, "WriteAheadLog");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /** Queue the record, the future completes once it has been forced to disk. */
+  CompletableFuture<Void> append(LogRecord record) {
+    Pending pending = new Pending(record, -1);
+    queue.add(pending);
+    return pending.result;
+  }
+
+  /**
+   * Switch to a new segment and wait until the records appended so far are on disk.
+   *
+   * @return the number of the new segment
+   */
+  synchronized long rotate() throws IOException {
+    long next = segment.incrementAndGet();
+    Pending pending = new Pending(null, next);
+    queue.add(pending);
+    await(pending.result);
+    return next;
+  }
+
+  /** Number of forced batches. */
+  long getBatchCount() {
+    return batchCount.get();
+  }
+
+  /** Number of records forced in batches. */
+  long getRecordCount() {
+    return recordCount.get();
+  }
+
+  /** Write what was appended so far and stop. */
+  @Override
+  public void close() throws IOException {
+    Pending pending = new Pending(null, -1);
+    queue.add(pending);
+    await(pending.result);
+    try {
+      writer.join();
+    } catch (InterruptedException exception) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void run() {
+    List<Pending> batch = new ArrayList<>(MAX_BATCH_SIZE);
+    while (true) {
+      try {
+        batch.add(queue.take());
+        queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+        if (writeBatch(batch)) {
+          return;
+        }
+      } catch (InterruptedException exception) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (IOException | RuntimeException exception) {
+        log.log(Level.SEVERE, "Error when writing the write-ahead log!", exception);
+        for (Pending pending : batch) {
+          pending.result.completeExceptionally(exception);
+        }
+      } finally {
+        batch.clear();
+      }
+    }
+  }
+
+  /** @return true once the log is closed */
+  private boolean writeBatch(List<Pending> batch) throws IOException {
+    List<Pending> written = new ArrayList<>(batch.size());
+    for (Pending pending : batch) {
+      if (pending.record != null) {
+        write(pending.record);
+        written.add(pending);
+        continue;
+      }
+      force(written);
+      if (pending.nextSegment < 0) {
+        channel.close();
+        pending.result.complete(null);
+        return true;
+      }
+      channel.close();
+      channel = open(pending.nextSegment);
+      pending.result.complete(null);
+    }
+    force(written);
+    return false;
+  }
+
+  private void write(LogRecord record) throws IOException {
+    if (record.encodedLength() > buffer.remaining()) {
+      flush();
+      if (record.encodedLength() > buffer.capacity()) {
+        buffer = ByteBuffer.allocateDirect(record.encodedLength());
+      }
+    }
+    record.writeTo(buffer);
+  }
+
+  private void force(List<Pending> written) throws IOException {
+    if (written.isEmpty()) {
+      return;
+    }
+    flush();
+    channel.force(false);
+    batchCount.incrementAndGet();
+    recordCount.addAndGet(written.size());
+    for (Pending pending : written) {
+      pending.result.complete(null);
+    }
+    written.clear();
+  }
+
+  private void flush() throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    buffer.clear();
+  }
+
+  private FileChannel open(long segment) throws IOException {
+    return FileChannel.open(
+        directory.resolve(RecordFile.segmentName(segment)),
+        StandardOpenOption.CREATE_NEW,
+        StandardOpenOption.WRITE);
+  }
+
+  private static void await(CompletableFuture<Void> result) throws IOException {
+    try {
+      result.get();
+    } catch (InterruptedException exception) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted when waiting for the write-ahead log!", exception);
+    } catch (ExecutionException exception) {
+      throw new IOException("Error when writing the write-ahead log!", exception.getCause());
+    }
+  }
+
+  /** A record to write, or a request to switch to the next segment or, without one, to close. */
+  private static final class Pending {
+    private final LogRecord record;
+    private final long nextSegment;
+    private final CompletableFuture<Void> result = new CompletableFuture<>();
+
+    Pending(LogRecord record, long nextSegment) {
+      this.record = record;
+      this.nextSegment = nextSegment;
+    }
+  }
+}
@@ -18,6 +18,7 @@ package com.google.googleidentity.servlet;
 
 import com.google.common.base.Charsets;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.hash.Hashing;
 import com.google.googleidentity.oauth2.authorizationcode.AuthorizationCodeService;
@@ -114,9 +115,17 @@ public final class AdminServlet extends HttpServlet {
       throws ServletException, IOException {
     String reset = request.getParameter("reset");
 
+    String revokeClient = request.getParameter("revoke_client");
+
     UserSession userSession = OAuth2Utils.getUserSession(request);
 
-    if ("true".equals(reset)
+    if (!Strings.isNullOrEmpty(revokeClient)
+        && userSession.getUser().isPresent()
+        && userSession.getUser().get().getUsername().equals("admin")) {
+      oauth2TokenService.revokeClientTokens(revokeClient);
+      response.setStatus(HttpStatus.SC_OK);
+      response.getWriter().println("/resource/admin");
+    } else if ("true".equals(reset)
         && userSession.getUser().isPresent()
         && userSession.getUser().get().getUsername().equals("admin")) {
       clientDetailsService.reset();
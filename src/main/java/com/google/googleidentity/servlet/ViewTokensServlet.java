@@ -16,12 +16,15 @@
 
 package com.google.googleidentity.servlet;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.googleidentity.oauth2.exception.OAuth2ServerException;
 import com.google.googleidentity.oauth2.token.OAuth2AccessToken;
 import com.google.googleidentity.oauth2.token.OAuth2RefreshToken;
 import com.google.googleidentity.oauth2.token.OAuth2TokenService;
+import com.google.googleidentity.oauth2.token.TokenHashes;
+import com.google.googleidentity.oauth2.token.UserTokenList;
 import com.google.googleidentity.oauth2.util.OAuth2Utils;
 import com.google.googleidentity.user.UserDetails;
 import com.google.googleidentity.user.UserSession;
@@ -51,6 +54,9 @@ public final class ViewTokensServlet extends HttpServlet {
 
   private static final long serialVersionUID = 17L;
 
+  /** Number of hex digits of the RISC identifier shown for a token. */
+  private static final int TOKEN_ID_LENGTH = 16;
+
   private static final Logger log = Logger.getLogger("UnlinkServlet");
   private final OAuth2TokenService oauth2TokenService;
   private Configuration configuration;
@@ -91,34 +97,9 @@ public final class ViewTokensServlet extends HttpServlet {
 
     information.put("username", user.getUsername());
 
-    List<List<String>> accessTokenList = new LinkedList<>();
-    List<List<String>> refreshTokenList = new LinkedList<>();
-    for (String client : oauth2TokenService.listUserClient(user.getUsername())) {
-      for (OAuth2AccessToken token :
-          oauth2TokenService.listUserClientAccessTokens(user.getUsername(), client)) {
-        accessTokenList.add(
-            ImmutableList.of(
-                token.getAccessToken(),
-                token.getClientId(),
-                String.valueOf(token.getIsScoped()),
-                String.join("\t", token.getScopesList()),
-                Instant.ofEpochSecond(token.getExpiredTime()).toString(),
-                token.getRefreshToken()));
-      }
-
-      for (OAuth2RefreshToken token :
-          oauth2TokenService.listUserClientRefreshTokens(user.getUsername(), client)) {
-        refreshTokenList.add(
-            ImmutableList.of(
-                token.getRefreshToken(),
-                token.getClientId(),
-                String.valueOf(token.getIsScoped()),
-                String.join("\t", token.getScopesList())));
-      }
-    }
-
-    information.put("accessTokens", accessTokenList);
-    information.put("refreshTokens", refreshTokenList);
+    UserTokenList tokens = oauth2TokenService.listUserTokens(user.getUsername());
+    information.put("accessTokens", accessTokenRows(tokens.getAccessTokens()));
+    information.put("refreshTokens", refreshTokenRows(tokens.getRefreshTokens()));
 
     Template template = configuration.getTemplate("ViewTokens.ftl");
 
@@ -129,4 +110,47 @@ public final class ViewTokensServlet extends HttpServlet {
 
     printWriter.flush();
   }
+
+  /**
+   * The rows of the access token table. Tokens are shown by {@link #tokenId}, stores which only
+   * keep token hashes cannot list the token values.
+   */
+  @VisibleForTesting
+  static List<List<String>> accessTokenRows(List<OAuth2AccessToken> tokens) {
+    List<List<String>> rows = new LinkedList<>();
+    for (OAuth2AccessToken token : tokens) {
+      rows.add(
+          ImmutableList.of(
+              tokenId(token.getAccessToken(), token.getRiscIdentifier()),
+              token.getClientId(),
+              String.valueOf(token.getIsScoped()),
+              String.join("\t", token.getScopesList()),
+              Instant.ofEpochSecond(token.getExpiredTime()).toString()));
+    }
+    return rows;
+  }
+
+  /** Like {@link #accessTokenRows}. */
+  @VisibleForTesting
+  static List<List<String>> refreshTokenRows(List<OAuth2RefreshToken> tokens) {
+    List<List<String>> rows = new LinkedList<>();
+    for (OAuth2RefreshToken token : tokens) {
+      rows.add(
+          ImmutableList.of(
+              tokenId(token.getRefreshToken(), token.getRiscIdentifier()),
+              token.getClientId(),
+              String.valueOf(token.getIsScoped()),
+              String.join("\t", token.getScopesList())));
+    }
+    return rows;
+  }
+
+  /**
+   * The start of the RISC identifier of the token, the same whether the store listed the token
+   * value or only its identifier, and of no use to anyone who sees the page.
+   */
+  private static String tokenId(String token, String riscIdentifier) {
+    String identifier = token.isEmpty() ? riscIdentifier : TokenHashes.riscIdentifier(token);
+    return identifier.substring(0, Math.min(TOKEN_ID_LENGTH, identifier.length()));
+  }
 }
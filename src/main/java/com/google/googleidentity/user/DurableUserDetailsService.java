@@ -0,0 +1,137 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.user;
+
+import com.google.googleidentity.persistence.DurableStore;
+import com.google.googleidentity.persistence.LogRecord;
+import com.google.googleidentity.persistence.Persistence;
+import com.google.googleidentity.persistence.SnapshotWriter;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.IOException;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Keeps the users of an {@link InMemoryUserDetailsService} across restarts through {@link
+ * Persistence}.
+ *
+ * <p>Every added or updated user is logged whole, under its username. Updates are rare, so they are
+ * simply serialized, which logs the records of a user in the order they were applied.
+ */
+@Singleton
+public final class DurableUserDetailsService implements UserDetailsService, DurableStore {
+
+  static final byte STORE_ID = 3;
+
+  private static final byte PUT = 1;
+  private static final byte RESET = 2;
+
+  private final InMemoryUserDetailsService delegate;
+  private final Persistence persistence;
+
+  @Inject
+  public DurableUserDetailsService(InMemoryUserDetailsService delegate, Persistence persistence) {
+    this.delegate = delegate;
+    this.persistence = persistence;
+  }
+
+  @Override
+  public Optional<UserDetails> getUserByName(String username) {
+    return delegate.getUserByName(username);
+  }
+
+  @Override
+  public boolean updateUser(UserDetails user) {
+    CompletableFuture<Void> durable;
+    synchronized (this) {
+      if (!delegate.updateUser(user)) {
+        return false;
+      }
+      durable = persistence.append(putRecord(user));
+    }
+    Persistence.await(durable);
+    return true;
+  }
+
+  @Override
+  public boolean addUser(UserDetails user) {
+    CompletableFuture<Void> durable;
+    synchronized (this) {
+      if (!delegate.addUser(user)) {
+        return false;
+      }
+      durable = persistence.append(putRecord(user));
+    }
+    Persistence.await(durable);
+    return true;
+  }
+
+  @Override
+  public Optional<UserDetails> getUserByEmailOrGoogleAccountId(String email, String gid) {
+    return delegate.getUserByEmailOrGoogleAccountId(email, gid);
+  }
+
+  @Override
+  public List<UserDetails> listUser() {
+    return delegate.listUser();
+  }
+
+  @Override
+  public void reset() {
+    CompletableFuture<Void> durable;
+    synchronized (this) {
+      delegate.reset();
+      durable = persistence.append(LogRecord.barrier(STORE_ID, RESET, new byte[0]));
+    }
+    Persistence.await(durable);
+  }
+
+  @Override
+  public byte getStoreId() {
+    return STORE_ID;
+  }
+
+  @Override
+  public void writeSnapshot(SnapshotWriter snapshot) throws IOException {
+    for (UserDetails user : delegate.listUser()) {
+      snapshot.write(putRecord(user));
+    }
+  }
+
+  @Override
+  public void apply(LogRecord record) throws IOException {
+    switch (record.getType()) {
+      case PUT:
+        UserDetails user = UserDetails.parseFrom(record.getPayload());
+        if (!delegate.addUser(user)) {
+          delegate.updateUser(user);
+        }
+        break;
+      case RESET:
+        delegate.reset();
+        break;
+      default:
+        throw new IOException("Unknown user record type " + record.getType());
+    }
+  }
+
+  private static LogRecord putRecord(UserDetails user) {
+    return LogRecord.of(STORE_ID, PUT, user.getUsername(), user.toByteArray());
+  }
+}
@@ -18,12 +18,17 @@ package com.google.googleidentity.user.seed;
 
 import com.google.common.base.Charsets;
 import com.google.common.hash.Hashing;
+import com.google.googleidentity.user.DurableUserDetailsService;
 import com.google.googleidentity.user.InMemoryUserDetailsService;
 import com.google.googleidentity.user.UserDetails;
 import com.google.googleidentity.user.UserDetailsService;
+import com.google.googleidentity.persistence.DurableStore;
+import com.google.googleidentity.persistence.Persistence;
 import com.google.inject.AbstractModule;
+import com.google.inject.Provider;
 import com.google.inject.Provides;
 import com.google.inject.Singleton;
+import com.google.inject.multibindings.Multibinder;
 
 public class InMemoryUserSeedModule extends AbstractModule {
 
@@ -35,11 +40,19 @@ public class InMemoryUserSeedModule extends AbstractModule {
   private static final String ADMINPASS = "123456789";
 
   @Override
-  protected void configure() {}
+  protected void configure() {
+    if (Persistence.isEnabled()) {
+      Multibinder.newSetBinder(binder(), DurableStore.class)
+          .addBinding()
+          .to(DurableUserDetailsService.class);
+    }
+  }
 
   @Provides
   @Singleton
-  public UserDetailsService getUserDetailsService(InMemoryUserDetailsService userDetailsService) {
+  public UserDetailsService getUserDetailsService(
+      InMemoryUserDetailsService userDetailsService,
+      Provider<DurableUserDetailsService> durableUserDetailsService) {
     UserDetails user =
         UserDetails.newBuilder()
             .setUsername(TESTUSERNAME0)
@@ -60,6 +73,7 @@ public class InMemoryUserSeedModule extends AbstractModule {
             .setPassword(Hashing.sha256().hashString(ADMINPASS, Charsets.UTF_8).toString())
             .build();
     userDetailsService.addUser(admin);
-    return userDetailsService;
+    // The seed users are added on every start, only later changes are persisted.
+    return Persistence.isEnabled() ? durableUserDetailsService.get() : userDetailsService;
   }
 }
@@ -43,6 +43,16 @@ limitations under the License.
             </div>
           </div>
       </div>
+      <div class="col-xl-4 col-lg-6 col-md-6 col-12" style="margin: 0px 0px 15px 0px;">
+          <div class="card h-100">
+            <img class="card-img-top rounded" src="../images/bg1.jpg" alt="Card image cap">
+            <div class="card-body" id="homeCard1">
+              <p id="homeCardBody1">Revoke All Tokens Of A Client</p>
+              <input type="text" id="revokeClient" placeholder="Client ID">
+              <a href="#" class="blue-button" id="bottom-left1">Revoke</a>
+            </div>
+          </div>
+      </div>
     </div>
   </div>
 </div>
@@ -64,6 +74,21 @@ limitations under the License.
             }
         });
     })
+    $("#bottom-left1").click(function(){
+        $.ajax({
+            url : "/resource/admin",
+            type : "POST",
+            data : "revoke_client=" + encodeURIComponent($("#revokeClient").val()),
+            success : function(data){
+                alert("Revoked!");
+                window.location.href = data;
+            },
+            error : function(xhr){
+                alert("Failed!");
+                window.location.href = "/resource/admin"
+            }
+        });
+    })
 });
 </script>
 </html>
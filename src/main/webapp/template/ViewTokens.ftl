@@ -33,12 +33,11 @@ limitations under the License.
   <form>
     <table class="simpletable"  id="datatable">
       <tr>
-        <th>access_token</th>
+        <th>token_id</th>
         <th>client_id</th>
         <th>is_scoped</th>
         <th>scopes</th>
         <th>expired_time</th>
-        <th>refresh_token</th>
       </tr>
       <#list accessTokens as accessToken>
       <tr>
@@ -53,7 +52,7 @@ limitations under the License.
 <form>
   <table class="simpletable"  id="datatable1">
     <tr>
-      <th>refresh_token</th>
+      <th>token_id</th>
       <th>client_id</th>
       <th>is_scoped</th>
       <th>scopes</th>
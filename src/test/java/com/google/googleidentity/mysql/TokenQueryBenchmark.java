@@ -0,0 +1,216 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.mysql;
+
+import com.google.googleidentity.oauth2.token.JdbcOAuth2TokenService;
+import com.google.googleidentity.oauth2.token.OAuth2AccessToken;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Latency of the non primary key token and user lookups as the tables grow, with the schema
+ * before (version 1) and after (version 2) the secondary indexes.
+ *
+ * <p>Needs a MySQL database which it is allowed to wipe, given by the system properties
+ * benchmark.jdbc.url, benchmark.jdbc.user and benchmark.jdbc.password, e.g. {@code
+ * -Dbenchmark.jdbc.url=jdbc:mysql://localhost:3306/benchmark?rewriteBatchedStatements=true}.
+ * Not run by the unit tests, run {@link #main(String[])} from the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TokenQueryBenchmark {
+
+  private static final int CLIENTS = 10;
+  private static final int TOKENS_PER_USER_CLIENT = 2;
+  private static final int BATCH_SIZE = 5000;
+
+  @Param({"10000", "100000", "1000000", "3000000"})
+  public int accessTokens;
+
+  @Param({"1", "2"})
+  public int schemaVersion;
+
+  private HikariDataSource dataSource;
+  private JdbcOAuth2TokenService tokenService;
+  private int users;
+  private final Random random = new Random();
+
+  @Setup(Level.Trial)
+  public void setUp() throws SQLException {
+    HikariConfig config = new HikariConfig();
+    config.setJdbcUrl(System.getProperty("benchmark.jdbc.url"));
+    config.setUsername(System.getProperty("benchmark.jdbc.user"));
+    config.setPassword(System.getProperty("benchmark.jdbc.password"));
+    config.setMaximumPoolSize(4);
+    dataSource = new HikariDataSource(config);
+
+    CloudSqlModule.dropTables(dataSource);
+    new SchemaMigrator(dataSource).migrate(schemaVersion);
+    users = accessTokens / CLIENTS / TOKENS_PER_USER_CLIENT;
+    fill();
+
+    tokenService = new JdbcOAuth2TokenService(dataSource);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    dataSource.close();
+  }
+
+  /** Insert the users and, for every user and client, a refresh token and its access tokens. */
+  private void fill() throws SQLException {
+    long expiredTime = Instant.now().plusSeconds(3600).getEpochSecond();
+    try (Connection conn = dataSource.getConnection();
+        PreparedStatement user = conn.prepareStatement("INSERT INTO user VALUES(?, ?, ?, ?);");
+        PreparedStatement refresh =
+            conn.prepareStatement("INSERT INTO refresh_token VALUES(?, ?, ?, ?, ?);");
+        PreparedStatement access =
+            conn.prepareStatement("INSERT INTO access_token VALUES(?, ?, ?, ?, ?, ?, ?);")) {
+      conn.setAutoCommit(false);
+      int pending = 0;
+      for (int u = 0; u < users; u++) {
+        user.setString(1, "user" + u);
+        user.setString(2, "password");
+        user.setString(3, "user" + u + "@example.com");
+        user.setString(4, "gid" + u);
+        user.addBatch();
+        for (int c = 0; c < CLIENTS; c++) {
+          String refreshToken = "refresh-" + u + "-" + c;
+          refresh.setString(1, refreshToken);
+          refresh.setString(2, "client" + c);
+          refresh.setString(3, "user" + u);
+          refresh.setBoolean(4, true);
+          refresh.setString(5, "read");
+          refresh.addBatch();
+          for (int t = 0; t < TOKENS_PER_USER_CLIENT; t++) {
+            access.setString(1, "access-" + u + "-" + c + "-" + t);
+            access.setString(2, "client" + c);
+            access.setString(3, "user" + u);
+            access.setBoolean(4, true);
+            access.setString(5, "read");
+            access.setLong(6, expiredTime);
+            access.setString(7, refreshToken);
+            access.addBatch();
+            pending++;
+          }
+        }
+        if (pending >= BATCH_SIZE) {
+          user.executeBatch();
+          refresh.executeBatch();
+          access.executeBatch();
+          conn.commit();
+          pending = 0;
+        }
+      }
+      user.executeBatch();
+      refresh.executeBatch();
+      access.executeBatch();
+      conn.commit();
+    }
+  }
+
+  @Benchmark
+  public List<OAuth2AccessToken> listUserClientAccessTokens() {
+    return tokenService.listUserClientAccessTokens(
+        randomUser(), "client" + random.nextInt(CLIENTS));
+  }
+
+  @Benchmark
+  public List<String> listUserClient() {
+    return tokenService.listUserClient(randomUser());
+  }
+
+  @Benchmark
+  public int accessTokensOfRefreshToken() throws SQLException {
+    String refreshToken = "refresh-" + random.nextInt(users) + "-" + random.nextInt(CLIENTS);
+    return count("SELECT COUNT(*) FROM access_token WHERE refresh_token = ?;", refreshToken);
+  }
+
+  @Benchmark
+  public int userByEmailOrGoogleAccountId() throws SQLException {
+    int user = random.nextInt(users);
+    return count(
+        "SELECT COUNT(*) FROM user WHERE email = ? OR google_account_id = ?;",
+        "user" + user + "@example.com",
+        "gid" + user);
+  }
+
+  @Benchmark
+  public int expiredAccessTokens() throws SQLException {
+    return count(
+        "SELECT COUNT(*) FROM access_token WHERE expired_time < ?;",
+        Instant.now().getEpochSecond());
+  }
+
+  private String randomUser() {
+    return "user" + random.nextInt(users);
+  }
+
+  private int count(String query, Object... parameters) throws SQLException {
+    try (Connection conn = dataSource.getConnection();
+        PreparedStatement statement = conn.prepareStatement(query)) {
+      for (int i = 0; i < parameters.length; i++) {
+        statement.setObject(i + 1, parameters[i]);
+      }
+      try (ResultSet result = statement.executeQuery()) {
+        result.next();
+        return result.getInt(1);
+      }
+    }
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    Options options =
+        new OptionsBuilder()
+            .include(TokenQueryBenchmark.class.getSimpleName())
+            .jvmArgsAppend(
+                "-Dbenchmark.jdbc.url=" + System.getProperty("benchmark.jdbc.url"),
+                "-Dbenchmark.jdbc.user=" + System.getProperty("benchmark.jdbc.user"),
+                "-Dbenchmark.jdbc.password=" + System.getProperty("benchmark.jdbc.password"))
+            .build();
+    new Runner(options).run();
+  }
+}
@@ -0,0 +1,101 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.authorizationcode;
+
+import com.google.googleidentity.oauth2.request.OAuth2Request;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Codes generated, set and consumed per millisecond by 64 concurrent requests with {@link
+ * AuthorizationCodeService} over an {@link InMemoryCodeStore}. Not run by the unit tests, run
+ * {@link #main(String[])} from the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Threads(64)
+@Fork(1)
+public class AuthorizationCodeBenchmark {
+
+  private static final int USERS = 1000;
+
+  private final OAuth2Request[] requests = new OAuth2Request[USERS];
+
+  private InMemoryCodeStore codeStore;
+  private AuthorizationCodeService codeService;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    for (int i = 0; i < USERS; i++) {
+      requests[i] =
+          OAuth2Request.newBuilder()
+              .setRequestAuth(
+                  OAuth2Request.RequestAuth.newBuilder()
+                      .setClientId("client")
+                      .setUsername("user" + i)
+                      .build())
+              .build();
+    }
+    codeStore = new InMemoryCodeStore();
+    codeService = new AuthorizationCodeService(codeStore);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    codeStore.service.shutdownNow();
+  }
+
+  /** Every request is for the same user and client. */
+  @Benchmark
+  public Optional<OAuth2Request> sameUser() {
+    return codeService.consumeCode(codeService.getCodeForRequest(requests[0]));
+  }
+
+  /** Requests are for users picked at random, whose prefixes all fit in the cache. */
+  @Benchmark
+  public Optional<OAuth2Request> manyUsers() {
+    OAuth2Request request = requests[ThreadLocalRandom.current().nextInt(USERS)];
+    return codeService.consumeCode(codeService.getCodeForRequest(request));
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    Options options =
+        new OptionsBuilder().include(AuthorizationCodeBenchmark.class.getSimpleName()).build();
+    new Runner(options).run();
+  }
+}
@@ -17,13 +17,16 @@
 package com.google.googleidentity.oauth2.authorizationcode;
 
 import static com.google.common.truth.Truth.assertThat;
+import com.google.googleidentity.oauth2.exception.OAuth2ServerException;
 import com.google.googleidentity.oauth2.request.OAuth2Request;
 
 import com.google.googleidentity.oauth2.util.OAuth2Enums.ResponseType;
+import java.time.Instant;
 import java.util.Optional;
 
 import org.junit.jupiter.api.Test;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 /** Test {@link InMemoryCodeStore} */
@@ -78,4 +81,44 @@ public class InMemoryCodeStoreTest {
 
     assertThat(codeStore.consumeCode(TEST_CODE)).isEqualTo(Optional.empty());
   }
+
+  @Test
+  void testInMemoryCodeStore_expiredCode_consumeNull() {
+
+    InMemoryCodeStore codeStore = new InMemoryCodeStore(-1, 10);
+
+    assertTrue(codeStore.setCode(TEST_CODE, oauth2Request));
+
+    assertThat(codeStore.consumeCode(TEST_CODE)).isEqualTo(Optional.empty());
+  }
+
+  @Test
+  void testInMemoryCodeStore_removeExpiredCodes_codeDeleted() {
+
+    InMemoryCodeStore codeStore = new InMemoryCodeStore(60, 10);
+
+    assertTrue(codeStore.setCode(TEST_CODE, oauth2Request));
+
+    codeStore.removeExpiredCodes(Instant.now().getEpochSecond() + 30);
+
+    assertFalse(codeStore.setCode(TEST_CODE, oauth2Request));
+
+    codeStore.removeExpiredCodes(Instant.now().getEpochSecond() + 120);
+
+    assertTrue(codeStore.setCode(TEST_CODE, oauth2Request));
+  }
+
+  @Test
+  void testInMemoryCodeStore_tooManyCodes_throwException() {
+
+    InMemoryCodeStore codeStore = new InMemoryCodeStore(60, 1);
+
+    assertTrue(codeStore.setCode(TEST_CODE, oauth2Request));
+
+    assertThrows(OAuth2ServerException.class, () -> codeStore.setCode("456", oauth2Request));
+
+    assertThat(codeStore.consumeCode(TEST_CODE)).isEqualTo(Optional.of(oauth2Request));
+
+    assertTrue(codeStore.setCode("456", oauth2Request));
+  }
 }
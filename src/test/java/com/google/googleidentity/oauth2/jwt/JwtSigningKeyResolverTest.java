@@ -0,0 +1,209 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.jwt;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.nimbusds.jose.JOSEException;
+import com.sun.net.httpserver.HttpServer;
+import io.jsonwebtoken.JwsHeader;
+import io.jsonwebtoken.security.SignatureException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.http.message.BasicHeader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests for {@link JwtSigningKeyResolver} against a local stub JWKS server. */
+public class JwtSigningKeyResolverTest {
+
+  private HttpServer server;
+  private String url;
+  private final AtomicInteger fetchCount = new AtomicInteger();
+  private volatile JwkStore jwkStore;
+  private volatile String cacheControl = "public, max-age=3600";
+  private volatile CountDownLatch releaseResponse = new CountDownLatch(0);
+  private final MutableClock clock = new MutableClock(Instant.now());
+
+  @Before
+  public void init() throws IOException, JOSEException {
+    jwkStore = new JwkStore();
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.createContext(
+        "/certs",
+        exchange -> {
+          fetchCount.incrementAndGet();
+          try {
+            releaseResponse.await(5, TimeUnit.SECONDS);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          byte[] body = jwkStore.getJWKString().getBytes(StandardCharsets.UTF_8);
+          exchange.getResponseHeaders().add("Cache-Control", cacheControl);
+          exchange.sendResponseHeaders(200, body.length);
+          try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+          }
+        });
+    server.start();
+    url = "http://localhost:" + server.getAddress().getPort() + "/certs";
+  }
+
+  @After
+  public void shutdown() {
+    server.stop(0);
+  }
+
+  @Test
+  public void testResolve_knownKid_fetchOnceAndCache() {
+    JwtSigningKeyResolver resolver = new JwtSigningKeyResolver(url, clock);
+    String kid = jwkStore.getJWK().getKeyID();
+
+    for (int i = 0; i < 100; i++) {
+      assertThat(resolver.resolveSigningKey(header(kid), null)).isNotNull();
+    }
+
+    assertThat(fetchCount.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void testResolve_afterMaxAge_refetch() {
+    cacheControl = "public, max-age=60";
+    JwtSigningKeyResolver resolver = new JwtSigningKeyResolver(url, clock);
+    String kid = jwkStore.getJWK().getKeyID();
+
+    resolver.resolveSigningKey(header(kid), null);
+    clock.advance(Duration.ofSeconds(30));
+    resolver.resolveSigningKey(header(kid), null);
+    assertThat(fetchCount.get()).isEqualTo(1);
+
+    clock.advance(Duration.ofSeconds(31));
+    resolver.resolveSigningKey(header(kid), null);
+    assertThat(fetchCount.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void testResolve_rotatedKeys_refetchOnUnknownKid() throws JOSEException {
+    JwtSigningKeyResolver resolver = new JwtSigningKeyResolver(url, clock);
+    resolver.resolveSigningKey(header(jwkStore.getJWK().getKeyID()), null);
+
+    jwkStore = new JwkStore();
+    clock.advance(Duration.ofSeconds(10));
+
+    assertThat(resolver.resolveSigningKey(header(jwkStore.getJWK().getKeyID()), null))
+        .isNotNull();
+    assertThat(fetchCount.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void testResolve_unknownKidRightAfterFetch_noRefetch() {
+    JwtSigningKeyResolver resolver = new JwtSigningKeyResolver(url, clock);
+    resolver.resolveSigningKey(header(jwkStore.getJWK().getKeyID()), null);
+
+    for (int i = 0; i < 10; i++) {
+      assertThrows(
+          SignatureException.class, () -> resolver.resolveSigningKey(header("unknown"), null));
+    }
+
+    assertThat(fetchCount.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void testResolve_concurrentCallers_singleFetch() throws Exception {
+    releaseResponse = new CountDownLatch(1);
+    JwtSigningKeyResolver resolver = new JwtSigningKeyResolver(url, clock);
+    String kid = jwkStore.getJWK().getKeyID();
+
+    ExecutorService executor = Executors.newFixedThreadPool(32);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int i = 0; i < 32; i++) {
+      futures.add(executor.submit(() -> resolver.resolveSigningKey(header(kid), null)));
+    }
+    Thread.sleep(200);
+    releaseResponse.countDown();
+    for (Future<?> future : futures) {
+      assertThat(future.get(5, TimeUnit.SECONDS)).isNotNull();
+    }
+    executor.shutdown();
+
+    assertThat(fetchCount.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void testParseMaxAge_noHeaderOrNoMaxAge_defaultValue() {
+    assertThat(JwtSigningKeyResolver.parseMaxAge(null)).isEqualTo(Duration.ofMinutes(5));
+    assertThat(JwtSigningKeyResolver.parseMaxAge(new BasicHeader("Cache-Control", "no-transform")))
+        .isEqualTo(Duration.ofMinutes(5));
+    assertThat(
+            JwtSigningKeyResolver.parseMaxAge(
+                new BasicHeader("Cache-Control", "public, max-age=19582, must-revalidate")))
+        .isEqualTo(Duration.ofSeconds(19582));
+  }
+
+  private static JwsHeader header(String kid) {
+    JwsHeader header = mock(JwsHeader.class);
+    when(header.getKeyId()).thenReturn(kid);
+    return header;
+  }
+
+  private static final class MutableClock extends Clock {
+    private volatile Instant now;
+
+    MutableClock(Instant now) {
+      this.now = now;
+    }
+
+    void advance(Duration duration) {
+      now = now.plus(duration);
+    }
+
+    @Override
+    public ZoneId getZone() {
+      return ZoneOffset.UTC;
+    }
+
+    @Override
+    public Clock withZone(ZoneId zone) {
+      return this;
+    }
+
+    @Override
+    public Instant instant() {
+      return now;
+    }
+  }
+}
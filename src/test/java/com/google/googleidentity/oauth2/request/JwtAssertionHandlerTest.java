@@ -33,6 +33,7 @@ import com.google.googleidentity.oauth2.client.InMemoryClientDetailsService;
 import com.google.googleidentity.oauth2.exception.InvalidRequestException;
 import com.google.googleidentity.oauth2.exception.OAuth2Exception;
 import com.google.googleidentity.oauth2.jwt.JwkStore;
+import com.google.googleidentity.oauth2.jwt.JwtSigningKeyResolver;
 import com.google.googleidentity.oauth2.request.JwtAssertionRequestHandler;
 import com.google.googleidentity.oauth2.request.OAuth2Request;
 import com.google.googleidentity.oauth2.token.InMemoryOAuth2TokenService;
@@ -115,7 +116,10 @@ public class JwtAssertionHandlerTest {
     jwkStore = new JwkStore();
     jwtAssertionRequestHandler =
         new JwtAssertionRequestHandler(
-            oauth2TokenService, userDetailsService, clientDetailsService);
+            oauth2TokenService,
+            userDetailsService,
+            clientDetailsService,
+            new JwtSigningKeyResolver("http://localhost"));
   }
 
   @Test
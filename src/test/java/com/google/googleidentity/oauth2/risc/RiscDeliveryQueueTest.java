@@ -0,0 +1,186 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.risc;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.googleidentity.oauth2.jwt.JwkStore;
+import com.google.googleidentity.oauth2.util.OAuth2Constants.TokenTypes;
+import com.nimbusds.jose.JOSEException;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests for {@link RiscDeliveryQueue}, including a load test against a local stub receiver. */
+public class RiscDeliveryQueueTest {
+
+  private static final int WORKERS = 4;
+  private static final int EVENTS = 5000;
+
+  private HttpServer server;
+  private String riscUri;
+  private JwkStore jwkStore;
+  private final AtomicInteger received = new AtomicInteger();
+  private final AtomicInteger failuresLeft = new AtomicInteger();
+  private volatile int failureStatus = 503;
+  private volatile CountDownLatch releaseResponse = new CountDownLatch(0);
+
+  @Before
+  public void init() throws IOException, JOSEException {
+    jwkStore = new JwkStore();
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.setExecutor(Executors.newFixedThreadPool(WORKERS));
+    server.createContext(
+        "/risc",
+        exchange -> {
+          try (InputStream in = exchange.getRequestBody()) {
+            while (in.read() != -1) {}
+          }
+          try {
+            releaseResponse.await(10, TimeUnit.SECONDS);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          received.incrementAndGet();
+          int status = failuresLeft.getAndDecrement() > 0 ? failureStatus : 202;
+          exchange.sendResponseHeaders(status, -1);
+          exchange.close();
+        });
+    server.start();
+    riscUri = "http://localhost:" + server.getAddress().getPort() + "/risc";
+  }
+
+  @After
+  public void shutdown() {
+    server.stop(0);
+  }
+
+  @Test
+  public void testSubmit_receiverAccepts_eventDelivered() throws InterruptedException {
+    RiscDeliveryQueue queue = new RiscDeliveryQueue(jwkStore, WORKERS, 100, Duration.ofMillis(10));
+
+    assertThat(queue.submit(event())).isTrue();
+
+    waitFor(() -> queue.getDeliveredCount() == 1);
+    assertThat(received.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void testSubmit_receiverUnavailable_retryWithBackoff() throws InterruptedException {
+    failuresLeft.set(2);
+    RiscDeliveryQueue queue = new RiscDeliveryQueue(jwkStore, WORKERS, 100, Duration.ofMillis(10));
+
+    queue.submit(event());
+
+    waitFor(() -> queue.getDeliveredCount() == 1);
+    assertThat(received.get()).isEqualTo(3);
+    assertThat(queue.getFailedCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testSubmit_clientError_noRetry() throws InterruptedException {
+    failuresLeft.set(1);
+    failureStatus = 400;
+    RiscDeliveryQueue queue = new RiscDeliveryQueue(jwkStore, WORKERS, 100, Duration.ofMillis(10));
+
+    queue.submit(event());
+
+    waitFor(() -> queue.getFailedCount() == 1);
+    assertThat(received.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void testSubmit_queueFull_eventDropped() throws InterruptedException {
+    releaseResponse = new CountDownLatch(1);
+    RiscDeliveryQueue queue = new RiscDeliveryQueue(jwkStore, 1, 2, Duration.ofMillis(10));
+
+    // One event in the worker, two in the queue, the rest is dropped.
+    int accepted = 0;
+    for (int i = 0; i < 10; i++) {
+      if (queue.submit(event())) {
+        accepted++;
+      }
+      Thread.sleep(i == 0 ? 200 : 0);
+    }
+    releaseResponse.countDown();
+
+    assertThat(accepted).isEqualTo(3);
+    assertThat(queue.getDroppedCount()).isEqualTo(7);
+    waitFor(() -> queue.getDeliveredCount() == 3);
+  }
+
+  @Test
+  public void testSubmit_thousandsOfEvents_threadsAndMemoryStayFlat() throws InterruptedException {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    RiscDeliveryQueue queue =
+        new RiscDeliveryQueue(jwkStore, WORKERS, EVENTS, Duration.ofMillis(10));
+    queue.submit(event());
+    waitFor(() -> queue.getDeliveredCount() == 1);
+    // A few events go through the retry timer as well.
+    failuresLeft.set(WORKERS);
+
+    int threadsBefore = threads.getThreadCount();
+    int peakThreads = threadsBefore;
+    int peakPending = 0;
+
+    for (int i = 1; i < EVENTS; i++) {
+      queue.submit(event());
+      if (i % 500 == 0) {
+        peakThreads = Math.max(peakThreads, threads.getThreadCount());
+        peakPending = Math.max(peakPending, queue.getQueuedCount() + queue.getPendingRetryCount());
+      }
+    }
+    while (queue.getDeliveredCount() < EVENTS) {
+      peakThreads = Math.max(peakThreads, threads.getThreadCount());
+      peakPending = Math.max(peakPending, queue.getQueuedCount() + queue.getPendingRetryCount());
+      Thread.sleep(10);
+    }
+
+    assertThat(queue.getDroppedCount()).isEqualTo(0);
+    // Workers are started up front, only the stub server's own pool may still grow.
+    assertThat(peakThreads - threadsBefore).isAtMost(WORKERS);
+    // The events held are bounded by the capacity, and none are left once delivered.
+    assertThat(peakPending).isAtMost(EVENTS);
+    waitFor(() -> queue.getQueuedCount() == 0 && queue.getPendingRetryCount() == 0);
+  }
+
+  private RiscEvent event() {
+    return new RiscEvent(riscUri, "aud", "jti", TokenTypes.ACCESS_TOKEN, "hash");
+  }
+
+  private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+    while (!condition.getAsBoolean()) {
+      if (System.nanoTime() > deadline) {
+        throw new AssertionError("Timed out waiting for risc delivery");
+      }
+      Thread.sleep(10);
+    }
+  }
+}
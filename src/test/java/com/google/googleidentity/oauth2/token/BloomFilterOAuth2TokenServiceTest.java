@@ -0,0 +1,165 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+
+package com.google.googleidentity.oauth2.token;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth8.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.googleidentity.oauth2.request.OAuth2Request;
+import java.time.Clock;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests for {@link BloomFilterOAuth2TokenService} */
+public class BloomFilterOAuth2TokenServiceTest {
+
+  private static final OAuth2Request REQUEST =
+      OAuth2Request.newBuilder()
+          .setRequestAuth(
+              OAuth2Request.RequestAuth.newBuilder()
+                  .setClientId("client")
+                  .setUsername("user")
+                  .build())
+          .setRequestBody(
+              OAuth2Request.RequestBody.newBuilder()
+                  .setIsScoped(true)
+                  .addScopes("read")
+                  .setRefreshable(false)
+                  .build())
+          .build();
+
+  private final Clock clock = mock(Clock.class);
+  private long now = Instant.now().toEpochMilli();
+  private InMemoryOAuth2TokenService delegate;
+
+  /** Lists the tokens of the delegate, like a store shared by several server instances. */
+  private final AccessTokenScanner scanner =
+      (expiringFrom, consumer) -> {
+        for (OAuth2AccessToken token : delegate.accessTokenIndex.values()) {
+          if (token.getExpiredTime() >= expiringFrom) {
+            consumer.accept(TokenHashes.key(token.getAccessToken()), token.getExpiredTime());
+          }
+        }
+      };
+
+  @Before
+  public void init() {
+    when(clock.millis()).thenAnswer(invocation -> now);
+    delegate = spy(new InMemoryOAuth2TokenService());
+  }
+
+  @Test
+  public void testReadAccessToken_issuedHere_readFromDelegate() {
+    BloomFilterOAuth2TokenService tokenService =
+        new BloomFilterOAuth2TokenService(delegate, scanner, clock);
+    OAuth2AccessToken token = tokenService.generateAccessToken(REQUEST);
+
+    assertThat(tokenService.readAccessToken(token.getAccessToken())).hasValue(token);
+    assertThat(tokenService.getPassedCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testReadAccessToken_unknownToken_rejectedWithoutDelegate() {
+    BloomFilterOAuth2TokenService tokenService =
+        new BloomFilterOAuth2TokenService(delegate, scanner, clock);
+    tokenService.generateAccessToken(REQUEST);
+
+    assertThat(tokenService.readAccessToken("garbage")).isEmpty();
+
+    verify(delegate, never()).readAccessToken("garbage");
+    assertThat(tokenService.getRejectedCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testReadAccessToken_issuedByAnotherInstance_foundBeforeBackgroundSync() {
+    BloomFilterOAuth2TokenService tokenService =
+        new BloomFilterOAuth2TokenService(delegate, scanner, clock);
+    OAuth2AccessToken token = delegate.generateAccessToken(REQUEST);
+
+    assertThat(tokenService.readAccessToken(token.getAccessToken())).hasValue(token);
+    assertThat(tokenService.getRejectedCount()).isEqualTo(0);
+    assertThat(tokenService.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void testConstructor_tokensInStore_filterBuiltFromStore() {
+    OAuth2AccessToken token = delegate.generateAccessToken(REQUEST);
+    delegate.generateAccessToken(REQUEST);
+
+    BloomFilterOAuth2TokenService tokenService =
+        new BloomFilterOAuth2TokenService(delegate, scanner, clock);
+    tokenService.sync();
+
+    assertThat(tokenService.size()).isEqualTo(2);
+    assertThat(tokenService.readAccessToken(token.getAccessToken())).hasValue(token);
+  }
+
+  @Test
+  public void testRevokeByAccessToken_revoked_removedFromFilter() {
+    BloomFilterOAuth2TokenService tokenService =
+        new BloomFilterOAuth2TokenService(delegate, scanner, clock);
+    OAuth2AccessToken token = tokenService.generateAccessToken(REQUEST);
+    OAuth2AccessToken other = delegate.generateAccessToken(REQUEST);
+    tokenService.sync();
+
+    assertThat(tokenService.revokeByAccessToken(token.getAccessToken())).isTrue();
+    assertThat(tokenService.revokeByAccessToken(other.getAccessToken())).isTrue();
+    tokenService.sync();
+
+    assertThat(tokenService.size()).isEqualTo(0);
+    assertThat(tokenService.readAccessToken(token.getAccessToken())).isEmpty();
+    assertThat(tokenService.getRejectedCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testSync_tokensExpiredPastGrace_sliceDropped() {
+    BloomFilterOAuth2TokenService tokenService =
+        new BloomFilterOAuth2TokenService(delegate, scanner, clock);
+    OAuth2AccessToken token = tokenService.generateAccessToken(REQUEST);
+
+    now = TimeUnit.SECONDS.toMillis(token.getExpiredTime() + 400);
+    tokenService.sync();
+
+    assertThat(tokenService.size()).isEqualTo(0);
+    assertThat(tokenService.readAccessToken(token.getAccessToken())).isEmpty();
+    verify(delegate, never()).readAccessToken(token.getAccessToken());
+  }
+
+  @Test
+  public void testReadAccessToken_manyUnknownTokens_fewFalsePositives() {
+    BloomFilterOAuth2TokenService tokenService =
+        new BloomFilterOAuth2TokenService(delegate, scanner, clock);
+    for (int i = 0; i < 1000; i++) {
+      tokenService.generateAccessToken(REQUEST);
+    }
+
+    for (int i = 0; i < 1000; i++) {
+      assertThat(tokenService.readAccessToken("garbage" + i)).isEmpty();
+    }
+
+    assertThat(tokenService.getFalsePositiveRate()).isLessThan(0.01);
+    assertThat(tokenService.getExpectedFalsePositiveRate()).isLessThan(0.01);
+  }
+}
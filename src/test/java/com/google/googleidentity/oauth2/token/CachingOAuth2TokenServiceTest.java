@@ -0,0 +1,181 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.token;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth8.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.googleidentity.oauth2.request.OAuth2Request;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests for {@link CachingOAuth2TokenService} */
+public class CachingOAuth2TokenServiceTest {
+
+  private static final String CLIENTID = "client";
+  private static final String USERNAME = "user";
+
+  private static final TokenCacheConfig CONFIG =
+      new TokenCacheConfig(100, Duration.ofSeconds(30), Duration.ofSeconds(5));
+
+  private static final OAuth2Request REQUEST =
+      OAuth2Request.newBuilder()
+          .setRequestAuth(
+              OAuth2Request.RequestAuth.newBuilder()
+                  .setClientId(CLIENTID)
+                  .setUsername(USERNAME)
+                  .build())
+          .setRequestBody(
+              OAuth2Request.RequestBody.newBuilder()
+                  .setIsScoped(true)
+                  .addScopes("read")
+                  .setRefreshable(true)
+                  .build())
+          .build();
+
+  private final Clock clock = mock(Clock.class);
+  private long now = Instant.now().toEpochMilli();
+  private OAuth2TokenService delegate;
+
+  @Before
+  public void init() {
+    when(clock.millis()).thenAnswer(invocation -> now);
+    delegate = spy(new InMemoryOAuth2TokenService());
+  }
+
+  @Test
+  public void testReadAccessToken_readTwice_secondReadFromCache() {
+    CachingOAuth2TokenService tokenService =
+        new CachingOAuth2TokenService(delegate, CONFIG, clock);
+    OAuth2AccessToken token = tokenService.generateAccessToken(REQUEST);
+
+    assertThat(tokenService.readAccessToken(token.getAccessToken())).hasValue(token);
+    assertThat(tokenService.readAccessToken(token.getAccessToken())).hasValue(token);
+
+    verify(delegate, times(1)).readAccessToken(token.getAccessToken());
+    assertThat(tokenService.getHitCount()).isEqualTo(1);
+    assertThat(tokenService.getMissCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testReadAccessToken_unknownToken_negativeEntryExpires() {
+    CachingOAuth2TokenService tokenService =
+        new CachingOAuth2TokenService(delegate, CONFIG, clock);
+
+    assertThat(tokenService.readAccessToken("unknown")).isEmpty();
+    assertThat(tokenService.readAccessToken("unknown")).isEmpty();
+    verify(delegate, times(1)).readAccessToken("unknown");
+
+    now += Duration.ofSeconds(6).toMillis();
+    assertThat(tokenService.readAccessToken("unknown")).isEmpty();
+    verify(delegate, times(2)).readAccessToken("unknown");
+  }
+
+  @Test
+  public void testReadAccessToken_tokenExpiresBeforeTtl_entryExpiresWithToken() {
+    OAuth2TokenService expiringDelegate = mock(OAuth2TokenService.class);
+    OAuth2AccessToken token =
+        OAuth2AccessToken.newBuilder()
+            .setAccessToken("token")
+            .setExpiredTime(Instant.ofEpochMilli(now).plusSeconds(2).getEpochSecond())
+            .build();
+    when(expiringDelegate.readAccessToken("token")).thenReturn(Optional.of(token));
+    CachingOAuth2TokenService tokenService =
+        new CachingOAuth2TokenService(expiringDelegate, CONFIG, clock);
+
+    tokenService.readAccessToken("token");
+    now += Duration.ofSeconds(3).toMillis();
+    tokenService.readAccessToken("token");
+
+    verify(expiringDelegate, times(2)).readAccessToken("token");
+  }
+
+  @Test
+  public void testRevokeByRefreshToken_cachedAccessTokensInvalidated() {
+    CachingOAuth2TokenService tokenService =
+        new CachingOAuth2TokenService(delegate, CONFIG, clock);
+    OAuth2AccessToken token = tokenService.generateAccessToken(REQUEST);
+    OAuth2AccessToken refreshed = tokenService.refreshToken(token.getRefreshToken()).get();
+    tokenService.readAccessToken(token.getAccessToken());
+    tokenService.readAccessToken(refreshed.getAccessToken());
+
+    assertThat(tokenService.revokeByRefreshToken(token.getRefreshToken())).isTrue();
+
+    assertThat(tokenService.readAccessToken(token.getAccessToken())).isEmpty();
+    assertThat(tokenService.readAccessToken(refreshed.getAccessToken())).isEmpty();
+  }
+
+  @Test
+  public void testRevokeByAccessToken_sameRefreshTokenInvalidated() {
+    CachingOAuth2TokenService tokenService =
+        new CachingOAuth2TokenService(delegate, CONFIG, clock);
+    OAuth2AccessToken token = tokenService.generateAccessToken(REQUEST);
+    OAuth2AccessToken refreshed = tokenService.refreshToken(token.getRefreshToken()).get();
+    tokenService.readAccessToken(refreshed.getAccessToken());
+
+    assertThat(tokenService.revokeByAccessToken(token.getAccessToken())).isTrue();
+
+    assertThat(tokenService.readAccessToken(refreshed.getAccessToken())).isEmpty();
+  }
+
+  @Test
+  public void testRevokeUserClientTokens_cachedAccessTokensInvalidated() {
+    CachingOAuth2TokenService tokenService =
+        new CachingOAuth2TokenService(delegate, CONFIG, clock);
+    OAuth2AccessToken token = tokenService.generateAccessToken(REQUEST);
+    tokenService.readAccessToken(token.getAccessToken());
+
+    assertThat(tokenService.revokeUserClientTokens(USERNAME, CLIENTID)).isTrue();
+
+    assertThat(tokenService.readAccessToken(token.getAccessToken())).isEmpty();
+  }
+
+  @Test
+  public void testRevokeClientTokens_cachedAccessTokensInvalidated() {
+    CachingOAuth2TokenService tokenService =
+        new CachingOAuth2TokenService(delegate, CONFIG, clock);
+    OAuth2AccessToken token = tokenService.generateAccessToken(REQUEST);
+    tokenService.readAccessToken(token.getAccessToken());
+
+    tokenService.revokeClientTokens(CLIENTID);
+
+    assertThat(tokenService.readAccessToken(token.getAccessToken())).isEmpty();
+  }
+
+  @Test
+  public void testReadAccessToken_moreTokensThanMaximumSize_evicted() {
+    TokenCacheConfig config =
+        new TokenCacheConfig(2, Duration.ofSeconds(30), Duration.ofSeconds(5));
+    CachingOAuth2TokenService tokenService =
+        new CachingOAuth2TokenService(delegate, config, clock);
+
+    for (int i = 0; i < 10; i++) {
+      tokenService.readAccessToken(tokenService.generateAccessToken(REQUEST).getAccessToken());
+    }
+
+    assertThat(tokenService.size()).isAtMost(2L);
+  }
+}
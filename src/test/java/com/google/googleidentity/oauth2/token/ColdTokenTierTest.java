@@ -0,0 +1,204 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.token;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth8.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.googleidentity.oauth2.request.OAuth2Request;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Tests for {@link ColdTokenTier} and moving users of {@link InMemoryOAuth2TokenService} to it */
+public class ColdTokenTierTest {
+
+  private static final String CLIENTID = "client";
+  private static final String USERNAME = "user";
+  private static final int SEGMENT_SIZE = 4096;
+
+  private static final OAuth2Request REQUEST =
+      OAuth2Request.newBuilder()
+          .setRequestAuth(
+              OAuth2Request.RequestAuth.newBuilder()
+                  .setClientId(CLIENTID)
+                  .setUsername(USERNAME)
+                  .build())
+          .setRequestBody(
+              OAuth2Request.RequestBody.newBuilder()
+                  .setIsScoped(true)
+                  .addScopes("read")
+                  .setRefreshable(true)
+                  .build())
+          .build();
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private ColdTokenTier tier;
+  private InMemoryOAuth2TokenService tokenService;
+
+  @Before
+  public void setUp() throws IOException {
+    tier = new ColdTokenTier(folder.getRoot().toPath(), SEGMENT_SIZE);
+    tokenService = new InMemoryOAuth2TokenService(tier, 3600);
+  }
+
+  @After
+  public void shutdown() {
+    tokenService.service.shutdownNow();
+  }
+
+  @Test
+  public void testPutAndTake_returnsTokensInOrder() {
+    OAuth2RefreshToken first = refreshToken("first");
+    OAuth2RefreshToken second = refreshToken("second");
+
+    assertThat(tier.put(USERNAME, ImmutableList.of(first))).isTrue();
+    assertThat(tier.put(USERNAME, ImmutableList.of(second))).isTrue();
+
+    assertThat(tier.contains(USERNAME)).isTrue();
+    assertThat(tier.findUsername("second")).isEqualTo(USERNAME);
+    assertThat(tier.take(USERNAME)).containsExactly(first, second).inOrder();
+    assertThat(tier.contains(USERNAME)).isFalse();
+    assertThat(tier.take(USERNAME)).isEmpty();
+  }
+
+  @Test
+  public void testForget_tokenNotFound() {
+    OAuth2RefreshToken token = refreshToken("token");
+    tier.put(USERNAME, ImmutableList.of(token));
+
+    tier.forget(tier.take(USERNAME));
+
+    assertThat(tier.findUsername("token")).isNull();
+  }
+
+  @Test
+  public void testTakenSegments_dropped() {
+    List<String> usernames = new ArrayList<>();
+    for (int i = 0; i < 200; i++) {
+      usernames.add("user" + i);
+      tier.put("user" + i, ImmutableList.of(refreshToken("token" + i)));
+    }
+    assertThat(tier.segmentCount()).isGreaterThan(1);
+
+    for (String username : usernames) {
+      tier.take(username);
+    }
+
+    assertThat(tier.segmentCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testCompact_movesEntriesOfSparseSegments() {
+    for (int i = 0; i < 200; i++) {
+      tier.put("user" + i, ImmutableList.of(refreshToken("token" + i)));
+    }
+    int segments = tier.segmentCount();
+    for (int i = 0; i < 200; i++) {
+      if (i % 10 != 0) {
+        tier.take("user" + i);
+      }
+    }
+
+    tier.compact();
+
+    assertThat(tier.segmentCount()).isLessThan(segments);
+    for (int i = 0; i < 200; i += 10) {
+      assertThat(tier.take("user" + i)).containsExactly(refreshToken("token" + i));
+    }
+  }
+
+  @Test
+  public void testSweep_idleUserMovedAndReadBack() {
+    OAuth2AccessToken token = tokenService.generateAccessToken(REQUEST);
+    tokenService.removeExpiredTokens(Instant.now().getEpochSecond() + 3600);
+
+    tokenService.sweepColdUsers();
+    assertThat(tier.size()).isEqualTo(0);
+    tokenService.sweepColdUsers();
+
+    assertThat(tier.size()).isEqualTo(1);
+    assertThat(tokenService.userTokensMap).isEmpty();
+    assertThat(tokenService.refreshTokenIndex).isEmpty();
+
+    assertThat(tokenService.readRefreshToken(token.getRefreshToken())).isPresent();
+    assertThat(tier.size()).isEqualTo(0);
+    assertThat(tokenService.listUserClientRefreshTokens(USERNAME, CLIENTID)).hasSize(1);
+  }
+
+  @Test
+  public void testSweep_userWithAccessTokensStaysHot() {
+    OAuth2AccessToken token = tokenService.generateAccessToken(REQUEST);
+
+    tokenService.sweepColdUsers();
+    tokenService.sweepColdUsers();
+
+    assertThat(tier.size()).isEqualTo(0);
+    assertThat(tokenService.readAccessToken(token.getAccessToken())).hasValue(token);
+  }
+
+  @Test
+  public void testColdUser_refreshAndRevoke() {
+    OAuth2AccessToken token = tokenService.generateAccessToken(REQUEST);
+    OAuth2AccessToken other = tokenService.generateAccessToken(REQUEST);
+    tokenService.removeExpiredTokens(Instant.now().getEpochSecond() + 3600);
+    tokenService.sweepColdUsers();
+    tokenService.sweepColdUsers();
+
+    assertThat(tokenService.refreshToken(token.getRefreshToken())).isPresent();
+
+    tokenService.sweepColdUsers();
+    tokenService.sweepColdUsers();
+    tokenService.removeExpiredTokens(Instant.now().getEpochSecond() + 3600);
+    tokenService.sweepColdUsers();
+    tokenService.sweepColdUsers();
+
+    assertThat(tokenService.revokeByRefreshToken(other.getRefreshToken())).isTrue();
+    assertThat(tokenService.readRefreshToken(other.getRefreshToken())).isEmpty();
+    assertThat(tokenService.readRefreshToken(token.getRefreshToken())).isPresent();
+  }
+
+  @Test
+  public void testColdUser_revokedUser_notReadable() {
+    OAuth2AccessToken token = tokenService.generateAccessToken(REQUEST);
+    tokenService.removeExpiredTokens(Instant.now().getEpochSecond() + 3600);
+    tokenService.sweepColdUsers();
+    tokenService.sweepColdUsers();
+
+    tokenService.revokeUserTokens(USERNAME);
+
+    assertThat(tokenService.readRefreshToken(token.getRefreshToken())).isEmpty();
+    assertThat(tokenService.listUserClient(USERNAME)).isEmpty();
+  }
+
+  private static OAuth2RefreshToken refreshToken(String value) {
+    return OAuth2RefreshToken.newBuilder()
+        .setRefreshToken(value)
+        .setClientId(CLIENTID)
+        .setUsername(USERNAME)
+        .addScopes("read")
+        .build();
+  }
+}
@@ -0,0 +1,206 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.token;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth8.assertThat;
+
+import com.google.googleidentity.oauth2.request.OAuth2Request;
+import java.time.Duration;
+import java.time.Instant;
+import org.junit.After;
+import org.junit.Test;
+
+/** Tests for {@link CompactInMemoryOAuth2TokenService} */
+public class CompactInMemoryOAuth2TokenServiceTest {
+
+  private static final String CLIENTID = "client";
+  private static final String USERNAME = "user";
+
+  private static final OAuth2Request REQUEST =
+      OAuth2Request.newBuilder()
+          .setRequestAuth(
+              OAuth2Request.RequestAuth.newBuilder()
+                  .setClientId(CLIENTID)
+                  .setUsername(USERNAME)
+                  .build())
+          .setRequestBody(
+              OAuth2Request.RequestBody.newBuilder()
+                  .setIsScoped(true)
+                  .addScopes("read")
+                  .addScopes("write")
+                  .setRefreshable(true)
+                  .build())
+          .build();
+
+  private static final OAuth2Request ACCESS_ONLY_REQUEST =
+      REQUEST.toBuilder()
+          .setRequestBody(REQUEST.getRequestBody().toBuilder().setRefreshable(false))
+          .build();
+
+  private final CompactInMemoryOAuth2TokenService tokenService =
+      new CompactInMemoryOAuth2TokenService();
+
+  @After
+  public void shutdown() {
+    tokenService.service.shutdownNow();
+  }
+
+  @Test
+  public void testGenerateAccessToken_canReadOut() {
+    OAuth2AccessToken token = tokenService.generateAccessToken(REQUEST);
+
+    assertThat(token.getAccessToken()).hasLength(CompactTokenIds.LENGTH);
+    assertThat(token.getClientId()).isEqualTo(CLIENTID);
+    assertThat(token.getUsername()).isEqualTo(USERNAME);
+    assertThat(token.getIsScoped()).isTrue();
+    assertThat(token.getScopesList()).containsExactly("read", "write").inOrder();
+    assertThat(tokenService.readAccessToken(token.getAccessToken())).hasValue(token);
+    assertThat(tokenService.readRefreshToken(token.getRefreshToken()).get().getScopesList())
+        .containsExactly("read", "write")
+        .inOrder();
+  }
+
+  @Test
+  public void testReadAccessToken_unknownOrMalformed_empty() {
+    OAuth2AccessToken token = tokenService.generateAccessToken(REQUEST);
+
+    assertThat(tokenService.readAccessToken(token.getRefreshToken())).isEmpty();
+    assertThat(tokenService.readAccessToken("not a token")).isEmpty();
+    assertThat(tokenService.readAccessToken(token.getAccessToken() + "A")).isEmpty();
+    assertThat(tokenService.refreshToken(token.getAccessToken())).isEmpty();
+  }
+
+  @Test
+  public void testRefreshToken_newAccessTokenOfSameRefreshToken() {
+    OAuth2AccessToken token = tokenService.generateAccessToken(REQUEST);
+
+    OAuth2AccessToken refreshed = tokenService.refreshToken(token.getRefreshToken()).get();
+
+    assertThat(refreshed.getAccessToken()).isNotEqualTo(token.getAccessToken());
+    assertThat(refreshed.getRefreshToken()).isEqualTo(token.getRefreshToken());
+    assertThat(tokenService.listUserClientAccessTokens(USERNAME, CLIENTID))
+        .containsExactly(token, refreshed);
+  }
+
+  @Test
+  public void testRevokeByRefreshToken_accessTokensRemoved() {
+    OAuth2AccessToken token = tokenService.generateAccessToken(REQUEST);
+    OAuth2AccessToken refreshed = tokenService.refreshToken(token.getRefreshToken()).get();
+    OAuth2AccessToken other = tokenService.generateAccessToken(REQUEST);
+
+    assertThat(tokenService.revokeByRefreshToken(token.getRefreshToken())).isTrue();
+
+    assertThat(tokenService.readAccessToken(token.getAccessToken())).isEmpty();
+    assertThat(tokenService.readAccessToken(refreshed.getAccessToken())).isEmpty();
+    assertThat(tokenService.readAccessToken(other.getAccessToken())).hasValue(other);
+    assertThat(tokenService.revokeByRefreshToken(token.getRefreshToken())).isFalse();
+  }
+
+  @Test
+  public void testRevokeByAccessToken_noRefreshToken_removed() {
+    OAuth2AccessToken token = tokenService.generateAccessToken(ACCESS_ONLY_REQUEST);
+
+    assertThat(tokenService.revokeByAccessToken(token.getAccessToken())).isTrue();
+
+    assertThat(tokenService.readAccessToken(token.getAccessToken())).isEmpty();
+    assertThat(tokenService.listUserClient(USERNAME)).isEmpty();
+    assertThat(tokenService.accessTokenCount()).isEqualTo(0L);
+  }
+
+  @Test
+  public void testRevokeUserClientTokens_tokensUnreadableAndRemoved() {
+    OAuth2AccessToken token = tokenService.generateAccessToken(REQUEST);
+
+    assertThat(tokenService.revokeUserClientTokens(USERNAME, CLIENTID)).isTrue();
+
+    assertThat(tokenService.readAccessToken(token.getAccessToken())).isEmpty();
+    assertThat(tokenService.refreshToken(token.getRefreshToken())).isEmpty();
+    assertThat(tokenService.listUserClient(USERNAME)).isEmpty();
+    assertThat(tokenService.revokeUserClientTokens(USERNAME, CLIENTID)).isFalse();
+
+    tokenService.removeRevokedTokens();
+    assertThat(tokenService.accessTokenCount()).isEqualTo(0L);
+
+    OAuth2AccessToken issuedAfter = tokenService.generateAccessToken(REQUEST);
+    assertThat(tokenService.readAccessToken(issuedAfter.getAccessToken())).hasValue(issuedAfter);
+  }
+
+  @Test
+  public void testRemoveExpiredTokens_accessTokensRemovedRefreshTokenKept() {
+    OAuth2AccessToken token = tokenService.generateAccessToken(REQUEST);
+
+    tokenService.removeExpiredTokens(Instant.now().plus(Duration.ofHours(1)).getEpochSecond());
+
+    assertThat(tokenService.readAccessToken(token.getAccessToken())).isEmpty();
+    assertThat(tokenService.accessTokenCount()).isEqualTo(0L);
+    assertThat(tokenService.refreshToken(token.getRefreshToken())).isPresent();
+  }
+
+  @Test
+  public void testListUserClient_usersKeptApart() {
+    tokenService.generateAccessToken(REQUEST);
+    OAuth2Request otherRequest =
+        REQUEST.toBuilder()
+            .setRequestAuth(
+                REQUEST.getRequestAuth().toBuilder().setUsername("other").setClientId("other"))
+            .build();
+    tokenService.generateAccessToken(otherRequest);
+
+    assertThat(tokenService.listUserClient(USERNAME)).containsExactly(CLIENTID);
+    assertThat(tokenService.listUserClient("other")).containsExactly("other");
+    assertThat(tokenService.listUserClientAccessTokens(USERNAME, "other")).isEmpty();
+    assertThat(tokenService.listUserClientRefreshTokens("other", "other")).hasSize(1);
+  }
+
+  @Test
+  public void testListUserTokens_listsLiveTokens() {
+    OAuth2AccessToken token = tokenService.generateAccessToken(REQUEST);
+    OAuth2AccessToken accessOnly = tokenService.generateAccessToken(ACCESS_ONLY_REQUEST);
+    tokenService.revokeByAccessToken(token.getAccessToken());
+
+    UserTokenList tokens = tokenService.listUserTokens(USERNAME);
+
+    assertThat(tokens.getAccessTokens()).hasSize(1);
+    assertThat(tokens.getAccessTokens().get(0).getAccessToken())
+        .isEqualTo(accessOnly.getAccessToken());
+    assertThat(tokens.getRefreshTokens()).isEmpty();
+  }
+
+  @Test
+  public void testRefreshToken_otherOrUnknownClient_clientMismatch() {
+    OAuth2AccessToken token = tokenService.generateAccessToken(REQUEST);
+
+    assertThat(tokenService.refreshToken(token.getRefreshToken(), "unknown").getStatus())
+        .isEqualTo(ClientTokenResult.Status.CLIENT_MISMATCH);
+    assertThat(tokenService.refreshToken(token.getRefreshToken(), CLIENTID).getStatus())
+        .isEqualTo(ClientTokenResult.Status.DONE);
+    assertThat(tokenService.listUserClientAccessTokens(USERNAME, CLIENTID)).hasSize(2);
+  }
+
+  @Test
+  public void testRevokeAndListUserClientTokens_listsAndRevokes() {
+    OAuth2AccessToken token = tokenService.generateAccessToken(REQUEST);
+
+    RevokedTokens revoked = tokenService.revokeAndListUserClientTokens(USERNAME, CLIENTID);
+
+    assertThat(revoked.getAccessTokens()).hasSize(1);
+    assertThat(revoked.getRefreshTokens()).hasSize(1);
+    assertThat(tokenService.readAccessToken(token.getAccessToken())).isEmpty();
+    assertThat(tokenService.revokeAndListUserClientTokens(USERNAME, CLIENTID).isEmpty()).isTrue();
+  }
+}
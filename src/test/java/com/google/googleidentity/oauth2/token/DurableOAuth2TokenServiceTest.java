@@ -0,0 +1,169 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.token;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth8.assertThat;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.googleidentity.oauth2.request.OAuth2Request;
+import com.google.googleidentity.persistence.Persistence;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Tests for {@link DurableOAuth2TokenService} */
+public class DurableOAuth2TokenServiceTest {
+
+  private static final String CLIENTID = "client";
+  private static final String USERNAME = "user";
+
+  private static final OAuth2Request REQUEST =
+      OAuth2Request.newBuilder()
+          .setRequestAuth(
+              OAuth2Request.RequestAuth.newBuilder()
+                  .setClientId(CLIENTID)
+                  .setUsername(USERNAME)
+                  .build())
+          .setRequestBody(
+              OAuth2Request.RequestBody.newBuilder()
+                  .setIsScoped(true)
+                  .addScopes("read")
+                  .setRefreshable(true)
+                  .build())
+          .build();
+
+  private static final OAuth2Request ACCESS_ONLY_REQUEST =
+      REQUEST.toBuilder()
+          .setRequestBody(REQUEST.getRequestBody().toBuilder().setRefreshable(false))
+          .build();
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private final List<InMemoryOAuth2TokenService> stores = new ArrayList<>();
+  private Path directory;
+  private Persistence persistence;
+  private DurableOAuth2TokenService tokenService;
+
+  @Before
+  public void setUp() throws IOException {
+    directory = folder.getRoot().toPath();
+    tokenService = start();
+  }
+
+  @After
+  public void shutdown() throws IOException {
+    persistence.stop();
+    for (InMemoryOAuth2TokenService store : stores) {
+      store.service.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testRestart_issuedTokens_canReadOut() throws IOException {
+    OAuth2AccessToken token = tokenService.generateAccessToken(REQUEST);
+    OAuth2AccessToken accessOnly = tokenService.generateAccessToken(ACCESS_ONLY_REQUEST);
+    OAuth2AccessToken refreshed = tokenService.refreshToken(token.getRefreshToken()).get();
+
+    DurableOAuth2TokenService recovered = restart();
+
+    assertThat(recovered.readAccessToken(token.getAccessToken())).hasValue(token);
+    assertThat(recovered.readAccessToken(accessOnly.getAccessToken())).hasValue(accessOnly);
+    assertThat(recovered.readAccessToken(refreshed.getAccessToken())).hasValue(refreshed);
+    assertThat(recovered.readRefreshToken(token.getRefreshToken())).isPresent();
+    assertThat(recovered.listUserClientAccessTokens(USERNAME, CLIENTID)).hasSize(3);
+  }
+
+  @Test
+  public void testRestart_revokedTokens_stayRevoked() throws IOException {
+    OAuth2AccessToken token = tokenService.generateAccessToken(REQUEST);
+    OAuth2AccessToken accessOnly = tokenService.generateAccessToken(ACCESS_ONLY_REQUEST);
+    OAuth2AccessToken kept = tokenService.generateAccessToken(ACCESS_ONLY_REQUEST);
+
+    assertThat(tokenService.revokeByAccessToken(token.getAccessToken())).isTrue();
+    assertThat(tokenService.revokeByAccessToken(accessOnly.getAccessToken())).isTrue();
+
+    DurableOAuth2TokenService recovered = restart();
+
+    assertThat(recovered.readAccessToken(token.getAccessToken())).isEmpty();
+    assertThat(recovered.readRefreshToken(token.getRefreshToken())).isEmpty();
+    assertThat(recovered.readAccessToken(accessOnly.getAccessToken())).isEmpty();
+    assertThat(recovered.readAccessToken(kept.getAccessToken())).hasValue(kept);
+  }
+
+  @Test
+  public void testRestart_revokedUser_tokensIssuedLaterReadable() throws IOException {
+    OAuth2AccessToken before = tokenService.generateAccessToken(REQUEST);
+    tokenService.revokeUserTokens(USERNAME);
+    OAuth2AccessToken after = tokenService.generateAccessToken(REQUEST);
+
+    DurableOAuth2TokenService recovered = restart();
+
+    assertThat(recovered.readAccessToken(before.getAccessToken())).isEmpty();
+    assertThat(recovered.readRefreshToken(before.getRefreshToken())).isEmpty();
+    assertThat(recovered.readAccessToken(after.getAccessToken())).hasValue(after);
+    OAuth2AccessToken issued = recovered.generateAccessToken(REQUEST);
+    assertThat(recovered.readAccessToken(issued.getAccessToken())).hasValue(issued);
+  }
+
+  @Test
+  public void testRestart_afterCheckpoint_canReadOut() throws IOException {
+    OAuth2AccessToken revoked = tokenService.generateAccessToken(REQUEST);
+    tokenService.revokeClientTokens(CLIENTID);
+    OAuth2AccessToken snapshotted = tokenService.generateAccessToken(REQUEST);
+    persistence.checkpoint();
+    OAuth2AccessToken logged = tokenService.generateAccessToken(ACCESS_ONLY_REQUEST);
+
+    DurableOAuth2TokenService recovered = restart();
+
+    assertThat(recovered.readAccessToken(revoked.getAccessToken())).isEmpty();
+    assertThat(recovered.readAccessToken(snapshotted.getAccessToken())).hasValue(snapshotted);
+    assertThat(recovered.readRefreshToken(snapshotted.getRefreshToken())).isPresent();
+    assertThat(recovered.readAccessToken(logged.getAccessToken())).hasValue(logged);
+  }
+
+  @Test
+  public void testRestart_afterReset_hasNoTokens() throws IOException {
+    OAuth2AccessToken token = tokenService.generateAccessToken(REQUEST);
+    tokenService.reset();
+
+    DurableOAuth2TokenService recovered = restart();
+
+    assertThat(recovered.readAccessToken(token.getAccessToken())).isEmpty();
+    assertThat(recovered.listUserClient(USERNAME)).isEmpty();
+  }
+
+  private DurableOAuth2TokenService start() throws IOException {
+    persistence = new Persistence(directory, 2);
+    InMemoryOAuth2TokenService store = new InMemoryOAuth2TokenService();
+    stores.add(store);
+    DurableOAuth2TokenService service = new DurableOAuth2TokenService(store, persistence);
+    persistence.recover(ImmutableSet.of(service));
+    return service;
+  }
+
+  private DurableOAuth2TokenService restart() throws IOException {
+    persistence.stop();
+    return start();
+  }
+}
@@ -0,0 +1,226 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.token;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth8.assertThat;
+
+import com.google.googleidentity.oauth2.request.OAuth2Request;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Concurrent issuance, refresh, revocation and cleaning of the same user in {@link
+ * InMemoryOAuth2TokenService}. Throughput under the same contention is measured by {@link
+ * InMemoryTokenContentionBenchmark}.
+ */
+public class InMemoryOAuth2TokenServiceStressTest {
+
+  private static final int THREADS = 64;
+  private static final int ITERATIONS = 200;
+
+  private static final String CLIENTID = "client";
+  private static final String USERNAME = "user";
+
+  private static final OAuth2Request REQUEST =
+      OAuth2Request.newBuilder()
+          .setRequestAuth(
+              OAuth2Request.RequestAuth.newBuilder()
+                  .setClientId(CLIENTID)
+                  .setUsername(USERNAME)
+                  .build())
+          .setRequestBody(
+              OAuth2Request.RequestBody.newBuilder()
+                  .setIsScoped(true)
+                  .addScopes("read")
+                  .setRefreshable(false)
+                  .build())
+          .build();
+
+  private static final OAuth2Request REFRESHABLE_REQUEST =
+      REQUEST.toBuilder()
+          .setRequestBody(REQUEST.getRequestBody().toBuilder().setRefreshable(true))
+          .build();
+
+  private final InMemoryOAuth2TokenService tokenService = new InMemoryOAuth2TokenService();
+  private final ExecutorService executor = Executors.newFixedThreadPool(THREADS + 1);
+  private final AtomicBoolean cleaning = new AtomicBoolean(true);
+  private Future<?> cleaner;
+
+  @Before
+  public void init() {
+    // The cleaner of the service runs too, this one cleans as often as possible.
+    cleaner =
+        executor.submit(
+            () -> {
+              while (cleaning.get()) {
+                tokenService.removeRevokedTokens();
+              }
+            });
+  }
+
+  @After
+  public void shutdown() {
+    cleaning.set(false);
+    executor.shutdownNow();
+    tokenService.service.shutdownNow();
+  }
+
+  @Test
+  public void testIssueAndRevoke_sameUser_noLostTokens() throws Exception {
+    runConcurrently(
+        () -> {
+          for (int i = 0; i < ITERATIONS; i++) {
+            OAuth2AccessToken token = tokenService.generateAccessToken(REQUEST);
+            // The user keeps being emptied and removed by the other threads meanwhile.
+            assertThat(tokenService.listUserClientAccessTokens(USERNAME, CLIENTID))
+                .contains(token);
+            assertThat(tokenService.readAccessToken(token.getAccessToken())).hasValue(token);
+            assertThat(tokenService.revokeByAccessToken(token.getAccessToken())).isTrue();
+          }
+          return null;
+        });
+
+    assertThat(tokenService.accessTokenIndex).isEmpty();
+    assertThat(tokenService.userTokensMap).isEmpty();
+  }
+
+  @Test
+  public void testIssueAndKeep_sameUser_allTokensListed() throws Exception {
+    List<OAuth2AccessToken> kept = new ArrayList<>();
+    for (Future<List<OAuth2AccessToken>> result :
+        runConcurrently(
+            () -> {
+              List<OAuth2AccessToken> tokens = new ArrayList<>();
+              for (int i = 0; i < ITERATIONS; i++) {
+                OAuth2AccessToken token = tokenService.generateAccessToken(REFRESHABLE_REQUEST);
+                if (i % 2 == 0) {
+                  tokens.add(token);
+                } else {
+                  assertThat(tokenService.revokeByRefreshToken(token.getRefreshToken())).isTrue();
+                }
+              }
+              return tokens;
+            })) {
+      kept.addAll(result.get());
+    }
+
+    assertThat(kept).hasSize(THREADS * ITERATIONS / 2);
+    assertThat(tokenService.listUserClientAccessTokens(USERNAME, CLIENTID))
+        .containsExactlyElementsIn(kept);
+    assertThat(tokenService.listUserClientRefreshTokens(USERNAME, CLIENTID))
+        .hasSize(kept.size());
+    assertThat(tokenService.accessTokenIndex).hasSize(kept.size());
+  }
+
+  @Test
+  public void testRefreshAndRevoke_sameRefreshToken_noOrphanedAccessTokens() throws Exception {
+    String refreshToken = tokenService.generateAccessToken(REFRESHABLE_REQUEST).getRefreshToken();
+    CountDownLatch refreshed = new CountDownLatch(THREADS);
+
+    List<OAuth2AccessToken> issued = new ArrayList<>();
+    List<Future<List<OAuth2AccessToken>>> results =
+        runConcurrently(
+            () -> {
+              List<OAuth2AccessToken> tokens = new ArrayList<>();
+              for (int i = 0; i < ITERATIONS; i++) {
+                Optional<OAuth2AccessToken> token = tokenService.refreshToken(refreshToken);
+                if (i == ITERATIONS / 2) {
+                  refreshed.countDown();
+                  refreshed.await();
+                  tokenService.revokeByRefreshToken(refreshToken);
+                }
+                if (!token.isPresent()) {
+                  break;
+                }
+                tokens.add(token.get());
+              }
+              return tokens;
+            });
+    for (Future<List<OAuth2AccessToken>> result : results) {
+      issued.addAll(result.get());
+    }
+
+    assertThat(tokenService.readRefreshToken(refreshToken)).isEmpty();
+    for (OAuth2AccessToken token : issued) {
+      assertThat(tokenService.readAccessToken(token.getAccessToken())).isEmpty();
+    }
+    assertThat(tokenService.accessTokenIndex).isEmpty();
+    assertThat(tokenService.userTokensMap).isEmpty();
+  }
+
+  @Test
+  public void testIssueAndRevokeUser_sameUser_noTokenSurvivesRevocation() throws Exception {
+    runConcurrently(
+        () -> {
+          for (int i = 0; i < ITERATIONS; i++) {
+            tokenService.generateAccessToken(REFRESHABLE_REQUEST);
+            if (i % 20 == 0) {
+              tokenService.revokeUserTokens(USERNAME);
+            }
+          }
+          return null;
+        });
+    tokenService.revokeUserTokens(USERNAME);
+    stopCleaners();
+    tokenService.removeRevokedTokens();
+
+    assertThat(tokenService.listUserClient(USERNAME)).isEmpty();
+    assertThat(tokenService.accessTokenIndex).isEmpty();
+    assertThat(tokenService.refreshTokenIndex).isEmpty();
+    assertThat(tokenService.userTokensMap).isEmpty();
+  }
+
+  /** Wait for both cleaners to stop, so none is still removing a scope it has taken. */
+  private void stopCleaners() throws Exception {
+    cleaning.set(false);
+    cleaner.get(60, TimeUnit.SECONDS);
+    tokenService.service.shutdown();
+    assertThat(tokenService.service.awaitTermination(60, TimeUnit.SECONDS)).isTrue();
+  }
+
+  /** Run the task on {@link #THREADS} threads at once and wait for all of them. */
+  private <T> List<Future<T>> runConcurrently(Callable<T> task) throws Exception {
+    CountDownLatch start = new CountDownLatch(1);
+    List<Future<T>> results = new ArrayList<>();
+    for (int i = 0; i < THREADS; i++) {
+      results.add(
+          executor.submit(
+              () -> {
+                start.await();
+                return task.call();
+              }));
+    }
+    start.countDown();
+    for (Future<T> result : results) {
+      // Rethrows the assertion errors of the threads.
+      result.get(60, TimeUnit.SECONDS);
+    }
+    return results;
+  }
+}
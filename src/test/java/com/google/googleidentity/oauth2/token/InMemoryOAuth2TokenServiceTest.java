@@ -24,6 +24,7 @@ import com.google.googleidentity.oauth2.util.OAuth2Enums.GrantType;
 import com.google.googleidentity.oauth2.util.OAuth2Enums.ResponseType;
 import org.junit.Test;
 
+import java.time.Instant;
 import java.util.Optional;
 import java.util.UUID;
 
@@ -218,6 +219,26 @@ public class InMemoryOAuth2TokenServiceTest {
     assertThat(tokenService.listUserClient(USERNAME)).containsExactly(CLIENTID);
   }
 
+  @Test
+  public void testListUserTokens_tokensListedUntilRevoked() {
+    OAuth2TokenService tokenService = new InMemoryOAuth2TokenService();
+
+    OAuth2AccessToken token = tokenService.generateAccessToken(TESTREQUEST0);
+    tokenService.refreshToken(token.getRefreshToken());
+    tokenService.generateAccessToken(TESTREQUEST1);
+
+    UserTokenList tokens = tokenService.listUserTokens(USERNAME);
+    assertThat(tokens.getAccessTokens()).hasSize(3);
+    assertThat(tokens.getRefreshTokens()).hasSize(1);
+    assertThat(tokens.getRefreshTokens().get(0).getClientId()).isEqualTo(CLIENTID);
+
+    tokenService.revokeUserTokens(USERNAME);
+
+    tokens = tokenService.listUserTokens(USERNAME);
+    assertThat(tokens.getAccessTokens()).isEmpty();
+    assertThat(tokens.getRefreshTokens()).isEmpty();
+  }
+
   @Test
   public void testListUserClient_userLinkNoClient_returnEmpty() {
     OAuth2TokenService tokenService = new InMemoryOAuth2TokenService();
@@ -292,4 +313,282 @@ public class InMemoryOAuth2TokenServiceTest {
 
     assertThat(tokenService.revokeByRefreshToken(token.getAccessToken())).isFalse();
   }
+
+  @Test
+  public void testRevokeUserClientTokens_correctInput_returnTrueAndTokensNotReadable() {
+    OAuth2TokenService tokenService = new InMemoryOAuth2TokenService();
+
+    OAuth2AccessToken token0 = tokenService.generateAccessToken(TESTREQUEST0);
+    OAuth2AccessToken token1 = tokenService.generateAccessToken(TESTREQUEST1);
+
+    assertThat(tokenService.revokeUserClientTokens(USERNAME, CLIENTID)).isTrue();
+
+    assertThat(tokenService.readAccessToken(token0.getAccessToken())).isEmpty();
+    assertThat(tokenService.readRefreshToken(token0.getRefreshToken())).isEmpty();
+    assertThat(tokenService.readAccessToken(token1.getAccessToken())).isEmpty();
+    assertThat(tokenService.revokeUserClientTokens(USERNAME, CLIENTID)).isFalse();
+  }
+
+  @Test
+  public void testRevokeClientTokens_tokensOfAllUsers_notReadable() {
+    OAuth2TokenService tokenService = new InMemoryOAuth2TokenService();
+
+    OAuth2AccessToken token0 = tokenService.generateAccessToken(TESTREQUEST0);
+    OAuth2AccessToken token1 = tokenService.generateAccessToken(otherUserRequest());
+
+    tokenService.revokeClientTokens(CLIENTID);
+
+    assertThat(tokenService.readAccessToken(token0.getAccessToken())).isEmpty();
+    assertThat(tokenService.readRefreshToken(token0.getRefreshToken())).isEmpty();
+    assertThat(tokenService.readAccessToken(token1.getAccessToken())).isEmpty();
+    assertThat(tokenService.refreshToken(token1.getRefreshToken())).isEmpty();
+    assertThat(tokenService.listUserClient(USERNAME)).isEmpty();
+    assertThat(tokenService.revokeUserClientTokens(USERNAME, CLIENTID)).isFalse();
+  }
+
+  @Test
+  public void testRevokeClientTokens_tokenIssuedAfter_readable() {
+    OAuth2TokenService tokenService = new InMemoryOAuth2TokenService();
+
+    tokenService.generateAccessToken(TESTREQUEST0);
+    tokenService.revokeClientTokens(CLIENTID);
+    OAuth2AccessToken token = tokenService.generateAccessToken(TESTREQUEST0);
+
+    assertThat(tokenService.readAccessToken(token.getAccessToken())).hasValue(token);
+    assertThat(tokenService.listUserClientAccessTokens(USERNAME, CLIENTID)).containsExactly(token);
+  }
+
+  @Test
+  public void testRevokeUserTokens_otherUserTokens_stillReadable() {
+    OAuth2TokenService tokenService = new InMemoryOAuth2TokenService();
+
+    OAuth2AccessToken token0 = tokenService.generateAccessToken(TESTREQUEST0);
+    OAuth2AccessToken token1 = tokenService.generateAccessToken(otherUserRequest());
+
+    tokenService.revokeUserTokens(USERNAME);
+
+    assertThat(tokenService.readAccessToken(token0.getAccessToken())).isEmpty();
+    assertThat(tokenService.readAccessToken(token1.getAccessToken())).hasValue(token1);
+  }
+
+  @Test
+  public void testRefreshToken_otherClient_clientMismatchAndNoNewToken() {
+    OAuth2TokenService tokenService = new InMemoryOAuth2TokenService();
+
+    OAuth2AccessToken token = tokenService.generateAccessToken(TESTREQUEST0);
+
+    assertThat(tokenService.refreshToken(token.getRefreshToken(), "other").getStatus())
+        .isEqualTo(ClientTokenResult.Status.CLIENT_MISMATCH);
+    assertThat(tokenService.listUserClientAccessTokens(USERNAME, CLIENTID)).containsExactly(token);
+  }
+
+  @Test
+  public void testRefreshToken_sameClient_returnNewToken() {
+    OAuth2TokenService tokenService = new InMemoryOAuth2TokenService();
+
+    OAuth2AccessToken token = tokenService.generateAccessToken(TESTREQUEST0);
+    ClientTokenResult<OAuth2AccessToken> result =
+        tokenService.refreshToken(token.getRefreshToken(), CLIENTID);
+
+    assertThat(result.getStatus()).isEqualTo(ClientTokenResult.Status.DONE);
+    assertThat(tokenService.readAccessToken(result.getValue().get().getAccessToken()))
+        .hasValue(result.getValue().get());
+    assertThat(tokenService.refreshToken(UUID.randomUUID().toString(), CLIENTID).getStatus())
+        .isEqualTo(ClientTokenResult.Status.NOT_FOUND);
+  }
+
+  @Test
+  public void testRevokeByAccessToken_otherClient_clientMismatchAndStillReadable() {
+    OAuth2TokenService tokenService = new InMemoryOAuth2TokenService();
+
+    OAuth2AccessToken token = tokenService.generateAccessToken(TESTREQUEST0);
+
+    assertThat(tokenService.revokeByAccessToken(token.getAccessToken(), "other").getStatus())
+        .isEqualTo(ClientTokenResult.Status.CLIENT_MISMATCH);
+    assertThat(tokenService.readAccessToken(token.getAccessToken())).hasValue(token);
+
+    assertThat(tokenService.revokeByAccessToken(token.getAccessToken(), CLIENTID).getValue())
+        .hasValue(token);
+    assertThat(tokenService.readAccessToken(token.getAccessToken())).isEmpty();
+    assertThat(tokenService.readRefreshToken(token.getRefreshToken())).isEmpty();
+  }
+
+  @Test
+  public void testRevokeByRefreshToken_sameClient_returnRevokedToken() {
+    OAuth2TokenService tokenService = new InMemoryOAuth2TokenService();
+
+    OAuth2AccessToken token = tokenService.generateAccessToken(TESTREQUEST0);
+    OAuth2RefreshToken refreshToken = tokenService.readRefreshToken(token.getRefreshToken()).get();
+
+    assertThat(tokenService.revokeByRefreshToken(token.getRefreshToken(), "other").getStatus())
+        .isEqualTo(ClientTokenResult.Status.CLIENT_MISMATCH);
+    assertThat(tokenService.revokeByRefreshToken(token.getRefreshToken(), CLIENTID).getValue())
+        .hasValue(refreshToken);
+    assertThat(tokenService.readAccessToken(token.getAccessToken())).isEmpty();
+    assertThat(tokenService.revokeByRefreshToken(token.getRefreshToken(), CLIENTID).getStatus())
+        .isEqualTo(ClientTokenResult.Status.NOT_FOUND);
+  }
+
+  @Test
+  public void testRevokeAndListUserClientTokens_returnsRevokedTokens() {
+    OAuth2TokenService tokenService = new InMemoryOAuth2TokenService();
+
+    OAuth2AccessToken token = tokenService.generateAccessToken(TESTREQUEST0);
+    OAuth2RefreshToken refreshToken = tokenService.readRefreshToken(token.getRefreshToken()).get();
+
+    RevokedTokens revoked = tokenService.revokeAndListUserClientTokens(USERNAME, CLIENTID);
+
+    assertThat(revoked.getAccessTokens()).containsExactly(token);
+    assertThat(revoked.getRefreshTokens()).containsExactly(refreshToken);
+    assertThat(tokenService.readAccessToken(token.getAccessToken())).isEmpty();
+    assertThat(tokenService.revokeAndListUserClientTokens(USERNAME, CLIENTID).isEmpty()).isTrue();
+  }
+
+  @Test
+  public void testRemoveRevokedTokens_revokedClient_removesOnlyRevokedTokens() {
+    InMemoryOAuth2TokenService tokenService = new InMemoryOAuth2TokenService();
+
+    tokenService.generateAccessToken(TESTREQUEST0);
+    tokenService.generateAccessToken(otherUserRequest());
+    tokenService.revokeClientTokens(CLIENTID);
+    OAuth2AccessToken token = tokenService.generateAccessToken(TESTREQUEST0);
+
+    tokenService.removeRevokedTokens();
+
+    assertThat(tokenService.accessTokenIndex.keySet()).containsExactly(token.getAccessToken());
+    assertThat(tokenService.refreshTokenIndex.keySet()).containsExactly(token.getRefreshToken());
+    assertThat(tokenService.userTokensMap.keySet()).containsExactly(USERNAME);
+  }
+
+  @Test
+  public void testRefreshToken_rotation_replacesRefreshTokenInFamily() {
+    InMemoryOAuth2TokenService tokenService = new InMemoryOAuth2TokenService();
+    tokenService.setRotateRefreshTokens(true);
+    OAuth2AccessToken token = tokenService.generateAccessToken(TESTREQUEST0);
+
+    OAuth2AccessToken refreshed =
+        tokenService.refreshToken(token.getRefreshToken(), CLIENTID).getValue().get();
+
+    assertThat(refreshed.getRefreshToken()).isNotEqualTo(token.getRefreshToken());
+    assertThat(refreshed.getFamilyId()).isEqualTo(token.getFamilyId());
+    assertThat(tokenService.readRefreshToken(token.getRefreshToken())).isEmpty();
+    assertThat(tokenService.readRefreshToken(refreshed.getRefreshToken())).isPresent();
+    assertThat(tokenService.listUserClientRefreshTokens(USERNAME, CLIENTID)).hasSize(1);
+    assertThat(tokenService.listUserClientAccessTokens(USERNAME, CLIENTID)).hasSize(2);
+  }
+
+  @Test
+  public void testRefreshToken_supersededTokenReused_revokesFamily() {
+    InMemoryOAuth2TokenService tokenService = new InMemoryOAuth2TokenService();
+    tokenService.setRotateRefreshTokens(true);
+    OAuth2AccessToken token = tokenService.generateAccessToken(TESTREQUEST0);
+    OAuth2AccessToken refreshed =
+        tokenService.refreshToken(token.getRefreshToken(), CLIENTID).getValue().get();
+
+    assertThat(tokenService.refreshToken(token.getRefreshToken(), CLIENTID).getStatus())
+        .isEqualTo(ClientTokenResult.Status.NOT_FOUND);
+
+    assertThat(tokenService.readRefreshToken(refreshed.getRefreshToken())).isEmpty();
+    assertThat(tokenService.readAccessToken(refreshed.getAccessToken())).isEmpty();
+    assertThat(tokenService.readAccessToken(token.getAccessToken())).isEmpty();
+  }
+
+  @Test
+  public void testRevokeByAccessToken_rotatedFamily_revokesCurrentRefreshToken() {
+    InMemoryOAuth2TokenService tokenService = new InMemoryOAuth2TokenService();
+    tokenService.setRotateRefreshTokens(true);
+    OAuth2AccessToken token = tokenService.generateAccessToken(TESTREQUEST0);
+    OAuth2AccessToken refreshed =
+        tokenService.refreshToken(token.getRefreshToken(), CLIENTID).getValue().get();
+
+    assertThat(tokenService.revokeByAccessToken(token.getAccessToken())).isTrue();
+
+    assertThat(tokenService.readRefreshToken(refreshed.getRefreshToken())).isEmpty();
+    assertThat(tokenService.readAccessToken(refreshed.getAccessToken())).isEmpty();
+  }
+
+  @Test
+  public void testRemoveExpiredTokens_reuseDetectionEnded_forgetsSupersededToken() {
+    InMemoryOAuth2TokenService tokenService = new InMemoryOAuth2TokenService();
+    tokenService.setRotateRefreshTokens(true);
+    OAuth2AccessToken token = tokenService.generateAccessToken(TESTREQUEST0);
+    tokenService.refreshToken(token.getRefreshToken(), CLIENTID);
+
+    tokenService.removeExpiredTokens(Long.MAX_VALUE);
+
+    assertThat(tokenService.supersededRefreshTokens).isEmpty();
+  }
+
+  @Test
+  public void testRemoveExpiredRefreshTokens_idleTooLong_removesTokensAndUser() {
+    InMemoryOAuth2TokenService tokenService = new InMemoryOAuth2TokenService();
+    tokenService.setRefreshTokenLifetime(0, 3600);
+    OAuth2AccessToken token = tokenService.generateAccessToken(TESTREQUEST0);
+
+    tokenService.removeExpiredRefreshTokens(Instant.now().getEpochSecond() + 7200);
+
+    assertThat(tokenService.readRefreshToken(token.getRefreshToken())).isEmpty();
+    assertThat(tokenService.readAccessToken(token.getAccessToken())).isEmpty();
+    assertThat(tokenService.userTokensMap).isEmpty();
+  }
+
+  @Test
+  public void testRemoveExpiredRefreshTokens_pastAbsoluteLifetime_removesRotatedFamily() {
+    InMemoryOAuth2TokenService tokenService = new InMemoryOAuth2TokenService();
+    tokenService.setRotateRefreshTokens(true);
+    tokenService.setRefreshTokenLifetime(3600, 0);
+    OAuth2AccessToken token = tokenService.generateAccessToken(TESTREQUEST0);
+    OAuth2AccessToken refreshed =
+        tokenService.refreshToken(token.getRefreshToken(), CLIENTID).getValue().get();
+
+    tokenService.removeExpiredRefreshTokens(Instant.now().getEpochSecond() + 7200);
+
+    assertThat(tokenService.readRefreshToken(refreshed.getRefreshToken())).isEmpty();
+    assertThat(tokenService.refreshTokenIndex).isEmpty();
+  }
+
+  @Test
+  public void testRemoveExpiredRefreshTokens_noLifetimes_keepsTokens() {
+    InMemoryOAuth2TokenService tokenService = new InMemoryOAuth2TokenService();
+    tokenService.setRefreshTokenLifetime(0, 0);
+    OAuth2AccessToken token = tokenService.generateAccessToken(TESTREQUEST0);
+
+    tokenService.removeExpiredRefreshTokens(Instant.now().getEpochSecond() + 7200);
+
+    assertThat(tokenService.readRefreshToken(token.getRefreshToken())).isPresent();
+  }
+
+  @Test
+  public void testRemoveOldRevocations_pastLongestLifetime_epochForgotten() {
+    InMemoryOAuth2TokenService tokenService = new InMemoryOAuth2TokenService();
+    tokenService.setRefreshTokenLifetime(0, 3600);
+    tokenService.revokeUserTokens(USERNAME);
+    long now = Instant.now().getEpochSecond();
+
+    tokenService.removeOldRevocations(now + 60);
+    assertThat(tokenService.revocationEpochs.epochOf(USERNAME, RevocationEpochs.ANY))
+        .isGreaterThan(0L);
+
+    tokenService.removeOldRevocations(now + 7200);
+    assertThat(tokenService.revocationEpochs.epochOf(USERNAME, RevocationEpochs.ANY))
+        .isEqualTo(0L);
+  }
+
+  @Test
+  public void testRemoveOldRevocations_noLifetimes_epochKept() {
+    InMemoryOAuth2TokenService tokenService = new InMemoryOAuth2TokenService();
+    tokenService.setRefreshTokenLifetime(0, 0);
+    tokenService.revokeUserTokens(USERNAME);
+
+    tokenService.removeOldRevocations(Instant.now().getEpochSecond() + 7200);
+
+    assertThat(tokenService.revocationEpochs.epochOf(USERNAME, RevocationEpochs.ANY))
+        .isGreaterThan(0L);
+  }
+
+  private OAuth2Request otherUserRequest() {
+    return TESTREQUEST0.toBuilder()
+        .setRequestAuth(TESTREQUEST0.getRequestAuth().toBuilder().setUsername("222"))
+        .build();
+  }
 }
@@ -0,0 +1,110 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.token;
+
+import com.google.googleidentity.oauth2.request.OAuth2Request;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Throughput of 64 concurrent requests for the same user in {@link InMemoryOAuth2TokenService},
+ * which all update the same user entry. Not run by the unit tests, run {@link #main(String[])}
+ * from the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Threads(64)
+@Fork(1)
+public class InMemoryTokenContentionBenchmark {
+
+  private static final String CLIENTID = "client";
+  private static final String USERNAME = "user";
+
+  private static final OAuth2Request REQUEST =
+      OAuth2Request.newBuilder()
+          .setRequestAuth(
+              OAuth2Request.RequestAuth.newBuilder()
+                  .setClientId(CLIENTID)
+                  .setUsername(USERNAME)
+                  .build())
+          .setRequestBody(
+              OAuth2Request.RequestBody.newBuilder()
+                  .setIsScoped(true)
+                  .addScopes("read")
+                  .setRefreshable(true)
+                  .build())
+          .build();
+
+  private static final OAuth2Request ACCESS_ONLY_REQUEST =
+      REQUEST.toBuilder()
+          .setRequestBody(REQUEST.getRequestBody().toBuilder().setRefreshable(false))
+          .build();
+
+  private InMemoryOAuth2TokenService tokenService;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    tokenService = new InMemoryOAuth2TokenService();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    tokenService.service.shutdownNow();
+  }
+
+  /** Issue and revoke, which empties and removes the user again and again. */
+  @Benchmark
+  public boolean issueAndRevoke() {
+    OAuth2AccessToken token = tokenService.generateAccessToken(REQUEST);
+    return tokenService.revokeByRefreshToken(token.getRefreshToken());
+  }
+
+  /** Issue, read and revoke an access token without refresh token. */
+  @Benchmark
+  public boolean issueReadAndRevoke() {
+    OAuth2AccessToken token = tokenService.generateAccessToken(ACCESS_ONLY_REQUEST);
+    tokenService.readAccessToken(token.getAccessToken());
+    return tokenService.revokeByAccessToken(token.getAccessToken());
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    Options options =
+        new OptionsBuilder()
+            .include(InMemoryTokenContentionBenchmark.class.getSimpleName())
+            .build();
+    new Runner(options).run();
+  }
+}
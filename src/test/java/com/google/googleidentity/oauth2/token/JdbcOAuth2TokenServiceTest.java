@@ -0,0 +1,101 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.token;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.startsWith;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.hash.HashCode;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.time.Duration;
+import javax.sql.DataSource;
+import org.junit.Test;
+
+/** Tests for {@link JdbcOAuth2TokenService}, against a mocked database */
+public class JdbcOAuth2TokenServiceTest {
+
+  private static final String CLIENTID = "client";
+  private static final String USERNAME = "user";
+
+  private static final byte[] ACCESS_RISC_ID = TokenHashes.riscIdentifierBytes("access");
+  private static final byte[] REFRESH_RISC_ID = TokenHashes.riscIdentifierBytes("refresh");
+
+  @Test
+  public void testListUserTokens_rowsOfBothTables_listedByRiscIdentifier() throws Exception {
+    DataSource dataSource = mock(DataSource.class);
+    Connection conn = mock(Connection.class);
+    PreparedStatement statement = mock(PreparedStatement.class);
+    ResultSet result = mock(ResultSet.class);
+    when(dataSource.getConnection()).thenReturn(conn);
+    when(conn.prepareStatement(anyString())).thenReturn(statement);
+    when(statement.executeQuery()).thenReturn(result);
+    when(result.next()).thenReturn(true, true, false);
+    when(result.getString("token_type")).thenReturn("access", "refresh");
+    when(result.getString("client_id")).thenReturn(CLIENTID);
+    when(result.getString("username")).thenReturn(USERNAME);
+    when(result.getString("scopes")).thenReturn("read");
+    when(result.getLong("expired_time")).thenReturn(100L);
+    when(result.getBytes("risc_id")).thenReturn(ACCESS_RISC_ID, REFRESH_RISC_ID);
+
+    UserTokenList tokens =
+        new JdbcOAuth2TokenService(dataSource, Duration.ZERO).listUserTokens(USERNAME);
+
+    verify(conn).prepareStatement(anyString());
+    verify(statement).setString(1, USERNAME);
+    verify(statement).setString(4, USERNAME);
+    assertThat(tokens.getAccessTokens()).hasSize(1);
+    OAuth2AccessToken accessToken = tokens.getAccessTokens().get(0);
+    assertThat(accessToken.getAccessToken()).isEmpty();
+    assertThat(accessToken.getRiscIdentifier())
+        .isEqualTo(HashCode.fromBytes(ACCESS_RISC_ID).toString());
+    assertThat(accessToken.getClientId()).isEqualTo(CLIENTID);
+    assertThat(accessToken.getScopesList()).containsExactly("read");
+    assertThat(tokens.getRefreshTokens()).hasSize(1);
+    OAuth2RefreshToken refreshToken = tokens.getRefreshTokens().get(0);
+    assertThat(refreshToken.getRefreshToken()).isEmpty();
+    assertThat(refreshToken.getRiscIdentifier()).isEqualTo(TokenHashes.riscIdentifier("refresh"));
+  }
+
+  @Test
+  public void testRevokeUserClientTokens_onlyExpiredOrNoTokens_epochStillRecorded()
+      throws Exception {
+    DataSource dataSource = mock(DataSource.class);
+    Connection conn = mock(Connection.class);
+    PreparedStatement statement = mock(PreparedStatement.class);
+    ResultSet result = mock(ResultSet.class);
+    when(dataSource.getConnection()).thenReturn(conn);
+    when(conn.prepareStatement(anyString())).thenReturn(statement);
+    when(statement.executeQuery()).thenReturn(result);
+    when(result.next()).thenReturn(true);
+    when(result.getBoolean("has_tokens")).thenReturn(false);
+
+    boolean revoked =
+        new JdbcOAuth2TokenService(dataSource, Duration.ZERO)
+            .revokeUserClientTokens(USERNAME, CLIENTID);
+
+    assertThat(revoked).isFalse();
+    verify(conn).prepareStatement(startsWith("UPDATE revocation_sequence"));
+    verify(conn).prepareStatement(startsWith("INSERT INTO revocation_epoch"));
+    verify(conn).commit();
+  }
+}
@@ -0,0 +1,143 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.token;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth8.assertThat;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.googleidentity.oauth2.jwt.JwkStore;
+import com.google.googleidentity.oauth2.request.OAuth2Request;
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.KeyUse;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.jose.jwk.gen.RSAKeyGenerator;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests for {@link JwtOAuth2TokenService} */
+public class JwtOAuth2TokenServiceTest {
+
+  private static final String CLIENTID = "client";
+  private static final String USERNAME = "user";
+
+  private static final OAuth2Request REQUEST =
+      OAuth2Request.newBuilder()
+          .setRequestAuth(
+              OAuth2Request.RequestAuth.newBuilder()
+                  .setClientId(CLIENTID)
+                  .setUsername(USERNAME)
+                  .build())
+          .setRequestBody(
+              OAuth2Request.RequestBody.newBuilder()
+                  .setIsScoped(true)
+                  .addScopes("read")
+                  .addScopes("write")
+                  .setRefreshable(true)
+                  .build())
+          .build();
+
+  private final Clock clock = mock(Clock.class);
+  private Instant now = Instant.now();
+  private OAuth2TokenService delegate;
+  private JwtOAuth2TokenService tokenService;
+
+  @Before
+  public void init() throws JOSEException {
+    when(clock.instant()).thenAnswer(invocation -> now);
+    delegate = spy(new InMemoryOAuth2TokenService());
+    tokenService = new JwtOAuth2TokenService(delegate, new JwkStore(), clock);
+  }
+
+  @Test
+  public void testReadAccessToken_jws_readWithoutStore() {
+    OAuth2AccessToken token = tokenService.generateAccessToken(REQUEST);
+
+    OAuth2AccessToken read = tokenService.readAccessToken(token.getAccessToken()).get();
+
+    assertThat(read.getClientId()).isEqualTo(CLIENTID);
+    assertThat(read.getUsername()).isEqualTo(USERNAME);
+    assertThat(read.getIsScoped()).isTrue();
+    assertThat(read.getScopesList()).containsExactly("read", "write");
+    assertThat(read.getExpiredTime()).isEqualTo(token.getExpiredTime());
+    verify(delegate, never()).readAccessToken(anyString());
+  }
+
+  @Test
+  public void testReadAccessToken_otherInstanceWithSharedKeys_readWithoutStore()
+      throws JOSEException {
+    RSAKey key = new RSAKeyGenerator(2048).keyID("shared").keyUse(KeyUse.SIGNATURE).generate();
+    JwtOAuth2TokenService issuer =
+        new JwtOAuth2TokenService(delegate, new JwkStore(new JWKSet(key)), clock);
+    JwtOAuth2TokenService verifier =
+        new JwtOAuth2TokenService(
+            new InMemoryOAuth2TokenService(), new JwkStore(new JWKSet(key)), clock);
+    OAuth2AccessToken token = issuer.generateAccessToken(REQUEST);
+
+    assertThat(verifier.readAccessToken(token.getAccessToken()).get().getUsername())
+        .isEqualTo(USERNAME);
+  }
+
+  @Test
+  public void testReadAccessToken_tamperedJws_empty() {
+    String jws = tokenService.generateAccessToken(REQUEST).getAccessToken();
+    int payload = jws.indexOf('.') + 1;
+    char replacement = jws.charAt(payload) == 'e' ? 'f' : 'e';
+    String tampered = jws.substring(0, payload) + replacement + jws.substring(payload + 1);
+
+    assertThat(tokenService.readAccessToken(tampered)).isEmpty();
+  }
+
+  @Test
+  public void testReadAccessToken_expiredJws_returnedWithPastExpiredTime() {
+    String jws = tokenService.generateAccessToken(REQUEST).getAccessToken();
+
+    now = now.plus(Duration.ofHours(2));
+
+    assertThat(tokenService.readAccessToken(jws).get().getExpiredTime())
+        .isLessThan(now.getEpochSecond());
+  }
+
+  @Test
+  public void testReadAccessToken_opaqueToken_readFromStore() {
+    OAuth2AccessToken stored = delegate.generateAccessToken(REQUEST);
+
+    assertThat(tokenService.readAccessToken(stored.getAccessToken())).hasValue(stored);
+  }
+
+  @Test
+  public void testRevokeByAccessToken_jws_storedTokenRevoked() {
+    String jws = tokenService.generateAccessToken(REQUEST).getAccessToken();
+    List<OAuth2AccessToken> stored = delegate.listUserClientAccessTokens(USERNAME, CLIENTID);
+    assertThat(stored).hasSize(1);
+
+    assertThat(tokenService.revokeByAccessToken(jws)).isTrue();
+
+    verify(delegate).revokeByAccessToken(stored.get(0).getAccessToken());
+    assertThat(delegate.listUserClientAccessTokens(USERNAME, CLIENTID)).isEmpty();
+  }
+}
@@ -0,0 +1,126 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.token;
+
+import com.google.common.io.BaseEncoding;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compare {@link TokenCodec} with the previous token encryption, which looked up an AES/ECB cipher
+ * and joined the fields with tabs on every call.
+ *
+ * <p>Not run by the unit tests. Run with {@code mvn test-compile exec:java
+ * -Dexec.mainClass=com.google.googleidentity.oauth2.token.TokenCodecBenchmark
+ * -Dexec.classpathScope=test}, which runs every benchmark with 1, 8 and 32 threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TokenCodecBenchmark {
+
+  private static final String USERNAME = "user@example.com";
+  private static final String CLIENTID = "google-client";
+
+  private Key aesKey;
+  private TokenCodec codec;
+  private String codecToken;
+  private String legacyToken;
+
+  @Setup
+  public void setUp() throws GeneralSecurityException {
+    KeyGenerator generator = KeyGenerator.getInstance("AES");
+    generator.init(256);
+    aesKey = generator.generateKey();
+    codec = new TokenCodec(aesKey);
+    codecToken = codec.encode(USERNAME, CLIENTID);
+    legacyToken = legacyEncrypt(aesKey, USERNAME, CLIENTID, UUID.randomUUID().toString());
+  }
+
+  @Benchmark
+  public String codecEncrypt() {
+    return codec.encode(USERNAME, CLIENTID);
+  }
+
+  @Benchmark
+  public UserClientTokenInfo codecDecrypt() {
+    return codec.decode(codecToken);
+  }
+
+  @Benchmark
+  public String legacyEncrypt() throws GeneralSecurityException {
+    return legacyEncrypt(aesKey, USERNAME, CLIENTID, UUID.randomUUID().toString());
+  }
+
+  @Benchmark
+  public String[] legacyDecrypt() throws GeneralSecurityException {
+    return legacyDecrypt(aesKey, legacyToken);
+  }
+
+  /** The token encryption used before {@link TokenCodec}. */
+  private static String legacyEncrypt(Key aesKey, String username, String clientID, String value)
+      throws GeneralSecurityException {
+    String tokenInfo = username + "\t" + clientID + "\t" + value;
+    Cipher cipher = Cipher.getInstance("AES");
+    cipher.init(Cipher.ENCRYPT_MODE, aesKey);
+    byte[] encryptedBytes = cipher.doFinal(tokenInfo.getBytes(StandardCharsets.UTF_8));
+    return BaseEncoding.base64Url().withPadChar('*').encode(encryptedBytes);
+  }
+
+  /** The token decryption used before {@link TokenCodec}. */
+  private static String[] legacyDecrypt(Key aesKey, String tokenString)
+      throws GeneralSecurityException {
+    Cipher cipher = Cipher.getInstance("AES");
+    byte[] bytesToDecrypt = BaseEncoding.base64Url().withPadChar('*').decode(tokenString);
+    cipher.init(Cipher.DECRYPT_MODE, aesKey);
+    byte[] decryptedBytes = cipher.doFinal(bytesToDecrypt);
+    return new String(decryptedBytes, StandardCharsets.UTF_8).split("\t");
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    for (int threads : new int[] {1, 8, 32}) {
+      Options options =
+          new OptionsBuilder()
+              .include(TokenCodecBenchmark.class.getSimpleName())
+              .threads(threads)
+              .build();
+      new Runner(options).run();
+    }
+  }
+}
@@ -0,0 +1,87 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.token;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.security.InvalidParameterException;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Set;
+import javax.crypto.KeyGenerator;
+import org.junit.Test;
+
+/** Tests for {@link TokenCodec} */
+public class TokenCodecTest {
+
+  private static final String USERNAME = "user";
+  private static final String CLIENTID = "client";
+
+  private static TokenCodec newCodec() throws NoSuchAlgorithmException {
+    KeyGenerator generator = KeyGenerator.getInstance("AES");
+    generator.init(256);
+    return new TokenCodec(generator.generateKey());
+  }
+
+  @Test
+  public void testDecode_encodedToken_sameInfo() throws NoSuchAlgorithmException {
+    TokenCodec codec = newCodec();
+    UserClientTokenInfo info =
+        new UserClientTokenInfo("用户\tname", CLIENTID, new byte[] {1, 2, 3, 4});
+
+    UserClientTokenInfo decoded = codec.decode(codec.encode(info));
+
+    assertThat(decoded.getUsername()).isEqualTo("用户\tname");
+    assertThat(decoded.getClientID()).isEqualTo(CLIENTID);
+    assertThat(decoded.getTokenValue()).isEqualTo(new byte[] {1, 2, 3, 4});
+  }
+
+  @Test
+  public void testEncode_sameUserClient_uniqueUrlSafeTokens() throws NoSuchAlgorithmException {
+    TokenCodec codec = newCodec();
+    Set<String> tokens = new HashSet<>();
+
+    for (int i = 0; i < 1000; i++) {
+      String token = codec.encode(USERNAME, CLIENTID);
+      assertThat(token).matches("[A-Za-z0-9_-]+");
+      tokens.add(token);
+    }
+
+    assertThat(tokens).hasSize(1000);
+  }
+
+  @Test
+  public void testDecode_tamperedToken_throwException() throws NoSuchAlgorithmException {
+    TokenCodec codec = newCodec();
+    String token = codec.encode(USERNAME, CLIENTID);
+    char c = token.charAt(20);
+    String tampered = token.substring(0, 20) + (c == 'A' ? 'B' : 'A') + token.substring(21);
+
+    assertThrows(InvalidParameterException.class, () -> codec.decode(tampered));
+  }
+
+  @Test
+  public void testDecode_otherKeyOrGarbage_throwException() throws NoSuchAlgorithmException {
+    TokenCodec codec = newCodec();
+    String token = newCodec().encode(USERNAME, CLIENTID);
+
+    assertThrows(InvalidParameterException.class, () -> codec.decode(token));
+    assertThrows(InvalidParameterException.class, () -> codec.decode("abc"));
+    assertThrows(InvalidParameterException.class, () -> codec.decode("not a token!"));
+  }
+}
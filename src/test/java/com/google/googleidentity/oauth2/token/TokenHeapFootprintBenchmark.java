@@ -0,0 +1,109 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.token;
+
+import com.google.common.base.Splitter;
+import com.google.googleidentity.oauth2.request.OAuth2Request;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Paths;
+import java.time.Instant;
+
+/**
+ * Retained heap per live token of {@link InMemoryOAuth2TokenService} and {@link
+ * CompactInMemoryOAuth2TokenService} at 1M and 10M tokens. The cold store is an {@link
+ * InMemoryOAuth2TokenService} whose users all went idle, their access tokens expired and their
+ * refresh tokens were moved to its {@link ColdTokenTier}.
+ *
+ * <p>Not a JMH benchmark, JMH measures time and allocation while this measures what stays on the
+ * heap. Each run issues refreshable tokens for 100 tokens per user over 3 clients, then compares
+ * the used heap after a full GC with the used heap before. Run {@link #main(String[])} from the
+ * test classpath with a heap large enough for the largest count, e.g. -Xmx16g, the counts and
+ * stores can be set with the system properties benchmark.tokens and benchmark.stores.
+ */
+public class TokenHeapFootprintBenchmark {
+
+  private static final int TOKENS_PER_USER = 100;
+  private static final int CLIENTS = 3;
+
+  public static void main(String[] args) throws InterruptedException {
+    String stores = System.getProperty("benchmark.stores", "inMemory,compact,cold");
+    String counts = System.getProperty("benchmark.tokens", "1000000,10000000");
+    for (String count : Splitter.on(',').trimResults().split(counts)) {
+      for (String store : Splitter.on(',').trimResults().split(stores)) {
+        run(store, Integer.parseInt(count));
+      }
+    }
+  }
+
+  private static void run(String store, int tokens) throws InterruptedException {
+    long before = usedHeapAfterGc();
+    OAuth2TokenService tokenService = newTokenService(store);
+
+    OAuth2Request.Builder request = OAuth2Request.newBuilder();
+    request
+        .getRequestBodyBuilder()
+        .setIsScoped(true)
+        .addScopes("read")
+        .addScopes("write")
+        .setRefreshable(true);
+    for (int i = 0; i < tokens; i++) {
+      request
+          .getRequestAuthBuilder()
+          .setUsername("user" + i / TOKENS_PER_USER)
+          .setClientId("client" + i % CLIENTS);
+      tokenService.generateAccessToken(request.build());
+    }
+    if (store.equals("cold")) {
+      InMemoryOAuth2TokenService inMemory = (InMemoryOAuth2TokenService) tokenService;
+      inMemory.removeExpiredTokens(Instant.now().getEpochSecond() + 3600);
+      inMemory.sweepColdUsers();
+      inMemory.sweepColdUsers();
+    }
+
+    long after = usedHeapAfterGc();
+    System.out.printf(
+        "%-10s %,12d tokens %,8d bytes per access and refresh token pair%n",
+        store, tokens, (after - before) / tokens);
+    // Keeps the tokens reachable until measured.
+    tokenService.reset();
+  }
+
+  private static OAuth2TokenService newTokenService(String store) {
+    if (store.equals("compact")) {
+      CompactInMemoryOAuth2TokenService tokenService = new CompactInMemoryOAuth2TokenService();
+      tokenService.service.shutdownNow();
+      return tokenService;
+    }
+    InMemoryOAuth2TokenService tokenService =
+        store.equals("cold")
+            ? new InMemoryOAuth2TokenService(
+                new ColdTokenTier(Paths.get(System.getProperty("java.io.tmpdir")), 64 << 20), 3600)
+            : new InMemoryOAuth2TokenService();
+    tokenService.service.shutdownNow();
+    return tokenService;
+  }
+
+  private static long usedHeapAfterGc() throws InterruptedException {
+    MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+      Thread.sleep(200);
+    }
+    return memory.getHeapMemoryUsage().getUsed();
+  }
+}
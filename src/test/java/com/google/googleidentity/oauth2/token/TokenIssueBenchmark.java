@@ -0,0 +1,126 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.token;
+
+import com.google.googleidentity.mysql.CloudSqlModule;
+import com.google.googleidentity.mysql.SchemaMigrator;
+import com.google.googleidentity.oauth2.request.OAuth2Request;
+import com.google.googleidentity.oauth2.util.OAuth2Enums.GrantType;
+import com.google.googleidentity.oauth2.util.OAuth2Enums.ResponseType;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Throughput and latency of issuing refreshable tokens with {@link JdbcOAuth2TokenService} from
+ * many threads, committing every issuance on its own (maxDelayMillis 0) or with group commit.
+ *
+ * <p>Throughput shows how many issuances the database sustains, the sample time percentiles show
+ * the latency group commit adds to each of them. Needs a MySQL database which it is allowed to
+ * wipe, given by the system properties benchmark.jdbc.url, benchmark.jdbc.user and
+ * benchmark.jdbc.password, the url should set rewriteBatchedStatements=true. Not run by the unit
+ * tests, run {@link #main(String[])} from the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Threads(64)
+@Fork(1)
+public class TokenIssueBenchmark {
+
+  private static final OAuth2Request REQUEST =
+      OAuth2Request.newBuilder()
+          .setRequestAuth(
+              OAuth2Request.RequestAuth.newBuilder()
+                  .setClientId("client")
+                  .setUsername("user")
+                  .build())
+          .setRequestBody(
+              OAuth2Request.RequestBody.newBuilder()
+                  .setIsScoped(true)
+                  .addScopes("read")
+                  .setResponseType(ResponseType.CODE)
+                  .setRefreshable(true)
+                  .setGrantType(GrantType.AUTHORIZATION_CODE)
+                  .build())
+          .build();
+
+  @Param({"0", "1", "2", "5"})
+  public long maxDelayMillis;
+
+  private HikariDataSource dataSource;
+  private JdbcOAuth2TokenService tokenService;
+
+  @Setup(Level.Trial)
+  public void setUp() throws SQLException {
+    HikariConfig config = new HikariConfig();
+    config.setJdbcUrl(System.getProperty("benchmark.jdbc.url"));
+    config.setUsername(System.getProperty("benchmark.jdbc.user"));
+    config.setPassword(System.getProperty("benchmark.jdbc.password"));
+    config.setMaximumPoolSize(20);
+    dataSource = new HikariDataSource(config);
+
+    CloudSqlModule.dropTables(dataSource);
+    new SchemaMigrator(dataSource).migrate();
+
+    tokenService = new JdbcOAuth2TokenService(dataSource, Duration.ofMillis(maxDelayMillis));
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    dataSource.close();
+  }
+
+  @Benchmark
+  public OAuth2AccessToken generateAccessToken() {
+    return tokenService.generateAccessToken(REQUEST);
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    Options options =
+        new OptionsBuilder()
+            .include(TokenIssueBenchmark.class.getSimpleName())
+            .jvmArgsAppend(
+                "-Dbenchmark.jdbc.url=" + System.getProperty("benchmark.jdbc.url"),
+                "-Dbenchmark.jdbc.user=" + System.getProperty("benchmark.jdbc.user"),
+                "-Dbenchmark.jdbc.password=" + System.getProperty("benchmark.jdbc.password"))
+            .build();
+    new Runner(options).run();
+  }
+}
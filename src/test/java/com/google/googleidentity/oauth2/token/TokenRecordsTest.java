@@ -0,0 +1,111 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.token;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.googleidentity.oauth2.token.TokenRecords.NONE;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+/** Tests for {@link TokenRecords} */
+public class TokenRecordsTest {
+
+  @Test
+  public void testAdd_canFindAndRead() {
+    TokenRecords records = new TokenRecords(true);
+
+    int record = records.add(1, 2, 3, 4, 5, 6, -1, NONE);
+
+    assertThat(records.find(1, 2)).isEqualTo(record);
+    assertThat(records.find(2, 1)).isEqualTo(NONE);
+    assertThat(records.user(record)).isEqualTo(3);
+    assertThat(records.client(record)).isEqualTo(4);
+    assertThat(records.scopes(record)).isEqualTo(5);
+    assertThat(records.epoch(record)).isEqualTo(6L);
+    // Read back unsigned, so expiries after 2038 survive.
+    assertThat(records.expiry(record)).isEqualTo(0xFFFFFFFFL);
+    assertThat(records.refresh(record)).isEqualTo(NONE);
+  }
+
+  @Test
+  public void testRemove_recordReusedAndOthersStillFound() {
+    TokenRecords records = new TokenRecords(false);
+    List<Integer> added = new ArrayList<>();
+    // Same high half and hash neighbours, so removing shifts entries back.
+    for (int i = 0; i < 1000; i++) {
+      added.add(records.add(7, i, 0, 0, 0, 0, 0, NONE));
+    }
+
+    for (int i = 0; i < 1000; i += 2) {
+      records.remove(added.get(i));
+    }
+
+    for (int i = 0; i < 1000; i++) {
+      assertThat(records.find(7, i)).isEqualTo(i % 2 == 0 ? NONE : added.get(i));
+    }
+    assertThat(records.size()).isEqualTo(500);
+    assertThat(records.add(8, 0, 0, 0, 0, 0, 0, NONE)).isLessThan(1000);
+    assertThat(records.highWater()).isEqualTo(1000);
+  }
+
+  @Test
+  public void testRandomAddAndRemove_indexConsistent() {
+    TokenRecords records = new TokenRecords(false);
+    Random random = new Random(42);
+    List<long[]> live = new ArrayList<>();
+    for (int i = 0; i < 100000; i++) {
+      if (live.isEmpty() || random.nextInt(3) > 0) {
+        long high = random.nextInt(100000);
+        long low = random.nextInt(64);
+        if (records.find(high, low) == NONE) {
+          live.add(new long[] {high, low, records.add(high, low, 0, 0, 0, 0, 0, NONE)});
+        }
+      } else {
+        long[] removed = live.remove(random.nextInt(live.size()));
+        records.remove((int) removed[2]);
+        assertThat(records.find(removed[0], removed[1])).isEqualTo(NONE);
+      }
+    }
+
+    for (long[] entry : live) {
+      assertThat(records.find(entry[0], entry[1])).isEqualTo((int) entry[2]);
+    }
+    assertThat(records.size()).isEqualTo(live.size());
+  }
+
+  @Test
+  public void testUnlink_middleAndHead() {
+    TokenRecords records = new TokenRecords(false);
+    int first = records.add(1, 1, 0, 0, 0, 0, 0, NONE);
+    int second = records.add(2, 2, 0, 0, 0, 0, 0, NONE);
+    int third = records.add(3, 3, 0, 0, 0, 0, 0, NONE);
+    int head = records.link(first, NONE);
+    head = records.link(second, head);
+    head = records.link(third, head);
+
+    head = records.unlink(second, head);
+    assertThat(head).isEqualTo(third);
+    assertThat(records.next(third)).isEqualTo(first);
+
+    head = records.unlink(third, head);
+    assertThat(head).isEqualTo(first);
+    assertThat(records.next(first)).isEqualTo(NONE);
+  }
+}
@@ -113,13 +113,57 @@ public class UserTokensTest {
   }
 
   @Test
-  public void testClearExpiredTokens_tokenRemoved() {
+  public void testRemoveExpiredAccessToken_refreshTokenKeptAndGroupUpdated() {
     UserTokens user = new UserTokens(USERNAME);
 
-    user.addAccessToken(CLIENTID, TEST_ACCESS_TOKEN);
+    OAuth2RefreshToken refreshToken =
+        OAuth2RefreshToken.newBuilder()
+            .setClientId(CLIENTID)
+            .setUsername(USERNAME)
+            .setRefreshToken(UUID.randomUUID().toString())
+            .build();
+    OAuth2AccessToken accessToken =
+        TEST_ACCESS_TOKEN.toBuilder()
+            .setAccessToken(UUID.randomUUID().toString())
+            .setRefreshToken(refreshToken.getRefreshToken())
+            .build();
+    user.addRefreshToken(CLIENTID, refreshToken);
+    user.addAccessToken(CLIENTID, accessToken);
 
-    user.clearExpiredTokens();
+    assertThat(user.removeExpiredAccessToken(accessToken)).isTrue();
 
-    assertThat(user.listRefreshTokens(CLIENTID)).isEmpty();
+    assertThat(user.listAccessTokens(CLIENTID)).isEmpty();
+    assertThat(user.listRefreshTokens(CLIENTID)).containsExactly(refreshToken);
+    assertThat(user.revokeByRefreshToken(refreshToken)).isEmpty();
+    assertThat(user.removeExpiredAccessToken(accessToken)).isFalse();
+  }
+
+  @Test
+  public void testAddRefreshToken_sameFamily_supersedesAndKeepsAccessTokens() {
+    UserTokens user = new UserTokens(USERNAME);
+    OAuth2RefreshToken first =
+        OAuth2RefreshToken.newBuilder()
+            .setClientId(CLIENTID)
+            .setUsername(USERNAME)
+            .setRefreshToken(UUID.randomUUID().toString())
+            .setFamilyId("family")
+            .build();
+    OAuth2RefreshToken second =
+        first.toBuilder().setRefreshToken(UUID.randomUUID().toString()).build();
+    OAuth2AccessToken accessToken =
+        TEST_ACCESS_TOKEN.toBuilder()
+            .setAccessToken(UUID.randomUUID().toString())
+            .setRefreshToken(first.getRefreshToken())
+            .setFamilyId("family")
+            .build();
+    user.addRefreshToken(CLIENTID, first);
+    user.addAccessToken(CLIENTID, accessToken);
+
+    assertThat(user.addRefreshToken(CLIENTID, second)).isEqualTo(first);
+
+    assertThat(user.readFamily(CLIENTID, "family")).isEqualTo(second);
+    assertThat(user.listRefreshTokens(CLIENTID)).containsExactly(second);
+    assertThat(user.revokeByRefreshToken(first)).isEmpty();
+    assertThat(user.revokeByRefreshToken(second)).containsExactly(accessToken.getAccessToken());
   }
 }
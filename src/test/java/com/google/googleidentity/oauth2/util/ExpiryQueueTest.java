@@ -0,0 +1,51 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.util;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+
+/** Tests for {@link ExpiryQueue} */
+public class ExpiryQueueTest {
+
+  @Test
+  public void testPollExpired_onlyPastBucketsReturned() {
+    ExpiryQueue<String> queue = new ExpiryQueue<>(10);
+    queue.add("a", 100);
+    queue.add("b", 105);
+    queue.add("c", 110);
+    queue.add("d", 200);
+
+    assertThat(queue.pollExpired(109)).isEmpty();
+    assertThat(queue.pollExpired(110)).containsExactly("a", "b");
+    assertThat(queue.pollExpired(150)).containsExactly("c");
+    assertThat(queue.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void testRemove_removedKeyNotReturned() {
+    ExpiryQueue<String> queue = new ExpiryQueue<>(1);
+    queue.add("a", 100);
+    queue.add("b", 100);
+
+    queue.remove("a", 100);
+
+    assertThat(queue.pollExpired(1000)).containsExactly("b");
+    assertThat(queue.size()).isEqualTo(0);
+  }
+}
@@ -0,0 +1,90 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.oauth2.util;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.sql.SQLException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import org.junit.Test;
+
+/** Tests for {@link ScheduledTasks} */
+public class ScheduledTasksTest {
+
+  @Test
+  public void testQuietly_taskThrows_laterRunsStillScheduled() throws InterruptedException {
+    AtomicInteger runs = new AtomicInteger();
+    Runnable task =
+        ScheduledTasks.quietly(
+            Logger.getLogger("ScheduledTasksTest"),
+            "Expected error!",
+            () -> {
+              runs.incrementAndGet();
+              throw new IllegalStateException();
+            });
+    ScheduledExecutorService service = Executors.newSingleThreadScheduledExecutor();
+    try {
+      ScheduledFuture<?> future = service.scheduleAtFixedRate(task, 0, 1, TimeUnit.MILLISECONDS);
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+      while (runs.get() < 3 && System.nanoTime() < deadline) {
+        Thread.sleep(1);
+      }
+
+      assertThat(runs.get()).isAtLeast(3);
+      assertThat(future.isDone()).isFalse();
+    } finally {
+      service.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testQuietly_checkedException_loggedNotThrown() {
+    AtomicInteger runs = new AtomicInteger();
+    Runnable task =
+        ScheduledTasks.quietly(
+            Logger.getLogger("ScheduledTasksTest"),
+            "Expected error!",
+            () -> {
+              runs.incrementAndGet();
+              throw new SQLException();
+            });
+
+    task.run();
+
+    assertThat(runs.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void testQuietly_interrupted_interruptKept() {
+    Runnable task =
+        ScheduledTasks.quietly(
+            Logger.getLogger("ScheduledTasksTest"),
+            "Unexpected error!",
+            () -> {
+              throw new InterruptedException();
+            });
+
+    task.run();
+
+    assertThat(Thread.interrupted()).isTrue();
+  }
+}
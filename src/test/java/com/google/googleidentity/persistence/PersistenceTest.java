@@ -0,0 +1,182 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.persistence;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableSet;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Tests for {@link Persistence} */
+public class PersistenceTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private Path directory;
+  private Persistence persistence;
+  private MapStore store;
+
+  @Before
+  public void setUp() throws IOException {
+    directory = folder.getRoot().toPath();
+    persistence = new Persistence(directory, 4);
+    store = new MapStore(persistence);
+    persistence.recover(ImmutableSet.of(store));
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    persistence.stop();
+  }
+
+  @Test
+  public void testRecover_afterPuts_restoresEntries() throws IOException {
+    for (int i = 0; i < 1000; i++) {
+      store.put("key" + i, "value" + i);
+    }
+    store.put("key0", "updated");
+
+    MapStore recovered = restart();
+
+    assertThat(recovered.entries).containsExactlyEntriesIn(store.entries);
+    assertThat(recovered.entries).containsEntry("key0", "updated");
+  }
+
+  @Test
+  public void testRecover_afterClear_appliesClearInOrder() throws IOException {
+    for (int i = 0; i < 100; i++) {
+      store.put("key" + i, "value" + i);
+    }
+    store.clear();
+    store.put("key1", "after");
+
+    MapStore recovered = restart();
+
+    assertThat(recovered.entries).containsExactly("key1", "after");
+  }
+
+  @Test
+  public void testCheckpoint_deletesReplacedFilesAndRecovers() throws IOException {
+    store.put("before", "1");
+    persistence.checkpoint();
+    store.put("after", "2");
+    persistence.checkpoint();
+    store.put("last", "3");
+
+    assertThat(Files.exists(directory.resolve("wal-1.log"))).isFalse();
+    assertThat(Files.exists(directory.resolve("snapshot-2.done"))).isFalse();
+    assertThat(Files.exists(directory.resolve("snapshot-3.done"))).isTrue();
+
+    MapStore recovered = restart();
+
+    assertThat(recovered.entries).containsExactly("before", "1", "after", "2", "last", "3");
+  }
+
+  @Test
+  public void testRecover_tornLastRecord_ignoresIt() throws IOException {
+    store.put("first", "1");
+    store.put("second", "2");
+    persistence.stop();
+    Path segment = directory.resolve("wal-1.log");
+    byte[] bytes = Files.readAllBytes(segment);
+    Files.write(segment, Arrays.copyOf(bytes, bytes.length - 2));
+
+    MapStore recovered = restart();
+
+    assertThat(recovered.entries).containsExactly("first", "1");
+  }
+
+  private MapStore restart() throws IOException {
+    persistence.stop();
+    persistence = new Persistence(directory, 3);
+    MapStore recovered = new MapStore(persistence);
+    persistence.recover(ImmutableSet.of(recovered));
+    return recovered;
+  }
+
+  /** Keeps key value pairs, a record is the key and the value joined by '='. */
+  private static final class MapStore implements DurableStore {
+
+    private static final byte PUT = 1;
+    private static final byte CLEAR = 2;
+
+    private final Map<String, String> entries = new ConcurrentHashMap<>();
+    private final Persistence persistence;
+
+    MapStore(Persistence persistence) {
+      this.persistence = persistence;
+    }
+
+    void put(String key, String value) {
+      CompletableFuture<Void> durable;
+      synchronized (this) {
+        entries.put(key, value);
+        durable = persistence.append(record(key, value));
+      }
+      Persistence.await(durable);
+    }
+
+    void clear() {
+      CompletableFuture<Void> durable;
+      synchronized (this) {
+        entries.clear();
+        durable = persistence.append(LogRecord.barrier(getStoreId(), CLEAR, new byte[0]));
+      }
+      Persistence.await(durable);
+    }
+
+    @Override
+    public byte getStoreId() {
+      return 1;
+    }
+
+    @Override
+    public void writeSnapshot(SnapshotWriter snapshot) throws IOException {
+      for (Map.Entry<String, String> entry : entries.entrySet()) {
+        snapshot.write(record(entry.getKey(), entry.getValue()));
+      }
+    }
+
+    @Override
+    public void apply(LogRecord record) {
+      if (record.getType() == CLEAR) {
+        entries.clear();
+        return;
+      }
+      String entry = new String(record.getPayload(), StandardCharsets.UTF_8);
+      int separator = entry.indexOf('=');
+      entries.put(entry.substring(0, separator), entry.substring(separator + 1));
+    }
+
+    private LogRecord record(String key, String value) {
+      return LogRecord.of(
+          getStoreId(), PUT, key, (key + "=" + value).getBytes(StandardCharsets.UTF_8));
+    }
+  }
+}
@@ -0,0 +1,61 @@
+/*
+    Copyright 2020 Google LLC
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    https://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.google.googleidentity.servlet;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.googleidentity.oauth2.token.OAuth2AccessToken;
+import com.google.googleidentity.oauth2.token.OAuth2RefreshToken;
+import com.google.googleidentity.oauth2.token.TokenHashes;
+import java.util.List;
+import org.junit.Test;
+
+/** Tests for the token tables of {@link ViewTokensServlet} */
+public class ViewTokensServletTest {
+
+  @Test
+  public void testTokenRows_hashedStoreToken_shownByRiscIdentifier() {
+    // Listed like JdbcOAuth2TokenService does, without the token value.
+    OAuth2AccessToken token =
+        OAuth2AccessToken.newBuilder()
+            .setClientId("client")
+            .setRiscIdentifier(TokenHashes.riscIdentifier("access"))
+            .build();
+
+    List<List<String>> rows = ViewTokensServlet.accessTokenRows(ImmutableList.of(token));
+
+    assertThat(rows).hasSize(1);
+    assertThat(rows.get(0).get(0)).isNotEmpty();
+    assertThat(TokenHashes.riscIdentifier("access")).startsWith(rows.get(0).get(0));
+    assertThat(rows.get(0).get(1)).isEqualTo("client");
+  }
+
+  @Test
+  public void testTokenRows_tokenValue_sameIdAsHashedStore() {
+    OAuth2RefreshToken token = OAuth2RefreshToken.newBuilder().setRefreshToken("refresh").build();
+    OAuth2RefreshToken hashed =
+        OAuth2RefreshToken.newBuilder()
+            .setRiscIdentifier(TokenHashes.riscIdentifier("refresh"))
+            .build();
+
+    List<List<String>> rows = ViewTokensServlet.refreshTokenRows(ImmutableList.of(token, hashed));
+
+    assertThat(rows.get(0).get(0)).isNotEqualTo("refresh");
+    assertThat(rows.get(0).get(0)).isEqualTo(rows.get(1).get(0));
+  }
+}